@@ -81,6 +81,41 @@ public final class APConfig
     return getConfig ().getAsBoolean ("peppol.reporting.scheduled", true);
   }
 
+  public static int getPeppolReportingWriterQueueSize ()
+  {
+    return getConfig ().getAsInt ("peppol.reporting.writer.queuesize", 10_000);
+  }
+
+  public static int getPeppolReportingWriterMaxBatchSize ()
+  {
+    return getConfig ().getAsInt ("peppol.reporting.writer.maxbatch", 500);
+  }
+
+  public static long getPeppolReportingWriterOfferTimeoutMillis ()
+  {
+    return getConfig ().getAsLong ("peppol.reporting.writer.offer.timeout.millis", 500);
+  }
+
+  public static boolean isPeppolReportingIndexEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.reporting.index.enabled", true);
+  }
+
+  public static long getPeppolReportingIndexFlushSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.reporting.index.flush.seconds", 10);
+  }
+
+  public static boolean isPeppolReportCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.reporting.cache.enabled", true);
+  }
+
+  public static int getPeppolReportCacheMaxEntries ()
+  {
+    return getConfig ().getAsInt ("peppol.reporting.cache.memory.maxentries", 24);
+  }
+
   @Nullable
   public static String getRecommandApiInternalToken ()
   {
@@ -92,4 +127,335 @@ public final class APConfig
   {
     return getConfig ().getAsString ("recommand.api.endpoint");
   }
+
+  @Nonnull
+  public static String getRecommandApiForwardMode ()
+  {
+    return getConfig ().getAsString ("recommand.api.forwardmode", "json");
+  }
+
+  public static boolean isRecommandApiBatchEnabled ()
+  {
+    return getConfig ().getAsBoolean ("recommand.api.batch.enabled", false);
+  }
+
+  public static int getRecommandApiBatchMaxCount ()
+  {
+    return getConfig ().getAsInt ("recommand.api.batch.maxcount", 100);
+  }
+
+  public static long getRecommandApiBatchMaxBytes ()
+  {
+    return getConfig ().getAsLong ("recommand.api.batch.maxbytes", 10L * 1024 * 1024);
+  }
+
+  public static long getRecommandApiBatchLingerMillis ()
+  {
+    return getConfig ().getAsLong ("recommand.api.batch.linger.millis", 10);
+  }
+
+  public static int getRecommandApiBatchMaxInFlight ()
+  {
+    return getConfig ().getAsInt ("recommand.api.batch.maxinflight", 4);
+  }
+
+  public static boolean isInboundDuplicateDetectionEnabled ()
+  {
+    return getConfig ().getAsBoolean ("inbound.dedup.enabled", true);
+  }
+
+  public static long getInboundDuplicateDetectionWindowDays ()
+  {
+    return getConfig ().getAsLong ("inbound.dedup.window.days", 28);
+  }
+
+  public static long getInboundDuplicateDetectionGenerationDays ()
+  {
+    return getConfig ().getAsLong ("inbound.dedup.generation.days", 7);
+  }
+
+  public static int getInboundDuplicateDetectionGenerationCapacity ()
+  {
+    return getConfig ().getAsInt ("inbound.dedup.generation.capacity", 2_000_000);
+  }
+
+  public static double getInboundDuplicateDetectionBloomFalsePositiveProbability ()
+  {
+    return getConfig ().getAsDouble ("inbound.dedup.bloom.fpp", 0.01);
+  }
+
+  public static boolean isInboundInboxMode ()
+  {
+    return "inbox".equalsIgnoreCase (getConfig ().getAsString ("inbound.mode", "sync"));
+  }
+
+  public static long getInboundInboxSegmentMaxBytes ()
+  {
+    return getConfig ().getAsLong ("inbound.inbox.segment.maxbytes", 64L * 1024 * 1024);
+  }
+
+  public static int getInboundInboxThreads ()
+  {
+    return getConfig ().getAsInt ("inbound.inbox.threads", 4);
+  }
+
+  public static long getInboundInboxRetryInitialDelaySeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.inbox.retry.initialdelay.seconds", 5);
+  }
+
+  public static long getInboundInboxRetryMaxDelaySeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.inbox.retry.maxdelay.seconds", 600);
+  }
+
+  public static int getInboundInboxPoisonMaxAttempts ()
+  {
+    return getConfig ().getAsInt ("inbound.inbox.poison.maxattempts", 3);
+  }
+
+  public static boolean isReceiverCheckCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("inbound.receivercheck.cache.enabled", true);
+  }
+
+  public static long getReceiverCheckCacheTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.receivercheck.cache.ttl.seconds", 3600);
+  }
+
+  public static long getReceiverCheckCacheNegativeTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.receivercheck.cache.negativettl.seconds", 60);
+  }
+
+  public static int getReceiverCheckCacheRefreshAheadPercent ()
+  {
+    return getConfig ().getAsInt ("inbound.receivercheck.cache.refreshahead.percent", 80);
+  }
+
+  public static long getReceiverCheckCacheStaleSeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.receivercheck.cache.stale.seconds", 86_400);
+  }
+
+  public static int getReceiverCheckCacheMaxEntries ()
+  {
+    return getConfig ().getAsInt ("inbound.receivercheck.cache.maxentries", 10_000);
+  }
+
+  public static boolean isCryptoReloadEnabled ()
+  {
+    return getConfig ().getAsBoolean ("crypto.reload.enabled", true);
+  }
+
+  public static long getCryptoReloadCheckSeconds ()
+  {
+    return getConfig ().getAsLong ("crypto.reload.check.seconds", 60);
+  }
+
+  public static boolean isInboundAdmissionEnabled ()
+  {
+    return getConfig ().getAsBoolean ("inbound.admission.enabled", true);
+  }
+
+  public static int getInboundAdmissionMaxConcurrent ()
+  {
+    return getConfig ().getAsInt ("inbound.admission.maxconcurrent", 50);
+  }
+
+  public static long getInboundAdmissionMaxInFlightBytes ()
+  {
+    return getConfig ().getAsLong ("inbound.admission.maxinflight.bytes", 512L * 1024 * 1024);
+  }
+
+  public static int getInboundAdmissionQueueMaxLength ()
+  {
+    return getConfig ().getAsInt ("inbound.admission.queue.maxlength", 100);
+  }
+
+  public static long getInboundAdmissionQueueMaxWaitMillis ()
+  {
+    return getConfig ().getAsLong ("inbound.admission.queue.maxwait.millis", 2_000);
+  }
+
+  public static long getInboundAdmissionRetryAfterSeconds ()
+  {
+    return getConfig ().getAsLong ("inbound.admission.retryafter.seconds", 30);
+  }
+
+  public static long getRecommandApiConnectTimeoutMillis ()
+  {
+    return getConfig ().getAsLong ("recommand.api.connecttimeout.millis", 5_000);
+  }
+
+  public static long getRecommandApiRequestTimeoutMillis ()
+  {
+    return getConfig ().getAsLong ("recommand.api.requesttimeout.millis", 30_000);
+  }
+
+  public static int getRecommandApiThreads ()
+  {
+    return getConfig ().getAsInt ("recommand.api.threads", 8);
+  }
+
+  public static boolean isSMPCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("outbound.smpcache.enabled", true);
+  }
+
+  public static long getSMPCacheTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.smpcache.ttl.seconds", 3600);
+  }
+
+  public static long getSMPCacheNegativeTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.smpcache.negativettl.seconds", 120);
+  }
+
+  public static int getSMPCacheMaxEntries ()
+  {
+    return getConfig ().getAsInt ("outbound.smpcache.maxentries", 10_000);
+  }
+
+  public static int getOutboundHttpMaxConnectionsTotal ()
+  {
+    return getConfig ().getAsInt ("outbound.http.maxconnections.total", 200);
+  }
+
+  public static int getOutboundHttpMaxConnectionsPerRoute ()
+  {
+    return getConfig ().getAsInt ("outbound.http.maxconnections.perroute", 20);
+  }
+
+  public static long getOutboundHttpKeepAliveSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.http.keepalive.seconds", 60);
+  }
+
+  public static long getOutboundHttpIdleEvictSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.http.idleevict.seconds", 30);
+  }
+
+  public static int getOutboundHttpTlsSessionCacheSize ()
+  {
+    return getConfig ().getAsInt ("outbound.http.tlssession.cachesize", 1000);
+  }
+
+  public static int getOutboundHttpTlsSessionTimeoutSeconds ()
+  {
+    return getConfig ().getAsInt ("outbound.http.tlssession.timeout.seconds", 3600);
+  }
+
+  public static int getOutboundJobWorkerCount ()
+  {
+    return getConfig ().getAsInt ("outbound.jobs.workers", 4);
+  }
+
+  public static int getOutboundJobRetentionDays ()
+  {
+    return getConfig ().getAsInt ("outbound.jobs.retention.days", 30);
+  }
+
+  public static boolean isOutboundRetrySyncSends ()
+  {
+    return getConfig ().getAsBoolean ("outbound.retry.syncsends", false);
+  }
+
+  public static int getOutboundRetryMaxAttempts ()
+  {
+    return getConfig ().getAsInt ("outbound.retry.maxattempts", 8);
+  }
+
+  public static long getOutboundRetryInitialDelaySeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.retry.initialdelay.seconds", 30);
+  }
+
+  public static long getOutboundRetryMaxDelaySeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.retry.maxdelay.seconds", 3600);
+  }
+
+  public static int getOutboundEndpointMaxConcurrent ()
+  {
+    return getConfig ().getAsInt ("outbound.endpoint.maxconcurrent", 20);
+  }
+
+  public static long getOutboundEndpointAcquireTimeoutMillis ()
+  {
+    return getConfig ().getAsLong ("outbound.endpoint.acquiretimeout.millis", 10_000);
+  }
+
+  public static long getOutboundEndpointIdleEvictSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.endpoint.idleevict.seconds", 3600);
+  }
+
+  public static boolean isOutboundCircuitBreakerEnabled ()
+  {
+    return getConfig ().getAsBoolean ("outbound.circuitbreaker.enabled", true);
+  }
+
+  public static int getOutboundCircuitBreakerFailureThreshold ()
+  {
+    return getConfig ().getAsInt ("outbound.circuitbreaker.failurethreshold", 5);
+  }
+
+  public static long getOutboundCircuitBreakerOpenSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.circuitbreaker.open.seconds", 60);
+  }
+
+  public static long getOutboundPayloadMemoryThresholdBytes ()
+  {
+    return getConfig ().getAsLong ("outbound.payload.memorythreshold.bytes", 1024 * 1024L);
+  }
+
+  public static long getOutboundPayloadMaxBytes ()
+  {
+    return getConfig ().getAsLong ("outbound.payload.maxbytes", 100 * 1024 * 1024L);
+  }
+
+  public static long getOutboundPayloadInFlightMaxBytes ()
+  {
+    return getConfig ().getAsLong ("outbound.payload.inflight.maxbytes", 512 * 1024 * 1024L);
+  }
+
+  public static long getOutboundPayloadRetryAfterSeconds ()
+  {
+    return getConfig ().getAsLong ("outbound.payload.inflight.retryafter.seconds", 5);
+  }
+
+  public static int getOutboundBatchMaxConcurrency ()
+  {
+    return getConfig ().getAsInt ("outbound.batch.maxconcurrency", 32);
+  }
+
+  public static int getOutboundBatchMaxConcurrencyPerEndpoint ()
+  {
+    return getConfig ().getAsInt ("outbound.batch.maxconcurrency.perendpoint", 8);
+  }
+
+  public static int getOutboundBatchMaxQueued ()
+  {
+    return getConfig ().getAsInt ("outbound.batch.maxqueued", 256);
+  }
+
+  public static boolean isOutboundIdempotencyEnabled ()
+  {
+    return getConfig ().getAsBoolean ("outbound.idempotency.enabled", true);
+  }
+
+  public static long getOutboundIdempotencyWindowHours ()
+  {
+    return getConfig ().getAsLong ("outbound.idempotency.window.hours", 24);
+  }
+
+  public static int getOutboundIdempotencyMaxEntries ()
+  {
+    return getConfig ().getAsInt ("outbound.idempotency.maxentries", 1_000_000);
+  }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.io.IHasInputStream;
+
+/**
+ * Helper methods for the files the application persists below the data path.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AppFileHelper
+{
+  private AppFileHelper ()
+  {}
+
+  /**
+   * Write a file so that it is guaranteed to be on disk after the method returns, and so that
+   * concurrent readers either see the previous or the new content, but never a partially written
+   * file. The data is first written to a temporary file that is synced and afterwards atomically
+   * renamed.
+   *
+   * @param aFile
+   *        The file to write. May not be <code>null</code>.
+   * @param aBytes
+   *        The content to write. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  public static void writeFileDurable (@Nonnull final File aFile, @Nonnull final byte [] aBytes) throws IOException
+  {
+    _writeFileDurable (aFile, aFC -> {
+      final ByteBuffer aBB = ByteBuffer.wrap (aBytes);
+      while (aBB.hasRemaining ())
+        aFC.write (aBB);
+    });
+  }
+
+  /**
+   * Write a file durable like {@link #writeFileDurable(File, byte[])} but stream the content, so
+   * that it does not need to be in memory.
+   *
+   * @param aFile
+   *        The file to write. May not be <code>null</code>.
+   * @param aISP
+   *        The provider of the content to write. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  public static void writeFileDurable (@Nonnull final File aFile, @Nonnull final IHasInputStream aISP) throws IOException
+  {
+    _writeFileDurable (aFile, aFC -> {
+      try (final InputStream aIS = aISP.getInputStream ())
+      {
+        if (aIS == null)
+          throw new IOException ("Failed to open the content to write to " + aFile.getAbsolutePath ());
+        // Don't close the channel here
+        aIS.transferTo (Channels.newOutputStream (aFC));
+      }
+    });
+  }
+
+  @FunctionalInterface
+  private interface IFileChannelWriter
+  {
+    void write (@Nonnull FileChannel aFC) throws IOException;
+  }
+
+  private static void _writeFileDurable (@Nonnull final File aFile, @Nonnull final IFileChannelWriter aWriter) throws IOException
+  {
+    final Path aTarget = aFile.toPath ();
+    final Path aTmp = aTarget.resolveSibling (aTarget.getFileName () + ".tmp");
+    try (final FileChannel aFC = FileChannel.open (aTmp,
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE))
+    {
+      aWriter.write (aFC);
+      aFC.force (true);
+    }
+    Files.move (aTmp, aTarget, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
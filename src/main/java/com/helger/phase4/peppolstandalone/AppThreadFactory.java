@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * A simple {@link ThreadFactory} for the background threads of this application. All threads are
+ * daemon threads and have a common name prefix followed by a running number.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AppThreadFactory implements ThreadFactory
+{
+  private final String m_sNamePrefix;
+  private final AtomicInteger m_aCounter = new AtomicInteger (0);
+
+  public AppThreadFactory (@Nonnull @Nonempty final String sNamePrefix)
+  {
+    m_sNamePrefix = sNamePrefix;
+  }
+
+  @Nonnull
+  public Thread newThread (@Nonnull final Runnable aRunnable)
+  {
+    final Thread ret = new Thread (aRunnable, m_sNamePrefix + "-" + m_aCounter.incrementAndGet ());
+    ret.setDaemon (true);
+    return ret;
+  }
+}
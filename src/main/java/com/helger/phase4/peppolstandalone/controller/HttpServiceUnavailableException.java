@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * REST Controller exception mapping to HTTP 503 (Service Unavailable). Optionally a
+ * <code>Retry-After</code> header is added to the response.
+ *
+ * @author Philip Helger
+ */
+public class HttpServiceUnavailableException extends ResponseStatusException
+{
+  private final long m_nRetryAfterSeconds;
+
+  public HttpServiceUnavailableException (final String sMsg)
+  {
+    this (sMsg, -1);
+  }
+
+  /**
+   * @param sMsg
+   *        The error message
+   * @param nRetryAfterSeconds
+   *        The number of seconds after which the client may try again. Values &lt; 0 mean no
+   *        <code>Retry-After</code> header.
+   */
+  public HttpServiceUnavailableException (final String sMsg, final long nRetryAfterSeconds)
+  {
+    super (HttpStatus.SERVICE_UNAVAILABLE, sMsg);
+    m_nRetryAfterSeconds = nRetryAfterSeconds;
+  }
+
+  @Override
+  public HttpHeaders getHeaders ()
+  {
+    if (m_nRetryAfterSeconds < 0)
+      return HttpHeaders.EMPTY;
+    final HttpHeaders ret = new HttpHeaders ();
+    ret.set (HttpHeaders.RETRY_AFTER, Long.toString (m_nRetryAfterSeconds));
+    return ret;
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * A request payload that can be read multiple times. Small payloads are kept in memory, larger
+ * payloads are spilled to a temporary file below the data path. The size of all payloads that are
+ * currently processed is limited globally, including the documents of batches - if the limit would
+ * be exceeded, the request is rejected with HTTP 503 instead of risking an {@link OutOfMemoryError}.<br>
+ * Must be closed after usage, to free the budget and delete the temporary file.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class PayloadBuffer implements IHasInputStream, AutoCloseable
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PayloadBuffer.class);
+  private static final String TEMP_DIR_NAME = "payload-tmp";
+  private static final AtomicLong IN_FLIGHT_BYTES = new AtomicLong ();
+
+  private final long m_nMemoryThreshold;
+  private final long m_nMaxSize;
+  private final long m_nInFlightMaxBytes;
+  private final long m_nRetryAfterSeconds;
+  private final File m_aTempDir;
+  private byte [] m_aBytes;
+  private File m_aFile;
+  private long m_nSize;
+  private long m_nReservedBytes;
+
+  private PayloadBuffer (@Nonnegative final long nMemoryThreshold,
+                         @Nonnegative final long nMaxSize,
+                         @Nonnegative final long nInFlightMaxBytes,
+                         final long nRetryAfterSeconds,
+                         @Nonnull final File aTempDir)
+  {
+    m_nMemoryThreshold = nMemoryThreshold;
+    m_nMaxSize = nMaxSize;
+    m_nInFlightMaxBytes = nInFlightMaxBytes;
+    m_nRetryAfterSeconds = nRetryAfterSeconds;
+    m_aTempDir = aTempDir;
+  }
+
+  @Nonnull
+  private static File _getTempDir ()
+  {
+    return new File (AS4Configuration.getDataPath (), TEMP_DIR_NAME).getAbsoluteFile ();
+  }
+
+  /**
+   * Delete all temporary files, that were left over. Only to be called upon startup.
+   */
+  public static void deleteTemporaryFiles ()
+  {
+    final File aTempDir = _getTempDir ();
+    if (aTempDir.isDirectory ())
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aTempDir);
+  }
+
+  /**
+   * @return The number of payload bytes currently in processing. Always &ge; 0.
+   */
+  @Nonnegative
+  public static long getInFlightBytes ()
+  {
+    return IN_FLIGHT_BYTES.get ();
+  }
+
+  private void _reserve (@Nonnegative final long nBytes)
+  {
+    final long nMax = m_nInFlightMaxBytes;
+    final long nNew = IN_FLIGHT_BYTES.addAndGet (nBytes);
+    m_nReservedBytes += nBytes;
+    if (nNew > nMax)
+    {
+      LOGGER.warn ("Rejecting payload, as " + nNew + " bytes would be in processing, but only " + nMax + " are allowed");
+      close ();
+      throw new HttpServiceUnavailableException ("Too many payloads are currently processed - please try again later",
+                                                 m_nRetryAfterSeconds);
+    }
+  }
+
+  private void _checkMaxSize (final long nSize)
+  {
+    if (nSize > m_nMaxSize)
+    {
+      close ();
+      throw new HttpPayloadTooLargeException ("The payload must not exceed " + m_nMaxSize + " bytes");
+    }
+  }
+
+  @Nonnull
+  private File _spill (@Nonnull final byte [] aHead,
+                       final int nHeadLen,
+                       @Nonnull @WillNotClose final InputStream aIS) throws IOException
+  {
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (m_aTempDir);
+    final File aFile = Files.createTempFile (m_aTempDir.toPath (), "payload-", ".tmp").toFile ();
+    m_aFile = aFile;
+
+    final int nChunkSize = (int) Math.max (8192, Math.min (m_nMemoryThreshold, 1024 * 1024));
+    try (final OutputStream aOS = Files.newOutputStream (aFile.toPath ()))
+    {
+      aOS.write (aHead, 0, nHeadLen);
+      m_nSize = nHeadLen;
+      // The head may be one byte larger than the reservation for an unknown length
+      if (m_nSize > m_nReservedBytes)
+        _reserve (m_nSize - m_nReservedBytes);
+
+      final byte [] aBuffer = new byte [nChunkSize];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) > 0)
+      {
+        m_nSize += nRead;
+        _checkMaxSize (m_nSize);
+        if (m_nSize > m_nReservedBytes)
+          _reserve (Math.max (nRead, nChunkSize));
+        aOS.write (aBuffer, 0, nRead);
+      }
+    }
+    return aFile;
+  }
+
+  /**
+   * Read the request payload.
+   *
+   * @param aIS
+   *        The request input stream. May not be <code>null</code>.
+   * @param nContentLength
+   *        The content length of the request or -1 if it is unknown.
+   * @return The buffered payload. Never <code>null</code>.
+   * @throws IOException
+   *         If reading or writing the temporary file failed
+   * @throws HttpServiceUnavailableException
+   *         If the global limit of payload bytes would be exceeded. The response contains a
+   *         <code>Retry-After</code> header.
+   * @throws HttpPayloadTooLargeException
+   *         If the payload is larger than allowed
+   */
+  @Nonnull
+  public static PayloadBuffer read (@Nonnull @WillNotClose final InputStream aIS, final long nContentLength) throws IOException
+  {
+    return read (aIS,
+                 nContentLength,
+                 APConfig.getOutboundPayloadMemoryThresholdBytes (),
+                 APConfig.getOutboundPayloadMaxBytes (),
+                 APConfig.getOutboundPayloadInFlightMaxBytes (),
+                 APConfig.getOutboundPayloadRetryAfterSeconds (),
+                 _getTempDir ());
+  }
+
+  @Nonnull
+  static PayloadBuffer read (@Nonnull @WillNotClose final InputStream aIS,
+                             final long nContentLength,
+                             @Nonnegative final long nThreshold,
+                             @Nonnegative final long nMaxSize,
+                             @Nonnegative final long nInFlightMaxBytes,
+                             final long nRetryAfterSeconds,
+                             @Nonnull final File aTempDir) throws IOException
+  {
+    final PayloadBuffer ret = new PayloadBuffer (nThreshold, nMaxSize, nInFlightMaxBytes, nRetryAfterSeconds, aTempDir);
+    try
+    {
+      if (nContentLength >= 0)
+      {
+        // Reserve everything upfront, so that we reject before reading
+        ret._checkMaxSize (nContentLength);
+        ret._reserve (nContentLength);
+      }
+      else
+        ret._reserve (nThreshold);
+
+      // Read at most the threshold into memory. If the length is known to fit, the buffer has the
+      // exact size. Otherwise one additional byte shows that the payload does not fit.
+      final boolean bFitsIntoMemory = nContentLength >= 0 && nContentLength <= nThreshold;
+      final int nMemoryLen = (int) (bFitsIntoMemory ? nContentLength : nThreshold);
+      final byte [] aHead = new byte [bFitsIntoMemory ? nMemoryLen : nMemoryLen + 1];
+      int nHeadLen = 0;
+      int nRead;
+      while (nHeadLen < aHead.length && (nRead = aIS.read (aHead, nHeadLen, aHead.length - nHeadLen)) > 0)
+        nHeadLen += nRead;
+
+      if (nHeadLen <= nMemoryLen)
+      {
+        // Everything fits into memory
+        ret.m_aBytes = nHeadLen == aHead.length ? aHead : Arrays.copyOf (aHead, nHeadLen);
+        ret.m_nSize = nHeadLen;
+      }
+      else
+      {
+        ret._spill (aHead, nHeadLen, aIS);
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Spilled payload of " + ret.m_nSize + " bytes to " + ret.m_aFile.getAbsolutePath ());
+      }
+      return ret;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return The size of the payload in bytes. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the payload was spilled to a temporary file.
+   */
+  public boolean isSpilledToFile ()
+  {
+    return m_aFile != null;
+  }
+
+  public boolean isReadMultiple ()
+  {
+    return true;
+  }
+
+  @Nullable
+  public InputStream getInputStream ()
+  {
+    if (m_aBytes != null)
+      return new NonBlockingByteArrayInputStream (m_aBytes);
+    if (m_aFile != null)
+      try
+      {
+        return new NonBlockingBufferedInputStream (Files.newInputStream (m_aFile.toPath ()));
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to open spilled payload " + m_aFile.getAbsolutePath (), ex);
+      }
+    return null;
+  }
+
+  public void close ()
+  {
+    if (m_aFile != null)
+    {
+      FileOperationManager.INSTANCE.deleteFileIfExisting (m_aFile);
+      m_aFile = null;
+    }
+    m_aBytes = null;
+    if (m_nReservedBytes > 0)
+    {
+      IN_FLIGHT_BYTES.addAndGet (-m_nReservedBytes);
+      m_nReservedBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+
+import org.slf4j.Logger;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.security.PeppolTrustedCA;
+import com.helger.peppol.servicedomain.EPeppolNetwork;
+import com.helger.peppol.sml.ESML;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.outbound.OutboundBatchSender;
+import com.helger.security.certificate.TrustedCAChecker;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * This is the REST controller to send many SBDH documents with a single request. The result is
+ * streamed back as newline delimited JSON (NDJSON), with one sending report per line.
+ *
+ * @author Philip Helger
+ */
+@RestController
+public class PeppolBatchController
+{
+  public static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+  private static final String MEDIA_TYPE_ZIP = "application/zip";
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolBatchController.class);
+
+  private static void _checkToken (final String xtoken)
+  {
+    if (StringHelper.hasNoText (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
+    }
+  }
+
+  @Nonnull
+  private static OutboundBatchSender.Batch _createBatch (@Nonnull final OutputStream aOS)
+  {
+    final EPeppolNetwork eStage = APConfig.getPeppolStage ();
+    final ESML eSML = eStage.isProduction () ? ESML.DIGIT_PRODUCTION : ESML.DIGIT_TEST;
+    final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP ()
+                                                          : PeppolTrustedCA.peppolTestAP ();
+    LOGGER.info ("Starting Peppol " + eStage.name () + " SBDH batch");
+    return OutboundBatchSender.getInstance ().createBatch (eSML, aAPCA, aOS);
+  }
+
+  /**
+   * Read a single batch document within the limits of {@link PayloadBuffer} and add it to the batch.
+   * Documents that are too large or that exceed the budget of all payloads processed at the same
+   * time are reported as failed.
+   */
+  private static void _submit (@Nonnull final OutboundBatchSender.Batch aBatch,
+                               final int nIndex,
+                               @Nonnull final String sName,
+                               @Nonnull @WillNotClose final InputStream aIS,
+                               final long nContentLength) throws IOException, InterruptedException
+  {
+    final PayloadBuffer aSBDH;
+    try
+    {
+      aSBDH = PayloadBuffer.read (aIS, nContentLength);
+    }
+    catch (final HttpPayloadTooLargeException ex)
+    {
+      LOGGER.warn ("Skipping batch item '" + sName + "': " + ex.getMessage ());
+      aBatch.reject (nIndex, sName, ex.getMessage ());
+      return;
+    }
+    catch (final HttpServiceUnavailableException ex)
+    {
+      LOGGER.warn ("Skipping batch item '" + sName + "': " + ex.getReason ());
+      aBatch.reject (nIndex, sName, ex.getReason ());
+      return;
+    }
+    aBatch.submit (nIndex, sName, aSBDH);
+  }
+
+  @Nonnull
+  private static ResponseEntity <StreamingResponseBody> _createResponse (@Nonnull final StreamingResponseBody aBody)
+  {
+    return ResponseEntity.ok ().contentType (MediaType.parseMediaType (MEDIA_TYPE_NDJSON)).body (aBody);
+  }
+
+  /**
+   * Send all SBDH documents contained in a ZIP file. The ZIP file is read while sending, so that
+   * arbitrarily large batches can be handled. Entries larger than the maximum payload size or
+   * exceeding the budget of all payloads processed at the same time are not send.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param aRequest
+   *        The HTTP request with the ZIP file as the body
+   * @return The streamed NDJSON results
+   */
+  @PostMapping (path = "/sendbatch", consumes = MEDIA_TYPE_ZIP, produces = MEDIA_TYPE_NDJSON)
+  public ResponseEntity <StreamingResponseBody> sendPeppolSbdhBatchZip (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                                        required = true) final String xtoken,
+                                                                        final HttpServletRequest aRequest)
+  {
+    _checkToken (xtoken);
+
+    return _createResponse (aOS -> {
+      final OutboundBatchSender.Batch aBatch = _createBatch (aOS);
+      int nIndex = 0;
+      try (final InputStream aIS = aRequest.getInputStream (); final ZipInputStream aZIS = new ZipInputStream (aIS))
+      {
+        ZipEntry aEntry;
+        while ((aEntry = aZIS.getNextEntry ()) != null)
+          if (!aEntry.isDirectory ())
+          {
+            // The size in the entry header is not trusted, as it may be missing or wrong. The rest
+            // of a rejected entry is skipped by the next getNextEntry call
+            _submit (aBatch, nIndex++, aEntry.getName (), aZIS, -1);
+          }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        LOGGER.error ("Interrupted while reading SBDH batch");
+      }
+      catch (final IOException ex)
+      {
+        // Send what was read so far
+        LOGGER.error ("Failed to read SBDH batch ZIP after " + nIndex + " documents", ex);
+      }
+      aBatch.awaitCompletion ();
+    });
+  }
+
+  /**
+   * Send all SBDH documents contained in a multipart request. Each file part must contain one SBDH.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param aRequest
+   *        The multipart HTTP request
+   * @return The streamed NDJSON results
+   */
+  @PostMapping (path = "/sendbatch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MEDIA_TYPE_NDJSON)
+  public ResponseEntity <StreamingResponseBody> sendPeppolSbdhBatchMultipart (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                                              required = true) final String xtoken,
+                                                                              final MultipartHttpServletRequest aRequest)
+  {
+    _checkToken (xtoken);
+
+    final List <MultipartFile> aFiles = new ArrayList <> ();
+    for (final List <MultipartFile> aPartFiles : aRequest.getMultiFileMap ().values ())
+      aFiles.addAll (aPartFiles);
+
+    return _createResponse (aOS -> {
+      final OutboundBatchSender.Batch aBatch = _createBatch (aOS);
+      int nIndex = 0;
+      try
+      {
+        for (final MultipartFile aFile : aFiles)
+        {
+          final String sName = StringHelper.hasText (aFile.getOriginalFilename ()) ? aFile.getOriginalFilename ()
+                                                                                   : aFile.getName ();
+          // Read lazily, so that not all parts are in memory at the same time
+          try (final InputStream aIS = aFile.getInputStream ())
+          {
+            _submit (aBatch, nIndex++, sName, aIS, aFile.getSize ());
+          }
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        LOGGER.error ("Interrupted while reading SBDH batch");
+      }
+      catch (final IOException ex)
+      {
+        // Send what was read so far
+        LOGGER.error ("Failed to read SBDH batch parts after " + nIndex + " documents", ex);
+      }
+      aBatch.awaitCompletion ();
+    });
+  }
+}
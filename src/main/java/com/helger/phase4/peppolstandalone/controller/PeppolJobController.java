@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import java.io.IOException;
+import java.time.Instant;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.StringHelper;
+import com.helger.json.IJsonArray;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonArray;
+import com.helger.json.JsonObject;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.outbound.OutboundJob;
+import com.helger.phase4.peppolstandalone.outbound.OutboundJobQueue;
+
+/**
+ * This is the REST controller to query the results of asynchronously sent messages and to manage
+ * the messages that could not be send at all (dead letters).
+ *
+ * @author Philip Helger
+ */
+@RestController
+public class PeppolJobController
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolJobController.class);
+
+  private static void _checkToken (final String xtoken)
+  {
+    if (StringHelper.hasNoText (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
+    }
+  }
+
+  /**
+   * Get the current state of a sending job.
+   *
+   * @param sJobID
+   *        The job ID. May not be <code>null</code>.
+   * @return HTTP 200 with the sending report, if the job is finished. HTTP 202 with the job status,
+   *         if the job is not yet finished. <code>null</code> if there is no such job.
+   */
+  @Nullable
+  static ResponseEntity <String> getJobResponse (@Nonnull final String sJobID)
+  {
+    final OutboundJobQueue aQueue = OutboundJobQueue.getInstance ();
+    final OutboundJobQueue.EJobStatus eStatus = aQueue.getJobStatus (sJobID);
+    if (eStatus == null)
+      return null;
+
+    if (eStatus == OutboundJobQueue.EJobStatus.DONE)
+    {
+      final String sReportJson = aQueue.getJobReportJson (sJobID);
+      // May have been deleted in the meantime
+      return sReportJson == null ? null : ResponseEntity.ok (sReportJson);
+    }
+
+    final IJsonObject aJson = new JsonObject ();
+    aJson.add ("jobId", sJobID);
+    aJson.add ("status", eStatus.getID ());
+    return ResponseEntity.status (HttpStatus.ACCEPTED).body (aJson.getAsJsonString ());
+  }
+
+  /**
+   * Get the status of an asynchronous sending job.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param jobId
+   *        The job ID as returned by the asynchronous sending APIs
+   * @return HTTP 200 with the sending report, if the job is finished. HTTP 202 with the job status,
+   *         if the job is not yet finished.
+   */
+  @GetMapping (path = "/jobs/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity <String> getJob (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                         required = true) final String xtoken,
+                                         @PathVariable final String jobId)
+  {
+    _checkToken (xtoken);
+
+    final ResponseEntity <String> ret = getJobResponse (jobId);
+    if (ret == null)
+      throw new HttpNotFoundException ("No such job");
+    return ret;
+  }
+
+  /**
+   * List all jobs for which all sending attempts failed.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @return A JSON array with the dead letter jobs.
+   */
+  @GetMapping (path = "/jobs/deadletter", produces = MediaType.APPLICATION_JSON_VALUE)
+  public String getDeadLetters (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                required = true) final String xtoken)
+  {
+    _checkToken (xtoken);
+
+    final IJsonArray ret = new JsonArray ();
+    for (final OutboundJob aJob : OutboundJobQueue.getInstance ().getAllDeadLetters ())
+    {
+      final IJsonObject aJson = new JsonObject ();
+      aJson.add ("jobId", aJob.getJobID ());
+      aJson.add ("type", aJob.getType ().getID ());
+      aJson.add ("created", Instant.ofEpochMilli (aJob.getCreationMillis ()).toString ());
+      aJson.add ("attempts", aJob.getAttempts ());
+      if (aJob.getType () == OutboundJob.EType.AS4)
+      {
+        aJson.add ("senderId", aJob.getSenderID ());
+        aJson.add ("receiverId", aJob.getReceiverID ());
+        aJson.add ("docTypeId", aJob.getDocTypeID ());
+        aJson.add ("processId", aJob.getProcessID ());
+        aJson.add ("sbdhInstanceIdentifier", aJob.getSBDHInstanceID ());
+      }
+      if (aJob.getLastError () != null)
+        aJson.add ("lastError", aJob.getLastError ());
+      ret.add (aJson);
+    }
+    return ret.getAsJsonString ();
+  }
+
+  /**
+   * Send a dead letter job again. The job keeps its ID, so the result can be queried via
+   * <code>/jobs/{jobId}</code>.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param jobId
+   *        The ID of the dead letter job
+   * @return The job status JSON
+   */
+  @PostMapping (path = "/jobs/deadletter/{jobId}/replay", produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseStatus (HttpStatus.ACCEPTED)
+  public String replayDeadLetter (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                  required = true) final String xtoken,
+                                  @PathVariable final String jobId)
+  {
+    _checkToken (xtoken);
+
+    final ESuccess eSuccess;
+    try
+    {
+      eSuccess = OutboundJobQueue.getInstance ().replayDeadLetter (jobId);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to replay dead letter '" + jobId + "'", ex);
+      throw new HttpInternalServerErrorException ("Failed to replay dead letter: " + ex.getMessage ());
+    }
+    if (eSuccess.isFailure ())
+      throw new HttpNotFoundException ("No such dead letter");
+    return PeppolSenderController.getJobQueuedJson (jobId);
+  }
+}
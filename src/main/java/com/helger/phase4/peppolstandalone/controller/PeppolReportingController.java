@@ -17,29 +17,30 @@
 package com.helger.phase4.peppolstandalone.controller;
 
 import java.time.YearMonth;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.helger.commons.collection.impl.CommonsArrayList;
-import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.string.StringHelper;
-import com.helger.peppol.reporting.api.PeppolReportingItem;
-import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
-import com.helger.peppol.reporting.eusr.EndUserStatisticsReport;
-import com.helger.peppol.reporting.jaxb.eusr.EndUserStatisticsReport110Marshaller;
-import com.helger.peppol.reporting.jaxb.eusr.v110.EndUserStatisticsReportType;
-import com.helger.peppol.reporting.jaxb.tsr.TransactionStatisticsReport101Marshaller;
-import com.helger.peppol.reporting.jaxb.tsr.v101.TransactionStatisticsReportType;
-import com.helger.peppol.reporting.tsr.TransactionStatisticsReport;
+import com.helger.peppol.reportingsupport.EPeppolReportType;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppolstandalone.APConfig;
 import com.helger.phase4.peppolstandalone.reporting.AppReportingHelper;
+import com.helger.phase4.peppolstandalone.reporting.PeppolReportCache;
 
 /**
  * This is the primary REST controller for the APIs to create Peppol Reports TSR and EUSR.<br>
@@ -52,11 +53,38 @@ public class PeppolReportingController
 {
   private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingController.class);
 
+  private static boolean _isETagMatching (@Nullable final String sIfNoneMatch, @Nonnull final String sETag)
+  {
+    if (StringHelper.hasNoText (sIfNoneMatch))
+      return false;
+    for (final String sPart : sIfNoneMatch.split (","))
+    {
+      // Weak comparison as defined for If-None-Match
+      final String sCandidate = StringHelper.trimStart (sPart.trim (), "W/");
+      if (sCandidate.equals ("*") || sCandidate.equals (sETag))
+        return true;
+    }
+    return false;
+  }
+
+  @Nonnull
+  private static ResponseEntity <String> _createResponse (@Nonnull final String sBody,
+                                                          @Nonnull final String sETag,
+                                                          @Nullable final String sIfNoneMatch)
+  {
+    // Pollers that already have the current report don't need it again
+    if (_isETagMatching (sIfNoneMatch, sETag))
+      return ResponseEntity.status (HttpStatus.NOT_MODIFIED).eTag (sETag).build ();
+    return ResponseEntity.ok ().eTag (sETag).body (sBody);
+  }
+
   /**
    * This API creates a TSR report from the provided year and month
    *
    * @param xtoken
    *        The X-Token header
+   * @param sIfNoneMatch
+   *        The optional If-None-Match header with the entity tag of a previous response
    * @param nYear
    *        The year to use. Must be &ge; 2024
    * @param nMonth
@@ -64,10 +92,12 @@ public class PeppolReportingController
    * @return The created TSR reporting in XML in UTF-8 encoding
    */
   @GetMapping (path = "/create-tsr/{year}/{month}", produces = MediaType.APPLICATION_XML_VALUE)
-  public String createPeppolReportingTSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
-                                                          required = true) final String xtoken,
-                                          @PathVariable (name = "year", required = true) final int nYear,
-                                          @PathVariable (name = "month", required = true) final int nMonth)
+  public ResponseEntity <String> createPeppolReportingTSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                           required = true) final String xtoken,
+                                                           @RequestHeader (name = HttpHeaders.IF_NONE_MATCH,
+                                                                           required = false) final String sIfNoneMatch,
+                                                           @PathVariable (name = "year", required = true) final int nYear,
+                                                           @PathVariable (name = "month", required = true) final int nMonth)
   {
     if (StringHelper.hasNoText (xtoken))
     {
@@ -83,26 +113,12 @@ public class PeppolReportingController
     // Check parameters
     final YearMonth aYearMonth = AppReportingHelper.getValidYearMonthInAPI (nYear, nMonth);
 
-    LOGGER.info ("Trying to create Peppol Reporting TSR for " + aYearMonth);
-
     try
     {
-      // Now get all items from data storage and store them in a list (we start
-      // with an initial size of 1K to avoid too many copy operations)
-      final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-      if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                                aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                           aReportingItems::add))
-                                .isSuccess ())
-      {
-        // Create report with the read transactions
-        final TransactionStatisticsReportType aReport = TransactionStatisticsReport.builder ()
-                                                                                   .monthOf (aYearMonth)
-                                                                                   .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                                                                   .reportingItemList (aReportingItems)
-                                                                                   .build ();
-        return new TransactionStatisticsReport101Marshaller ().getAsString (aReport);
-      }
+      // Closed months are usually cached
+      final PeppolReportCache.CachedReport aReport = AppReportingHelper.getTSRAsXML (aYearMonth);
+      if (aReport != null)
+        return _createResponse (aReport.getXML (), aReport.getETag (), sIfNoneMatch);
       throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
     }
     catch (final PeppolReportingBackendException ex)
@@ -117,6 +133,8 @@ public class PeppolReportingController
    *
    * @param xtoken
    *        The X-Token header
+   * @param sIfNoneMatch
+   *        The optional If-None-Match header with the entity tag of a previous response
    * @param nYear
    *        The year to use. Must be &ge; 2024
    * @param nMonth
@@ -124,10 +142,12 @@ public class PeppolReportingController
    * @return The created EUSR reporting in XML in UTF-8 encoding
    */
   @GetMapping (path = "/create-eusr/{year}/{month}", produces = MediaType.APPLICATION_XML_VALUE)
-  public String createPeppolReportingEUSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
-                                                           required = true) final String xtoken,
-                                           @PathVariable (name = "year", required = true) final int nYear,
-                                           @PathVariable (name = "month", required = true) final int nMonth)
+  public ResponseEntity <String> createPeppolReportingEUSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                            required = true) final String xtoken,
+                                                            @RequestHeader (name = HttpHeaders.IF_NONE_MATCH,
+                                                                            required = false) final String sIfNoneMatch,
+                                                            @PathVariable (name = "year", required = true) final int nYear,
+                                                            @PathVariable (name = "month", required = true) final int nMonth)
   {
     if (StringHelper.hasNoText (xtoken))
     {
@@ -143,25 +163,74 @@ public class PeppolReportingController
     // Check parameters
     final YearMonth aYearMonth = AppReportingHelper.getValidYearMonthInAPI (nYear, nMonth);
 
-    LOGGER.info ("Trying to create Peppol Reporting EUSR for " + aYearMonth);
+    try
+    {
+      // Closed months are usually cached
+      final PeppolReportCache.CachedReport aReport = AppReportingHelper.getEUSRAsXML (aYearMonth);
+      if (aReport != null)
+        return _createResponse (aReport.getXML (), aReport.getETag (), sIfNoneMatch);
+      throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+    }
+    catch (final PeppolReportingBackendException ex)
+    {
+      LOGGER.error ("Failed to read Peppol Reporting Items", ex);
+      throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data: " + ex.getMessage ());
+    }
+  }
+
+  /**
+   * This API creates the TSR and the EUSR report from the provided year and month, reading the
+   * reporting backend only once.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param sIfNoneMatch
+   *        The optional If-None-Match header with the entity tag of a previous response
+   * @param nYear
+   *        The year to use. Must be &ge; 2024
+   * @param nMonth
+   *        The month to use. Must be &ge; 1 and &le; 12
+   * @return A JSON object with the created TSR and EUSR as XML strings
+   */
+  @GetMapping (path = "/create-tsr-eusr/{year}/{month}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity <String> createPeppolReportingTSRAndEUSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                                  required = true) final String xtoken,
+                                                                  @RequestHeader (name = HttpHeaders.IF_NONE_MATCH,
+                                                                                  required = false) final String sIfNoneMatch,
+                                                                  @PathVariable (name = "year",
+                                                                                 required = true) final int nYear,
+                                                                  @PathVariable (name = "month",
+                                                                                 required = true) final int nMonth)
+  {
+    if (StringHelper.hasNoText (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
+    }
+
+    // Check parameters
+    final YearMonth aYearMonth = AppReportingHelper.getValidYearMonthInAPI (nYear, nMonth);
 
     try
     {
-      // Now get all items from data storage and store them in a list (we start
-      // with an initial size of 1K to avoid too many copy operations)
-      final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-      if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                                aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                           aReportingItems::add))
-                                .isSuccess ())
+      final Map <EPeppolReportType, PeppolReportCache.CachedReport> aReports = AppReportingHelper.getTSRAndEUSRAsXML (aYearMonth);
+      if (aReports != null)
       {
-        // Create report with the read transactions
-        final EndUserStatisticsReportType aReport = EndUserStatisticsReport.builder ()
-                                                                           .monthOf (aYearMonth)
-                                                                           .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                                                           .reportingItemList (aReportingItems)
-                                                                           .build ();
-        return new EndUserStatisticsReport110Marshaller ().getAsString (aReport);
+        final PeppolReportCache.CachedReport aTSR = aReports.get (EPeppolReportType.TSR_V10);
+        final PeppolReportCache.CachedReport aEUSR = aReports.get (EPeppolReportType.EUSR_V11);
+        final IJsonObject aJson = new JsonObject ();
+        aJson.add ("period", aYearMonth.toString ());
+        aJson.add ("tsr", aTSR.getXML ());
+        aJson.add ("eusr", aEUSR.getXML ());
+        // Changes whenever one of the reports changes
+        return _createResponse (aJson.getAsJsonString (),
+                                PeppolReportCache.getETag (aTSR.getETag () + aEUSR.getETag ()),
+                                sIfNoneMatch);
       }
       throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
     }
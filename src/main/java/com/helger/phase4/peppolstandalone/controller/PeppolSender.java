@@ -16,17 +16,27 @@
  */
 package com.helger.phase4.peppolstandalone.controller;
 
+import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.slf4j.Logger;
-import org.w3c.dom.Document;
 
 import com.helger.commons.annotation.Nonempty;
-import com.helger.commons.system.EJavaVersion;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
 import com.helger.commons.timing.StopWatch;
 import com.helger.commons.wrapper.Wrapper;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
 import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
 import com.helger.peppol.sml.ISMLInfo;
 import com.helger.peppolid.IDocumentTypeIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
@@ -38,16 +48,22 @@ import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.model.message.AS4UserMessage;
 import com.helger.phase4.model.message.AbstractAS4Message;
 import com.helger.phase4.peppol.Phase4PeppolSender;
-import com.helger.phase4.peppol.Phase4PeppolSender.PeppolUserMessageBuilder;
 import com.helger.phase4.peppol.Phase4PeppolSender.PeppolUserMessageSBDHBuilder;
 import com.helger.phase4.peppol.Phase4PeppolSendingReport;
 import com.helger.phase4.peppolstandalone.APConfig;
-import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
+import com.helger.phase4.peppolstandalone.outbound.OutboundEndpointGuard;
+import com.helger.phase4.peppolstandalone.outbound.OutboundEndpointUnavailableException;
+import com.helger.phase4.peppolstandalone.outbound.OutboundHttpClientFactory;
+import com.helger.phase4.peppolstandalone.outbound.OutboundRetryPolicy;
+import com.helger.phase4.peppolstandalone.outbound.SBDHHeaderReader;
+import com.helger.phase4.peppolstandalone.outbound.SBDHWriter;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpointCache;
+import com.helger.phase4.peppolstandalone.outbound.XmlPayloadInspector;
+import com.helger.phase4.peppolstandalone.reporting.ReportingItemWriter;
+import com.helger.phase4.peppolstandalone.servlet.ServletConfig;
 import com.helger.phase4.sender.EAS4UserMessageSendResult;
 import com.helger.phase4.util.Phase4Exception;
 import com.helger.security.certificate.TrustedCAChecker;
-import com.helger.smpclient.peppol.SMPClientReadOnly;
-import com.helger.xml.serialize.read.DOMReader;
 
 /**
  * This contains the main Peppol sending code. It was extracted from the controller to make it more
@@ -63,6 +79,43 @@ public final class PeppolSender
   private PeppolSender ()
   {}
 
+  @Nonnull
+  private static SMPEndpointCache.CachedEndpoint _resolveEndpoint (@Nonnull final ISMLInfo aSmlInfo,
+                                                                   @Nonnull final IParticipantIdentifier aReceiverID,
+                                                                   @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                                   @Nonnull final IProcessIdentifier aProcessID,
+                                                                   @Nullable final PeppolSendingReportExtension aReportExt) throws Phase4Exception
+  {
+    final SMPEndpointCache aCache = SMPEndpointCache.getInstance ();
+    final SMPEndpointCache.Lookup aLookup = aCache.resolve (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+    if (aReportExt != null)
+      aReportExt.add ("smpCache", aCache.getStatisticsAsJson (aLookup.getSource ()));
+
+    final SMPEndpointCache.CachedEndpoint ret = aLookup.getEndpoint ();
+    if (!ret.isFound ())
+      throw new Phase4Exception (ret.getErrorMessage ());
+    return ret;
+  }
+
+  @Nonnull
+  private static OutboundEndpointGuard.Permit _acquireEndpointPermit (@Nonnull final SMPEndpointCache.CachedEndpoint aEndpoint,
+                                                                      @Nonnull final Phase4PeppolSendingReport aSendingReport,
+                                                                      @Nullable final PeppolSendingReportExtension aReportExt) throws OutboundEndpointUnavailableException
+  {
+    try
+    {
+      return OutboundEndpointGuard.getInstance ().acquire (aEndpoint.getEndpointURL ());
+    }
+    catch (final OutboundEndpointUnavailableException ex)
+    {
+      // Not send at all - make clear where it should have gone to and why it was not send
+      aSendingReport.setC3EndpointURL (aEndpoint.getEndpointURL ());
+      if (aReportExt != null)
+        aReportExt.add ("endpointStatus", ex.getReason ().getID ());
+      throw ex;
+    }
+  }
+
   /**
    * Send a Peppol message where the SBDH is created internally by phase4
    *
@@ -93,6 +146,101 @@ public final class PeppolSender
                                                                          @Nonnull @Nonempty final String sDocTypeID,
                                                                          @Nonnull @Nonempty final String sProcessID,
                                                                          @Nonnull @Nonempty final String sCountryCodeC1)
+  {
+    return sendPeppolMessageCreatingSbdh (aSmlInfo,
+                                          aAPCAChecker,
+                                          aPayloadBytes,
+                                          sSenderID,
+                                          sReceiverID,
+                                          sDocTypeID,
+                                          sProcessID,
+                                          sCountryCodeC1,
+                                          null);
+  }
+
+  /**
+   * Send a Peppol message where the SBDH is created internally by phase4
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aPayloadBytes
+   *        The main business document to be send
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryCodeC1
+   *        The Country Code of the sender (C1)
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @Nonnull
+  public static Phase4PeppolSendingReport sendPeppolMessageCreatingSbdh (@Nonnull final ISMLInfo aSmlInfo,
+                                                                         @Nonnull final TrustedCAChecker aAPCAChecker,
+                                                                         @Nonnull final byte [] aPayloadBytes,
+                                                                         @Nonnull @Nonempty final String sSenderID,
+                                                                         @Nonnull @Nonempty final String sReceiverID,
+                                                                         @Nonnull @Nonempty final String sDocTypeID,
+                                                                         @Nonnull @Nonempty final String sProcessID,
+                                                                         @Nonnull @Nonempty final String sCountryCodeC1,
+                                                                         @Nullable final PeppolSendingReportExtension aReportExt)
+  {
+    return sendPeppolMessageCreatingSbdh (aSmlInfo,
+                                          aAPCAChecker,
+                                          new ByteArrayInputStreamProvider (aPayloadBytes),
+                                          sSenderID,
+                                          sReceiverID,
+                                          sDocTypeID,
+                                          sProcessID,
+                                          sCountryCodeC1,
+                                          null,
+                                          aReportExt);
+  }
+
+  /**
+   * Send a Peppol message where the SBDH is created internally by phase4
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aPayload
+   *        The main business document to be send. It must be possible to read it more than once.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryCodeC1
+   *        The Country Code of the sender (C1)
+   * @param sSBDHInstanceID
+   *        The SBDH instance identifier to use. Should be the same for all attempts to send the
+   *        same document. If <code>null</code> a new one is created.
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @Nonnull
+  public static Phase4PeppolSendingReport sendPeppolMessageCreatingSbdh (@Nonnull final ISMLInfo aSmlInfo,
+                                                                         @Nonnull final TrustedCAChecker aAPCAChecker,
+                                                                         @Nonnull final IHasInputStream aPayload,
+                                                                         @Nonnull @Nonempty final String sSenderID,
+                                                                         @Nonnull @Nonempty final String sReceiverID,
+                                                                         @Nonnull @Nonempty final String sDocTypeID,
+                                                                         @Nonnull @Nonempty final String sProcessID,
+                                                                         @Nonnull @Nonempty final String sCountryCodeC1,
+                                                                         @Nullable final String sSBDHInstanceID,
+                                                                         @Nullable final PeppolSendingReportExtension aReportExt)
   {
     final IIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
@@ -103,14 +251,22 @@ public final class PeppolSender
 
     EAS4UserMessageSendResult eResult = null;
     boolean bExceptionCaught = false;
+    Exception aSendingException = null;
     final StopWatch aSW = StopWatch.createdStarted ();
     try
     {
       // Payload must be XML - even for Text and Binary content
-      final Document aDoc = DOMReader.readXMLDOM (aPayloadBytes);
-      if (aDoc == null || aDoc.getDocumentElement () == null)
+      // Only the root element is read here to reject invalid payloads before the SMP lookup. The
+      // payload itself is never parsed
+      final XmlPayloadInspector.RootElement aRootElement = XmlPayloadInspector.readRootElement (aPayload);
+      if (aRootElement == null)
         throw new IllegalStateException ("Failed to read provided payload as XML");
-      if (aDoc.getDocumentElement ().getNamespaceURI () == null)
+      if (aReportExt != null)
+      {
+        aReportExt.add ("payloadRootElement", aRootElement.getLocalName ());
+        aReportExt.add ("payloadRootNamespace", aRootElement.getNamespaceURI ());
+      }
+      if (!aRootElement.hasNamespaceURI ())
         throw new IllegalStateException ("Only XML payloads with a namespace are supported");
 
       // Start configuring here
@@ -144,75 +300,82 @@ public final class PeppolSender
         throw new IllegalStateException ("Failed to parse the process ID '" + sProcessID + "'");
       aSendingReport.setProcessID (aProcessID);
 
-      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
-                                                                  aReceiverID,
-                                                                  aSmlInfo);
-
-      aSMPClient.withHttpClientSettings (aHCS -> {
-        // TODO Add SMP HTTP outbound proxy settings here
-        // If this block is not used, it may be removed
-      });
+      // SMP lookup - cached
+      final SMPEndpointCache.CachedEndpoint aEndpoint = _resolveEndpoint (aSmlInfo,
+                                                                          aReceiverID,
+                                                                          aDocTypeID,
+                                                                          aProcessID,
+                                                                          aReportExt);
+
+      // Wrap the payload bytes into the SBDH - no DOM of the payload is needed
+      final String sInstanceIdentifier = sSBDHInstanceID != null ? sSBDHInstanceID : UUID.randomUUID ().toString ();
+      final byte [] aSBDBytes = SBDHWriter.createSBD (aPayload,
+                                                     aPayload instanceof PayloadBuffer ? ((PayloadBuffer) aPayload).getSize ()
+                                                                                       : -1,
+                                                     aRootElement,
+                                                     aSenderID,
+                                                     aReceiverID,
+                                                     aDocTypeID,
+                                                     aProcessID,
+                                                     sCountryCodeC1,
+                                                     sInstanceIdentifier,
+                                                     OffsetDateTime.now (ZoneOffset.UTC));
+      aSendingReport.setSBDHInstanceIdentifier (sInstanceIdentifier);
 
-      if (EJavaVersion.getCurrentVersion ().isNewerOrEqualsThan (EJavaVersion.JDK_17))
+      final PeppolUserMessageSBDHBuilder aBuilder = Phase4PeppolSender.sbdhBuilder ()
+                                                                      .httpClientFactory (OutboundHttpClientFactory.getInstance ())
+                                                                      .cryptoFactory (ServletConfig.getCryptoFactoryToUse ())
+                                                                      .documentTypeID (aDocTypeID)
+                                                                      .processID (aProcessID)
+                                                                      .senderParticipantID (aSenderID)
+                                                                      .receiverParticipantID (aReceiverID)
+                                                                      .countryC1 (sCountryCodeC1)
+                                                                      .payload (aSBDBytes)
+                                                                      .senderPartyID (sMyPeppolSeatID)
+                                                                      .peppolAP_CAChecker (aAPCAChecker)
+                                                                      .endpointDetailProvider (aEndpoint.getAsEndpointDetailProvider ())
+                                                                      .endpointURLConsumer (aSendingReport::setC3EndpointURL)
+                                                                      .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
+                                                                      .certificateConsumer ( (aAPCertificate,
+                                                                                              aCheckDT,
+                                                                                              eCertCheckResult) -> {
+                                                                        // Determined by SMP lookup
+                                                                        aSendingReport.setC3Cert (aAPCertificate);
+                                                                        aSendingReport.setC3CertCheckDT (aCheckDT);
+                                                                        aSendingReport.setC3CertCheckResult (eCertCheckResult);
+                                                                      })
+                                                                      .sendingDateTimeConsumer (aSendingReport::setAS4SendingDT)
+                                                                      .buildMessageCallback (new IAS4ClientBuildMessageCallback ()
+                                                                      {
+                                                                        public void onAS4Message (@Nonnull final AbstractAS4Message <?> aMsg)
+                                                                        {
+                                                                          // Created AS4 fields
+                                                                          final AS4UserMessage aUserMsg = (AS4UserMessage) aMsg;
+                                                                          aSendingReport.setAS4MessageID (aUserMsg.getEbms3UserMessage ()
+                                                                                                                  .getMessageInfo ()
+                                                                                                                  .getMessageId ());
+                                                                          aSendingReport.setAS4ConversationID (aUserMsg.getEbms3UserMessage ()
+                                                                                                                       .getCollaborationInfo ()
+                                                                                                                       .getConversationId ());
+                                                                        }
+                                                                      })
+                                                                      .signalMsgConsumer ( (aSignalMsg,
+                                                                                            aMessageMetadata,
+                                                                                            aState) -> {
+                                                                        aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
+                                                                      });
+      final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
+      // Limit the parallel sends to the receiving AP and fail fast if it is known to be down
+      final OutboundEndpointGuard.Permit aPermit = _acquireEndpointPermit (aEndpoint, aSendingReport, aReportExt);
+      try
       {
-        // Work around the disabled SHA-1 in XMLDsig issue
-        aSMPClient.setSecureValidation (false);
+        eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+        aPermit.setResult (eResult, aCaughtEx.get ());
+      }
+      finally
+      {
+        aPermit.release ();
       }
-
-      final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
-      // TODO Add AP HTTP outbound proxy settings here
-
-      final PeppolUserMessageBuilder aBuilder = Phase4PeppolSender.builder ()
-                                                                  .httpClientFactory (aHCS)
-                                                                  .documentTypeID (aDocTypeID)
-                                                                  .processID (aProcessID)
-                                                                  .senderParticipantID (aSenderID)
-                                                                  .receiverParticipantID (aReceiverID)
-                                                                  .senderPartyID (sMyPeppolSeatID)
-                                                                  .countryC1 (sCountryCodeC1)
-                                                                  .payload (aDoc.getDocumentElement ())
-                                                                  .peppolAP_CAChecker (aAPCAChecker)
-                                                                  .smpClient (aSMPClient)
-                                                                  .sbdDocumentConsumer (sbd -> {
-                                                                    // Remember SBDH Instance
-                                                                    // Identifier
-                                                                    aSendingReport.setSBDHInstanceIdentifier (sbd.getStandardBusinessDocumentHeader ()
-                                                                                                                 .getDocumentIdentification ()
-                                                                                                                 .getInstanceIdentifier ());
-                                                                  })
-                                                                  .endpointURLConsumer (aSendingReport::setC3EndpointURL)
-                                                                  .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
-                                                                  .certificateConsumer ( (aAPCertificate,
-                                                                                          aCheckDT,
-                                                                                          eCertCheckResult) -> {
-                                                                    // Determined by SMP lookup
-                                                                    aSendingReport.setC3Cert (aAPCertificate);
-                                                                    aSendingReport.setC3CertCheckDT (aCheckDT);
-                                                                    aSendingReport.setC3CertCheckResult (eCertCheckResult);
-                                                                  })
-                                                                  .sendingDateTimeConsumer (aSendingReport::setAS4SendingDT)
-                                                                  .buildMessageCallback (new IAS4ClientBuildMessageCallback ()
-                                                                  {
-                                                                    public void onAS4Message (@Nonnull final AbstractAS4Message <?> aMsg)
-                                                                    {
-                                                                      // Created AS4 fields
-                                                                      final AS4UserMessage aUserMsg = (AS4UserMessage) aMsg;
-                                                                      aSendingReport.setAS4MessageID (aUserMsg.getEbms3UserMessage ()
-                                                                                                              .getMessageInfo ()
-                                                                                                              .getMessageId ());
-                                                                      aSendingReport.setAS4ConversationID (aUserMsg.getEbms3UserMessage ()
-                                                                                                                   .getCollaborationInfo ()
-                                                                                                                   .getConversationId ());
-                                                                    }
-                                                                  })
-                                                                  .signalMsgConsumer ( (aSignalMsg,
-                                                                                        aMessageMetadata,
-                                                                                        aState) -> {
-                                                                    aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
-                                                                  })
-                                                                  .disableValidation ();
-      final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
-      eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
       LOGGER.info ("Peppol client send result: " + eResult);
 
       if (eResult.isSuccess ())
@@ -222,14 +385,17 @@ public final class PeppolSender
         final String sEndUserID = sSenderID;
 
         // Enable Peppol Reporting for outbound messages
+        // The item is stored in the background, so that a slow reporting backend does not delay
+        // sending
         try
         {
-          aBuilder.createAndStorePeppolReportingItemAfterSending (sEndUserID);
-          LOGGER.info ("Successfully stored Peppol Reporting Item for outbound message with end user: " + sEndUserID);
+          final PeppolReportingItem aReportingItem = aBuilder.createPeppolReportingItemAfterSending (sEndUserID);
+          if (ReportingItemWriter.getInstance ().submit (aReportingItem))
+            LOGGER.info ("Queued Peppol Reporting Item for outbound message with end user: " + sEndUserID);
         }
         catch (final Exception ex)
         {
-          LOGGER.error ("Failed to store Peppol Reporting Item for outbound message", ex);
+          LOGGER.error ("Failed to create Peppol Reporting Item for outbound message", ex);
           // Don't throw the exception as this shouldn't affect the main sending process
         }
       }
@@ -241,6 +407,7 @@ public final class PeppolSender
         final Phase4Exception ex = aCaughtEx.get ();
         LOGGER.error ("Error sending Peppol message via AS4", ex);
         aSendingReport.setAS4SendingException (ex);
+        aSendingException = ex;
         bExceptionCaught = true;
       }
     }
@@ -249,6 +416,7 @@ public final class PeppolSender
       // Mostly errors on HTTP level
       LOGGER.error ("Error sending Peppol message via AS4", ex);
       aSendingReport.setAS4SendingException (ex);
+      aSendingException = ex;
       bExceptionCaught = true;
     }
     finally
@@ -261,62 +429,252 @@ public final class PeppolSender
     final boolean bSendingSuccess = eResult != null && eResult.isSuccess ();
     aSendingReport.setSendingSuccess (bSendingSuccess);
     aSendingReport.setOverallSuccess (bSendingSuccess && !bExceptionCaught);
+    if (aReportExt != null && !bSendingSuccess)
+    {
+      aReportExt.setRetryable (OutboundRetryPolicy.isRetryable (eResult, aSendingException));
+      aReportExt.setErrorMessage (aSendingException != null ? aSendingException.getMessage ()
+                                                            : "Sending result is " + eResult);
+    }
 
     return aSendingReport;
   }
 
   /**
-   * Send a Peppol message where the SBDH is passed in from the outside
+   * Send a Peppol message where the complete SBDH is passed in from the outside as bytes. The SBDH
+   * is parsed and the sending report is filled with the SBDH data before sending.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aSBDHBytes
+   *        The complete SBDH to be send
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @Nonnull
+  public static Phase4PeppolSendingReport sendPeppolMessagePredefinedSbdh (@Nonnull final ISMLInfo aSmlInfo,
+                                                                           @Nonnull final TrustedCAChecker aAPCAChecker,
+                                                                           @Nonnull final byte [] aSBDHBytes,
+                                                                           @Nullable final PeppolSendingReportExtension aReportExt)
+  {
+    return sendPeppolMessagePredefinedSbdh (aSmlInfo,
+                                            aAPCAChecker,
+                                            new ByteArrayInputStreamProvider (aSBDHBytes),
+                                            aReportExt);
+  }
+
+  @Nonnull
+  private static PeppolSBDHData _readSBDH (@Nonnull final IHasInputStream aSBDH) throws PeppolSBDHDataReadException
+  {
+    final InputStream aSBDHIS = aSBDH.getInputStream ();
+    if (aSBDHIS == null)
+      throw new IllegalStateException ("Failed to open the provided SBDH");
+    return new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (aSBDHIS);
+  }
+
+  @Nonnull
+  private static PeppolSBDHData _readSBDHMatchingHeader (@Nonnull final IHasInputStream aSBDH,
+                                                         @Nonnull final SBDHHeaderReader.SBDHHeader aHeader) throws PeppolSBDHDataReadException
+  {
+    final PeppolSBDHData aData = _readSBDH (aSBDH);
+    // The SMP lookup and the sending report are based on the header - what is sent must match it
+    final String sField = aHeader.getFirstMismatchingField (aData);
+    if (sField != null)
+      throw new IllegalStateException ("The " +
+                                       sField +
+                                       " of the SBDH differs from the one read from the SBDH header - not sending");
+    return aData;
+  }
+
+  private static void _fillSendingReport (@Nonnull final Phase4PeppolSendingReport aSendingReport,
+                                          @Nonnull final IParticipantIdentifier aSenderID,
+                                          @Nonnull final IParticipantIdentifier aReceiverID,
+                                          @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                          @Nonnull final IProcessIdentifier aProcessID,
+                                          @Nonnull final String sCountryC1,
+                                          @Nonnull final String sInstanceIdentifier)
+  {
+    aSendingReport.setSenderID (aSenderID);
+    aSendingReport.setReceiverID (aReceiverID);
+    aSendingReport.setDocTypeID (aDocTypeID);
+    aSendingReport.setProcessID (aProcessID);
+    aSendingReport.setCountryC1 (sCountryC1);
+    aSendingReport.setSBDHInstanceIdentifier (sInstanceIdentifier);
+
+    LOGGER.info ("Trying to send Peppol SBDH message from '" +
+                 aSenderID.getURIEncoded () +
+                 "' to '" +
+                 aReceiverID.getURIEncoded () +
+                 "' using '" +
+                 aDocTypeID.getURIEncoded () +
+                 "' and '" +
+                 aProcessID.getURIEncoded () +
+                 "' for '" +
+                 sCountryC1 +
+                 "'");
+  }
+
+  /**
+   * Send a Peppol message where the complete SBDH is passed in from the outside as a stream. Only
+   * the SBDH header is read upfront and the sending report is filled with it. The complete SBDH is
+   * only parsed after the SMP lookup succeeded.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aSBDH
+   *        The complete SBDH to be send. It must be readable more than once.
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @Nonnull
+  public static Phase4PeppolSendingReport sendPeppolMessagePredefinedSbdh (@Nonnull final ISMLInfo aSmlInfo,
+                                                                           @Nonnull final TrustedCAChecker aAPCAChecker,
+                                                                           @Nonnull final IHasInputStream aSBDH,
+                                                                           @Nullable final PeppolSendingReportExtension aReportExt)
+  {
+    final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (aSBDH);
+    if (aHeader == null)
+    {
+      // Let the full parsing provide the error details
+      final PeppolSBDHData aData;
+      try
+      {
+        aData = _readSBDH (aSBDH);
+      }
+      catch (final PeppolSBDHDataReadException ex)
+      {
+        // TODO This error handling might be improved to return a status error
+        // instead
+        final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
+        aSendingReport.setSBDHParseException (ex);
+        aSendingReport.setSendingSuccess (false);
+        aSendingReport.setOverallSuccess (false);
+        return aSendingReport;
+      }
+      return sendPeppolMessagePredefinedSbdh (aSmlInfo, aAPCAChecker, aData, aReportExt);
+    }
+
+    final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
+    _fillSendingReport (aSendingReport,
+                        aHeader.getSenderAsIdentifier (),
+                        aHeader.getReceiverAsIdentifier (),
+                        aHeader.getDocumentTypeAsIdentifier (),
+                        aHeader.getProcessAsIdentifier (),
+                        aHeader.getCountryC1 (),
+                        aHeader.getInstanceIdentifier ());
+
+    sendPeppolMessagePredefinedSbdh (aHeader.getReceiverAsIdentifier (),
+                                     aHeader.getDocumentTypeAsIdentifier (),
+                                     aHeader.getProcessAsIdentifier (),
+                                     () -> _readSBDHMatchingHeader (aSBDH, aHeader),
+                                     aSmlInfo,
+                                     aAPCAChecker,
+                                     aSendingReport,
+                                     aReportExt);
+    return aSendingReport;
+  }
+
+  /**
+   * Send a Peppol message where the SBDH was already parsed. The sending report is filled with the
+   * SBDH data before sending.
    *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
    * @param aData
-   *        The Peppol SBDH data to be send
+   *        The parsed SBDH to be send
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @Nonnull
+  public static Phase4PeppolSendingReport sendPeppolMessagePredefinedSbdh (@Nonnull final ISMLInfo aSmlInfo,
+                                                                           @Nonnull final TrustedCAChecker aAPCAChecker,
+                                                                           @Nonnull final PeppolSBDHData aData,
+                                                                           @Nullable final PeppolSendingReportExtension aReportExt)
+  {
+    final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
+    _fillSendingReport (aSendingReport,
+                        aData.getSenderAsIdentifier (),
+                        aData.getReceiverAsIdentifier (),
+                        aData.getDocumentTypeAsIdentifier (),
+                        aData.getProcessAsIdentifier (),
+                        aData.getCountryC1 (),
+                        aData.getInstanceIdentifier ());
+
+    sendPeppolMessagePredefinedSbdh (aData.getReceiverAsIdentifier (),
+                                     aData.getDocumentTypeAsIdentifier (),
+                                     aData.getProcessAsIdentifier (),
+                                     () -> aData,
+                                     aSmlInfo,
+                                     aAPCAChecker,
+                                     aSendingReport,
+                                     aReportExt);
+    return aSendingReport;
+  }
+
+  /**
+   * Send a Peppol message where the SBDH is passed in from the outside
+   *
+   * @param aReceiverID
+   *        The receiver from the SBDH, used for the SMP lookup
+   * @param aDocTypeID
+   *        The document type from the SBDH, used for the SMP lookup
+   * @param aProcessID
+   *        The process from the SBDH, used for the SMP lookup
+   * @param aDataProvider
+   *        Provides the complete Peppol SBDH data to be send. Only invoked after the SMP lookup
+   *        succeeded.
    * @param aSmlInfo
    *        The SML to be used for receiver lookup
    * @param aAPCAChecker
    *        The Peppol CA checker to be used.
    * @param aSendingReport
    *        The sending report to be filled.
+   * @param aReportExt
+   *        The optional sending report extension to be filled. May be <code>null</code>.
    */
-  static void sendPeppolMessagePredefinedSbdh (@Nonnull final PeppolSBDHData aData,
+  static void sendPeppolMessagePredefinedSbdh (@Nonnull final IParticipantIdentifier aReceiverID,
+                                               @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                               @Nonnull final IProcessIdentifier aProcessID,
+                                               @Nonnull final IThrowingSupplier <PeppolSBDHData, PeppolSBDHDataReadException> aDataProvider,
                                                @Nonnull final ISMLInfo aSmlInfo,
                                                @Nonnull final TrustedCAChecker aAPCAChecker,
-                                               @Nonnull final Phase4PeppolSendingReport aSendingReport)
+                                               @Nonnull final Phase4PeppolSendingReport aSendingReport,
+                                               @Nullable final PeppolSendingReportExtension aReportExt)
   {
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
     aSendingReport.setSenderPartyID (sMyPeppolSeatID);
 
     EAS4UserMessageSendResult eResult = null;
     boolean bExceptionCaught = false;
+    Exception aSendingException = null;
     final StopWatch aSW = StopWatch.createdStarted ();
     try
     {
-      // Start configuring here
-      final IParticipantIdentifier aReceiverID = aData.getReceiverAsIdentifier ();
-
-      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
-                                                                  aReceiverID,
-                                                                  aSmlInfo);
-
-      aSMPClient.withHttpClientSettings (aHCS -> {
-        // TODO Add SMP HTTP outbound proxy settings here
-        // If this block is not used, it may be removed
-      });
+      // SMP lookup - cached
+      final SMPEndpointCache.CachedEndpoint aEndpoint = _resolveEndpoint (aSmlInfo,
+                                                                          aReceiverID,
+                                                                          aDocTypeID,
+                                                                          aProcessID,
+                                                                          aReportExt);
 
-      if (EJavaVersion.getCurrentVersion ().isNewerOrEqualsThan (EJavaVersion.JDK_17))
-      {
-        // Work around the disabled SHA-1 in XMLDsig issue
-        aSMPClient.setSecureValidation (false);
-      }
-
-      final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
-      // TODO Add AP HTTP outbound proxy settings here
+      // Now the complete SBDH is needed
+      final PeppolSBDHData aData = aDataProvider.get ();
 
       final PeppolUserMessageSBDHBuilder aBuilder = Phase4PeppolSender.sbdhBuilder ()
-                                                                      .httpClientFactory (aHCS)
+                                                                      .httpClientFactory (OutboundHttpClientFactory.getInstance ())
+                                                                      .cryptoFactory (ServletConfig.getCryptoFactoryToUse ())
                                                                       .payloadAndMetadata (aData)
                                                                       .senderPartyID (sMyPeppolSeatID)
                                                                       .peppolAP_CAChecker (aAPCAChecker)
-                                                                      .smpClient (aSMPClient)
+                                                                      .endpointDetailProvider (aEndpoint.getAsEndpointDetailProvider ())
                                                                       .endpointURLConsumer (aSendingReport::setC3EndpointURL)
                                                                       .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
                                                                       .certificateConsumer ( (aAPCertificate,
@@ -348,7 +706,17 @@ public final class PeppolSender
                                                                         aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
                                                                       });
       final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
-      eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+      // Limit the parallel sends to the receiving AP and fail fast if it is known to be down
+      final OutboundEndpointGuard.Permit aPermit = _acquireEndpointPermit (aEndpoint, aSendingReport, aReportExt);
+      try
+      {
+        eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+        aPermit.setResult (eResult, aCaughtEx.get ());
+      }
+      finally
+      {
+        aPermit.release ();
+      }
       LOGGER.info ("Peppol client send result: " + eResult);
 
       if (eResult.isSuccess ())
@@ -358,14 +726,17 @@ public final class PeppolSender
         final String sEndUserID = aData.getSenderAsIdentifier().getURIEncoded();
 
         // Enable Peppol Reporting for outbound messages
+        // The item is stored in the background, so that a slow reporting backend does not delay
+        // sending
         try
         {
-          aBuilder.createAndStorePeppolReportingItemAfterSending (sEndUserID);
-          LOGGER.info ("Successfully stored Peppol Reporting Item for outbound message with end user: " + sEndUserID);
+          final PeppolReportingItem aReportingItem = aBuilder.createPeppolReportingItemAfterSending (sEndUserID);
+          if (ReportingItemWriter.getInstance ().submit (aReportingItem))
+            LOGGER.info ("Queued Peppol Reporting Item for outbound message with end user: " + sEndUserID);
         }
         catch (final Exception ex)
         {
-          LOGGER.error ("Failed to store Peppol Reporting Item for outbound message", ex);
+          LOGGER.error ("Failed to create Peppol Reporting Item for outbound message", ex);
           // Don't throw the exception as this shouldn't affect the main sending process
         }
       }
@@ -377,14 +748,23 @@ public final class PeppolSender
         final Phase4Exception ex = aCaughtEx.get ();
         LOGGER.error ("Error sending Peppol message via AS4", ex);
         aSendingReport.setAS4SendingException (ex);
+        aSendingException = ex;
         bExceptionCaught = true;
       }
     }
+    catch (final PeppolSBDHDataReadException ex)
+    {
+      LOGGER.error ("Error parsing the Peppol SBDH", ex);
+      aSendingReport.setSBDHParseException (ex);
+      aSendingException = ex;
+      bExceptionCaught = true;
+    }
     catch (final Exception ex)
     {
       // Mostly errors on HTTP level
       LOGGER.error ("Error sending Peppol message via AS4", ex);
       aSendingReport.setAS4SendingException (ex);
+      aSendingException = ex;
       bExceptionCaught = true;
     }
     finally
@@ -397,5 +777,11 @@ public final class PeppolSender
     final boolean bSendingSuccess = eResult != null && eResult.isSuccess ();
     aSendingReport.setSendingSuccess (bSendingSuccess);
     aSendingReport.setOverallSuccess (bSendingSuccess && !bExceptionCaught);
+    if (aReportExt != null && !bSendingSuccess)
+    {
+      aReportExt.setRetryable (OutboundRetryPolicy.isRetryable (eResult, aSendingException));
+      aReportExt.setErrorMessage (aSendingException != null ? aSendingException.getMessage ()
+                                                            : "Sending result is " + eResult);
+    }
   }
 }
@@ -16,28 +16,45 @@
  */
 package com.helger.phase4.peppolstandalone.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
 import org.slf4j.Logger;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.string.StringHelper;
-import com.helger.peppol.sbdh.PeppolSBDHData;
-import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
-import com.helger.peppol.sbdh.PeppolSBDHDataReader;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
 import com.helger.peppol.security.PeppolTrustedCA;
 import com.helger.peppol.servicedomain.EPeppolNetwork;
 import com.helger.peppol.sml.ESML;
-import com.helger.peppolid.factory.PeppolIdentifierFactory;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppol.Phase4PeppolSendingReport;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.outbound.OutboundIdempotencyKeyReuseException;
+import com.helger.phase4.peppolstandalone.outbound.OutboundIdempotencyStore;
+import com.helger.phase4.peppolstandalone.outbound.OutboundJobQueue;
+import com.helger.phase4.peppolstandalone.outbound.SBDHHeaderReader;
 import com.helger.security.certificate.TrustedCAChecker;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
 /**
  * This is the primary REST controller for the APIs to send messages over Peppol.
  *
@@ -47,29 +64,140 @@ import com.helger.security.certificate.TrustedCAChecker;
 public class PeppolSenderController
 {
   static final String HEADER_X_TOKEN = "X-Token";
+  static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
+  static final String HEADER_IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
   private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolSenderController.class);
 
-  @PostMapping (path = "/sendas4/{senderId}/{receiverId}/{docTypeId}/{processId}/{countryC1}",
-                produces = MediaType.APPLICATION_JSON_VALUE)
-  public String sendPeppolMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
-                                   @RequestBody final byte [] aPayloadBytes,
-                                   @PathVariable final String senderId,
-                                   @PathVariable final String receiverId,
-                                   @PathVariable final String docTypeId,
-                                   @PathVariable final String processId,
-                                   @PathVariable final String countryC1)
+  /**
+   * Read the request body. Large payloads are not kept in memory.
+   *
+   * @param aRequest
+   *        The current HTTP request
+   * @return The payload, that must be closed after usage. Never <code>null</code>.
+   */
+  @Nonnull
+  static PayloadBuffer readPayload (@Nonnull final HttpServletRequest aRequest)
   {
-    if (StringHelper.hasNoText (xtoken))
+    try
     {
-      LOGGER.error ("The specific token header is missing");
-      throw new HttpForbiddenException ();
+      return PayloadBuffer.read (aRequest.getInputStream (), aRequest.getContentLengthLong ());
     }
-    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    catch (final IOException ex)
     {
-      LOGGER.error ("The specified token value does not match the configured required token");
-      throw new HttpForbiddenException ();
+      LOGGER.error ("Failed to read the request payload", ex);
+      throw new HttpInternalServerErrorException ("Failed to read the request payload: " + ex.getMessage ());
     }
+  }
+
+  /**
+   * Create the fingerprint of a sending request, that binds an idempotency key to the request.
+   *
+   * @param aPayload
+   *        The payload to send. May not be <code>null</code>.
+   * @param aRoutingValues
+   *        The routing information that is not part of the payload.
+   * @return The hex encoded SHA-256 hash over the routing information and the payload.
+   */
+  @Nonnull
+  private static String _getFingerprint (@Nonnull final PayloadBuffer aPayload, @Nonnull final String... aRoutingValues)
+  {
+    try (final InputStream aIS = aPayload.getInputStream ())
+    {
+      if (aIS == null)
+        throw new IOException ("Failed to open the payload");
 
+      final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+      for (final String sValue : aRoutingValues)
+      {
+        aMD.update (sValue.getBytes (StandardCharsets.UTF_8));
+        aMD.update ((byte) 0);
+      }
+      final byte [] aBuffer = new byte [16 * 1024];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) > 0)
+        aMD.update (aBuffer, 0, nRead);
+      return HexFormat.of ().formatHex (aMD.digest ());
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("SHA-256 is not supported", ex);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read the request payload", ex);
+      throw new HttpInternalServerErrorException ("Failed to read the request payload: " + ex.getMessage ());
+    }
+  }
+
+  @Nonnull
+  private static String _executeIdempotent (@Nonnull final OutboundIdempotencyStore aIdempotencyStore,
+                                            @Nonnull final String sKey,
+                                            @Nonnull final String sFingerprint,
+                                            @Nonnull final Supplier <OutboundIdempotencyStore.Outcome> aSender,
+                                            @Nonnull final HttpServletResponse aResponse)
+  {
+    final OutboundIdempotencyStore.Result aResult;
+    try
+    {
+      aResult = aIdempotencyStore.execute (sKey, sFingerprint, aSender);
+    }
+    catch (final OutboundIdempotencyKeyReuseException ex)
+    {
+      LOGGER.error (ex.getMessage ());
+      if (ex.isInProgress ())
+        throw new HttpConflictException (ex.getMessage ());
+      throw new HttpUnprocessableEntityException (ex.getMessage ());
+    }
+
+    if (aResult.isReplayed ())
+    {
+      aResponse.setHeader (HEADER_IDEMPOTENT_REPLAYED, "true");
+      if (aResult.getRetryJobID () != null)
+      {
+        // The first failure is outdated - report the current state of the background retry
+        final ResponseEntity <String> aJobResponse = PeppolJobController.getJobResponse (aResult.getRetryJobID ());
+        if (aJobResponse != null)
+        {
+          aResponse.setStatus (aJobResponse.getStatusCode ().value ());
+          return aJobResponse.getBody ();
+        }
+      }
+    }
+    if (aResult.getRetryJobID () != null)
+      aResponse.setStatus (HttpServletResponse.SC_ACCEPTED);
+    return aResult.getResultJson ();
+  }
+
+  /**
+   * Respond with HTTP 202 instead of HTTP 200, if the sending is retried in the background.
+   */
+  @Nonnull
+  private static String _getResponse (@Nonnull final OutboundIdempotencyStore.Outcome aOutcome,
+                                      @Nonnull final HttpServletResponse aResponse)
+  {
+    if (aOutcome.getRetryJobID () != null)
+      aResponse.setStatus (HttpServletResponse.SC_ACCEPTED);
+    return aOutcome.getResultJson ();
+  }
+
+  /**
+   * @return <code>true</code> if sending again would not change the result.
+   */
+  private static boolean _isFinal (@Nonnull final Phase4PeppolSendingReport aSendingReport,
+                                   @Nonnull final PeppolSendingReportExtension aReportExt)
+  {
+    return aSendingReport.isOverallSuccess () || !aReportExt.isRetryable ();
+  }
+
+  @Nonnull
+  private static OutboundIdempotencyStore.Outcome _sendAS4 (@Nonnull final PayloadBuffer aPayload,
+                                                            @Nonnull final String senderId,
+                                                            @Nonnull final String receiverId,
+                                                            @Nonnull final String docTypeId,
+                                                            @Nonnull final String processId,
+                                                            @Nonnull final String countryC1,
+                                                            @Nonnull final String sSBDHInstanceID)
+  {
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
     final ESML eSML = eStage.isProduction () ? ESML.DIGIT_PRODUCTION : ESML.DIGIT_TEST;
     final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA
@@ -87,22 +215,59 @@ public class PeppolSenderController
                  "' for '" +
                  countryC1 +
                  "'");
+    final PeppolSendingReportExtension aReportExt = new PeppolSendingReportExtension ();
     final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolMessageCreatingSbdh (eSML,
                                                                                                  aAPCA,
-                                                                                                 aPayloadBytes,
+                                                                                                 aPayload,
                                                                                                  senderId,
                                                                                                  receiverId,
                                                                                                  docTypeId,
                                                                                                  processId,
-                                                                                                 countryC1);
+                                                                                                 countryC1,
+                                                                                                 sSBDHInstanceID,
+                                                                                                 aReportExt);
+
+    String sRetryJobID = null;
+    if (aReportExt.isRetryable () && APConfig.isOutboundRetrySyncSends ())
+    {
+      // Retry in the background
+      try
+      {
+        sRetryJobID = OutboundJobQueue.getInstance ()
+                                      .submitRetryAS4 (aPayload,
+                                                       senderId,
+                                                       receiverId,
+                                                       docTypeId,
+                                                       processId,
+                                                       countryC1,
+                                                       sSBDHInstanceID,
+                                                       aReportExt.getErrorMessage ());
+        aReportExt.add ("retryJobId", sRetryJobID);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to queue the retry of the Peppol message", ex);
+      }
+    }
 
     // Return as JSON
-    return aSendingReport.getAsJsonString ();
+    return new OutboundIdempotencyStore.Outcome (aReportExt.getAsJsonString (aSendingReport),
+                                                 _isFinal (aSendingReport, aReportExt),
+                                                 sRetryJobID);
   }
 
-  @PostMapping (path = "/sendsbdh", produces = MediaType.APPLICATION_JSON_VALUE)
-  public String sendPeppolSbdhMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
-                                       @RequestBody final byte [] aPayloadBytes)
+  @PostMapping (path = "/sendas4/{senderId}/{receiverId}/{docTypeId}/{processId}/{countryC1}",
+                produces = MediaType.APPLICATION_JSON_VALUE)
+  public String sendPeppolMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
+                                   @RequestHeader (name = HEADER_IDEMPOTENCY_KEY,
+                                                   required = false) final String sIdempotencyKey,
+                                   final HttpServletRequest aRequest,
+                                   final HttpServletResponse aResponse,
+                                   @PathVariable final String senderId,
+                                   @PathVariable final String receiverId,
+                                   @PathVariable final String docTypeId,
+                                   @PathVariable final String processId,
+                                   @PathVariable final String countryC1)
   {
     if (StringHelper.hasNoText (xtoken))
     {
@@ -115,56 +280,217 @@ public class PeppolSenderController
       throw new HttpForbiddenException ();
     }
 
+    if (StringHelper.hasText (sIdempotencyKey) && !OutboundIdempotencyStore.isValidKey (sIdempotencyKey))
+    {
+      LOGGER.error ("The provided idempotency key is invalid");
+      throw new HttpBadRequestException ("The " + HEADER_IDEMPOTENCY_KEY + " header value is invalid");
+    }
+
+    try (final PayloadBuffer aPayload = readPayload (aRequest))
+    {
+      if (StringHelper.hasNoText (sIdempotencyKey))
+      {
+        // Remember it, so that a retry uses the same SBDH instance identifier
+        final String sSBDHInstanceID = UUID.randomUUID ().toString ();
+        return _getResponse (_sendAS4 (aPayload,
+                                       senderId,
+                                       receiverId,
+                                       docTypeId,
+                                       processId,
+                                       countryC1,
+                                       sSBDHInstanceID),
+                             aResponse);
+      }
+
+      // The same key always results in the same SBDH instance identifier, so that the receiver can
+      // detect duplicates as well
+      final String sKey = "as4:" + sIdempotencyKey;
+      final String sSBDHInstanceID = UUID.nameUUIDFromBytes (sKey.getBytes (StandardCharsets.UTF_8)).toString ();
+
+      final OutboundIdempotencyStore aIdempotencyStore = OutboundIdempotencyStore.getInstanceIfEnabled ();
+      if (aIdempotencyStore == null)
+        return _getResponse (_sendAS4 (aPayload,
+                                       senderId,
+                                       receiverId,
+                                       docTypeId,
+                                       processId,
+                                       countryC1,
+                                       sSBDHInstanceID),
+                             aResponse);
+
+      // The key may only be used again for the same document to the same receiver
+      final String sFingerprint = _getFingerprint (aPayload, senderId, receiverId, docTypeId, processId, countryC1);
+      return _executeIdempotent (aIdempotencyStore,
+                                 sKey,
+                                 sFingerprint,
+                                 () -> _sendAS4 (aPayload,
+                                                 senderId,
+                                                 receiverId,
+                                                 docTypeId,
+                                                 processId,
+                                                 countryC1,
+                                                 sSBDHInstanceID),
+                                 aResponse);
+    }
+  }
+
+  @Nonnull
+  private static OutboundIdempotencyStore.Outcome _sendSBDH (@Nonnull final PayloadBuffer aPayload)
+  {
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
     final ESML eSML = eStage.isProduction () ? ESML.DIGIT_PRODUCTION : ESML.DIGIT_TEST;
     final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA
                                                                                                                    .peppolTestAP ();
-    final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (eSML);
+    final PeppolSendingReportExtension aReportExt = new PeppolSendingReportExtension ();
+    LOGGER.info ("Trying to send Peppol " + eStage.name () + " SBDH message");
+    final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolMessagePredefinedSbdh (eSML,
+                                                                                                   aAPCA,
+                                                                                                   aPayload,
+                                                                                                   aReportExt);
 
-    final PeppolSBDHData aData;
-    try
+    String sRetryJobID = null;
+    if (aReportExt.isRetryable () && APConfig.isOutboundRetrySyncSends ())
     {
-      aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aPayloadBytes));
+      // Retry in the background - the SBDH instance identifier is part of the payload
+      try
+      {
+        sRetryJobID = OutboundJobQueue.getInstance ().submitRetrySBDH (aPayload, aReportExt.getErrorMessage ());
+        aReportExt.add ("retryJobId", sRetryJobID);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to queue the retry of the Peppol SBDH message", ex);
+      }
     }
-    catch (final PeppolSBDHDataReadException ex)
+
+    // Return result JSON
+    return new OutboundIdempotencyStore.Outcome (aReportExt.getAsJsonString (aSendingReport),
+                                                 _isFinal (aSendingReport, aReportExt),
+                                                 sRetryJobID);
+  }
+
+  @PostMapping (path = "/sendsbdh", produces = MediaType.APPLICATION_JSON_VALUE)
+  public String sendPeppolSbdhMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
+                                       final HttpServletRequest aRequest,
+                                       final HttpServletResponse aResponse)
+  {
+    if (StringHelper.hasNoText (xtoken))
     {
-      // TODO This error handling might be improved to return a status error
-      // instead
-      aSendingReport.setSBDHParseException (ex);
-      aSendingReport.setSendingSuccess (false);
-      aSendingReport.setOverallSuccess (false);
-      return aSendingReport.getAsJsonString ();
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
     }
 
-    aSendingReport.setSenderID (aData.getSenderAsIdentifier ());
-    aSendingReport.setReceiverID (aData.getReceiverAsIdentifier ());
-    aSendingReport.setDocTypeID (aData.getDocumentTypeAsIdentifier ());
-    aSendingReport.setProcessID (aData.getProcessAsIdentifier ());
-    aSendingReport.setCountryC1 (aData.getCountryC1 ());
-    aSendingReport.setSBDHInstanceIdentifier (aData.getInstanceIdentifier ());
+    try (final PayloadBuffer aPayload = readPayload (aRequest))
+    {
+      final OutboundIdempotencyStore aIdempotencyStore = OutboundIdempotencyStore.getInstanceIfEnabled ();
+      if (aIdempotencyStore == null)
+        return _getResponse (_sendSBDH (aPayload), aResponse);
 
-    final String sSenderID = aData.getSenderAsIdentifier ().getURIEncoded ();
-    final String sReceiverID = aData.getReceiverAsIdentifier ().getURIEncoded ();
-    final String sDocTypeID = aData.getDocumentTypeAsIdentifier ().getURIEncoded ();
-    final String sProcessID = aData.getProcessAsIdentifier ().getURIEncoded ();
-    final String sCountryCodeC1 = aData.getCountryC1 ();
-    LOGGER.info ("Trying to send Peppol " +
-                 eStage.name () +
-                 " SBDH message from '" +
-                 sSenderID +
-                 "' to '" +
-                 sReceiverID +
-                 "' using '" +
-                 sDocTypeID +
-                 "' and '" +
-                 sProcessID +
-                 "' for '" +
-                 sCountryCodeC1 +
-                 "'");
+      // The SBDH instance identifier is the idempotency key
+      final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (aPayload);
+      final String sKey = aHeader == null ? null : "sbdh:" + aHeader.getInstanceIdentifier ();
+      if (!OutboundIdempotencyStore.isValidKey (sKey))
+        return _getResponse (_sendSBDH (aPayload), aResponse);
 
-    PeppolSender.sendPeppolMessagePredefinedSbdh (aData, eSML, aAPCA, aSendingReport);
+      // The routing information is part of the SBDH
+      return _executeIdempotent (aIdempotencyStore,
+                                 sKey,
+                                 _getFingerprint (aPayload),
+                                 () -> _sendSBDH (aPayload),
+                                 aResponse);
+    }
+  }
 
-    // Return result JSON
-    return aSendingReport.getAsJsonString ();
+  @Nonnull
+  static String getJobQueuedJson (@Nonnull final String sJobID)
+  {
+    final IJsonObject aJson = new JsonObject ();
+    aJson.add ("jobId", sJobID);
+    aJson.add ("status", OutboundJobQueue.EJobStatus.QUEUED.getID ());
+    return aJson.getAsJsonString ();
+  }
+
+  @PostMapping (path = "/sendas4-async/{senderId}/{receiverId}/{docTypeId}/{processId}/{countryC1}",
+                produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseStatus (HttpStatus.ACCEPTED)
+  public String sendPeppolMessageAsync (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
+                                        final HttpServletRequest aRequest,
+                                        @PathVariable final String senderId,
+                                        @PathVariable final String receiverId,
+                                        @PathVariable final String docTypeId,
+                                        @PathVariable final String processId,
+                                        @PathVariable final String countryC1)
+  {
+    if (StringHelper.hasNoText (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
+    }
+
+    try (final PayloadBuffer aPayload = readPayload (aRequest))
+    {
+      final String sJobID;
+      try
+      {
+        sJobID = OutboundJobQueue.getInstance ()
+                                 .submitAS4 (aPayload, senderId, receiverId, docTypeId, processId, countryC1);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to queue Peppol message", ex);
+        throw new HttpInternalServerErrorException ("Failed to queue Peppol message: " + ex.getMessage ());
+      }
+      return getJobQueuedJson (sJobID);
+    }
+  }
+
+  @PostMapping (path = "/sendsbdh-async", produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseStatus (HttpStatus.ACCEPTED)
+  public String sendPeppolSbdhMessageAsync (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
+                                            final HttpServletRequest aRequest)
+  {
+    if (StringHelper.hasNoText (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ();
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ();
+    }
+
+    try (final PayloadBuffer aPayload = readPayload (aRequest))
+    {
+      // Only queue what can be routed later on
+      final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (aPayload);
+      if (aHeader == null)
+      {
+        LOGGER.error ("The provided payload is not a valid Peppol SBDH");
+        throw new HttpBadRequestException ("The provided payload is not a valid Peppol SBDH");
+      }
+
+      final String sJobID;
+      try
+      {
+        sJobID = OutboundJobQueue.getInstance ().submitSBDH (aPayload, aHeader);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to queue Peppol SBDH message", ex);
+        throw new HttpInternalServerErrorException ("Failed to queue Peppol SBDH message: " + ex.getMessage ());
+      }
+      return getJobQueuedJson (sJobID);
+    }
   }
 }
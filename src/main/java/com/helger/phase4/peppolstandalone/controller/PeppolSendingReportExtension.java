@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.json.IJson;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+
+/**
+ * Application specific details of a single sending operation, that are not part of the
+ * {@link Phase4PeppolSendingReport} itself. They are merged into the JSON representation of the
+ * sending report.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class PeppolSendingReportExtension
+{
+  private final IJsonObject m_aJson = new JsonObject ();
+  private boolean m_bRetryable = false;
+  private String m_sErrorMessage;
+
+  public PeppolSendingReportExtension ()
+  {}
+
+  /**
+   * Add or overwrite a top-level property.
+   *
+   * @param sName
+   *        The JSON property name. May neither be <code>null</code> nor empty.
+   * @param aValue
+   *        The value to add. If it is <code>null</code> nothing happens.
+   * @return this for chaining
+   */
+  @Nonnull
+  public PeppolSendingReportExtension add (@Nonnull @Nonempty final String sName, @Nullable final Object aValue)
+  {
+    if (aValue != null)
+      m_aJson.add (sName, aValue);
+    return this;
+  }
+
+  public boolean isEmpty ()
+  {
+    return m_aJson.isEmpty ();
+  }
+
+  /**
+   * @return <code>true</code> if sending failed, but a later retry may succeed. This is not part of
+   *         the JSON.
+   */
+  public boolean isRetryable ()
+  {
+    return m_bRetryable;
+  }
+
+  @Nonnull
+  public PeppolSendingReportExtension setRetryable (final boolean bRetryable)
+  {
+    m_bRetryable = bRetryable;
+    return this;
+  }
+
+  /**
+   * @return A short description why sending failed. May be <code>null</code>. This is not part of
+   *         the JSON.
+   */
+  @Nullable
+  public String getErrorMessage ()
+  {
+    return m_sErrorMessage;
+  }
+
+  @Nonnull
+  public PeppolSendingReportExtension setErrorMessage (@Nullable final String sErrorMessage)
+  {
+    m_sErrorMessage = sErrorMessage;
+    return this;
+  }
+
+  /**
+   * Get the JSON representation of the provided sending report with all the properties of this
+   * extension added.
+   *
+   * @param aSendingReport
+   *        The sending report to use. May not be <code>null</code>.
+   * @return The merged JSON as a String. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getAsJsonString (@Nonnull final Phase4PeppolSendingReport aSendingReport)
+  {
+    final IJsonObject aJson = aSendingReport.getAsJsonObject ();
+    for (final Map.Entry <String, IJson> aEntry : m_aJson)
+      aJson.add (aEntry.getKey (), aEntry.getValue ());
+    return aJson.getAsJsonString ();
+  }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.w3c.dom.Element;
+
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+
+/**
+ * Groups documents that are forwarded at the same time into batches and forwards each batch in a
+ * single request to the bulk endpoint of the Recommand API. A batch is send as soon as it contains
+ * the maximum number of documents or bytes, or when the first document waited for the linger time.
+ * Each caller still gets the HTTP status code of its own document, so that error handling does not
+ * change compared to forwarding single documents.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class InboundBatchDispatcher
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundBatchDispatcher.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static InboundBatchDispatcher s_aInstance;
+
+  /**
+   * A single document waiting to be forwarded.
+   *
+   * @author Philip Helger
+   */
+  private static final class Item
+  {
+    private final InboundDocument m_aDoc;
+    private final byte [] m_aSBDBytes;
+    private final Element m_aBusinessMessage;
+    private final CompletableFuture <Integer> m_aResult = new CompletableFuture <> ();
+
+    Item (@Nonnull final InboundDocument aDoc,
+          @Nonnull final byte [] aSBDBytes,
+          @Nullable final Element aBusinessMessage)
+    {
+      m_aDoc = aDoc;
+      m_aSBDBytes = aSBDBytes;
+      m_aBusinessMessage = aBusinessMessage;
+    }
+  }
+
+  private final InboundForwardingClient m_aClient;
+  private final int m_nMaxCount;
+  private final long m_nMaxBytes;
+  private final long m_nLingerNanos;
+  private final long m_nResultTimeoutNanos;
+  private final BlockingQueue <Item> m_aQueue = new LinkedBlockingQueue <> ();
+  // Limits the number of bulk requests running at the same time
+  private final Semaphore m_aInFlight;
+  private final ExecutorService m_aSender;
+  private final Thread m_aCollector;
+  private final AtomicLong m_aBatchCount = new AtomicLong ();
+  private final AtomicLong m_aDocumentCount = new AtomicLong ();
+  private volatile boolean m_bShutdown = false;
+
+  InboundBatchDispatcher (@Nonnull final InboundForwardingClient aClient,
+                          @Nonnegative final int nMaxCount,
+                          @Nonnegative final long nMaxBytes,
+                          @Nonnegative final long nLingerMillis,
+                          @Nonnegative final int nMaxInFlight)
+  {
+    m_aClient = aClient;
+    m_nMaxCount = nMaxCount;
+    m_nMaxBytes = nMaxBytes;
+    m_nLingerNanos = TimeUnit.MILLISECONDS.toNanos (nLingerMillis);
+    // A batch may have to wait for a running request before it is sent itself
+    m_nResultTimeoutNanos = m_nLingerNanos + 2 * aClient.getRequestTimeout ().toNanos ();
+    m_aInFlight = new Semaphore (nMaxInFlight);
+    m_aSender = Executors.newFixedThreadPool (nMaxInFlight, new AppThreadFactory ("phase4-inbound-batch"));
+    m_aCollector = new AppThreadFactory ("phase4-inbound-batch-collector").newThread (this::_collect);
+    m_aCollector.start ();
+  }
+
+  private static void _fail (@Nonnull final List <Item> aItems, @Nonnull final Throwable t)
+  {
+    for (final Item aItem : aItems)
+      aItem.m_aResult.completeExceptionally (t);
+  }
+
+  private void _sendBatch (@Nonnull final List <Item> aBatch)
+  {
+    final List <Item> aSent = new ArrayList <> (aBatch.size ());
+    final List <Map <String, Object>> aEntries = new ArrayList <> (aBatch.size ());
+    for (final Item aItem : aBatch)
+      try
+      {
+        aEntries.add (m_aClient.createBulkEntry (aItem.m_aDoc, aItem.m_aSBDBytes, aItem.m_aBusinessMessage));
+        aSent.add (aItem);
+      }
+      catch (final PeppolSBDHDataReadException | RuntimeException ex)
+      {
+        // Only affects this document
+        aItem.m_aResult.completeExceptionally (ex);
+      }
+    if (aEntries.isEmpty ())
+      return;
+
+    try
+    {
+      final int [] aStatusCodes = m_aClient.forwardBulk (aEntries);
+      m_aBatchCount.incrementAndGet ();
+      m_aDocumentCount.addAndGet (aSent.size ());
+      for (int i = 0; i < aStatusCodes.length; ++i)
+        aSent.get (i).m_aResult.complete (Integer.valueOf (aStatusCodes[i]));
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      _fail (aSent, ex);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      _fail (aSent, new IOException ("Interrupted while forwarding the batch", ex));
+    }
+  }
+
+  private void _collect ()
+  {
+    Item aCarry = null;
+    List <Item> aBatch = new ArrayList <> ();
+    try
+    {
+      while (!m_bShutdown)
+      {
+        // Wait for the first document of the next batch
+        final Item aFirst = aCarry != null ? aCarry : m_aQueue.poll (1, TimeUnit.SECONDS);
+        aCarry = null;
+        if (aFirst == null)
+          continue;
+
+        aBatch.add (aFirst);
+        long nBytes = aFirst.m_aSBDBytes.length;
+        final long nDeadline = System.nanoTime () + m_nLingerNanos;
+        while (aBatch.size () < m_nMaxCount)
+        {
+          // After the linger time, only take what is already waiting
+          final long nWaitNanos = nDeadline - System.nanoTime ();
+          final Item aNext = nWaitNanos > 0 ? m_aQueue.poll (nWaitNanos, TimeUnit.NANOSECONDS) : m_aQueue.poll ();
+          if (aNext == null)
+            break;
+          if (nBytes + aNext.m_aSBDBytes.length > m_nMaxBytes)
+          {
+            // Starts the next batch
+            aCarry = aNext;
+            break;
+          }
+          aBatch.add (aNext);
+          nBytes += aNext.m_aSBDBytes.length;
+        }
+
+        // While all requests are running, the next batch continues to grow
+        m_aInFlight.acquire ();
+        final List <Item> aCurBatch = aBatch;
+        aBatch = new ArrayList <> ();
+        m_aSender.execute ( () -> {
+          try
+          {
+            _sendBatch (aCurBatch);
+          }
+          finally
+          {
+            m_aInFlight.release ();
+          }
+        });
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      // Shutdown
+    }
+
+    if (aCarry != null)
+      aBatch.add (aCarry);
+    m_aQueue.drainTo (aBatch);
+    _fail (aBatch, new IOException ("The inbound batch dispatcher is shut down"));
+  }
+
+  /**
+   * Queue a document for forwarding in the next batch.
+   *
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. May not be <code>null</code>.
+   * @param aBusinessMessage
+   *        The already parsed business message. Only needed in JSON mode. May be
+   *        <code>null</code>.
+   * @return The future HTTP status code for this document. Never <code>null</code>.
+   */
+  @Nonnull
+  public CompletableFuture <Integer> submit (@Nonnull final InboundDocument aDoc,
+                                             @Nonnull final byte [] aSBDBytes,
+                                             @Nullable final Element aBusinessMessage)
+  {
+    final Item aItem = new Item (aDoc, aSBDBytes, aBusinessMessage);
+    if (!m_bShutdown)
+    {
+      m_aQueue.add (aItem);
+      // The collector may have drained the queue for the last time in the meantime
+      if (!m_bShutdown || !m_aQueue.remove (aItem))
+        return aItem.m_aResult;
+    }
+    aItem.m_aResult.completeExceptionally (new IOException ("The inbound batch dispatcher is shut down"));
+    return aItem.m_aResult;
+  }
+
+  /**
+   * Forward a document as part of the next batch and wait for the result. Can be used instead of
+   * {@link InboundForwardingClient#forward(InboundDocument, byte[], Element)}.
+   *
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. May not be <code>null</code>.
+   * @param aBusinessMessage
+   *        The already parsed business message. Only needed in JSON mode. May be
+   *        <code>null</code>.
+   * @return The HTTP status code for this document.
+   * @throws IOException
+   *         In case of a network error or timeout
+   * @throws InterruptedException
+   *         If the calling thread was interrupted
+   * @throws PeppolSBDHDataReadException
+   *         If the SBD bytes could not be parsed
+   */
+  public int forward (@Nonnull final InboundDocument aDoc,
+                      @Nonnull final byte [] aSBDBytes,
+                      @Nullable final Element aBusinessMessage) throws IOException,
+                                                                InterruptedException,
+                                                                PeppolSBDHDataReadException
+  {
+    final CompletableFuture <Integer> aResult = submit (aDoc, aSBDBytes, aBusinessMessage);
+    try
+    {
+      return aResult.get (m_nResultTimeoutNanos, TimeUnit.NANOSECONDS).intValue ();
+    }
+    catch (final TimeoutException ex)
+    {
+      final IOException ex2 = new IOException ("Timeout waiting for the result of the batch", ex);
+      aResult.completeExceptionally (ex2);
+      throw ex2;
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof IOException)
+        throw (IOException) aCause;
+      if (aCause instanceof PeppolSBDHDataReadException)
+        throw (PeppolSBDHDataReadException) aCause;
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new IOException ("Failed to forward the document", aCause);
+    }
+  }
+
+  /**
+   * @return Statistics of this dispatcher. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final long nBatches = m_aBatchCount.get ();
+    final long nDocuments = m_aDocumentCount.get ();
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("queued", Integer.valueOf (m_aQueue.size ()));
+    ret.put ("batches", Long.valueOf (nBatches));
+    ret.put ("documents", Long.valueOf (nDocuments));
+    if (nBatches > 0)
+      ret.put ("averageBatchSize", Double.valueOf ((double) nDocuments / nBatches));
+    return ret;
+  }
+
+  void close ()
+  {
+    m_bShutdown = true;
+    m_aCollector.interrupt ();
+    try
+    {
+      m_aCollector.join (TimeUnit.SECONDS.toMillis (5));
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    // Let running requests finish
+    m_aSender.shutdown ();
+  }
+
+  /**
+   * Create the application wide instance, if batching is enabled in the configuration. Must be
+   * called once upon startup.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isRecommandApiBatchEnabled ())
+      return;
+
+    final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (InboundForwardingClient.getInstance (),
+                                                                           APConfig.getRecommandApiBatchMaxCount (),
+                                                                           APConfig.getRecommandApiBatchMaxBytes (),
+                                                                           APConfig.getRecommandApiBatchLingerMillis (),
+                                                                           APConfig.getRecommandApiBatchMaxInFlight ());
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The inbound batch dispatcher is already initialized");
+      s_aInstance = aDispatcher;
+    });
+    LOGGER.info ("Forwarding inbound documents in batches to " + aDispatcher.m_aClient.getBulkEndpoint ());
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if batching is not enabled.
+   */
+  @Nullable
+  public static InboundBatchDispatcher getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Stop batching. Documents that are still waiting fail with an {@link IOException}. Must be called
+   * upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final InboundBatchDispatcher aInstance = RW_LOCK.writeLockedGet ( () -> {
+      final InboundBatchDispatcher ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInstance != null)
+      aInstance.close ();
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+
+/**
+ * The metadata of a received document, that is forwarded together with the document to the
+ * downstream API.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class InboundDocument
+{
+  private final String m_sSenderID;
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private final String m_sCountryC1;
+  private final String m_sSBDHInstanceIdentifier;
+  private final String m_sAS4MessageID;
+  private final String m_sAS4ConversationID;
+
+  public InboundDocument (@Nonnull final String sSenderID,
+                          @Nonnull final String sReceiverID,
+                          @Nonnull final String sDocTypeID,
+                          @Nonnull final String sProcessID,
+                          @Nullable final String sCountryC1,
+                          @Nullable final String sSBDHInstanceIdentifier,
+                          @Nullable final String sAS4MessageID,
+                          @Nullable final String sAS4ConversationID)
+  {
+    m_sSenderID = sSenderID;
+    m_sReceiverID = sReceiverID;
+    m_sDocTypeID = sDocTypeID;
+    m_sProcessID = sProcessID;
+    m_sCountryC1 = sCountryC1;
+    m_sSBDHInstanceIdentifier = sSBDHInstanceIdentifier;
+    m_sAS4MessageID = sAS4MessageID;
+    m_sAS4ConversationID = sAS4ConversationID;
+  }
+
+  @Nonnull
+  public String getSenderID ()
+  {
+    return m_sSenderID;
+  }
+
+  @Nonnull
+  public String getReceiverID ()
+  {
+    return m_sReceiverID;
+  }
+
+  @Nonnull
+  public String getDocTypeID ()
+  {
+    return m_sDocTypeID;
+  }
+
+  @Nonnull
+  public String getProcessID ()
+  {
+    return m_sProcessID;
+  }
+
+  @Nullable
+  public String getCountryC1 ()
+  {
+    return m_sCountryC1;
+  }
+
+  @Nullable
+  public String getSBDHInstanceIdentifier ()
+  {
+    return m_sSBDHInstanceIdentifier;
+  }
+
+  @Nullable
+  public String getAS4MessageID ()
+  {
+    return m_sAS4MessageID;
+  }
+
+  @Nullable
+  public String getAS4ConversationID ()
+  {
+    return m_sAS4ConversationID;
+  }
+
+  /**
+   * @return The metadata as JSON with the same property names as used for forwarding. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IJsonObject getAsJson ()
+  {
+    final IJsonObject ret = new JsonObject ();
+    ret.add ("senderId", m_sSenderID);
+    ret.add ("receiverId", m_sReceiverID);
+    ret.add ("docTypeId", m_sDocTypeID);
+    ret.add ("processId", m_sProcessID);
+    ret.add ("countryC1", m_sCountryC1);
+    ret.add ("sbdhInstanceIdentifier", m_sSBDHInstanceIdentifier);
+    ret.add ("as4MessageId", m_sAS4MessageID);
+    ret.add ("as4ConversationId", m_sAS4ConversationID);
+    return ret;
+  }
+
+  private static void _writeNullable (@Nonnull final DataOutput aDO, @Nullable final String s) throws IOException
+  {
+    aDO.writeBoolean (s != null);
+    if (s != null)
+      aDO.writeUTF (s);
+  }
+
+  @Nullable
+  private static String _readNullable (@Nonnull final DataInput aDI) throws IOException
+  {
+    return aDI.readBoolean () ? aDI.readUTF () : null;
+  }
+
+  /**
+   * Write the metadata in a binary form.
+   *
+   * @param aDO
+   *        The output to write to. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   * @see #readFrom(DataInput)
+   */
+  public void writeTo (@Nonnull final DataOutput aDO) throws IOException
+  {
+    aDO.writeUTF (m_sSenderID);
+    aDO.writeUTF (m_sReceiverID);
+    aDO.writeUTF (m_sDocTypeID);
+    aDO.writeUTF (m_sProcessID);
+    _writeNullable (aDO, m_sCountryC1);
+    _writeNullable (aDO, m_sSBDHInstanceIdentifier);
+    _writeNullable (aDO, m_sAS4MessageID);
+    _writeNullable (aDO, m_sAS4ConversationID);
+  }
+
+  /**
+   * Read the metadata written by {@link #writeTo(DataOutput)}.
+   *
+   * @param aDI
+   *        The input to read from. May not be <code>null</code>.
+   * @return The read metadata. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  public static InboundDocument readFrom (@Nonnull final DataInput aDI) throws IOException
+  {
+    return new InboundDocument (aDI.readUTF (),
+                                aDI.readUTF (),
+                                aDI.readUTF (),
+                                aDI.readUTF (),
+                                _readNullable (aDI),
+                                _readNullable (aDI),
+                                _readNullable (aDI),
+                                _readNullable (aDI));
+  }
+
+  /**
+   * Create the metadata of a received message.
+   *
+   * @param aUserMessage
+   *        The received AS4 user message. May not be <code>null</code>.
+   * @param aPeppolSBD
+   *        The received SBDH data. May not be <code>null</code>.
+   * @return The new object. Never <code>null</code>.
+   */
+  @Nonnull
+  public static InboundDocument create (@Nonnull final Ebms3UserMessage aUserMessage,
+                                        @Nonnull final PeppolSBDHData aPeppolSBD)
+  {
+    final String sAS4MessageID = aUserMessage.getMessageInfo () != null ? aUserMessage.getMessageInfo ()
+                                                                                      .getMessageId () : null;
+    final String sAS4ConversationID = aUserMessage.getCollaborationInfo () != null ? aUserMessage.getCollaborationInfo ()
+                                                                                                 .getConversationId ()
+                                                                                   : null;
+    return new InboundDocument (aPeppolSBD.getSenderAsIdentifier ().getURIEncoded (),
+                                aPeppolSBD.getReceiverAsIdentifier ().getURIEncoded (),
+                                aPeppolSBD.getDocumentTypeAsIdentifier ().getURIEncoded (),
+                                aPeppolSBD.getProcessAsIdentifier ().getURIEncoded (),
+                                aPeppolSBD.getCountryC1 (),
+                                aPeppolSBD.getInstanceIdentifier (),
+                                sAS4MessageID,
+                                sAS4ConversationID);
+  }
+}
@@ -0,0 +1,593 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.string.StringParser;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * Detects received documents that were already processed. A document is a duplicate if either its
+ * AS4 message ID or the combination of its sender and SBDH instance identifier was seen before
+ * within the configured window.<br>
+ * The IDs are stored as 128 bit fingerprints in generations, each covering a fixed period. Each
+ * generation consists of a Bloom filter in memory, that answers most lookups, and an open
+ * addressing hash table in a memory mapped file, that confirms positive answers of the Bloom
+ * filter. Generations older than the window are deleted as a whole. As the hash tables are memory
+ * mapped, their content survives a crash of the application.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class InboundDuplicateDetector
+{
+  /**
+   * The result of {@link InboundDuplicateDetector#begin(InboundDocument)}
+   *
+   * @author Philip Helger
+   */
+  public enum EDuplicateState
+  {
+    /** Never seen before - must be processed */
+    NEW,
+    /** Was already processed successfully */
+    DUPLICATE,
+    /** The same document is currently processed by another thread */
+    IN_PROCESS;
+  }
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundDuplicateDetector.class);
+  private static final String FILE_PREFIX = "generation-";
+  private static final String FILE_EXT = ".idx";
+  private static final int SLOT_SIZE = 16;
+  // The largest table that can be memory mapped at once
+  private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE + 1;
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static InboundDuplicateDetector s_aInstance;
+
+  /**
+   * A Bloom filter for 128 bit fingerprints, using double hashing.
+   *
+   * @author Philip Helger
+   */
+  static final class BloomFilter
+  {
+    private final long [] m_aBits;
+    private final long m_nBitCount;
+    private final int m_nHashCount;
+
+    BloomFilter (@Nonnegative final long nExpectedEntries, final double dFalsePositiveProbability)
+    {
+      final double dLn2 = Math.log (2);
+      final long nBits = Math.max (64,
+                                   (long) Math.ceil (-nExpectedEntries *
+                                                     Math.log (dFalsePositiveProbability) /
+                                                     (dLn2 * dLn2)));
+      m_aBits = new long [(int) ((nBits + 63) / 64)];
+      m_nBitCount = m_aBits.length * 64L;
+      m_nHashCount = Math.max (1, (int) Math.round ((double) m_nBitCount / nExpectedEntries * dLn2));
+    }
+
+    void add (final long nHash1, final long nHash2)
+    {
+      for (int i = 0; i < m_nHashCount; ++i)
+      {
+        final long nBit = ((nHash1 + i * nHash2) & Long.MAX_VALUE) % m_nBitCount;
+        m_aBits[(int) (nBit >>> 6)] |= 1L << nBit;
+      }
+    }
+
+    boolean mightContain (final long nHash1, final long nHash2)
+    {
+      for (int i = 0; i < m_nHashCount; ++i)
+      {
+        final long nBit = ((nHash1 + i * nHash2) & Long.MAX_VALUE) % m_nBitCount;
+        if ((m_aBits[(int) (nBit >>> 6)] & (1L << nBit)) == 0)
+          return false;
+      }
+      return true;
+    }
+
+    long getSizeInBytes ()
+    {
+      return m_aBits.length * 8L;
+    }
+  }
+
+  /**
+   * All fingerprints of one period.
+   *
+   * @author Philip Helger
+   */
+  private static final class Generation
+  {
+    private final long m_nStartMillis;
+    private final File m_aFile;
+    private final MappedByteBuffer m_aTable;
+    private final int m_nSlotMask;
+    private final BloomFilter m_aBloomFilter;
+    private int m_nCount;
+
+    Generation (final long nStartMillis,
+                @Nonnull final File aFile,
+                @Nonnegative final int nSlots,
+                final double dFalsePositiveProbability) throws IOException
+    {
+      m_nStartMillis = nStartMillis;
+      m_aFile = aFile;
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+      {
+        if (aRAF.length () == 0)
+          aRAF.setLength ((long) nSlots * SLOT_SIZE);
+        final long nLength = aRAF.length ();
+        final long nFileSlots = nLength / SLOT_SIZE;
+        if (nLength % SLOT_SIZE != 0 || Long.bitCount (nFileSlots) != 1 || nFileSlots > MAX_SLOTS)
+          throw new IOException ("Invalid size " + nLength + " of " + aFile.getAbsolutePath ());
+        // The mapping stays valid after the channel is closed
+        m_aTable = aRAF.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, nLength);
+        m_nSlotMask = (int) nFileSlots - 1;
+      }
+
+      // At most half of the slots are used
+      m_aBloomFilter = new BloomFilter ((m_nSlotMask + 1L) / 2, dFalsePositiveProbability);
+      for (int i = 0; i <= m_nSlotMask; ++i)
+      {
+        final long nHash1 = m_aTable.getLong (i * SLOT_SIZE);
+        final long nHash2 = m_aTable.getLong (i * SLOT_SIZE + 8);
+        if (nHash1 != 0 || nHash2 != 0)
+        {
+          m_aBloomFilter.add (nHash1, nHash2);
+          m_nCount++;
+        }
+      }
+    }
+
+    boolean isFull ()
+    {
+      return m_nCount >= (m_nSlotMask + 1) / 2;
+    }
+
+    boolean contains (final long nHash1, final long nHash2)
+    {
+      int nSlot = (int) nHash1 & m_nSlotMask;
+      while (true)
+      {
+        final long nSlot1 = m_aTable.getLong (nSlot * SLOT_SIZE);
+        final long nSlot2 = m_aTable.getLong (nSlot * SLOT_SIZE + 8);
+        if (nSlot1 == nHash1 && nSlot2 == nHash2)
+          return true;
+        if (nSlot1 == 0 && nSlot2 == 0)
+          return false;
+        nSlot = (nSlot + 1) & m_nSlotMask;
+      }
+    }
+
+    void add (final long nHash1, final long nHash2)
+    {
+      int nSlot = (int) nHash1 & m_nSlotMask;
+      while (m_aTable.getLong (nSlot * SLOT_SIZE) != 0 || m_aTable.getLong (nSlot * SLOT_SIZE + 8) != 0)
+        nSlot = (nSlot + 1) & m_nSlotMask;
+      m_aTable.putLong (nSlot * SLOT_SIZE, nHash1);
+      m_aTable.putLong (nSlot * SLOT_SIZE + 8, nHash2);
+      m_aBloomFilter.add (nHash1, nHash2);
+      m_nCount++;
+    }
+
+    void force ()
+    {
+      m_aTable.force ();
+    }
+  }
+
+  private final File m_aBaseDir;
+  private final long m_nWindowMillis;
+  private final long m_nGenerationMillis;
+  private final int m_nSlotsPerGeneration;
+  private final double m_dFalsePositiveProbability;
+  private final LongSupplier m_aClock;
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  // Newest first
+  @GuardedBy ("m_aLock")
+  private final LinkedList <Generation> m_aGenerations = new LinkedList <> ();
+  @GuardedBy ("m_aLock")
+  private final Set <String> m_aInProcess = new HashSet <> ();
+  @GuardedBy ("m_aLock")
+  private long m_nDuplicateCount;
+  @GuardedBy ("m_aLock")
+  private long m_nBloomFalsePositiveCount;
+
+  InboundDuplicateDetector (@Nonnull final File aBaseDir,
+                            @Nonnegative final long nWindowMillis,
+                            @Nonnegative final long nGenerationMillis,
+                            @Nonnegative final int nCapacityPerGeneration,
+                            final double dFalsePositiveProbability,
+                            @Nonnull final LongSupplier aClock) throws IOException
+  {
+    final long nSlots = Long.highestOneBit (Math.max (2L * nCapacityPerGeneration - 1, 1)) << 1;
+    if (nSlots > MAX_SLOTS)
+      throw new IllegalArgumentException ("The capacity per generation " + nCapacityPerGeneration + " is too large");
+    m_aBaseDir = aBaseDir;
+    m_nWindowMillis = nWindowMillis;
+    m_nGenerationMillis = nGenerationMillis;
+    m_nSlotsPerGeneration = (int) nSlots;
+    m_dFalsePositiveProbability = dFalsePositiveProbability;
+    m_aClock = aClock;
+
+    final File [] aFiles = aBaseDir.listFiles ( (d, n) -> n.startsWith (FILE_PREFIX) && n.endsWith (FILE_EXT));
+    final File [] aSortedFiles = aFiles == null ? new File [0] : aFiles;
+    Arrays.sort (aSortedFiles, Comparator.comparingLong (InboundDuplicateDetector::_getStartMillis));
+    for (final File aFile : aSortedFiles)
+    {
+      final long nStartMillis = _getStartMillis (aFile);
+      if (nStartMillis < 0 || _isExpired (nStartMillis, aClock.getAsLong ()))
+        FileOperationManager.INSTANCE.deleteFileIfExisting (aFile);
+      else
+        m_aGenerations.addFirst (new Generation (nStartMillis, aFile, m_nSlotsPerGeneration, dFalsePositiveProbability));
+    }
+  }
+
+  private static long _getStartMillis (@Nonnull final File aFile)
+  {
+    final String sName = aFile.getName ();
+    return StringParser.parseLong (sName.substring (FILE_PREFIX.length (), sName.length () - FILE_EXT.length ()), -1);
+  }
+
+  private boolean _isExpired (final long nStartMillis, final long nNowMillis)
+  {
+    // All entries of the generation are older than the window
+    return nStartMillis + m_nGenerationMillis < nNowMillis - m_nWindowMillis;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _deleteExpiredGenerations (final long nNowMillis)
+  {
+    final Iterator <Generation> it = m_aGenerations.descendingIterator ();
+    while (it.hasNext ())
+    {
+      final Generation aGeneration = it.next ();
+      if (!_isExpired (aGeneration.m_nStartMillis, nNowMillis))
+        break;
+      it.remove ();
+      // The mapping is released by the garbage collector
+      FileOperationManager.INSTANCE.deleteFileIfExisting (aGeneration.m_aFile);
+      LOGGER.info ("Deleted expired duplicate detection generation " + aGeneration.m_aFile.getName ());
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private Generation _getCurrentGeneration () throws IOException
+  {
+    final long nNowMillis = m_aClock.getAsLong ();
+    final Generation aCurrent = m_aGenerations.peekFirst ();
+    if (aCurrent != null && nNowMillis - aCurrent.m_nStartMillis < m_nGenerationMillis && !aCurrent.isFull ())
+      return aCurrent;
+
+    if (aCurrent != null)
+      aCurrent.force ();
+    // Unique, even if a full generation is replaced within the same millisecond
+    final long nStartMillis = aCurrent == null ? nNowMillis : Math.max (nNowMillis, aCurrent.m_nStartMillis + 1);
+    final Generation ret = new Generation (nStartMillis,
+                                           new File (m_aBaseDir, FILE_PREFIX + nStartMillis + FILE_EXT),
+                                           m_nSlotsPerGeneration,
+                                           m_dFalsePositiveProbability);
+    m_aGenerations.addFirst (ret);
+    _deleteExpiredGenerations (nNowMillis);
+    return ret;
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _contains (@Nonnull final long [] aFingerprint)
+  {
+    for (final Generation aGeneration : m_aGenerations)
+      if (aGeneration.m_aBloomFilter.mightContain (aFingerprint[0], aFingerprint[1]))
+      {
+        if (aGeneration.contains (aFingerprint[0], aFingerprint[1]))
+          return true;
+        m_nBloomFalsePositiveCount++;
+      }
+    return false;
+  }
+
+  @Nonnull
+  private static List <String> _getKeys (@Nonnull final InboundDocument aDoc)
+  {
+    final List <String> ret = new ArrayList <> (2);
+    if (aDoc.getAS4MessageID () != null)
+      ret.add ("as4:" + aDoc.getAS4MessageID ());
+    if (aDoc.getSBDHInstanceIdentifier () != null)
+      ret.add ("sbdh:" + aDoc.getSenderID () + ' ' + aDoc.getSBDHInstanceIdentifier ());
+    return ret;
+  }
+
+  private static long _fmix64 (final long n)
+  {
+    long k = n;
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /**
+   * Get the 128 bit MurmurHash3 (x64 variant) of the provided key. The result is never 0/0, as this
+   * marks empty slots.
+   *
+   * @param sKey
+   *        The key to hash. May not be <code>null</code>.
+   * @return An array with 2 elements. Never <code>null</code>.
+   */
+  @Nonnull
+  static long [] getFingerprint (@Nonnull final String sKey)
+  {
+    final byte [] aData = sKey.getBytes (StandardCharsets.UTF_8);
+    final ByteBuffer aBB = ByteBuffer.wrap (aData).order (ByteOrder.LITTLE_ENDIAN);
+    final long c1 = 0x87c37b91114253d5L;
+    final long c2 = 0x4cf5ad432745937fL;
+    long h1 = 0;
+    long h2 = 0;
+
+    final int nBlocks = aData.length / 16;
+    for (int i = 0; i < nBlocks; ++i)
+    {
+      final long k1 = Long.rotateLeft (aBB.getLong (i * 16) * c1, 31) * c2;
+      h1 ^= k1;
+      h1 = Long.rotateLeft (h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      final long k2 = Long.rotateLeft (aBB.getLong (i * 16 + 8) * c2, 33) * c1;
+      h2 ^= k2;
+      h2 = Long.rotateLeft (h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    final int nTail = nBlocks * 16;
+    final int nRest = aData.length & 15;
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = nRest - 1; i >= 8; --i)
+      k2 ^= (aData[nTail + i] & 0xffL) << ((i - 8) * 8);
+    for (int i = Math.min (nRest, 8) - 1; i >= 0; --i)
+      k1 ^= (aData[nTail + i] & 0xffL) << (i * 8);
+    if (nRest > 8)
+      h2 ^= Long.rotateLeft (k2 * c2, 33) * c1;
+    if (nRest > 0)
+      h1 ^= Long.rotateLeft (k1 * c1, 31) * c2;
+
+    h1 ^= aData.length;
+    h2 ^= aData.length;
+    h1 += h2;
+    h2 += h1;
+    h1 = _fmix64 (h1);
+    h2 = _fmix64 (h2);
+    h1 += h2;
+    h2 += h1;
+    if (h1 == 0 && h2 == 0)
+      h2 = 1;
+    return new long [] { h1, h2 };
+  }
+
+  /**
+   * Check if a received document was already processed. If it is new, it is marked as "in process"
+   * and {@link #finish(InboundDocument, boolean)} must be called afterwards.
+   *
+   * @param aDoc
+   *        The received document. May not be <code>null</code>.
+   * @return The state of the document. Never <code>null</code>.
+   */
+  @Nonnull
+  public EDuplicateState begin (@Nonnull final InboundDocument aDoc)
+  {
+    final List <String> aKeys = _getKeys (aDoc);
+    final List <long []> aFingerprints = new ArrayList <> (aKeys.size ());
+    for (final String sKey : aKeys)
+      aFingerprints.add (getFingerprint (sKey));
+
+    return m_aLock.lockedGet ( () -> {
+      for (final String sKey : aKeys)
+        if (m_aInProcess.contains (sKey))
+          return EDuplicateState.IN_PROCESS;
+      for (final long [] aFingerprint : aFingerprints)
+        if (_contains (aFingerprint))
+        {
+          m_nDuplicateCount++;
+          return EDuplicateState.DUPLICATE;
+        }
+      m_aInProcess.addAll (aKeys);
+      return EDuplicateState.NEW;
+    });
+  }
+
+  /**
+   * Finish the processing of a document, for which {@link #begin(InboundDocument)} returned
+   * {@link EDuplicateState#NEW}.
+   *
+   * @param aDoc
+   *        The received document. May not be <code>null</code>.
+   * @param bSuccess
+   *        <code>true</code> if the document was processed successfully and later copies are
+   *        duplicates. <code>false</code> if processing failed and the sender should retry.
+   */
+  public void finish (@Nonnull final InboundDocument aDoc, final boolean bSuccess)
+  {
+    final List <String> aKeys = _getKeys (aDoc);
+    final List <long []> aFingerprints = new ArrayList <> (aKeys.size ());
+    if (bSuccess)
+      for (final String sKey : aKeys)
+        aFingerprints.add (getFingerprint (sKey));
+
+    m_aLock.locked ( () -> {
+      m_aInProcess.removeAll (aKeys);
+      try
+      {
+        for (final long [] aFingerprint : aFingerprints)
+          if (!_contains (aFingerprint))
+            _getCurrentGeneration ().add (aFingerprint[0], aFingerprint[1]);
+      }
+      catch (final IOException ex)
+      {
+        // Only means that a later copy is not detected
+        LOGGER.error ("Failed to remember received document " + aKeys, ex);
+      }
+    });
+  }
+
+  /**
+   * Delete all generations that are older than the window and write the current one to disk.
+   */
+  public void deleteOutdatedEntries ()
+  {
+    m_aLock.locked ( () -> {
+      _deleteExpiredGenerations (m_aClock.getAsLong ());
+      final Generation aCurrent = m_aGenerations.peekFirst ();
+      if (aCurrent != null)
+        aCurrent.force ();
+    });
+  }
+
+  /**
+   * @return Statistics of this detector. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    m_aLock.locked ( () -> {
+      long nEntries = 0;
+      long nBloomBytes = 0;
+      long nTableBytes = 0;
+      for (final Generation aGeneration : m_aGenerations)
+      {
+        nEntries += aGeneration.m_nCount;
+        nBloomBytes += aGeneration.m_aBloomFilter.getSizeInBytes ();
+        nTableBytes += (aGeneration.m_nSlotMask + 1L) * SLOT_SIZE;
+      }
+      ret.put ("generations", Integer.valueOf (m_aGenerations.size ()));
+      ret.put ("entries", Long.valueOf (nEntries));
+      ret.put ("inProcess", Integer.valueOf (m_aInProcess.size ()));
+      ret.put ("duplicates", Long.valueOf (m_nDuplicateCount));
+      ret.put ("bloomFalsePositives", Long.valueOf (m_nBloomFalsePositiveCount));
+      ret.put ("bloomFilterBytes", Long.valueOf (nBloomBytes));
+      ret.put ("indexFileBytes", Long.valueOf (nTableBytes));
+    });
+    return ret;
+  }
+
+  void close ()
+  {
+    m_aLock.locked ( () -> {
+      for (final Generation aGeneration : m_aGenerations)
+        aGeneration.force ();
+    });
+  }
+
+  /**
+   * Create the application wide instance, if duplicate detection is enabled in the configuration.
+   * Must be called once upon startup.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isInboundDuplicateDetectionEnabled ())
+      return;
+
+    final File aBaseDir = new File (AS4Configuration.getDataPath (), "inbound-dedup").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+    final InboundDuplicateDetector aDetector;
+    try
+    {
+      aDetector = new InboundDuplicateDetector (aBaseDir,
+                                                TimeUnit.DAYS.toMillis (APConfig.getInboundDuplicateDetectionWindowDays ()),
+                                                TimeUnit.DAYS.toMillis (APConfig.getInboundDuplicateDetectionGenerationDays ()),
+                                                APConfig.getInboundDuplicateDetectionGenerationCapacity (),
+                                                APConfig.getInboundDuplicateDetectionBloomFalsePositiveProbability (),
+                                                System::currentTimeMillis);
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException ("Failed to open the duplicate detection index in " +
+                                       aBaseDir.getAbsolutePath (),
+                                       ex);
+    }
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The inbound duplicate detector is already initialized");
+      s_aInstance = aDetector;
+    });
+    LOGGER.info ("Inbound duplicate detection is enabled: " + aDetector.getStatistics ());
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if duplicate detection is disabled.
+   */
+  @Nullable
+  public static InboundDuplicateDetector getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Write all changes to disk. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final InboundDuplicateDetector aDetector = RW_LOCK.writeLockedGet ( () -> {
+      final InboundDuplicateDetector ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aDetector != null)
+      aDetector.close ();
+  }
+}
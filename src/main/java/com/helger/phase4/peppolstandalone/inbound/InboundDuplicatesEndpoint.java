@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint <code>/actuator/inboundduplicates</code> showing the statistics of the inbound
+ * duplicate detection.
+ *
+ * @author Philip Helger
+ */
+@Component
+@Endpoint (id = "inboundduplicates")
+public class InboundDuplicatesEndpoint
+{
+  @ReadOperation
+  public Map <String, Object> getStatistics ()
+  {
+    final InboundDuplicateDetector aDetector = InboundDuplicateDetector.getInstanceIfEnabled ();
+    if (aDetector == null)
+      return Collections.emptyMap ();
+    return aDetector.getStatistics ();
+  }
+}
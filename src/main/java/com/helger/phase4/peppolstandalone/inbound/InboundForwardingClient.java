@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.w3c.dom.Element;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Forwards received documents to the Recommand API. A single HTTP client is shared by all inbound
+ * messages, so that connections (and TLS sessions) are kept alive and - if the server supports it -
+ * multiplexed via HTTP/2.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class InboundForwardingClient
+{
+  public static final String RECEIVE_DOCUMENT_PATH = "/api/peppol/internal/receiveDocument";
+  public static final String RECEIVE_DOCUMENTS_BULK_PATH = "/api/peppol/internal/receiveDocuments";
+
+  public static final String HEADER_SENDER_ID = "X-Peppol-Sender-ID";
+  public static final String HEADER_RECEIVER_ID = "X-Peppol-Receiver-ID";
+  public static final String HEADER_DOCTYPE_ID = "X-Peppol-DocType-ID";
+  public static final String HEADER_PROCESS_ID = "X-Peppol-Process-ID";
+  public static final String HEADER_COUNTRY_C1 = "X-Peppol-Country-C1";
+  public static final String HEADER_SBDH_INSTANCE_IDENTIFIER = "X-Peppol-SBDH-Instance-Identifier";
+  public static final String HEADER_AS4_MESSAGE_ID = "X-AS4-Message-ID";
+  public static final String HEADER_AS4_CONVERSATION_ID = "X-AS4-Conversation-ID";
+
+  /**
+   * How received documents are forwarded.
+   *
+   * @author Philip Helger
+   */
+  public enum EForwardMode
+  {
+    /** A JSON object with the metadata and the business message as an XML string */
+    JSON ("json"),
+    /** The original SBD bytes with the metadata in HTTP headers */
+    RAW ("raw");
+
+    private final String m_sID;
+
+    EForwardMode (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    @Nullable
+    public static EForwardMode getFromIDOrNull (@Nullable final String sID)
+    {
+      for (final EForwardMode e : values ())
+        if (e.m_sID.equalsIgnoreCase (sID))
+          return e;
+      return null;
+    }
+  }
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundForwardingClient.class);
+  // Thread-safe and shared by all messages
+  private static final ObjectWriter JSON_WRITER = new ObjectMapper ().writer ();
+  private static final ObjectReader JSON_READER = new ObjectMapper ().reader ();
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static InboundForwardingClient s_aInstance;
+
+  private final URI m_aEndpoint;
+  private final URI m_aBulkEndpoint;
+  private final EForwardMode m_eForwardMode;
+  private final String m_sInternalToken;
+  private final Duration m_aRequestTimeout;
+  private final ExecutorService m_aExecutor;
+  private final HttpClient m_aHttpClient;
+
+  InboundForwardingClient (@Nonnull final URI aEndpoint,
+                           @Nonnull final URI aBulkEndpoint,
+                           @Nonnull final EForwardMode eForwardMode,
+                           @Nullable final String sInternalToken,
+                           @Nonnull final Duration aConnectTimeout,
+                           @Nonnull final Duration aRequestTimeout,
+                           @Nonnegative final int nThreads)
+  {
+    m_aEndpoint = aEndpoint;
+    m_aBulkEndpoint = aBulkEndpoint;
+    m_eForwardMode = eForwardMode;
+    m_sInternalToken = sInternalToken;
+    m_aRequestTimeout = aRequestTimeout;
+    m_aExecutor = Executors.newFixedThreadPool (nThreads, new AppThreadFactory ("phase4-inbound-forward"));
+    m_aHttpClient = HttpClient.newBuilder ()
+                              .version (HttpClient.Version.HTTP_2)
+                              .connectTimeout (aConnectTimeout)
+                              .followRedirects (HttpClient.Redirect.NEVER)
+                              .executor (m_aExecutor)
+                              .build ();
+  }
+
+  /**
+   * @return The way documents should be forwarded. Never <code>null</code>.
+   */
+  @Nonnull
+  public EForwardMode getForwardMode ()
+  {
+    return m_eForwardMode;
+  }
+
+  /**
+   * @return The URI the documents are forwarded to. Never <code>null</code>.
+   */
+  @Nonnull
+  public URI getEndpoint ()
+  {
+    return m_aEndpoint;
+  }
+
+  /**
+   * @return The URI batches of documents are forwarded to. Never <code>null</code>.
+   */
+  @Nonnull
+  public URI getBulkEndpoint ()
+  {
+    return m_aBulkEndpoint;
+  }
+
+  /**
+   * @return The maximum time to wait for the response of a single request. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public Duration getRequestTimeout ()
+  {
+    return m_aRequestTimeout;
+  }
+
+  @Nonnull
+  private HttpRequest _build (@Nonnull final HttpRequest.Builder aBuilder)
+  {
+    aBuilder.timeout (m_aRequestTimeout);
+    if (StringHelper.hasText (m_sInternalToken))
+      aBuilder.header ("X-Internal-Token", m_sInternalToken);
+    return aBuilder.build ();
+  }
+
+  private int _send (@Nonnull final HttpRequest.Builder aBuilder) throws IOException, InterruptedException
+  {
+    // The response body is not needed
+    final HttpResponse <Void> aResponse = m_aHttpClient.send (_build (aBuilder), HttpResponse.BodyHandlers.discarding ());
+    return aResponse.statusCode ();
+  }
+
+  /**
+   * Forward a received document as JSON.
+   *
+   * @param aJsonPayload
+   *        The UTF-8 encoded JSON to be posted. May not be <code>null</code>.
+   * @return The HTTP status code of the response.
+   * @throws IOException
+   *         In case of a network error or timeout
+   * @throws InterruptedException
+   *         If the calling thread was interrupted
+   */
+  public int forwardJson (@Nonnull final byte [] aJsonPayload) throws IOException, InterruptedException
+  {
+    return _send (HttpRequest.newBuilder (m_aEndpoint)
+                             .header ("Content-Type", "application/json")
+                             .POST (BodyPublishers.ofByteArray (aJsonPayload)));
+  }
+
+  /**
+   * Forward a received document as the original SBD bytes, with the metadata in HTTP headers. The
+   * header values are URL encoded, as identifiers may contain characters that are not allowed in
+   * HTTP headers.
+   *
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. Is not copied. May not be
+   *        <code>null</code>.
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @return The HTTP status code of the response.
+   * @throws IOException
+   *         In case of a network error or timeout
+   * @throws InterruptedException
+   *         If the calling thread was interrupted
+   */
+  public int forwardRaw (@Nonnull final byte [] aSBDBytes,
+                         @Nonnull final InboundDocument aDoc) throws IOException, InterruptedException
+  {
+    final Map <String, String> aMetadata = new LinkedHashMap <> ();
+    aMetadata.put (HEADER_SENDER_ID, aDoc.getSenderID ());
+    aMetadata.put (HEADER_RECEIVER_ID, aDoc.getReceiverID ());
+    aMetadata.put (HEADER_DOCTYPE_ID, aDoc.getDocTypeID ());
+    aMetadata.put (HEADER_PROCESS_ID, aDoc.getProcessID ());
+    aMetadata.put (HEADER_COUNTRY_C1, aDoc.getCountryC1 ());
+    aMetadata.put (HEADER_SBDH_INSTANCE_IDENTIFIER, aDoc.getSBDHInstanceIdentifier ());
+    aMetadata.put (HEADER_AS4_MESSAGE_ID, aDoc.getAS4MessageID ());
+    aMetadata.put (HEADER_AS4_CONVERSATION_ID, aDoc.getAS4ConversationID ());
+
+    final HttpRequest.Builder aBuilder = HttpRequest.newBuilder (m_aEndpoint)
+                                                    .header ("Content-Type", "application/xml")
+                                                    .POST (BodyPublishers.ofByteArray (aSBDBytes));
+    for (final Map.Entry <String, String> aEntry : aMetadata.entrySet ())
+      if (aEntry.getValue () != null)
+        aBuilder.header (aEntry.getKey (), URLEncoder.encode (aEntry.getValue (), StandardCharsets.UTF_8));
+    return _send (aBuilder);
+  }
+
+  @Nonnull
+  private static Map <String, Object> _createMetadata (@Nonnull final InboundDocument aDoc)
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("senderId", aDoc.getSenderID ());
+    ret.put ("receiverId", aDoc.getReceiverID ());
+    ret.put ("docTypeId", aDoc.getDocTypeID ());
+    ret.put ("processId", aDoc.getProcessID ());
+    ret.put ("countryC1", aDoc.getCountryC1 ());
+    ret.put ("as4MessageId", aDoc.getAS4MessageID ());
+    ret.put ("as4ConversationId", aDoc.getAS4ConversationID ());
+    ret.put ("sbdhInstanceIdentifier", aDoc.getSBDHInstanceIdentifier ());
+    return ret;
+  }
+
+  @Nonnull
+  private static Map <String, Object> _createJsonPayload (@Nonnull final InboundDocument aDoc,
+                                                          @Nonnull final byte [] aSBDBytes,
+                                                          @Nullable final Element aBusinessMessage) throws PeppolSBDHDataReadException
+  {
+    Element aRealBusinessMessage = aBusinessMessage;
+    if (aRealBusinessMessage == null)
+    {
+      // E.g. when sending from the inbox
+      aRealBusinessMessage = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aSBDBytes))
+                                                                                        .getBusinessMessage ();
+    }
+
+    final Map <String, Object> ret = _createMetadata (aDoc);
+    ret.put ("body", XMLWriter.getNodeAsString (aRealBusinessMessage));
+    return ret;
+  }
+
+  /**
+   * Create a single entry of a bulk request. In JSON mode it is the same object that is send for a
+   * single document. In raw mode it contains the same metadata and the original SBD bytes as the
+   * Base64 encoded property <code>sbd</code>.
+   *
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. May not be <code>null</code>.
+   * @param aBusinessMessage
+   *        The already parsed business message. Only needed in JSON mode. May be
+   *        <code>null</code>.
+   * @return The entry to be passed to {@link #forwardBulk(List)}. Never <code>null</code>.
+   * @throws PeppolSBDHDataReadException
+   *         If the SBD bytes could not be parsed
+   */
+  @Nonnull
+  public Map <String, Object> createBulkEntry (@Nonnull final InboundDocument aDoc,
+                                               @Nonnull final byte [] aSBDBytes,
+                                               @Nullable final Element aBusinessMessage) throws PeppolSBDHDataReadException
+  {
+    if (m_eForwardMode == EForwardMode.RAW)
+    {
+      final Map <String, Object> ret = _createMetadata (aDoc);
+      // Jackson writes byte arrays as Base64
+      ret.put ("sbd", aSBDBytes);
+      return ret;
+    }
+    return _createJsonPayload (aDoc, aSBDBytes, aBusinessMessage);
+  }
+
+  /**
+   * Forward several received documents in a single request to the bulk endpoint. The request body
+   * is <code>{"documents":[...]}</code> and the response body must be
+   * <code>{"results":[{"status":200},...]}</code> with one result per document in the same order.
+   *
+   * @param aEntries
+   *        The entries created by {@link #createBulkEntry(InboundDocument, byte[], Element)}. May
+   *        neither be <code>null</code> nor empty.
+   * @return The HTTP status code per document, in the same order as the entries. If the bulk
+   *         request itself failed, all documents have the status code of the response.
+   * @throws IOException
+   *         In case of a network error, timeout or invalid response
+   * @throws InterruptedException
+   *         If the calling thread was interrupted
+   */
+  @Nonnull
+  public int [] forwardBulk (@Nonnull @Nonempty final List <Map <String, Object>> aEntries) throws IOException,
+                                                                                           InterruptedException
+  {
+    final HttpRequest.Builder aBuilder = HttpRequest.newBuilder (m_aBulkEndpoint)
+                                                    .header ("Content-Type", "application/json")
+                                                    .POST (BodyPublishers.ofByteArray (JSON_WRITER.writeValueAsBytes (Map.of ("documents",
+                                                                                                                               aEntries))));
+    final HttpResponse <byte []> aResponse = m_aHttpClient.send (_build (aBuilder), HttpResponse.BodyHandlers.ofByteArray ());
+    final int [] ret = new int [aEntries.size ()];
+    if (aResponse.statusCode () != 200)
+    {
+      Arrays.fill (ret, aResponse.statusCode ());
+      return ret;
+    }
+
+    final JsonNode aResults = JSON_READER.readTree (aResponse.body ()).path ("results");
+    if (!aResults.isArray () || aResults.size () != ret.length)
+      throw new IOException ("Bulk endpoint returned " +
+                             aResults.size () +
+                             " results for " +
+                             ret.length +
+                             " documents");
+    for (int i = 0; i < ret.length; ++i)
+    {
+      // A missing status is considered a server error
+      ret[i] = aResults.get (i).path ("status").asInt (500);
+    }
+    return ret;
+  }
+
+  /**
+   * Forward a received document in the configured {@link EForwardMode}.
+   *
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. May not be <code>null</code>.
+   * @param aBusinessMessage
+   *        The already parsed business message. Only needed in JSON mode. If it is
+   *        <code>null</code> it is parsed from the SBD bytes if needed.
+   * @return The HTTP status code of the response.
+   * @throws IOException
+   *         In case of a network error or timeout
+   * @throws InterruptedException
+   *         If the calling thread was interrupted
+   * @throws PeppolSBDHDataReadException
+   *         If the SBD bytes could not be parsed
+   */
+  public int forward (@Nonnull final InboundDocument aDoc,
+                      @Nonnull final byte [] aSBDBytes,
+                      @Nullable final Element aBusinessMessage) throws IOException,
+                                                                InterruptedException,
+                                                                PeppolSBDHDataReadException
+  {
+    if (m_eForwardMode == EForwardMode.RAW)
+    {
+      // Send the received bytes as they are - no copy, no String
+      return forwardRaw (aSBDBytes, aDoc);
+    }
+
+    return forwardJson (JSON_WRITER.writeValueAsBytes (_createJsonPayload (aDoc, aSBDBytes, aBusinessMessage)));
+  }
+
+  void close ()
+  {
+    // The connections are closed as soon as the client is garbage collected
+    m_aExecutor.shutdown ();
+  }
+
+  /**
+   * @return The application wide instance, configured via {@link APConfig}. Created on demand.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static InboundForwardingClient getInstance ()
+  {
+    InboundForwardingClient ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+    {
+      ret = RW_LOCK.writeLockedGet ( () -> {
+        if (s_aInstance == null)
+        {
+          final String sEndpoint = APConfig.getRecommandApiEndpoint ();
+          if (StringHelper.hasNoText (sEndpoint))
+            throw new IllegalStateException ("No Recommand API endpoint is configured");
+
+          final String sForwardMode = APConfig.getRecommandApiForwardMode ();
+          final EForwardMode eForwardMode = EForwardMode.getFromIDOrNull (sForwardMode);
+          if (eForwardMode == null)
+            throw new IllegalStateException ("Unsupported Recommand API forward mode '" + sForwardMode + "'");
+
+          s_aInstance = new InboundForwardingClient (URI.create (sEndpoint + RECEIVE_DOCUMENT_PATH),
+                                                     URI.create (sEndpoint + RECEIVE_DOCUMENTS_BULK_PATH),
+                                                     eForwardMode,
+                                                     APConfig.getRecommandApiInternalToken (),
+                                                     Duration.ofMillis (APConfig.getRecommandApiConnectTimeoutMillis ()),
+                                                     Duration.ofMillis (APConfig.getRecommandApiRequestTimeoutMillis ()),
+                                                     APConfig.getRecommandApiThreads ());
+          LOGGER.info ("Created the shared HTTP client for forwarding inbound documents as " +
+                       eForwardMode.getID () +
+                       " to " +
+                       s_aInstance.getEndpoint ());
+        }
+        return s_aInstance;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Release the shared HTTP client. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final InboundForwardingClient aInstance = RW_LOCK.writeLockedGet ( () -> {
+      final InboundForwardingClient ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInstance != null)
+      aInstance.close ();
+  }
+}
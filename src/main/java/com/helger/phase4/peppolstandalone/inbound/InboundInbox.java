@@ -0,0 +1,900 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.StringParser;
+import com.helger.json.IJsonObject;
+import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppFileHelper;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+
+/**
+ * A durable store-and-forward inbox for received documents. Each received document is appended to
+ * a segment log and synced to disk before the AS4 receipt is returned. Background threads deliver
+ * the documents to the downstream API via {@link InboundForwardingClient}.
+ * <ul>
+ * <li>Documents for the same receiver are delivered in the order they were received.</li>
+ * <li>Network errors, timeouts and HTTP 408, 429 and 5xx responses are retried with an increasing
+ * delay - without limit, as the downstream API is expected to come back.</li>
+ * <li>Other errors are considered to be specific to the document. After a configurable number of
+ * those, the document is moved to the quarantine folder and the next document is delivered.</li>
+ * </ul>
+ * Delivered documents are recorded in an acknowledgement file per segment. A segment is deleted as
+ * soon as all its documents are delivered. Upon startup all documents that were not acknowledged
+ * are delivered again, so the downstream API may receive a document more than once (e.g. after a
+ * crash) and should use the SBDH instance identifier to detect this.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class InboundInbox
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundInbox.class);
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String FILE_EXT_SEGMENT = ".log";
+  private static final String FILE_EXT_ACKS = ".acks";
+  // Record header: length of the record body and its CRC32
+  private static final int RECORD_HEADER_SIZE = 8;
+  // Maximum number of documents delivered in a row for one receiver, before others get a chance
+  private static final int MAX_DELIVERIES_PER_RUN = 100;
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static InboundInbox s_aInstance;
+
+  /**
+   * Delivers a single document to the downstream API.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  interface IForwarder
+  {
+    /**
+     * @param aDoc
+     *        The metadata of the document. Never <code>null</code>.
+     * @param aSBDBytes
+     *        The complete Standard Business Document. Never <code>null</code>.
+     * @return The HTTP status code of the downstream API.
+     */
+    int forward (@Nonnull InboundDocument aDoc, @Nonnull byte [] aSBDBytes) throws IOException,
+                                                                                 InterruptedException,
+                                                                                 PeppolSBDHDataReadException;
+  }
+
+  private enum EDeliveryResult
+  {
+    DELIVERED,
+    TEMPORARY_FAILURE,
+    PERMANENT_FAILURE;
+  }
+
+  /**
+   * A single segment log file together with its acknowledgement file.
+   *
+   * @author Philip Helger
+   */
+  private static final class Segment
+  {
+    private final File m_aLogFile;
+    private final File m_aAckFile;
+    @GuardedBy ("this")
+    private FileChannel m_aAckChannel;
+    // Guarded by the inbox lock
+    private int m_nOutstanding;
+    // true while the segment is written or read upon recovery - it may not be deleted
+    private boolean m_bActive;
+
+    Segment (@Nonnull final File aLogFile)
+    {
+      m_aLogFile = aLogFile;
+      final String sName = aLogFile.getName ();
+      m_aAckFile = new File (aLogFile.getParentFile (),
+                             sName.substring (0, sName.length () - FILE_EXT_SEGMENT.length ()) + FILE_EXT_ACKS);
+    }
+
+    synchronized void acknowledge (final long nSeq) throws IOException
+    {
+      if (m_aAckChannel == null)
+        m_aAckChannel = FileChannel.open (m_aAckFile.toPath (),
+                                          StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.APPEND);
+      final ByteBuffer aBB = ByteBuffer.allocate (Long.BYTES).putLong (nSeq).flip ();
+      while (aBB.hasRemaining ())
+        m_aAckChannel.write (aBB);
+      m_aAckChannel.force (false);
+    }
+
+    synchronized void close ()
+    {
+      if (m_aAckChannel != null)
+        try
+        {
+          m_aAckChannel.close ();
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to close " + m_aAckFile.getAbsolutePath (), ex);
+        }
+      m_aAckChannel = null;
+    }
+  }
+
+  /**
+   * A document that was not yet delivered.
+   *
+   * @author Philip Helger
+   */
+  @NotThreadSafe
+  private static final class PendingMessage
+  {
+    private final long m_nSeq;
+    private final long m_nReceivedMillis;
+    private final InboundDocument m_aDoc;
+    private final Segment m_aSegment;
+    private final long m_nSBDOffset;
+    private final int m_nSBDLength;
+    // Only accessed by the thread currently delivering the receiver queue
+    private int m_nAttempts;
+    private int m_nPermanentFailures;
+    private String m_sLastError;
+
+    PendingMessage (final long nSeq,
+                    final long nReceivedMillis,
+                    @Nonnull final InboundDocument aDoc,
+                    @Nonnull final Segment aSegment,
+                    final long nSBDOffset,
+                    @Nonnegative final int nSBDLength)
+    {
+      m_nSeq = nSeq;
+      m_nReceivedMillis = nReceivedMillis;
+      m_aDoc = aDoc;
+      m_aSegment = aSegment;
+      m_nSBDOffset = nSBDOffset;
+      m_nSBDLength = nSBDLength;
+    }
+  }
+
+  /**
+   * The documents of a single receiver, in the order of reception.
+   *
+   * @author Philip Helger
+   */
+  private static final class ReceiverQueue
+  {
+    private final String m_sReceiverID;
+    private final ArrayDeque <PendingMessage> m_aMessages = new ArrayDeque <> ();
+    // true if a delivery run is scheduled or running
+    private boolean m_bScheduled;
+
+    ReceiverQueue (@Nonnull final String sReceiverID)
+    {
+      m_sReceiverID = sReceiverID;
+    }
+  }
+
+  private final File m_aBaseDir;
+  private final File m_aQuarantineDir;
+  private final long m_nSegmentMaxBytes;
+  private final int m_nPoisonMaxAttempts;
+  private final long m_nRetryInitialDelayMillis;
+  private final long m_nRetryMaxDelayMillis;
+  private final IForwarder m_aForwarder;
+  private final ExecutorService m_aExecutor;
+  private final ScheduledExecutorService m_aRetryScheduler;
+  private final AtomicLong m_aDeliveredCount = new AtomicLong ();
+  private final AtomicLong m_aQuarantinedCount = new AtomicLong ();
+  private volatile boolean m_bShutdown = false;
+
+  private final SimpleLock m_aWriteLock = new SimpleLock ();
+  @GuardedBy ("m_aWriteLock")
+  private Segment m_aActiveSegment;
+  @GuardedBy ("m_aWriteLock")
+  private FileChannel m_aActiveChannel;
+  @GuardedBy ("m_aWriteLock")
+  private long m_nNextSeq = 1;
+
+  // Lock order: m_aWriteLock before m_aLock
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private final Map <String, ReceiverQueue> m_aQueues = new HashMap <> ();
+  @GuardedBy ("m_aLock")
+  private int m_nPending;
+
+  InboundInbox (@Nonnull final File aBaseDir,
+                @Nonnull final File aQuarantineDir,
+                final long nSegmentMaxBytes,
+                final int nPoisonMaxAttempts,
+                final long nRetryInitialDelayMillis,
+                final long nRetryMaxDelayMillis,
+                final int nThreads,
+                @Nonnull final IForwarder aForwarder)
+  {
+    m_aBaseDir = aBaseDir;
+    m_aQuarantineDir = aQuarantineDir;
+    m_nSegmentMaxBytes = nSegmentMaxBytes;
+    m_nPoisonMaxAttempts = nPoisonMaxAttempts;
+    m_nRetryInitialDelayMillis = nRetryInitialDelayMillis;
+    m_nRetryMaxDelayMillis = nRetryMaxDelayMillis;
+    m_aForwarder = aForwarder;
+    m_aExecutor = Executors.newFixedThreadPool (nThreads, new AppThreadFactory ("phase4-inbound-inbox"));
+    // Only hands over due receivers to the executor
+    m_aRetryScheduler = Executors.newSingleThreadScheduledExecutor (new AppThreadFactory ("phase4-inbound-inbox-retry"));
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nFirstSeq)
+  {
+    // Fixed length, so that the files are sorted by name
+    return new File (m_aBaseDir, SEGMENT_PREFIX + String.format ("%020d", Long.valueOf (nFirstSeq)) + FILE_EXT_SEGMENT);
+  }
+
+  private static long _getFirstSeq (@Nonnull final File aSegmentFile)
+  {
+    final String sName = aSegmentFile.getName ();
+    return StringParser.parseLong (sName.substring (SEGMENT_PREFIX.length (),
+                                                    sName.length () - FILE_EXT_SEGMENT.length ()),
+                                   -1);
+  }
+
+  private static void _readFully (@Nonnull final FileChannel aFC, @Nonnull final ByteBuffer aBB, final long nPosition) throws IOException
+  {
+    long nPos = nPosition;
+    while (aBB.hasRemaining ())
+    {
+      final int nRead = aFC.read (aBB, nPos);
+      if (nRead < 0)
+        throw new IOException ("Unexpected end of file");
+      nPos += nRead;
+    }
+  }
+
+  @Nonnull
+  private static Set <Long> _readAcks (@Nonnull final File aAckFile) throws IOException
+  {
+    final Set <Long> ret = new HashSet <> ();
+    if (aAckFile.exists ())
+      try (final FileChannel aFC = FileChannel.open (aAckFile.toPath (), StandardOpenOption.READ))
+      {
+        // A partially written last entry is ignored
+        final long nCount = aFC.size () / Long.BYTES;
+        final ByteBuffer aBB = ByteBuffer.allocate ((int) nCount * Long.BYTES);
+        _readFully (aFC, aBB, 0);
+        aBB.flip ();
+        for (long i = 0; i < nCount; ++i)
+          ret.add (Long.valueOf (aBB.getLong ()));
+      }
+    return ret;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _deleteSegment (@Nonnull final Segment aSegment)
+  {
+    aSegment.close ();
+    FileOperationManager.INSTANCE.deleteFileIfExisting (aSegment.m_aLogFile);
+    FileOperationManager.INSTANCE.deleteFileIfExisting (aSegment.m_aAckFile);
+    LOGGER.info ("Deleted completely delivered inbox segment " + aSegment.m_aLogFile.getName ());
+  }
+
+  private void _submitRun (@Nonnull final ReceiverQueue aQueue)
+  {
+    try
+    {
+      m_aExecutor.execute ( () -> _deliverQueue (aQueue));
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down - delivered after the next startup
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _enqueue (@Nonnull final PendingMessage aMsg)
+  {
+    aMsg.m_aSegment.m_nOutstanding++;
+    m_nPending++;
+    final ReceiverQueue aQueue = m_aQueues.computeIfAbsent (aMsg.m_aDoc.getReceiverID (), ReceiverQueue::new);
+    aQueue.m_aMessages.addLast (aMsg);
+    if (!aQueue.m_bScheduled)
+    {
+      aQueue.m_bScheduled = true;
+      _submitRun (aQueue);
+    }
+  }
+
+  /**
+   * Read all segments and queue all documents that were not yet delivered.
+   */
+  private void _recover () throws IOException
+  {
+    final File [] aFiles = m_aBaseDir.listFiles ( (d, n) -> n.startsWith (SEGMENT_PREFIX) &&
+                                                           n.endsWith (FILE_EXT_SEGMENT));
+    final File [] aSegmentFiles = aFiles == null ? new File [0] : aFiles;
+    Arrays.sort (aSegmentFiles, Comparator.comparingLong (InboundInbox::_getFirstSeq));
+
+    int nRecovered = 0;
+    long nLastValidLength = 0;
+    Segment aLastSegment = null;
+    for (final File aSegmentFile : aSegmentFiles)
+    {
+      // An empty segment is named after the next sequence number
+      m_nNextSeq = Math.max (m_nNextSeq, _getFirstSeq (aSegmentFile));
+
+      final Segment aSegment = new Segment (aSegmentFile);
+      // Documents are delivered while the recovery is running - the segment may not be deleted
+      // before it was read completely
+      m_aLock.locked ( () -> aSegment.m_bActive = true);
+      final Set <Long> aAcked = _readAcks (aSegment.m_aAckFile);
+      long nValidLength = 0;
+      try (final FileChannel aFC = FileChannel.open (aSegmentFile.toPath (), StandardOpenOption.READ))
+      {
+        final long nSize = aFC.size ();
+        final ByteBuffer aHeader = ByteBuffer.allocate (RECORD_HEADER_SIZE);
+        while (nValidLength + RECORD_HEADER_SIZE <= nSize)
+        {
+          aHeader.clear ();
+          _readFully (aFC, aHeader, nValidLength);
+          aHeader.flip ();
+          final int nLength = aHeader.getInt ();
+          final int nCRC = aHeader.getInt ();
+          if (nLength <= 0 || nValidLength + RECORD_HEADER_SIZE + nLength > nSize)
+            break;
+
+          final ByteBuffer aBody = ByteBuffer.allocate (nLength);
+          _readFully (aFC, aBody, nValidLength + RECORD_HEADER_SIZE);
+          final CRC32 aCRC32 = new CRC32 ();
+          aCRC32.update (aBody.array ());
+          if ((int) aCRC32.getValue () != nCRC)
+            break;
+
+          final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aBody.array ()));
+          final long nSeq = aDIS.readLong ();
+          final long nReceivedMillis = aDIS.readLong ();
+          final InboundDocument aDoc = InboundDocument.readFrom (aDIS);
+          final int nSBDLength = aDIS.readInt ();
+          if (!aAcked.contains (Long.valueOf (nSeq)))
+          {
+            final PendingMessage aMsg = new PendingMessage (nSeq,
+                                                            nReceivedMillis,
+                                                            aDoc,
+                                                            aSegment,
+                                                            nValidLength + RECORD_HEADER_SIZE + nLength - nSBDLength,
+                                                            nSBDLength);
+            m_aLock.locked ( () -> _enqueue (aMsg));
+            nRecovered++;
+          }
+          m_nNextSeq = Math.max (m_nNextSeq, nSeq + 1);
+          nValidLength += RECORD_HEADER_SIZE + nLength;
+        }
+        if (nValidLength < nSize)
+          LOGGER.warn ("Ignoring " +
+                       (nSize - nValidLength) +
+                       " bytes of incomplete data at the end of " +
+                       aSegmentFile.getAbsolutePath ());
+      }
+
+      if (aLastSegment != null)
+      {
+        // Only the last segment may be continued
+        final Segment aPrevSegment = aLastSegment;
+        m_aLock.locked ( () -> {
+          aPrevSegment.m_bActive = false;
+          if (aPrevSegment.m_nOutstanding == 0)
+            _deleteSegment (aPrevSegment);
+        });
+      }
+      aLastSegment = aSegment;
+      nLastValidLength = nValidLength;
+    }
+
+    if (aLastSegment != null && nLastValidLength < m_nSegmentMaxBytes)
+    {
+      // Continue writing the last segment, without a possibly torn record
+      final Segment aSegment = aLastSegment;
+      m_aActiveChannel = FileChannel.open (aSegment.m_aLogFile.toPath (), StandardOpenOption.WRITE);
+      m_aActiveChannel.truncate (nLastValidLength);
+      m_aActiveChannel.position (nLastValidLength);
+      // Still marked as active
+      m_aActiveSegment = aSegment;
+    }
+    else
+    {
+      if (aLastSegment != null)
+      {
+        final Segment aSegment = aLastSegment;
+        m_aLock.locked ( () -> {
+          aSegment.m_bActive = false;
+          if (aSegment.m_nOutstanding == 0)
+            _deleteSegment (aSegment);
+        });
+      }
+      _openNewSegment ();
+    }
+
+    LOGGER.info ("Inbound inbox in '" +
+                 m_aBaseDir.getAbsolutePath () +
+                 "' recovered " +
+                 nRecovered +
+                 " undelivered documents");
+  }
+
+  @GuardedBy ("m_aWriteLock")
+  private void _openNewSegment () throws IOException
+  {
+    final Segment aSegment = new Segment (_getSegmentFile (m_nNextSeq));
+    m_aActiveChannel = FileChannel.open (aSegment.m_aLogFile.toPath (),
+                                         StandardOpenOption.CREATE_NEW,
+                                         StandardOpenOption.WRITE);
+    m_aLock.locked ( () -> aSegment.m_bActive = true);
+    m_aActiveSegment = aSegment;
+  }
+
+  @GuardedBy ("m_aWriteLock")
+  private void _rollSegment () throws IOException
+  {
+    final Segment aOldSegment = m_aActiveSegment;
+    m_aActiveChannel.close ();
+    _openNewSegment ();
+    m_aLock.locked ( () -> {
+      aOldSegment.m_bActive = false;
+      if (aOldSegment.m_nOutstanding == 0)
+        _deleteSegment (aOldSegment);
+    });
+  }
+
+  /**
+   * Durably store a received document and queue it for delivery. When this method returns
+   * normally, the document is on disk and the AS4 receipt may be send.
+   *
+   * @param aDoc
+   *        The metadata of the document. May not be <code>null</code>.
+   * @param aSBDBytes
+   *        The complete Standard Business Document as received. May not be <code>null</code>.
+   * @throws IOException
+   *         If the document could not be stored
+   */
+  public void store (@Nonnull final InboundDocument aDoc, @Nonnull final byte [] aSBDBytes) throws IOException
+  {
+    final long nNow = System.currentTimeMillis ();
+    m_aWriteLock.lock ();
+    try
+    {
+      if (m_bShutdown)
+        throw new IOException ("The inbound inbox is shut down");
+
+      if (m_aActiveChannel.position () >= m_nSegmentMaxBytes)
+        _rollSegment ();
+
+      final long nSeq = m_nNextSeq;
+      final NonBlockingByteArrayOutputStream aMetaBAOS = new NonBlockingByteArrayOutputStream ();
+      try (final DataOutputStream aDOS = new DataOutputStream (aMetaBAOS))
+      {
+        aDOS.writeLong (nSeq);
+        aDOS.writeLong (nNow);
+        aDoc.writeTo (aDOS);
+        aDOS.writeInt (aSBDBytes.length);
+      }
+      final byte [] aMeta = aMetaBAOS.toByteArray ();
+      final CRC32 aCRC32 = new CRC32 ();
+      aCRC32.update (aMeta);
+      aCRC32.update (aSBDBytes);
+
+      final ByteBuffer [] aBBs = new ByteBuffer [] { ByteBuffer.allocate (RECORD_HEADER_SIZE)
+                                                               .putInt (aMeta.length + aSBDBytes.length)
+                                                               .putInt ((int) aCRC32.getValue ())
+                                                               .flip (),
+                                                     ByteBuffer.wrap (aMeta),
+                                                     ByteBuffer.wrap (aSBDBytes) };
+      final long nStart = m_aActiveChannel.position ();
+      try
+      {
+        // The SBD is not copied
+        while (aBBs[2].hasRemaining ())
+          m_aActiveChannel.write (aBBs);
+        m_aActiveChannel.force (false);
+      }
+      catch (final IOException ex)
+      {
+        // Don't leave a partial record behind
+        m_aActiveChannel.truncate (nStart);
+        m_aActiveChannel.position (nStart);
+        throw ex;
+      }
+      m_nNextSeq++;
+
+      final PendingMessage aMsg = new PendingMessage (nSeq,
+                                                      nNow,
+                                                      aDoc,
+                                                      m_aActiveSegment,
+                                                      nStart + RECORD_HEADER_SIZE + aMeta.length,
+                                                      aSBDBytes.length);
+      m_aLock.locked ( () -> _enqueue (aMsg));
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  private static int _forwardDownstream (@Nonnull final InboundDocument aDoc,
+                                         @Nonnull final byte [] aSBDBytes) throws IOException,
+                                                                           InterruptedException,
+                                                                           PeppolSBDHDataReadException
+  {
+    final InboundBatchDispatcher aDispatcher = InboundBatchDispatcher.getInstanceIfEnabled ();
+    return aDispatcher != null ? aDispatcher.forward (aDoc, aSBDBytes, null)
+                               : InboundForwardingClient.getInstance ().forward (aDoc, aSBDBytes, null);
+  }
+
+  @Nonnull
+  private static byte [] _readSBD (@Nonnull final PendingMessage aMsg) throws IOException
+  {
+    try (final FileChannel aFC = FileChannel.open (aMsg.m_aSegment.m_aLogFile.toPath (), StandardOpenOption.READ))
+    {
+      final ByteBuffer aBB = ByteBuffer.allocate (aMsg.m_nSBDLength);
+      _readFully (aFC, aBB, aMsg.m_nSBDOffset);
+      return aBB.array ();
+    }
+  }
+
+  private static boolean _isTemporaryStatusCode (final int nStatusCode)
+  {
+    return nStatusCode == 408 || nStatusCode == 429 || nStatusCode >= 500;
+  }
+
+  @Nonnull
+  private EDeliveryResult _deliver (@Nonnull final PendingMessage aMsg)
+  {
+    aMsg.m_nAttempts++;
+    final byte [] aSBDBytes;
+    try
+    {
+      aSBDBytes = _readSBD (aMsg);
+    }
+    catch (final IOException ex)
+    {
+      aMsg.m_sLastError = "Failed to read the document from the inbox: " + ex.getMessage ();
+      return EDeliveryResult.PERMANENT_FAILURE;
+    }
+
+    try
+    {
+      final int nStatusCode = m_aForwarder.forward (aMsg.m_aDoc, aSBDBytes);
+      if (nStatusCode >= 200 && nStatusCode < 300)
+        return EDeliveryResult.DELIVERED;
+      aMsg.m_sLastError = "Downstream API returned HTTP status code " + nStatusCode;
+      return _isTemporaryStatusCode (nStatusCode) ? EDeliveryResult.TEMPORARY_FAILURE
+                                                  : EDeliveryResult.PERMANENT_FAILURE;
+    }
+    catch (final IOException ex)
+    {
+      aMsg.m_sLastError = "Failed to send the document: " + ex.getMessage ();
+      return EDeliveryResult.TEMPORARY_FAILURE;
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      aMsg.m_sLastError = "Interrupted";
+      return EDeliveryResult.TEMPORARY_FAILURE;
+    }
+    catch (final PeppolSBDHDataReadException | RuntimeException ex)
+    {
+      aMsg.m_sLastError = "Failed to process the document: " + ex.getMessage ();
+      return EDeliveryResult.PERMANENT_FAILURE;
+    }
+  }
+
+  private boolean _quarantine (@Nonnull final PendingMessage aMsg)
+  {
+    final String sBaseName = Long.toString (aMsg.m_nSeq);
+    final IJsonObject aJson = aMsg.m_aDoc.getAsJson ();
+    aJson.add ("receivedMillis", aMsg.m_nReceivedMillis);
+    aJson.add ("attempts", aMsg.m_nAttempts);
+    aJson.add ("lastError", aMsg.m_sLastError);
+    try
+    {
+      AppFileHelper.writeFileDurable (new File (m_aQuarantineDir, sBaseName + ".xml"), _readSBD (aMsg));
+      AppFileHelper.writeFileDurable (new File (m_aQuarantineDir, sBaseName + ".json"),
+                                      aJson.getAsJsonString ().getBytes (StandardCharsets.UTF_8));
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to quarantine inbound document " + aMsg.m_nSeq, ex);
+      return false;
+    }
+    LOGGER.error ("Quarantined inbound document " +
+                  aMsg.m_nSeq +
+                  " with SBDH instance identifier '" +
+                  aMsg.m_aDoc.getSBDHInstanceIdentifier () +
+                  "' after " +
+                  aMsg.m_nAttempts +
+                  " attempts: " +
+                  aMsg.m_sLastError);
+    m_aQuarantinedCount.incrementAndGet ();
+    return true;
+  }
+
+  private void _acknowledge (@Nonnull final ReceiverQueue aQueue, @Nonnull final PendingMessage aMsg)
+  {
+    try
+    {
+      aMsg.m_aSegment.acknowledge (aMsg.m_nSeq);
+    }
+    catch (final IOException ex)
+    {
+      // Delivered again after the next startup
+      LOGGER.error ("Failed to acknowledge inbound document " + aMsg.m_nSeq, ex);
+    }
+
+    m_aLock.locked ( () -> {
+      aQueue.m_aMessages.pollFirst ();
+      m_nPending--;
+      final Segment aSegment = aMsg.m_aSegment;
+      aSegment.m_nOutstanding--;
+      if (aSegment.m_nOutstanding == 0 && !aSegment.m_bActive)
+        _deleteSegment (aSegment);
+    });
+  }
+
+  private long _getRetryDelayMillis (@Nonnegative final int nAttempts)
+  {
+    final int nShift = Math.min (Math.max (nAttempts - 1, 0), 30);
+    return Math.min (m_nRetryMaxDelayMillis, m_nRetryInitialDelayMillis << nShift);
+  }
+
+  private void _deliverQueue (@Nonnull final ReceiverQueue aQueue)
+  {
+    for (int i = 0; i < MAX_DELIVERIES_PER_RUN; ++i)
+    {
+      if (m_bShutdown)
+        return;
+
+      final PendingMessage aMsg = m_aLock.lockedGet ( () -> {
+        final PendingMessage ret = aQueue.m_aMessages.peekFirst ();
+        if (ret == null)
+        {
+          aQueue.m_bScheduled = false;
+          m_aQueues.remove (aQueue.m_sReceiverID);
+        }
+        return ret;
+      });
+      if (aMsg == null)
+        return;
+
+      final EDeliveryResult eResult = _deliver (aMsg);
+      if (eResult == EDeliveryResult.PERMANENT_FAILURE)
+        aMsg.m_nPermanentFailures++;
+
+      final boolean bDone = eResult == EDeliveryResult.DELIVERED ||
+                            (eResult == EDeliveryResult.PERMANENT_FAILURE &&
+                             aMsg.m_nPermanentFailures >= m_nPoisonMaxAttempts &&
+                             _quarantine (aMsg));
+      if (!bDone)
+      {
+        // Keep the order - nothing else for this receiver until this one is done
+        final long nDelay = _getRetryDelayMillis (aMsg.m_nAttempts);
+        LOGGER.warn ("Failed to deliver inbound document " +
+                     aMsg.m_nSeq +
+                     " (attempt " +
+                     aMsg.m_nAttempts +
+                     "): " +
+                     aMsg.m_sLastError +
+                     " - retrying in " +
+                     nDelay +
+                     " ms");
+        try
+        {
+          m_aRetryScheduler.schedule ( () -> _submitRun (aQueue), nDelay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // Shutting down
+        }
+        return;
+      }
+
+      if (eResult == EDeliveryResult.DELIVERED)
+        m_aDeliveredCount.incrementAndGet ();
+      _acknowledge (aQueue, aMsg);
+    }
+
+    // Give the other receivers a chance
+    _submitRun (aQueue);
+  }
+
+  /**
+   * @return Statistics of this inbox. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    m_aLock.locked ( () -> {
+      long nOldestMillis = Long.MAX_VALUE;
+      for (final ReceiverQueue aQueue : m_aQueues.values ())
+      {
+        final PendingMessage aHead = aQueue.m_aMessages.peekFirst ();
+        if (aHead != null)
+          nOldestMillis = Math.min (nOldestMillis, aHead.m_nReceivedMillis);
+      }
+      ret.put ("pending", Integer.valueOf (m_nPending));
+      ret.put ("receivers", Integer.valueOf (m_aQueues.size ()));
+      if (nOldestMillis != Long.MAX_VALUE)
+        ret.put ("oldestPendingAgeMillis", Long.valueOf (System.currentTimeMillis () - nOldestMillis));
+    });
+    ret.put ("delivered", Long.valueOf (m_aDeliveredCount.get ()));
+    ret.put ("quarantined", Long.valueOf (m_aQuarantinedCount.get ()));
+    return ret;
+  }
+
+  /**
+   * Read the existing segments and start delivering all documents that were not yet delivered. Must
+   * be called once before {@link #store(InboundDocument, byte[])} is called.
+   *
+   * @throws IOException
+   *         If the segments could not be read
+   */
+  void open () throws IOException
+  {
+    m_aWriteLock.lock ();
+    try
+    {
+      _recover ();
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+  }
+
+  void close ()
+  {
+    m_bShutdown = true;
+    m_aRetryScheduler.shutdownNow ();
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+        m_aExecutor.shutdownNow ();
+    }
+    catch (final InterruptedException ex)
+    {
+      m_aExecutor.shutdownNow ();
+      Thread.currentThread ().interrupt ();
+    }
+
+    m_aWriteLock.locked ( () -> {
+      try
+      {
+        m_aActiveChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to close the active inbox segment", ex);
+      }
+      m_aActiveSegment.close ();
+    });
+  }
+
+  /**
+   * Initialize the inbox and deliver all documents that were not delivered before the last
+   * shutdown. Only does something if the inbound mode is "inbox". Must be called once upon
+   * startup.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isInboundInboxMode ())
+      return;
+
+    final File aBaseDir = new File (AS4Configuration.getDataPath (), "inbound-inbox").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+    final File aQuarantineDir = new File (AS4Configuration.getDataPath (), "inbound-quarantine").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aQuarantineDir);
+
+    final InboundInbox aInbox = new InboundInbox (aBaseDir,
+                                                  aQuarantineDir,
+                                                  APConfig.getInboundInboxSegmentMaxBytes (),
+                                                  APConfig.getInboundInboxPoisonMaxAttempts (),
+                                                  APConfig.getInboundInboxRetryInitialDelaySeconds () * 1000L,
+                                                  APConfig.getInboundInboxRetryMaxDelaySeconds () * 1000L,
+                                                  APConfig.getInboundInboxThreads (),
+                                                  InboundInbox::_forwardDownstream);
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The inbound inbox is already initialized");
+      s_aInstance = aInbox;
+    });
+
+    try
+    {
+      aInbox.open ();
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException ("Failed to recover the inbound inbox in " + aBaseDir.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if the inbox is not used.
+   */
+  @Nullable
+  public static InboundInbox getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Stop delivering. Documents that are not yet delivered stay on disk and are delivered after the
+   * next startup.
+   */
+  public static void shutdown ()
+  {
+    final InboundInbox aInbox = RW_LOCK.writeLockedGet ( () -> {
+      final InboundInbox ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInbox != null)
+    {
+      aInbox.close ();
+      LOGGER.info ("Inbound inbox was shut down");
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Actuator endpoint <code>/actuator/receivercheckcache</code> showing the statistics of the
+ * receiver check SMP caches per SMP URL. A <code>DELETE</code> request removes all entries, a
+ * <code>DELETE</code> request to <code>/actuator/receivercheckcache/{participantID}</code> only the
+ * entries of a single receiver.
+ *
+ * @author Philip Helger
+ */
+@Component
+@Endpoint (id = "receivercheckcache")
+public class ReceiverCheckCacheEndpoint
+{
+  @ReadOperation
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    for (final Map.Entry <String, ReceiverCheckSMPCache> aEntry : ReceiverCheckSMPCache.getAllInstances ().entrySet ())
+      ret.put (aEntry.getKey (), aEntry.getValue ().getStatistics ());
+    return ret;
+  }
+
+  @DeleteOperation
+  public Map <String, Object> invalidateAll ()
+  {
+    int nRemoved = 0;
+    for (final ReceiverCheckSMPCache aCache : ReceiverCheckSMPCache.getAllInstances ().values ())
+      nRemoved += aCache.invalidateAll ();
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("removed", Integer.valueOf (nRemoved));
+    return ret;
+  }
+
+  @DeleteOperation
+  public Map <String, Object> invalidate (@Selector final String participantID)
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    final IParticipantIdentifier aReceiverID = PeppolIdentifierFactory.INSTANCE.parseParticipantIdentifier (participantID);
+    if (aReceiverID == null)
+      ret.put ("error", "Invalid participant ID '" + participantID + "'");
+    else
+    {
+      int nRemoved = 0;
+      for (final ReceiverCheckSMPCache aCache : ReceiverCheckSMPCache.getAllInstances ().values ())
+        nRemoved += aCache.invalidate (aReceiverID);
+      ret.put ("removed", Integer.valueOf (nRemoved));
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.url.URLHelper;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.xsds.peppol.smp1.EndpointType;
+import com.helger.xsds.peppol.smp1.SignedServiceMetadataType;
+
+/**
+ * A caching {@link ISMPServiceMetadataProvider} for the receiver check of inbound messages, which
+ * queries our own SMP for every received document. The service metadata is cached per receiver and
+ * document type:
+ * <ul>
+ * <li>Entries are reused for the TTL. "Not registered" answers use a separate, shorter TTL.</li>
+ * <li>Entries that are used after a configurable part of the TTL are refreshed in the background,
+ * so that frequently used receivers never wait for the SMP.</li>
+ * <li>If the SMP cannot be queried, expired entries are used for a configurable time.</li>
+ * <li>Concurrent lookups of the same receiver and document type only trigger a single SMP
+ * query.</li>
+ * </ul>
+ * There is one cache per SMP URL. After changing a registration in the SMP, the entries can be
+ * removed via the actuator endpoint <code>/actuator/receivercheckcache</code>.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class ReceiverCheckSMPCache implements ISMPServiceMetadataProvider
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReceiverCheckSMPCache.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static final Map <String, ISMPServiceMetadataProvider> PROVIDERS = new LinkedHashMap <> ();
+
+  /**
+   * A single cached SMP answer. A <code>null</code> service metadata means "not registered".
+   *
+   * @author Philip Helger
+   */
+  private static final class Entry
+  {
+    private final SignedServiceMetadataType m_aServiceMetadata;
+    private final long m_nLoadedNanos;
+    private final long m_nTTLNanos;
+    private final AtomicBoolean m_aRefreshing = new AtomicBoolean (false);
+
+    Entry (@Nullable final SignedServiceMetadataType aServiceMetadata, final long nLoadedNanos, final long nTTLNanos)
+    {
+      m_aServiceMetadata = aServiceMetadata;
+      m_nLoadedNanos = nLoadedNanos;
+      m_nTTLNanos = nTTLNanos;
+    }
+
+    long getAgeNanos (final long nNowNanos)
+    {
+      return nNowNanos - m_nLoadedNanos;
+    }
+
+    boolean isExpired (final long nNowNanos)
+    {
+      return getAgeNanos (nNowNanos) >= m_nTTLNanos;
+    }
+  }
+
+  private final ISMPServiceMetadataProvider m_aDelegate;
+  private final long m_nTTLNanos;
+  private final long m_nNegativeTTLNanos;
+  private final int m_nRefreshAheadPercent;
+  private final long m_nStaleNanos;
+  private final LongSupplier m_aNanoClock;
+  private final ExecutorService m_aRefresher;
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final Map <String, Entry> m_aMap;
+  private final ConcurrentHashMap <String, CompletableFuture <Entry>> m_aInFlight = new ConcurrentHashMap <> ();
+  // Incremented on invalidation, so that lookups started before are not stored
+  private final AtomicLong m_aGeneration = new AtomicLong ();
+
+  private final AtomicLong m_aHits = new AtomicLong ();
+  private final AtomicLong m_aMisses = new AtomicLong ();
+  private final AtomicLong m_aCoalesced = new AtomicLong ();
+  private final AtomicLong m_aStaleHits = new AtomicLong ();
+  private final AtomicLong m_aRefreshes = new AtomicLong ();
+  private final AtomicLong m_aRefreshFailures = new AtomicLong ();
+
+  ReceiverCheckSMPCache (@Nonnull final ISMPServiceMetadataProvider aDelegate,
+                         final long nTTLSeconds,
+                         final long nNegativeTTLSeconds,
+                         final int nRefreshAheadPercent,
+                         final long nStaleSeconds,
+                         final int nMaxEntries,
+                         @Nonnull final LongSupplier aNanoClock)
+  {
+    m_aDelegate = aDelegate;
+    m_nTTLNanos = TimeUnit.SECONDS.toNanos (nTTLSeconds);
+    m_nNegativeTTLNanos = TimeUnit.SECONDS.toNanos (nNegativeTTLSeconds);
+    m_nRefreshAheadPercent = nRefreshAheadPercent;
+    m_nStaleNanos = TimeUnit.SECONDS.toNanos (nStaleSeconds);
+    m_aNanoClock = aNanoClock;
+    // Access ordered, so that the least recently used entry is evicted first
+    m_aMap = new LinkedHashMap <> (256, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, Entry> aEldest)
+      {
+        return size () > nMaxEntries;
+      }
+    };
+    m_aRefresher = Executors.newFixedThreadPool (2, new AppThreadFactory ("phase4-receivercheck-refresh"));
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final IParticipantIdentifier aReceiverID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID)
+  {
+    return aReceiverID.getURIEncoded () + '\n' + aDocTypeID.getURIEncoded ();
+  }
+
+  @Nonnull
+  private Entry _load (@Nonnull final String sKey,
+                       @Nonnull final IParticipantIdentifier aReceiverID,
+                       @Nonnull final IDocumentTypeIdentifier aDocTypeID) throws SMPClientException
+  {
+    final long nGeneration = m_aGeneration.get ();
+    final SignedServiceMetadataType aServiceMetadata = m_aDelegate.getServiceMetadataOrNull (aReceiverID,
+                                                                                            aDocTypeID);
+    final Entry ret = new Entry (aServiceMetadata,
+                                 m_aNanoClock.getAsLong (),
+                                 aServiceMetadata != null ? m_nTTLNanos : m_nNegativeTTLNanos);
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aGeneration.get () == nGeneration)
+        m_aMap.put (sKey, ret);
+    });
+    return ret;
+  }
+
+  @Nonnull
+  private Entry _loadCoalesced (@Nonnull final String sKey,
+                                @Nonnull final IParticipantIdentifier aReceiverID,
+                                @Nonnull final IDocumentTypeIdentifier aDocTypeID) throws SMPClientException
+  {
+    final CompletableFuture <Entry> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <Entry> aOtherFuture = m_aInFlight.putIfAbsent (sKey, aOwnFuture);
+    if (aOtherFuture != null)
+    {
+      // Another thread is already querying the SMP
+      m_aCoalesced.incrementAndGet ();
+      try
+      {
+        return aOtherFuture.get ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new SMPClientException ("Interrupted while waiting for concurrent SMP lookup", ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        if (ex.getCause () instanceof SMPClientException)
+          throw (SMPClientException) ex.getCause ();
+        throw new SMPClientException ("Concurrent SMP lookup failed", ex.getCause ());
+      }
+    }
+
+    try
+    {
+      final Entry ret = _load (sKey, aReceiverID, aDocTypeID);
+      aOwnFuture.complete (ret);
+      return ret;
+    }
+    catch (final SMPClientException | RuntimeException ex)
+    {
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aInFlight.remove (sKey, aOwnFuture);
+    }
+  }
+
+  private void _refreshInBackground (@Nonnull final String sKey,
+                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                     @Nonnull final Entry aEntry)
+  {
+    try
+    {
+      m_aRefresher.execute ( () -> {
+        try
+        {
+          _loadCoalesced (sKey, aReceiverID, aDocTypeID);
+          m_aRefreshes.incrementAndGet ();
+        }
+        catch (final SMPClientException | RuntimeException ex)
+        {
+          m_aRefreshFailures.incrementAndGet ();
+          LOGGER.warn ("Failed to refresh the receiver check SMP lookup of '" +
+                       aReceiverID.getURIEncoded () +
+                       "': " +
+                       ex.getMessage ());
+          // Try again on next access
+          aEntry.m_aRefreshing.set (false);
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shutting down
+      aEntry.m_aRefreshing.set (false);
+    }
+  }
+
+  @Nullable
+  public SignedServiceMetadataType getServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aReceiverID,
+                                                             @Nonnull final IDocumentTypeIdentifier aDocTypeID) throws SMPClientException
+  {
+    final String sKey = _getKey (aReceiverID, aDocTypeID);
+    final long nNow = m_aNanoClock.getAsLong ();
+    final Entry aEntry = m_aRWLock.writeLockedGet ( () -> m_aMap.get (sKey));
+
+    if (aEntry != null && !aEntry.isExpired (nNow))
+    {
+      m_aHits.incrementAndGet ();
+      if (aEntry.getAgeNanos (nNow) >= aEntry.m_nTTLNanos / 100 * m_nRefreshAheadPercent &&
+          aEntry.m_aRefreshing.compareAndSet (false, true))
+        _refreshInBackground (sKey, aReceiverID, aDocTypeID, aEntry);
+      return aEntry.m_aServiceMetadata;
+    }
+
+    m_aMisses.incrementAndGet ();
+    try
+    {
+      return _loadCoalesced (sKey, aReceiverID, aDocTypeID).m_aServiceMetadata;
+    }
+    catch (final SMPClientException ex)
+    {
+      if (aEntry != null && aEntry.getAgeNanos (nNow) - aEntry.m_nTTLNanos < m_nStaleNanos)
+      {
+        // Don't let the SMP availability decide about inbound messages
+        m_aStaleHits.incrementAndGet ();
+        LOGGER.warn ("Failed to query the SMP for '" +
+                     aReceiverID.getURIEncoded () +
+                     "' - using the expired cache entry: " +
+                     ex.getMessage ());
+        return aEntry.m_aServiceMetadata;
+      }
+      throw ex;
+    }
+  }
+
+  @Nullable
+  public EndpointType getEndpoint (@Nonnull final IParticipantIdentifier aReceiverID,
+                                   @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                   @Nonnull final IProcessIdentifier aProcessID,
+                                   @Nonnull final ISMPTransportProfile aTransportProfile) throws SMPClientException
+  {
+    final SignedServiceMetadataType aServiceMetadata = getServiceMetadataOrNull (aReceiverID, aDocTypeID);
+    return SMPClientReadOnly.getEndpoint (aServiceMetadata, aProcessID, aTransportProfile);
+  }
+
+  /**
+   * Remove all cached entries.
+   *
+   * @return The number of removed entries.
+   */
+  public int invalidateAll ()
+  {
+    return m_aRWLock.writeLockedGet ( () -> {
+      m_aGeneration.incrementAndGet ();
+      final int ret = m_aMap.size ();
+      m_aMap.clear ();
+      return Integer.valueOf (ret);
+    }).intValue ();
+  }
+
+  /**
+   * Remove all cached entries of the provided receiver.
+   *
+   * @param aReceiverID
+   *        The receiver whose entries should be removed. May not be <code>null</code>.
+   * @return The number of removed entries.
+   */
+  public int invalidate (@Nonnull final IParticipantIdentifier aReceiverID)
+  {
+    final String sPrefix = aReceiverID.getURIEncoded () + '\n';
+    return m_aRWLock.writeLockedGet ( () -> {
+      m_aGeneration.incrementAndGet ();
+      final int nOldSize = m_aMap.size ();
+      m_aMap.keySet ().removeIf (x -> x.startsWith (sPrefix));
+      return Integer.valueOf (nOldSize - m_aMap.size ());
+    }).intValue ();
+  }
+
+  /**
+   * @return The current size and the counters since startup. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("entries", m_aRWLock.readLockedGet ( () -> Integer.valueOf (m_aMap.size ())));
+    ret.put ("hitCount", Long.valueOf (m_aHits.get ()));
+    ret.put ("missCount", Long.valueOf (m_aMisses.get ()));
+    ret.put ("coalescedCount", Long.valueOf (m_aCoalesced.get ()));
+    ret.put ("staleHitCount", Long.valueOf (m_aStaleHits.get ()));
+    ret.put ("refreshCount", Long.valueOf (m_aRefreshes.get ()));
+    ret.put ("refreshFailureCount", Long.valueOf (m_aRefreshFailures.get ()));
+    return ret;
+  }
+
+  void close ()
+  {
+    m_aRefresher.shutdownNow ();
+  }
+
+  @Nonnull
+  private static ISMPServiceMetadataProvider _createProvider (@Nonnull final String sSMPURL)
+  {
+    final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (URLHelper.getAsURI (sSMPURL));
+    if (!APConfig.isReceiverCheckCacheEnabled ())
+    {
+      LOGGER.warn ("The receiver check SMP cache for '" + sSMPURL + "' is disabled");
+      return aSMPClient;
+    }
+
+    LOGGER.info ("The receiver check SMP cache for '" +
+                 sSMPURL +
+                 "' is enabled with a TTL of " +
+                 APConfig.getReceiverCheckCacheTTLSeconds () +
+                 " seconds and a negative TTL of " +
+                 APConfig.getReceiverCheckCacheNegativeTTLSeconds () +
+                 " seconds");
+    return new ReceiverCheckSMPCache (aSMPClient,
+                                      APConfig.getReceiverCheckCacheTTLSeconds (),
+                                      APConfig.getReceiverCheckCacheNegativeTTLSeconds (),
+                                      APConfig.getReceiverCheckCacheRefreshAheadPercent (),
+                                      APConfig.getReceiverCheckCacheStaleSeconds (),
+                                      APConfig.getReceiverCheckCacheMaxEntries (),
+                                      System::nanoTime);
+  }
+
+  /**
+   * Get the service metadata provider to be used for the receiver check against the provided SMP.
+   * There is only one provider per SMP URL, so that the cache is shared.
+   *
+   * @param sSMPURL
+   *        The URL of the SMP to query. May neither be <code>null</code> nor empty.
+   * @return The cache, or a plain SMP client if the cache is disabled. Never <code>null</code>.
+   */
+  @Nonnull
+  public static ISMPServiceMetadataProvider getProvider (@Nonnull @Nonempty final String sSMPURL)
+  {
+    final ISMPServiceMetadataProvider ret = RW_LOCK.readLockedGet ( () -> PROVIDERS.get (sSMPURL));
+    if (ret != null)
+      return ret;
+    return RW_LOCK.writeLockedGet ( () -> PROVIDERS.computeIfAbsent (sSMPURL,
+                                                                     ReceiverCheckSMPCache::_createProvider));
+  }
+
+  /**
+   * @return All caches created so far, by SMP URL. Never <code>null</code> but empty if the cache
+   *         is disabled or the receiver check is not used.
+   */
+  @Nonnull
+  public static Map <String, ReceiverCheckSMPCache> getAllInstances ()
+  {
+    final Map <String, ReceiverCheckSMPCache> ret = new LinkedHashMap <> ();
+    RW_LOCK.readLocked ( () -> {
+      for (final Map.Entry <String, ISMPServiceMetadataProvider> aEntry : PROVIDERS.entrySet ())
+        if (aEntry.getValue () instanceof ReceiverCheckSMPCache)
+          ret.put (aEntry.getKey (), (ReceiverCheckSMPCache) aEntry.getValue ());
+    });
+    return ret;
+  }
+
+  /**
+   * Stop the background refresh of all caches. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    for (final ReceiverCheckSMPCache aCache : getAllInstances ().values ())
+      aCache.close ();
+    RW_LOCK.writeLocked (PROVIDERS::clear);
+  }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+import com.helger.phase4.peppolstandalone.controller.PayloadBuffer;
+import com.helger.phase4.peppolstandalone.controller.PeppolSender;
+import com.helger.phase4.peppolstandalone.controller.PeppolSendingReportExtension;
+import com.helger.security.certificate.TrustedCAChecker;
+
+/**
+ * Sends many SBDH documents in parallel. The overall number of documents that are send in parallel
+ * (over all batches) and the number of documents that are send in parallel to the same receiving AP
+ * are both limited. Documents for a receiving AP that is already at its limit wait in a queue per
+ * AP without occupying a sending thread, so that a slow receiving AP does not block the documents
+ * for other APs. The sending reports are written as newline delimited JSON (NDJSON) in the order in
+ * which the documents are finished.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundBatchSender
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundBatchSender.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static OutboundBatchSender s_aInstance;
+
+  /**
+   * A document of a batch, that is either send or reported as failed without sending it.
+   *
+   * @author Philip Helger
+   */
+  private interface IBatchTask extends Runnable
+  {
+    /**
+     * Report the document as failed without sending it.
+     *
+     * @param sReason
+     *        The reason why the document is not send. May not be <code>null</code>.
+     */
+    void abort (@Nonnull String sReason);
+  }
+
+  private enum EStartResult
+  {
+    RUN,
+    QUEUED,
+    REJECTED;
+  }
+
+  /**
+   * The documents for a single receiving AP.
+   *
+   * @author Philip Helger
+   */
+  private static final class EndpointLane
+  {
+    private final Queue <IBatchTask> m_aWaiting = new ArrayDeque <> ();
+    private int m_nRunning;
+  }
+
+  private final ExecutorService m_aExecutor;
+  private final Semaphore m_aQueuedPermits;
+  private final int m_nMaxPerEndpoint;
+  private final SimpleLock m_aLanesLock = new SimpleLock ();
+  @GuardedBy ("m_aLanesLock")
+  private final Map <String, EndpointLane> m_aLanes = new HashMap <> ();
+  @GuardedBy ("m_aLanesLock")
+  private boolean m_bShutdown = false;
+
+  private OutboundBatchSender (@Nonnegative final int nMaxConcurrency,
+                               @Nonnegative final int nMaxPerEndpoint,
+                               @Nonnegative final int nMaxQueued)
+  {
+    m_aExecutor = Executors.newFixedThreadPool (nMaxConcurrency, new AppThreadFactory ("phase4-outbound-batch"));
+    m_aQueuedPermits = new Semaphore (nMaxQueued, true);
+    m_nMaxPerEndpoint = nMaxPerEndpoint;
+    LOGGER.info ("Created outbound batch sender with at most " +
+                 nMaxConcurrency +
+                 " parallel messages, at most " +
+                 nMaxPerEndpoint +
+                 " parallel messages per receiving endpoint and at most " +
+                 nMaxQueued +
+                 " queued messages");
+  }
+
+  /**
+   * @return The application wide instance. Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static OutboundBatchSender getInstance ()
+  {
+    OutboundBatchSender ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+    {
+      ret = RW_LOCK.writeLockedGet ( () -> {
+        if (s_aInstance == null)
+          s_aInstance = new OutboundBatchSender (Math.max (1, APConfig.getOutboundBatchMaxConcurrency ()),
+                                                 Math.max (1, APConfig.getOutboundBatchMaxConcurrencyPerEndpoint ()),
+                                                 Math.max (1, APConfig.getOutboundBatchMaxQueued ()));
+        return s_aInstance;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * Stop the batch sending threads. Must be called upon application shutdown. Documents that were
+   * not yet started are reported as failed, so that all running batches complete.
+   */
+  public static void shutdown ()
+  {
+    final OutboundBatchSender aInstance = RW_LOCK.writeLockedGet ( () -> {
+      final OutboundBatchSender ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInstance != null)
+    {
+      aInstance._close ();
+      LOGGER.info ("Stopped the outbound batch sender");
+    }
+  }
+
+  private void _close ()
+  {
+    // Documents that were not yet started, must still be reported and release their resources
+    final List <IBatchTask> aDropped = new ArrayList <> ();
+    m_aLanesLock.locked ( () -> {
+      m_bShutdown = true;
+      for (final EndpointLane aLane : m_aLanes.values ())
+      {
+        aDropped.addAll (aLane.m_aWaiting);
+        aLane.m_aWaiting.clear ();
+      }
+    });
+    for (final Runnable aRunnable : m_aExecutor.shutdownNow ())
+      if (aRunnable instanceof IBatchTask)
+        aDropped.add ((IBatchTask) aRunnable);
+    for (final IBatchTask aTask : aDropped)
+      aTask.abort ("The application is shutting down");
+    if (!aDropped.isEmpty ())
+      LOGGER.warn ("Aborted " + aDropped.size () + " batch documents that were not yet send");
+  }
+
+  /**
+   * Run the provided send task now, if the endpoint is below its limit, or queue it otherwise.
+   *
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  private EStartResult _tryStartOrQueue (@Nonnull final String sEndpointURL, @Nonnull final IBatchTask aSendTask)
+  {
+    return m_aLanesLock.lockedGet ( () -> {
+      if (m_bShutdown)
+        return EStartResult.REJECTED;
+      final EndpointLane aLane = m_aLanes.computeIfAbsent (sEndpointURL, k -> new EndpointLane ());
+      if (aLane.m_nRunning < m_nMaxPerEndpoint)
+      {
+        aLane.m_nRunning++;
+        return EStartResult.RUN;
+      }
+      aLane.m_aWaiting.add (aSendTask);
+      return EStartResult.QUEUED;
+    });
+  }
+
+  /**
+   * A send task for the endpoint finished. Either take over the next waiting task of the endpoint or
+   * release the slot of the endpoint.
+   *
+   * @return The next task to run or <code>null</code> if no task is waiting.
+   */
+  @Nullable
+  private Runnable _pollNextOrRelease (@Nonnull final String sEndpointURL)
+  {
+    return m_aLanesLock.lockedGet ( () -> {
+      final EndpointLane aLane = m_aLanes.get (sEndpointURL);
+      final Runnable ret = aLane.m_aWaiting.poll ();
+      if (ret == null && --aLane.m_nRunning == 0)
+        m_aLanes.remove (sEndpointURL);
+      return ret;
+    });
+  }
+
+  private void _runOnEndpoint (@Nonnull final String sEndpointURL, @Nonnull final IBatchTask aSendTask)
+  {
+    final EStartResult eResult = _tryStartOrQueue (sEndpointURL, aSendTask);
+    if (eResult == EStartResult.REJECTED)
+    {
+      aSendTask.abort ("The application is shutting down");
+      return;
+    }
+    if (eResult == EStartResult.QUEUED)
+    {
+      // Taken over by a thread that finishes a document for the same endpoint
+      return;
+    }
+
+    // Continue with the waiting documents of this endpoint - the slot is kept
+    Runnable aTask = aSendTask;
+    while (aTask != null)
+    {
+      try
+      {
+        aTask.run ();
+      }
+      catch (final RuntimeException ex)
+      {
+        // Must not stop the waiting documents
+        LOGGER.error ("Failed to send batch document to " + sEndpointURL, ex);
+      }
+      aTask = _pollNextOrRelease (sEndpointURL);
+    }
+  }
+
+  /**
+   * Start a new batch.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aOS
+   *        The output stream to write the NDJSON result lines to. May not be <code>null</code>.
+   * @return The new batch. Never <code>null</code>.
+   */
+  @Nonnull
+  public Batch createBatch (@Nonnull final ISMLInfo aSmlInfo,
+                            @Nonnull final TrustedCAChecker aAPCAChecker,
+                            @Nonnull final OutputStream aOS)
+  {
+    return new Batch (aSmlInfo, aAPCAChecker, aOS);
+  }
+
+  /**
+   * A single batch, consisting of many documents. The documents must be submitted from a single
+   * thread.
+   *
+   * @author Philip Helger
+   */
+  @NotThreadSafe
+  public final class Batch
+  {
+    private final ISMLInfo m_aSmlInfo;
+    private final TrustedCAChecker m_aAPCAChecker;
+    @GuardedBy ("m_aOS")
+    private final OutputStream m_aOS;
+    @GuardedBy ("m_aOS")
+    private boolean m_bOutputBroken = false;
+    private final List <CompletableFuture <Void>> m_aFutures = new ArrayList <> ();
+    private final AtomicInteger m_aSuccessCount = new AtomicInteger ();
+
+    private Batch (@Nonnull final ISMLInfo aSmlInfo,
+                   @Nonnull final TrustedCAChecker aAPCAChecker,
+                   @Nonnull final OutputStream aOS)
+    {
+      m_aSmlInfo = aSmlInfo;
+      m_aAPCAChecker = aAPCAChecker;
+      m_aOS = aOS;
+    }
+
+    private void _writeLine (@Nonnull final String sLine)
+    {
+      synchronized (m_aOS)
+      {
+        if (!m_bOutputBroken)
+          try
+          {
+            m_aOS.write (sLine.getBytes (StandardCharsets.UTF_8));
+            m_aOS.write ('\n');
+            m_aOS.flush ();
+          }
+          catch (final IOException ex)
+          {
+            // The client went away - the documents are still send
+            LOGGER.warn ("Failed to write batch result line - ignoring all further results: " + ex.getMessage ());
+            m_bOutputBroken = true;
+          }
+      }
+    }
+
+    @Nullable
+    private String _getEndpointURLOrNull (@Nonnull final SBDHHeaderReader.SBDHHeader aHeader)
+    {
+      try
+      {
+        final SMPEndpointCache.CachedEndpoint aEndpoint = SMPEndpointCache.getInstance ()
+                                                                          .resolve (m_aSmlInfo,
+                                                                                    aHeader.getReceiverAsIdentifier (),
+                                                                                    aHeader.getDocumentTypeAsIdentifier (),
+                                                                                    aHeader.getProcessAsIdentifier ())
+                                                                          .getEndpoint ();
+        return aEndpoint.isFound () ? aEndpoint.getEndpointURL () : null;
+      }
+      catch (final Exception ex)
+      {
+        // Reported when sending
+        return null;
+      }
+    }
+
+    private void _send (@Nonnull final IHasInputStream aSBDH, @Nonnull final PeppolSendingReportExtension aReportExt)
+    {
+      final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolMessagePredefinedSbdh (m_aSmlInfo,
+                                                                                                     m_aAPCAChecker,
+                                                                                                     aSBDH,
+                                                                                                     aReportExt);
+      if (aSendingReport.isOverallSuccess ())
+        m_aSuccessCount.incrementAndGet ();
+      _writeLine (aReportExt.getAsJsonString (aSendingReport));
+    }
+
+    private void _writeFailure (@Nonnull final PeppolSendingReportExtension aReportExt,
+                                @Nonnull final String sErrorMessage)
+    {
+      final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (m_aSmlInfo);
+      aSendingReport.setSendingSuccess (false);
+      aSendingReport.setOverallSuccess (false);
+      aReportExt.add ("batchError", sErrorMessage);
+      _writeLine (aReportExt.getAsJsonString (aSendingReport));
+    }
+
+    /**
+     * @param aReportExt
+     *        The report extension of the document.
+     * @param aOnFinished
+     *        Must be called exactly once when the document is finished.
+     * @param aAction
+     *        What to do when the task runs. Must call aOnFinished itself.
+     * @return A task that reports the document as failed, if it is aborted before it runs.
+     */
+    @Nonnull
+    private IBatchTask _createTask (@Nonnull final PeppolSendingReportExtension aReportExt,
+                                    @Nonnull final Runnable aOnFinished,
+                                    @Nonnull final Runnable aAction)
+    {
+      return new IBatchTask ()
+      {
+        public void run ()
+        {
+          aAction.run ();
+        }
+
+        public void abort (@Nonnull final String sReason)
+        {
+          try
+          {
+            _writeFailure (aReportExt, sReason);
+          }
+          finally
+          {
+            aOnFinished.run ();
+          }
+        }
+      };
+    }
+
+    private void _process (@Nonnull final IHasInputStream aSBDH,
+                           @Nonnull final PeppolSendingReportExtension aReportExt,
+                           @Nonnull final Runnable aOnFinished)
+    {
+      final IBatchTask aSendTask = _createTask (aReportExt, aOnFinished, () -> {
+        try
+        {
+          _send (aSBDH, aReportExt);
+        }
+        finally
+        {
+          aOnFinished.run ();
+        }
+      });
+
+      // Only the header is needed to find the endpoint
+      final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (aSBDH);
+
+      // The SMP lookup is cached, so this is usually cheap
+      final String sEndpointURL = aHeader == null ? null : _getEndpointURLOrNull (aHeader);
+      if (sEndpointURL == null)
+      {
+        // Let the sender create the error report - will fail fast, so no limit needed
+        aSendTask.run ();
+      }
+      else
+        _runOnEndpoint (sEndpointURL, aSendTask);
+    }
+
+    /**
+     * Add a new document to the batch. Blocks while the maximum number of queued documents is
+     * reached. The payload is closed when the document is finished, so that it stays within the
+     * budget of all payloads that are processed at the same time.
+     *
+     * @param nIndex
+     *        The 0-based index of the document within the batch.
+     * @param sItemName
+     *        The name of the item within the batch (like the file name). Used to correlate the
+     *        results.
+     * @param aSBDH
+     *        The complete SBDH to be send. Is closed by this method.
+     * @throws InterruptedException
+     *         If waiting for a free slot was interrupted
+     */
+    public void submit (@Nonnegative final int nIndex,
+                        @Nonnull @Nonempty final String sItemName,
+                        @Nonnull final PayloadBuffer aSBDH) throws InterruptedException
+    {
+      try
+      {
+        m_aQueuedPermits.acquire ();
+      }
+      catch (final InterruptedException ex)
+      {
+        aSBDH.close ();
+        throw ex;
+      }
+      final CompletableFuture <Void> aFuture = new CompletableFuture <> ();
+      final AtomicBoolean aFinished = new AtomicBoolean (false);
+      final Runnable aOnFinished = () -> {
+        // Exactly once, also in case of errors
+        if (aFinished.compareAndSet (false, true))
+        {
+          aSBDH.close ();
+          m_aQueuedPermits.release ();
+          aFuture.complete (null);
+        }
+      };
+      final PeppolSendingReportExtension aReportExt = new PeppolSendingReportExtension ();
+      aReportExt.add ("batchIndex", Integer.valueOf (nIndex));
+      aReportExt.add ("batchItem", sItemName);
+      try
+      {
+        m_aExecutor.execute (_createTask (aReportExt, aOnFinished, () -> {
+          try
+          {
+            _process (aSBDH, aReportExt, aOnFinished);
+          }
+          catch (final RuntimeException ex)
+          {
+            LOGGER.error ("Failed to process batch item " + nIndex, ex);
+            aOnFinished.run ();
+          }
+        }));
+        m_aFutures.add (aFuture);
+      }
+      catch (final RuntimeException ex)
+      {
+        // E.g. rejected during shutdown
+        aOnFinished.run ();
+        throw ex;
+      }
+    }
+
+    /**
+     * Report a document of the batch as failed, without trying to send it.
+     *
+     * @param nIndex
+     *        The 0-based index of the document within the batch.
+     * @param sItemName
+     *        The name of the item within the batch (like the file name).
+     * @param sErrorMessage
+     *        The reason why the document was not send. May not be <code>null</code>.
+     */
+    public void reject (@Nonnegative final int nIndex,
+                        @Nonnull @Nonempty final String sItemName,
+                        @Nonnull final String sErrorMessage)
+    {
+      final PeppolSendingReportExtension aReportExt = new PeppolSendingReportExtension ();
+      aReportExt.add ("batchIndex", Integer.valueOf (nIndex));
+      aReportExt.add ("batchItem", sItemName);
+      _writeFailure (aReportExt, sErrorMessage);
+    }
+
+    /**
+     * Wait until all submitted documents are finished.
+     */
+    public void awaitCompletion ()
+    {
+      CompletableFuture.allOf (m_aFutures.toArray (new CompletableFuture [0])).join ();
+      LOGGER.info ("Finished batch with " +
+                   m_aFutures.size () +
+                   " documents, of which " +
+                   m_aSuccessCount.get () +
+                   " were send successfully");
+    }
+  }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+
+/**
+ * Protects the sending from slow or dead receiving APs. For every receiving AP endpoint URL there
+ * is
+ * <ul>
+ * <li>a bulkhead, limiting the number of messages send to it in parallel, so that one slow AP
+ * cannot block all sending threads</li>
+ * <li>a circuit breaker, that opens after a number of consecutive transport errors. While it is
+ * open, all messages to that AP fail immediately. After a wait time, a single message is let
+ * through (half open) - if that succeeds the circuit is closed again, otherwise it stays open.</li>
+ * </ul>
+ * The state of an endpoint with a closed circuit is forgotten, after it was not used for a
+ * configurable time.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundEndpointGuard
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundEndpointGuard.class);
+  private static final OutboundEndpointGuard INSTANCE = new OutboundEndpointGuard (APConfig.getOutboundEndpointMaxConcurrent (),
+                                                                                   APConfig.getOutboundEndpointAcquireTimeoutMillis (),
+                                                                                   APConfig.isOutboundCircuitBreakerEnabled (),
+                                                                                   APConfig.getOutboundCircuitBreakerFailureThreshold (),
+                                                                                   APConfig.getOutboundCircuitBreakerOpenSeconds (),
+                                                                                   APConfig.getOutboundEndpointIdleEvictSeconds (),
+                                                                                   System::currentTimeMillis);
+
+  /**
+   * The state of a circuit breaker
+   *
+   * @author Philip Helger
+   */
+  public enum ECircuitState
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /**
+   * The reasons why a message was not send
+   *
+   * @author Philip Helger
+   */
+  public enum ERejectReason
+  {
+    BULKHEAD_FULL ("bulkhead-full"),
+    CIRCUIT_OPEN ("circuit-open");
+
+    private final String m_sID;
+
+    ERejectReason (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  /**
+   * The state per receiving AP endpoint
+   *
+   * @author Philip Helger
+   */
+  private final class EndpointState
+  {
+    private final String m_sEndpointURL;
+    private final Semaphore m_aBulkhead;
+    private final AtomicLong m_aRejectedBulkhead = new AtomicLong ();
+    private final AtomicLong m_aRejectedCircuit = new AtomicLong ();
+    // Only incremented within the lock of m_aStates, so that it can be evicted safely
+    private final AtomicInteger m_aUsers = new AtomicInteger ();
+    private volatile long m_nLastUsedMillis;
+    @GuardedBy ("this")
+    private ECircuitState m_eState = ECircuitState.CLOSED;
+    @GuardedBy ("this")
+    private int m_nConsecutiveFailures = 0;
+    @GuardedBy ("this")
+    private long m_nOpenedMillis = 0;
+    @GuardedBy ("this")
+    private boolean m_bProbeInFlight = false;
+
+    EndpointState (@Nonnull final String sEndpointURL)
+    {
+      m_sEndpointURL = sEndpointURL;
+      m_aBulkhead = new Semaphore (m_nMaxConcurrent, true);
+      m_nLastUsedMillis = m_aClock.getAsLong ();
+    }
+
+    void leave ()
+    {
+      m_nLastUsedMillis = m_aClock.getAsLong ();
+      m_aUsers.decrementAndGet ();
+    }
+
+    /**
+     * @return <code>true</code> if the state can be forgotten, because nobody is sending to the
+     *         endpoint, the circuit is closed and it was not used for the idle time.
+     */
+    synchronized boolean isIdle (final long nNowMillis)
+    {
+      return m_aUsers.get () == 0 &&
+             m_eState == ECircuitState.CLOSED &&
+             nNowMillis - m_nLastUsedMillis >= m_nIdleMillis;
+    }
+
+    /**
+     * @return <code>true</code> if the caller is the half open probe
+     * @throws OutboundEndpointUnavailableException
+     *         If the circuit is open
+     */
+    synchronized boolean checkCircuit () throws OutboundEndpointUnavailableException
+    {
+      if (m_eState == ECircuitState.OPEN && m_aClock.getAsLong () - m_nOpenedMillis >= m_nOpenMillis)
+      {
+        m_eState = ECircuitState.HALF_OPEN;
+        m_bProbeInFlight = false;
+      }
+
+      if (m_eState == ECircuitState.CLOSED)
+        return false;
+
+      if (m_eState == ECircuitState.HALF_OPEN && !m_bProbeInFlight)
+      {
+        m_bProbeInFlight = true;
+        return true;
+      }
+
+      m_aRejectedCircuit.incrementAndGet ();
+      throw new OutboundEndpointUnavailableException (ERejectReason.CIRCUIT_OPEN,
+                                                      "The circuit breaker for '" +
+                                                                                    m_sEndpointURL +
+                                                                                    "' is open after " +
+                                                                                    m_nConsecutiveFailures +
+                                                                                    " consecutive transport errors");
+    }
+
+    synchronized void onResult (final boolean bProbe, @Nullable final Boolean aTransportSuccess)
+    {
+      if (bProbe)
+        m_bProbeInFlight = false;
+
+      // No result - e.g. an unexpected exception
+      if (aTransportSuccess == null)
+        return;
+
+      if (aTransportSuccess.booleanValue ())
+      {
+        if (m_eState != ECircuitState.CLOSED)
+          LOGGER.info ("Closing the circuit breaker for '" + m_sEndpointURL + "'");
+        m_eState = ECircuitState.CLOSED;
+        m_nConsecutiveFailures = 0;
+      }
+      else
+      {
+        m_nConsecutiveFailures++;
+        if (bProbe || (m_eState == ECircuitState.CLOSED && m_nConsecutiveFailures >= m_nFailureThreshold))
+        {
+          if (m_eState == ECircuitState.CLOSED)
+            LOGGER.warn ("Opening the circuit breaker for '" +
+                         m_sEndpointURL +
+                         "' after " +
+                         m_nConsecutiveFailures +
+                         " consecutive transport errors");
+          m_eState = ECircuitState.OPEN;
+          m_nOpenedMillis = m_aClock.getAsLong ();
+        }
+      }
+    }
+
+    @Nonnull
+    synchronized Map <String, Object> getAsMap ()
+    {
+      final Map <String, Object> ret = new LinkedHashMap <> ();
+      ret.put ("state", m_eState.name ());
+      ret.put ("consecutiveFailures", Integer.valueOf (m_nConsecutiveFailures));
+      if (m_eState != ECircuitState.CLOSED)
+        ret.put ("openedAt", Instant.ofEpochMilli (m_nOpenedMillis).toString ());
+      ret.put ("activeSends", Integer.valueOf (m_nMaxConcurrent - m_aBulkhead.availablePermits ()));
+      ret.put ("maxConcurrentSends", Integer.valueOf (m_nMaxConcurrent));
+      ret.put ("rejectedBulkheadFull", Long.valueOf (m_aRejectedBulkhead.get ()));
+      ret.put ("rejectedCircuitOpen", Long.valueOf (m_aRejectedCircuit.get ()));
+      return ret;
+    }
+  }
+
+  /**
+   * A permission to send a single message to a receiving AP. Must be released after sending.
+   *
+   * @author Philip Helger
+   */
+  public final class Permit
+  {
+    private final EndpointState m_aEndpointState;
+    private final boolean m_bProbe;
+    private Boolean m_aTransportSuccess;
+    private boolean m_bReleased = false;
+
+    Permit (@Nonnull final EndpointState aEndpointState, final boolean bProbe)
+    {
+      m_aEndpointState = aEndpointState;
+      m_bProbe = bProbe;
+    }
+
+    /**
+     * Remember the outcome of sending. Only transport problems count as failures - if the
+     * receiving AP answered with an error, it is reachable.
+     *
+     * @param eResult
+     *        The sending result. May be <code>null</code>.
+     * @param aException
+     *        The exception that occurred. May be <code>null</code>.
+     */
+    public void setResult (@Nullable final EAS4UserMessageSendResult eResult, @Nullable final Exception aException)
+    {
+      if (eResult == null)
+        m_aTransportSuccess = null;
+      else
+        m_aTransportSuccess = Boolean.valueOf (!OutboundRetryPolicy.isRetryable (eResult, aException));
+    }
+
+    /**
+     * Release the permit and update the circuit breaker.
+     */
+    public void release ()
+    {
+      if (!m_bReleased)
+      {
+        m_bReleased = true;
+        m_aEndpointState.m_aBulkhead.release ();
+        if (m_bCircuitBreakerEnabled)
+          m_aEndpointState.onResult (m_bProbe, m_aTransportSuccess);
+        m_aEndpointState.leave ();
+      }
+    }
+  }
+
+  private final int m_nMaxConcurrent;
+  private final long m_nAcquireTimeoutMillis;
+  private final boolean m_bCircuitBreakerEnabled;
+  private final int m_nFailureThreshold;
+  private final long m_nOpenMillis;
+  private final long m_nIdleMillis;
+  private final LongSupplier m_aClock;
+  private final Map <String, EndpointState> m_aStates = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aNextEvictionMillis;
+
+  OutboundEndpointGuard (@Nonnegative final int nMaxConcurrent,
+                         @Nonnegative final long nAcquireTimeoutMillis,
+                         final boolean bCircuitBreakerEnabled,
+                         @Nonnegative final int nFailureThreshold,
+                         @Nonnegative final long nOpenSeconds,
+                         @Nonnegative final long nIdleEvictSeconds,
+                         @Nonnull final LongSupplier aClock)
+  {
+    m_nMaxConcurrent = Math.max (1, nMaxConcurrent);
+    m_nAcquireTimeoutMillis = nAcquireTimeoutMillis;
+    m_bCircuitBreakerEnabled = bCircuitBreakerEnabled;
+    m_nFailureThreshold = Math.max (1, nFailureThreshold);
+    m_nOpenMillis = TimeUnit.SECONDS.toMillis (nOpenSeconds);
+    m_nIdleMillis = TimeUnit.SECONDS.toMillis (Math.max (1, nIdleEvictSeconds));
+    m_aClock = aClock;
+    m_aNextEvictionMillis = new AtomicLong (aClock.getAsLong () + m_nIdleMillis);
+  }
+
+  @Nonnull
+  public static OutboundEndpointGuard getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * Get the permission to send a message to the provided endpoint. Waits at most the configured
+   * time for a free slot.
+   *
+   * @param sEndpointURL
+   *        The AS4 endpoint URL of the receiving AP. May neither be <code>null</code> nor empty.
+   * @return The permit, that must be released after sending. Never <code>null</code>.
+   * @throws OutboundEndpointUnavailableException
+   *         If the circuit breaker is open or if no slot got free in time
+   */
+  @Nonnull
+  public Permit acquire (@Nonnull @Nonempty final String sEndpointURL) throws OutboundEndpointUnavailableException
+  {
+    _evictIdleStates ();
+
+    final EndpointState aState = m_aStates.compute (sEndpointURL, (k, v) -> {
+      final EndpointState ret = v != null ? v : new EndpointState (k);
+      ret.m_aUsers.incrementAndGet ();
+      return ret;
+    });
+
+    boolean bPermitted = false;
+    try
+    {
+      // Check before waiting for a slot
+      final boolean bProbe = m_bCircuitBreakerEnabled && aState.checkCircuit ();
+
+      boolean bAcquired;
+      try
+      {
+        bAcquired = aState.m_aBulkhead.tryAcquire (m_nAcquireTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        bAcquired = false;
+      }
+
+      if (!bAcquired)
+      {
+        if (bProbe)
+          aState.onResult (true, null);
+        aState.m_aRejectedBulkhead.incrementAndGet ();
+        throw new OutboundEndpointUnavailableException (ERejectReason.BULKHEAD_FULL,
+                                                        "Too many messages are currently send to '" +
+                                                                                     sEndpointURL +
+                                                                                     "' - at most " +
+                                                                                     m_nMaxConcurrent +
+                                                                                     " are allowed in parallel");
+      }
+      bPermitted = true;
+      return new Permit (aState, bProbe);
+    }
+    finally
+    {
+      if (!bPermitted)
+        aState.leave ();
+    }
+  }
+
+  /**
+   * Forget the states of endpoints with a closed circuit, that were not used for the idle time.
+   * Runs at most once per idle time.
+   */
+  private void _evictIdleStates ()
+  {
+    final long nNow = m_aClock.getAsLong ();
+    final long nNextEviction = m_aNextEvictionMillis.get ();
+    if (nNow < nNextEviction || !m_aNextEvictionMillis.compareAndSet (nNextEviction, nNow + m_nIdleMillis))
+      return;
+
+    final int nBefore = m_aStates.size ();
+    for (final String sEndpointURL : m_aStates.keySet ())
+      m_aStates.computeIfPresent (sEndpointURL, (k, v) -> v.isIdle (nNow) ? null : v);
+    final int nEvicted = nBefore - m_aStates.size ();
+    if (nEvicted > 0)
+      LOGGER.info ("Forgot the state of " + nEvicted + " idle receiving AP endpoints");
+  }
+
+  /**
+   * @return The bulkhead and circuit breaker state per endpoint URL. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    for (final Map.Entry <String, EndpointState> aEntry : m_aStates.entrySet ())
+      ret.put (aEntry.getKey (), aEntry.getValue ().getAsMap ());
+    return ret;
+  }
+}
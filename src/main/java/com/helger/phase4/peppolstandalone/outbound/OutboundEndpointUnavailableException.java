@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import javax.annotation.Nonnull;
+
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Exception thrown, if a message is not send to a receiving AP, because too many messages are
+ * currently send to it or because its circuit breaker is open. Sending may succeed later.
+ *
+ * @author Philip Helger
+ */
+public class OutboundEndpointUnavailableException extends Phase4Exception
+{
+  private final OutboundEndpointGuard.ERejectReason m_eReason;
+
+  public OutboundEndpointUnavailableException (@Nonnull final OutboundEndpointGuard.ERejectReason eReason,
+                                               @Nonnull final String sMsg)
+  {
+    super (sMsg);
+    m_eReason = eReason;
+  }
+
+  @Nonnull
+  public OutboundEndpointGuard.ERejectReason getReason ()
+  {
+    return m_eReason;
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.io.HttpClientConnectionManager;
+import org.apache.hc.client5.http.ssl.LayeredConnectionSocketFactory;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
+
+/**
+ * A special {@link HttpClientFactory} for all outbound AS4 messages. The HTTP clients created by
+ * phase4 for each message share a single, long-lived connection pool, so that connections and TLS
+ * sessions to the receiving APs are reused between messages.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundHttpClientFactory extends HttpClientFactory
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundHttpClientFactory.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static OutboundHttpClientFactory s_aInstance;
+
+  private final int m_nMaxTotal;
+  private final int m_nMaxPerRoute;
+  private final TimeValue m_aMaxKeepAlive;
+  private final TimeValue m_aMaxIdle;
+  private final ScheduledExecutorService m_aEvictor;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private PoolingHttpClientConnectionManager m_aConnMgr;
+
+  private OutboundHttpClientFactory (@Nonnull final Phase4PeppolHttpClientSettings aSettings)
+  {
+    super (aSettings);
+    m_nMaxTotal = APConfig.getOutboundHttpMaxConnectionsTotal ();
+    m_nMaxPerRoute = APConfig.getOutboundHttpMaxConnectionsPerRoute ();
+    m_aMaxKeepAlive = TimeValue.ofSeconds (APConfig.getOutboundHttpKeepAliveSeconds ());
+    m_aMaxIdle = TimeValue.ofSeconds (APConfig.getOutboundHttpIdleEvictSeconds ());
+
+    // TLS session reuse is bound to the SSLContext, which is shared by all connections
+    final SSLContext aSSLContext = aSettings.getSSLContext ();
+    if (aSSLContext != null)
+    {
+      final SSLSessionContext aSessionCtx = aSSLContext.getClientSessionContext ();
+      aSessionCtx.setSessionCacheSize (APConfig.getOutboundHttpTlsSessionCacheSize ());
+      aSessionCtx.setSessionTimeout (APConfig.getOutboundHttpTlsSessionTimeoutSeconds ());
+    }
+    else
+      LOGGER.warn ("No SSLContext is configured for outbound HTTP - TLS session caching cannot be configured");
+
+    m_aEvictor = Executors.newSingleThreadScheduledExecutor (r -> {
+      final Thread t = new Thread (r, "phase4-outbound-http-evictor");
+      t.setDaemon (true);
+      return t;
+    });
+    final long nPeriod = Math.max (1, m_aMaxIdle.toSeconds () / 2);
+    m_aEvictor.scheduleWithFixedDelay (this::_evict, nPeriod, nPeriod, TimeUnit.SECONDS);
+
+    LOGGER.info ("Created pooled outbound HTTP client factory with at most " +
+                 m_nMaxTotal +
+                 " connections, " +
+                 m_nMaxPerRoute +
+                 " per route, keep-alive " +
+                 m_aMaxKeepAlive +
+                 " and idle eviction after " +
+                 m_aMaxIdle);
+  }
+
+  private void _evict ()
+  {
+    final PoolingHttpClientConnectionManager aConnMgr = m_aRWLock.readLockedGet ( () -> m_aConnMgr);
+    if (aConnMgr != null)
+    {
+      aConnMgr.closeExpired ();
+      aConnMgr.closeIdle (m_aMaxIdle);
+    }
+  }
+
+  @Override
+  @Nonnull
+  public HttpClientConnectionManager createConnectionManager (@Nonnull final LayeredConnectionSocketFactory aSSLFactory)
+  {
+    PoolingHttpClientConnectionManager ret = m_aRWLock.readLockedGet ( () -> m_aConnMgr);
+    if (ret == null)
+    {
+      ret = m_aRWLock.writeLockedGet ( () -> {
+        if (m_aConnMgr == null)
+        {
+          final HttpClientConnectionManager aConnMgr = super.createConnectionManager (aSSLFactory);
+          if (!(aConnMgr instanceof PoolingHttpClientConnectionManager))
+            throw new IllegalStateException ("Expected a pooling connection manager but got " + aConnMgr);
+          final PoolingHttpClientConnectionManager aPool = (PoolingHttpClientConnectionManager) aConnMgr;
+          aPool.setMaxTotal (m_nMaxTotal);
+          aPool.setDefaultMaxPerRoute (m_nMaxPerRoute);
+          m_aConnMgr = aPool;
+        }
+        return m_aConnMgr;
+      });
+    }
+    return ret;
+  }
+
+  @Override
+  @Nonnull
+  public HttpClientBuilder createHttpClientBuilder ()
+  {
+    final ConnectionKeepAliveStrategy aKeepAlive = (aResponse, aContext) -> {
+      // Use what the server says, but never more than configured
+      final TimeValue aServerKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration (aResponse,
+                                                                                                         aContext);
+      if (aServerKeepAlive == null || aServerKeepAlive.compareTo (m_aMaxKeepAlive) > 0)
+        return m_aMaxKeepAlive;
+      return aServerKeepAlive;
+    };
+
+    // The connection manager must survive the closing of the HTTP client
+    // phase4 creates per message
+    return super.createHttpClientBuilder ().setConnectionManagerShared (true).setKeepAliveStrategy (aKeepAlive);
+  }
+
+  /**
+   * @return The current pool statistics in total and per route. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getPoolStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    final PoolingHttpClientConnectionManager aConnMgr = m_aRWLock.readLockedGet ( () -> m_aConnMgr);
+    if (aConnMgr != null)
+    {
+      ret.put ("total", _getAsMap (aConnMgr.getTotalStats ()));
+      final Map <String, Object> aRoutes = new LinkedHashMap <> ();
+      for (final HttpRoute aRoute : aConnMgr.getRoutes ())
+        aRoutes.put (aRoute.getTargetHost ().toURI (), _getAsMap (aConnMgr.getStats (aRoute)));
+      ret.put ("routes", aRoutes);
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static Map <String, Object> _getAsMap (@Nonnull final PoolStats aStats)
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("leased", Integer.valueOf (aStats.getLeased ()));
+    ret.put ("pending", Integer.valueOf (aStats.getPending ()));
+    ret.put ("available", Integer.valueOf (aStats.getAvailable ()));
+    ret.put ("max", Integer.valueOf (aStats.getMax ()));
+    return ret;
+  }
+
+  private void _close ()
+  {
+    m_aEvictor.shutdownNow ();
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aConnMgr != null)
+      {
+        m_aConnMgr.close (CloseMode.GRACEFUL);
+        m_aConnMgr = null;
+      }
+    });
+  }
+
+  /**
+   * @return The application wide instance. Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static OutboundHttpClientFactory getInstance ()
+  {
+    OutboundHttpClientFactory ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+    {
+      ret = RW_LOCK.writeLockedGet ( () -> {
+        if (s_aInstance == null)
+        {
+          final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
+          // TODO Add AP HTTP outbound proxy settings here
+          s_aInstance = new OutboundHttpClientFactory (aHCS);
+        }
+        return s_aInstance;
+      });
+    }
+    return ret;
+  }
+
+  /**
+   * @return The application wide instance if it was already created, <code>null</code>
+   *         otherwise.
+   */
+  @Nullable
+  public static OutboundHttpClientFactory getInstanceIfInstantiated ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Close the shared connection pool. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final OutboundHttpClientFactory aInstance = RW_LOCK.writeLockedGet ( () -> {
+      final OutboundHttpClientFactory ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInstance != null)
+    {
+      aInstance._close ();
+      LOGGER.info ("Closed the pooled outbound HTTP client factory");
+    }
+  }
+}
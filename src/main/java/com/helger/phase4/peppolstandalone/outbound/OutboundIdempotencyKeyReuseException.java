@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import javax.annotation.Nonnull;
+
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Exception thrown, if an idempotency key is used for a request that differs from the request the
+ * key was used for before.
+ *
+ * @author Philip Helger
+ */
+public class OutboundIdempotencyKeyReuseException extends Phase4Exception
+{
+  private final boolean m_bInProgress;
+
+  public OutboundIdempotencyKeyReuseException (final boolean bInProgress, @Nonnull final String sMsg)
+  {
+    super (sMsg);
+    m_bInProgress = bInProgress;
+  }
+
+  /**
+   * @return <code>true</code> if the other request is still being sent, <code>false</code> if its
+   *         result is already stored.
+   */
+  public boolean isInProgress ()
+  {
+    return m_bInProgress;
+  }
+}
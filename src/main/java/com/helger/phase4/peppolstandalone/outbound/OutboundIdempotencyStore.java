@@ -0,0 +1,737 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * Remembers the results of sending operations by an idempotency key, so that a repeated request
+ * does not send the same document again. Only final results (success or a permanent error) and
+ * results for which a retry job was queued are remembered - after a temporary error without a retry
+ * job the next request sends again. Each key is bound to a
+ * fingerprint of the request, so that a key cannot be reused for a different document. The results
+ * are stored in an append-only log file, with an in-memory index pointing to the position of each
+ * result in the log. Entries are only kept for a configurable time window and up to a configurable
+ * maximum number. The log is compacted by the regular cleanup job.
+ * <p>
+ * Each line of the log has the layout
+ * <code>creationMillis TAB key TAB fingerprint TAB retryJobID TAB resultJson</code>, with an empty
+ * retry job ID if no retry job was queued.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundIdempotencyStore
+{
+  public static final int MAX_KEY_LENGTH = 256;
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundIdempotencyStore.class);
+  private static final byte SEPARATOR = '\t';
+  private static final byte NEWLINE = '\n';
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static OutboundIdempotencyStore s_aInstance;
+
+  /**
+   * The location of a single result within the log.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  private static final class IndexEntry
+  {
+    private final long m_nCreationMillis;
+    private final String m_sFingerprint;
+    private final String m_sRetryJobID;
+    private final long m_nOffset;
+    private final int m_nLength;
+
+    IndexEntry (final long nCreationMillis,
+                @Nonnull final String sFingerprint,
+                @Nullable final String sRetryJobID,
+                @Nonnegative final long nOffset,
+                @Nonnegative final int nLength)
+    {
+      m_nCreationMillis = nCreationMillis;
+      m_sFingerprint = sFingerprint;
+      m_sRetryJobID = sRetryJobID;
+      m_nOffset = nOffset;
+      m_nLength = nLength;
+    }
+  }
+
+  /**
+   * A sending operation that is currently running.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  private static final class InFlight
+  {
+    private final String m_sFingerprint;
+    private final CompletableFuture <Outcome> m_aFuture = new CompletableFuture <> ();
+
+    InFlight (@Nonnull final String sFingerprint)
+    {
+      m_sFingerprint = sFingerprint;
+    }
+  }
+
+  /**
+   * The outcome of a single sending operation, as returned by the sender passed to
+   * {@link OutboundIdempotencyStore#execute(String, String, Supplier)}.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Outcome
+  {
+    private final String m_sResultJson;
+    private final boolean m_bFinal;
+    private final String m_sRetryJobID;
+
+    /**
+     * @param sResultJson
+     *        The JSON result of the sending operation. May not be <code>null</code>.
+     * @param bFinal
+     *        <code>true</code> if sending again would not change the result, that is if sending
+     *        succeeded or failed permanently. Only final outcomes are remembered.
+     * @param sRetryJobID
+     *        The ID of the job that retries the sending operation in the background. May be
+     *        <code>null</code>. If present, the outcome is remembered as well, so that a repeated
+     *        request does not send again but gets the state of this job.
+     */
+    public Outcome (@Nonnull final String sResultJson, final boolean bFinal, @Nullable final String sRetryJobID)
+    {
+      m_sResultJson = sResultJson;
+      m_bFinal = bFinal;
+      m_sRetryJobID = sRetryJobID;
+    }
+
+    @Nonnull
+    public String getResultJson ()
+    {
+      return m_sResultJson;
+    }
+
+    public boolean isFinal ()
+    {
+      return m_bFinal;
+    }
+
+    @Nullable
+    public String getRetryJobID ()
+    {
+      return m_sRetryJobID;
+    }
+  }
+
+  /**
+   * The result of {@link OutboundIdempotencyStore#execute(String, String, Supplier)}.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Result
+  {
+    private final String m_sResultJson;
+    private final String m_sRetryJobID;
+    private final boolean m_bReplayed;
+
+    Result (@Nonnull final String sResultJson, @Nullable final String sRetryJobID, final boolean bReplayed)
+    {
+      m_sResultJson = sResultJson;
+      m_sRetryJobID = sRetryJobID;
+      m_bReplayed = bReplayed;
+    }
+
+    /**
+     * @return The JSON result of the sending operation. Never <code>null</code>.
+     */
+    @Nonnull
+    public String getResultJson ()
+    {
+      return m_sResultJson;
+    }
+
+    /**
+     * @return The ID of the job that retries the sending operation in the background or
+     *         <code>null</code> if no retry was queued.
+     */
+    @Nullable
+    public String getRetryJobID ()
+    {
+      return m_sRetryJobID;
+    }
+
+    /**
+     * @return <code>true</code> if the result is from a previous sending operation with the same
+     *         key, <code>false</code> if the message was sent now.
+     */
+    public boolean isReplayed ()
+    {
+      return m_bReplayed;
+    }
+  }
+
+  private final File m_aFile;
+  private final long m_nWindowMillis;
+  private final int m_nMaxEntries;
+  private final LongSupplier m_aClock;
+  private final SimpleLock m_aLock = new SimpleLock ();
+  // Insertion order is creation order, so the oldest entries are first
+  @GuardedBy ("m_aLock")
+  private final LinkedHashMap <String, IndexEntry> m_aIndex = new LinkedHashMap <> ();
+  @GuardedBy ("m_aLock")
+  private final Map <String, InFlight> m_aInFlight = new HashMap <> ();
+  // Serializes the writes to the log, so that m_aLock is not held while waiting for the disk
+  private final SimpleLock m_aAppendLock = new SimpleLock ();
+  // Read with either lock held, only replaced while both locks are held
+  private FileChannel m_aLog;
+  @GuardedBy ("m_aAppendLock")
+  private int m_nLogEntries;
+
+  /**
+   * @param aFile
+   *        The log file. May not be <code>null</code>.
+   * @param nWindowMillis
+   *        The time window in which results are remembered.
+   * @param nMaxEntries
+   *        The maximum number of results to remember.
+   * @param aClock
+   *        The source of the current time in milliseconds. May not be <code>null</code>.
+   */
+  OutboundIdempotencyStore (@Nonnull final File aFile,
+                            @Nonnegative final long nWindowMillis,
+                            @Nonnegative final int nMaxEntries,
+                            @Nonnull final LongSupplier aClock)
+  {
+    m_aFile = aFile;
+    m_nWindowMillis = nWindowMillis;
+    m_nMaxEntries = nMaxEntries;
+    m_aClock = aClock;
+  }
+
+  /**
+   * Check if the provided value can be used as an idempotency key or as a fingerprint.
+   *
+   * @param sKey
+   *        The key to check. May be <code>null</code>.
+   * @return <code>true</code> if it is not empty, not too long and contains no control characters.
+   */
+  public static boolean isValidKey (@Nullable final String sKey)
+  {
+    if (StringHelper.hasNoText (sKey) || sKey.length () > MAX_KEY_LENGTH)
+      return false;
+    for (final char c : sKey.toCharArray ())
+      if (c < 0x20 || c == 0x7f)
+        return false;
+    return true;
+  }
+
+  private boolean _isOutdated (@Nonnull final IndexEntry aEntry, final long nNowMillis)
+  {
+    return aEntry.m_nCreationMillis + m_nWindowMillis <= nNowMillis;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _evictOutdated (final long nNowMillis)
+  {
+    final Iterator <IndexEntry> it = m_aIndex.values ().iterator ();
+    while (it.hasNext ())
+    {
+      final IndexEntry aEntry = it.next ();
+      if (m_aIndex.size () <= m_nMaxEntries && !_isOutdated (aEntry, nNowMillis))
+        break;
+      it.remove ();
+    }
+  }
+
+  /**
+   * Read the existing log and build the index. A partially written last line (e.g. because of a
+   * crash) is cut off.
+   */
+  void open () throws IOException
+  {
+    final long nNow = m_aClock.getAsLong ();
+    long nValidLength = 0;
+    if (m_aFile.exists ())
+      try (final InputStream aIS = new BufferedInputStream (Files.newInputStream (m_aFile.toPath ())))
+      {
+        final NonBlockingByteArrayOutputStream aLine = new NonBlockingByteArrayOutputStream ();
+        long nLineStart = 0;
+        int b;
+        while ((b = aIS.read ()) >= 0)
+        {
+          if (b != NEWLINE)
+          {
+            aLine.write (b);
+            continue;
+          }
+
+          final byte [] aBytes = aLine.directGetBuffer ();
+          final int nLineLength = aLine.size ();
+          final int nSep1 = _indexOf (aBytes, 0, nLineLength);
+          final int nSep2 = nSep1 < 0 ? -1 : _indexOf (aBytes, nSep1 + 1, nLineLength);
+          final int nSep3 = nSep2 < 0 ? -1 : _indexOf (aBytes, nSep2 + 1, nLineLength);
+          final int nSep4 = nSep3 < 0 ? -1 : _indexOf (aBytes, nSep3 + 1, nLineLength);
+          if (nSep4 < 0)
+            LOGGER.warn ("Ignoring malformed line at offset " + nLineStart + " of " + m_aFile.getAbsolutePath ());
+          else
+          {
+            final String sCreationMillis = new String (aBytes, 0, nSep1, StandardCharsets.US_ASCII);
+            final long nCreationMillis = StringParser.parseLong (sCreationMillis, -1);
+            final String sKey = new String (aBytes, nSep1 + 1, nSep2 - nSep1 - 1, StandardCharsets.UTF_8);
+            final String sFingerprint = new String (aBytes, nSep2 + 1, nSep3 - nSep2 - 1, StandardCharsets.UTF_8);
+            final String sRetryJobID = new String (aBytes, nSep3 + 1, nSep4 - nSep3 - 1, StandardCharsets.UTF_8);
+            final IndexEntry aEntry = new IndexEntry (nCreationMillis,
+                                                      sFingerprint,
+                                                      StringHelper.hasText (sRetryJobID) ? sRetryJobID : null,
+                                                      nLineStart + nSep4 + 1,
+                                                      nLineLength - nSep4 - 1);
+            // Later entries win
+            m_aIndex.remove (sKey);
+            if (nCreationMillis >= 0 && !_isOutdated (aEntry, nNow))
+              m_aIndex.put (sKey, aEntry);
+            m_nLogEntries++;
+          }
+          nLineStart += nLineLength + 1;
+          nValidLength = nLineStart;
+          aLine.reset ();
+        }
+      }
+
+    m_aLog = FileChannel.open (m_aFile.toPath (),
+                               StandardOpenOption.CREATE,
+                               StandardOpenOption.READ,
+                               StandardOpenOption.WRITE);
+    if (m_aLog.size () > nValidLength)
+    {
+      LOGGER.warn ("Cutting off an incomplete last line of " + m_aFile.getAbsolutePath ());
+      m_aLog.truncate (nValidLength);
+    }
+    m_aLog.position (nValidLength);
+    _evictOutdated (nNow);
+
+    LOGGER.info ("Loaded " +
+                 m_aIndex.size () +
+                 " idempotency keys from " +
+                 m_nLogEntries +
+                 " entries of '" +
+                 m_aFile.getAbsolutePath () +
+                 "'");
+  }
+
+  private static int _indexOf (@Nonnull final byte [] aBytes, final int nFrom, final int nTo)
+  {
+    for (int i = nFrom; i < nTo; ++i)
+      if (aBytes[i] == SEPARATOR)
+        return i;
+    return -1;
+  }
+
+  @Nonnull
+  private static byte [] _getPrefix (final long nCreationMillis,
+                                     @Nonnull final String sKey,
+                                     @Nonnull final String sFingerprint,
+                                     @Nullable final String sRetryJobID)
+  {
+    return (nCreationMillis +
+            "\t" +
+            sKey +
+            "\t" +
+            sFingerprint +
+            "\t" +
+            StringHelper.getNotNull (sRetryJobID) +
+            "\t").getBytes (StandardCharsets.UTF_8);
+  }
+
+  @GuardedBy ("m_aLock")
+  @Nonnull
+  private String _readResult (@Nonnull final IndexEntry aEntry) throws IOException
+  {
+    final ByteBuffer aBB = ByteBuffer.allocate (aEntry.m_nLength);
+    long nPos = aEntry.m_nOffset;
+    while (aBB.hasRemaining ())
+    {
+      final int nRead = m_aLog.read (aBB, nPos);
+      if (nRead < 0)
+        throw new IOException ("Unexpected end of " + m_aFile.getAbsolutePath ());
+      nPos += nRead;
+    }
+    return new String (aBB.array (), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Durably write a result to the log and add it to the index afterwards. Only the append lock is
+   * held while writing, so that lookups are not blocked by the disk.
+   */
+  private void _append (@Nonnull final String sKey,
+                        @Nonnull final String sFingerprint,
+                        final long nCreationMillis,
+                        @Nonnull final Outcome aOutcome) throws IOException
+  {
+    final byte [] aPrefix = _getPrefix (nCreationMillis, sKey, sFingerprint, aOutcome.getRetryJobID ());
+    final byte [] aResult = aOutcome.getResultJson ().getBytes (StandardCharsets.UTF_8);
+    final ByteBuffer aBB = ByteBuffer.allocate (aPrefix.length + aResult.length + 1);
+    aBB.put (aPrefix).put (aResult).put (NEWLINE).flip ();
+
+    m_aAppendLock.lock ();
+    try
+    {
+      final long nStart = m_aLog.position ();
+      while (aBB.hasRemaining ())
+        m_aLog.write (aBB);
+      m_aLog.force (false);
+      m_nLogEntries++;
+
+      final IndexEntry aEntry = new IndexEntry (nCreationMillis,
+                                                sFingerprint,
+                                                aOutcome.getRetryJobID (),
+                                                nStart + aPrefix.length,
+                                                aResult.length);
+      m_aLock.locked ( () -> {
+        m_aIndex.remove (sKey);
+        m_aIndex.put (sKey, aEntry);
+      });
+    }
+    finally
+    {
+      m_aAppendLock.unlock ();
+    }
+  }
+
+  /**
+   * Rewrite the log so that it only contains the provided entries. Must be called with the append
+   * lock held. Lookups are only blocked while the new log is swapped in.
+   *
+   * @param aEntries
+   *        A snapshot of the index to write.
+   */
+  @GuardedBy ("m_aAppendLock")
+  private void _compact (@Nonnull final Map <String, IndexEntry> aEntries) throws IOException
+  {
+    final Path aTarget = m_aFile.toPath ();
+    final Path aTmp = aTarget.resolveSibling (aTarget.getFileName () + ".tmp");
+    final LinkedHashMap <String, IndexEntry> aNewIndex = new LinkedHashMap <> ();
+    try (final FileChannel aFC = FileChannel.open (aTmp,
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE))
+    {
+      for (final Map.Entry <String, IndexEntry> aEntry : aEntries.entrySet ())
+      {
+        final IndexEntry aOld = aEntry.getValue ();
+        final byte [] aPrefix = _getPrefix (aOld.m_nCreationMillis,
+                                            aEntry.getKey (),
+                                            aOld.m_sFingerprint,
+                                            aOld.m_sRetryJobID);
+        final long nStart = aFC.position ();
+        aFC.write (ByteBuffer.wrap (aPrefix));
+        // Copy the result without decoding it - does not change the position of the log
+        long nDone = 0;
+        while (nDone < aOld.m_nLength)
+          nDone += m_aLog.transferTo (aOld.m_nOffset + nDone, aOld.m_nLength - nDone, aFC);
+        aFC.write (ByteBuffer.wrap (new byte [] { NEWLINE }));
+        aNewIndex.put (aEntry.getKey (),
+                       new IndexEntry (aOld.m_nCreationMillis,
+                                       aOld.m_sFingerprint,
+                                       aOld.m_sRetryJobID,
+                                       nStart + aPrefix.length,
+                                       aOld.m_nLength));
+      }
+      aFC.force (true);
+    }
+
+    m_aLock.lock ();
+    try
+    {
+      m_aLog.close ();
+      Files.move (aTmp, aTarget, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      m_aLog = FileChannel.open (aTarget, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      m_aLog.position (m_aLog.size ());
+      // Entries may have been evicted in the meantime
+      aNewIndex.keySet ().retainAll (m_aIndex.keySet ());
+      m_aIndex.clear ();
+      m_aIndex.putAll (aNewIndex);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    m_nLogEntries = aEntries.size ();
+  }
+
+  /**
+   * Perform a sending operation unless one with the same key was already performed within the
+   * time window. If a sending operation with the same key is currently running, this method waits
+   * for its result. Results are only remembered if the sending operation does not throw an
+   * exception and if its outcome is final or a retry job was queued.
+   *
+   * @param sKey
+   *        The idempotency key. Must be valid according to {@link #isValidKey(String)}.
+   * @param sFingerprint
+   *        The fingerprint of the request (like a hash of the payload and the routing information).
+   *        Must be valid according to {@link #isValidKey(String)}.
+   * @param aSender
+   *        The sending operation, returning the outcome. May not be <code>null</code>.
+   * @return The result. Never <code>null</code>.
+   * @throws OutboundIdempotencyKeyReuseException
+   *         If the key was used for a request with a different fingerprint
+   */
+  @Nonnull
+  public Result execute (@Nonnull @Nonempty final String sKey,
+                         @Nonnull @Nonempty final String sFingerprint,
+                         @Nonnull final Supplier <Outcome> aSender) throws OutboundIdempotencyKeyReuseException
+  {
+    if (!isValidKey (sKey))
+      throw new IllegalArgumentException ("Invalid idempotency key provided");
+    if (!isValidKey (sFingerprint))
+      throw new IllegalArgumentException ("Invalid fingerprint provided");
+
+    final long nNow = m_aClock.getAsLong ();
+    final InFlight aOwn = new InFlight (sFingerprint);
+    final Result aStored;
+    final InFlight aRunning;
+    m_aLock.lock ();
+    try
+    {
+      final IndexEntry aEntry = m_aIndex.get (sKey);
+      String sStoredJson = null;
+      if (aEntry != null && !_isOutdated (aEntry, nNow))
+      {
+        if (!aEntry.m_sFingerprint.equals (sFingerprint))
+          throw new OutboundIdempotencyKeyReuseException (false,
+                                                          "The idempotency key '" +
+                                                                 sKey +
+                                                                 "' was already used for a different request");
+        try
+        {
+          sStoredJson = _readResult (aEntry);
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to read the stored result for idempotency key '" + sKey + "'", ex);
+        }
+      }
+      aStored = sStoredJson == null ? null : new Result (sStoredJson, aEntry.m_sRetryJobID, true);
+
+      aRunning = aStored != null ? null : m_aInFlight.putIfAbsent (sKey, aOwn);
+      if (aRunning != null && !aRunning.m_sFingerprint.equals (sFingerprint))
+        throw new OutboundIdempotencyKeyReuseException (true,
+                                                        "The idempotency key '" +
+                                                              sKey +
+                                                              "' is currently used for a different request");
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    if (aStored != null)
+    {
+      LOGGER.info ("Returning the stored result for idempotency key '" + sKey + "'");
+      return aStored;
+    }
+
+    if (aRunning != null)
+    {
+      LOGGER.info ("Waiting for the running sending operation with idempotency key '" + sKey + "'");
+      try
+      {
+        final Outcome aOutcome = aRunning.m_aFuture.join ();
+        return new Result (aOutcome.getResultJson (), aOutcome.getRetryJobID (), true);
+      }
+      catch (final CompletionException ex)
+      {
+        if (ex.getCause () instanceof RuntimeException)
+          throw (RuntimeException) ex.getCause ();
+        throw ex;
+      }
+    }
+
+    final Outcome aOutcome;
+    try
+    {
+      aOutcome = aSender.get ();
+    }
+    catch (final RuntimeException ex)
+    {
+      // Nothing to remember - the next request may try again
+      m_aLock.locked ( () -> m_aInFlight.remove (sKey));
+      aOwn.m_aFuture.completeExceptionally (ex);
+      throw ex;
+    }
+
+    final String sResultJson = aOutcome.getResultJson ();
+    // With a retry job, the job is responsible for sending - a repeated request must not send again
+    if (aOutcome.isFinal () || aOutcome.getRetryJobID () != null)
+      try
+      {
+        _append (sKey, sFingerprint, nNow, aOutcome);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to store the result for idempotency key '" + sKey + "'", ex);
+      }
+    else
+      LOGGER.info ("Not remembering the temporary error for idempotency key '" + sKey + "'");
+
+    // Remove after the result is in the index, so that no request sends in between
+    m_aLock.locked ( () -> {
+      m_aInFlight.remove (sKey);
+      _evictOutdated (m_aClock.getAsLong ());
+    });
+    aOwn.m_aFuture.complete (aOutcome);
+    return new Result (sResultJson, aOutcome.getRetryJobID (), false);
+  }
+
+  /**
+   * Forget all entries that are outside of the time window and compact the log. Called regularly.
+   */
+  public void deleteOutdatedEntries ()
+  {
+    m_aAppendLock.locked ( () -> {
+      final Map <String, IndexEntry> aEntries = m_aLock.lockedGet ( () -> {
+        _evictOutdated (m_aClock.getAsLong ());
+        return new LinkedHashMap <> (m_aIndex);
+      });
+      if (m_nLogEntries > aEntries.size ())
+        try
+        {
+          _compact (aEntries);
+          LOGGER.info ("Compacted '" + m_aFile.getAbsolutePath () + "' to " + m_nLogEntries + " entries");
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to compact '" + m_aFile.getAbsolutePath () + "'", ex);
+        }
+    });
+  }
+
+  /**
+   * Create the application wide instance, if idempotency is enabled in the configuration. Must be
+   * called once upon application startup.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isOutboundIdempotencyEnabled ())
+    {
+      LOGGER.info ("Idempotent sending is disabled");
+      return;
+    }
+
+    final File aFile = new File (AS4Configuration.getDataPath (), "outbound-idempotency.log").getAbsoluteFile ();
+    final OutboundIdempotencyStore aStore = new OutboundIdempotencyStore (aFile,
+                                                                          APConfig.getOutboundIdempotencyWindowHours () *
+                                                                                 3_600_000L,
+                                                                          APConfig.getOutboundIdempotencyMaxEntries (),
+                                                                          System::currentTimeMillis);
+    try
+    {
+      aStore.open ();
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException ("Failed to read the idempotency log " + aFile.getAbsolutePath (), ex);
+    }
+
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The idempotency store is already initialized");
+      s_aInstance = aStore;
+    });
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if idempotency is disabled.
+   */
+  @Nullable
+  public static OutboundIdempotencyStore getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Close the log. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final OutboundIdempotencyStore aStore = RW_LOCK.writeLockedGet ( () -> {
+      final OutboundIdempotencyStore ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aStore != null)
+      aStore.close ();
+  }
+
+  /**
+   * Close the log. Afterwards the store cannot be used anymore.
+   */
+  void close ()
+  {
+    m_aAppendLock.locked ( () -> m_aLock.locked ( () -> {
+      try
+      {
+        m_aLog.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to close the idempotency log", ex);
+      }
+    }));
+  }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.UUID;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringParser;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroElement;
+import com.helger.xml.microdom.util.MicroHelper;
+
+/**
+ * The persistent description of a single queued outbound sending job. The payload itself is stored
+ * separately.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class OutboundJob
+{
+  /**
+   * The different kind of outbound jobs
+   *
+   * @author Philip Helger
+   */
+  public enum EType
+  {
+    /** The payload is a business document and the SBDH is created */
+    AS4 ("as4"),
+    /** The payload is a complete SBDH */
+    SBDH ("sbdh");
+
+    private final String m_sID;
+
+    EType (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    @Nullable
+    public static EType getFromIDOrNull (@Nullable final String sID)
+    {
+      for (final EType e : values ())
+        if (e.m_sID.equals (sID))
+          return e;
+      return null;
+    }
+  }
+
+  private static final String ELEMENT_JOB = "job";
+  private static final String ATTR_ID = "id";
+  private static final String ATTR_TYPE = "type";
+  private static final String ATTR_CREATED = "created";
+  private static final String ATTR_SENDER = "sender";
+  private static final String ATTR_RECEIVER = "receiver";
+  private static final String ATTR_DOCTYPE = "doctype";
+  private static final String ATTR_PROCESS = "process";
+  private static final String ATTR_COUNTRYC1 = "countryc1";
+  private static final String ATTR_SBDH_INSTANCE_ID = "sbdhinstanceid";
+  private static final String ATTR_ATTEMPTS = "attempts";
+  private static final String ATTR_NEXT_ATTEMPT = "nextattempt";
+  private static final String ELEMENT_LAST_ERROR = "lasterror";
+
+  private final String m_sJobID;
+  private final EType m_eType;
+  private final long m_nCreationMillis;
+  private final String m_sSenderID;
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+  private final String m_sCountryC1;
+  private final String m_sSBDHInstanceID;
+  private final int m_nAttempts;
+  private final long m_nNextAttemptMillis;
+  private final String m_sLastError;
+
+  private OutboundJob (@Nonnull @Nonempty final String sJobID,
+                       @Nonnull final EType eType,
+                       final long nCreationMillis,
+                       @Nullable final String sSenderID,
+                       @Nullable final String sReceiverID,
+                       @Nullable final String sDocTypeID,
+                       @Nullable final String sProcessID,
+                       @Nullable final String sCountryC1,
+                       @Nullable final String sSBDHInstanceID,
+                       @Nonnegative final int nAttempts,
+                       final long nNextAttemptMillis,
+                       @Nullable final String sLastError)
+  {
+    m_sJobID = sJobID;
+    m_eType = eType;
+    m_nCreationMillis = nCreationMillis;
+    m_sSenderID = sSenderID;
+    m_sReceiverID = sReceiverID;
+    m_sDocTypeID = sDocTypeID;
+    m_sProcessID = sProcessID;
+    m_sCountryC1 = sCountryC1;
+    m_sSBDHInstanceID = sSBDHInstanceID;
+    m_nAttempts = nAttempts;
+    m_nNextAttemptMillis = nNextAttemptMillis;
+    m_sLastError = sLastError;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getJobID ()
+  {
+    return m_sJobID;
+  }
+
+  @Nonnull
+  public EType getType ()
+  {
+    return m_eType;
+  }
+
+  public long getCreationMillis ()
+  {
+    return m_nCreationMillis;
+  }
+
+  /**
+   * @return The sender participant ID. Only present for {@link EType#AS4}.
+   */
+  @Nullable
+  public String getSenderID ()
+  {
+    return m_sSenderID;
+  }
+
+  /**
+   * @return The receiver participant ID. Only present for {@link EType#AS4}.
+   */
+  @Nullable
+  public String getReceiverID ()
+  {
+    return m_sReceiverID;
+  }
+
+  /**
+   * @return The document type ID. Only present for {@link EType#AS4}.
+   */
+  @Nullable
+  public String getDocTypeID ()
+  {
+    return m_sDocTypeID;
+  }
+
+  /**
+   * @return The process ID. Only present for {@link EType#AS4}.
+   */
+  @Nullable
+  public String getProcessID ()
+  {
+    return m_sProcessID;
+  }
+
+  /**
+   * @return The country code of C1. Only present for {@link EType#AS4}.
+   */
+  @Nullable
+  public String getCountryC1 ()
+  {
+    return m_sCountryC1;
+  }
+
+  /**
+   * @return The SBDH instance identifier to be used for all sending attempts. Only present for
+   *         {@link EType#AS4}, as for {@link EType#SBDH} it is part of the payload.
+   */
+  @Nullable
+  public String getSBDHInstanceID ()
+  {
+    return m_sSBDHInstanceID;
+  }
+
+  /**
+   * @return The number of failed sending attempts so far. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getAttempts ()
+  {
+    return m_nAttempts;
+  }
+
+  /**
+   * @return The earliest time for the next sending attempt in milliseconds since the epoch. 0 for
+   *         as soon as possible.
+   */
+  public long getNextAttemptMillis ()
+  {
+    return m_nNextAttemptMillis;
+  }
+
+  /**
+   * @return The error message of the last failed sending attempt. May be <code>null</code>.
+   */
+  @Nullable
+  public String getLastError ()
+  {
+    return m_sLastError;
+  }
+
+  /**
+   * Get a copy of this job with one more failed attempt.
+   *
+   * @param nNextAttemptMillis
+   *        The earliest time for the next attempt
+   * @param sLastError
+   *        The error message of the failed attempt. May be <code>null</code>.
+   * @return The new job and never <code>null</code>.
+   */
+  @Nonnull
+  public OutboundJob getWithFailedAttempt (final long nNextAttemptMillis, @Nullable final String sLastError)
+  {
+    return new OutboundJob (m_sJobID,
+                            m_eType,
+                            m_nCreationMillis,
+                            m_sSenderID,
+                            m_sReceiverID,
+                            m_sDocTypeID,
+                            m_sProcessID,
+                            m_sCountryC1,
+                            m_sSBDHInstanceID,
+                            m_nAttempts + 1,
+                            nNextAttemptMillis,
+                            sLastError);
+  }
+
+  /**
+   * @return A copy of this job with the attempts reset, so that it is send again as soon as
+   *         possible. Used for replaying dead letters.
+   */
+  @Nonnull
+  public OutboundJob getWithAttemptsReset ()
+  {
+    return new OutboundJob (m_sJobID,
+                            m_eType,
+                            m_nCreationMillis,
+                            m_sSenderID,
+                            m_sReceiverID,
+                            m_sDocTypeID,
+                            m_sProcessID,
+                            m_sCountryC1,
+                            m_sSBDHInstanceID,
+                            0,
+                            0,
+                            null);
+  }
+
+  @Nonnull
+  public IMicroElement getAsMicroElement ()
+  {
+    final IMicroElement ret = new MicroElement (ELEMENT_JOB);
+    ret.setAttribute (ATTR_ID, m_sJobID);
+    ret.setAttribute (ATTR_TYPE, m_eType.getID ());
+    ret.setAttribute (ATTR_CREATED, Long.toString (m_nCreationMillis));
+    ret.setAttribute (ATTR_SENDER, m_sSenderID);
+    ret.setAttribute (ATTR_RECEIVER, m_sReceiverID);
+    ret.setAttribute (ATTR_DOCTYPE, m_sDocTypeID);
+    ret.setAttribute (ATTR_PROCESS, m_sProcessID);
+    ret.setAttribute (ATTR_COUNTRYC1, m_sCountryC1);
+    ret.setAttribute (ATTR_SBDH_INSTANCE_ID, m_sSBDHInstanceID);
+    ret.setAttribute (ATTR_ATTEMPTS, Integer.toString (m_nAttempts));
+    ret.setAttribute (ATTR_NEXT_ATTEMPT, Long.toString (m_nNextAttemptMillis));
+    if (m_sLastError != null)
+      ret.appendElement (ELEMENT_LAST_ERROR).appendText (m_sLastError);
+    return ret;
+  }
+
+  @Nullable
+  public static OutboundJob createFromMicroElement (@Nullable final IMicroElement aElement)
+  {
+    if (aElement == null || !ELEMENT_JOB.equals (aElement.getTagName ()))
+      return null;
+
+    final String sJobID = aElement.getAttributeValue (ATTR_ID);
+    final EType eType = EType.getFromIDOrNull (aElement.getAttributeValue (ATTR_TYPE));
+    if (sJobID == null || eType == null)
+      return null;
+
+    return new OutboundJob (sJobID,
+                            eType,
+                            StringParser.parseLong (aElement.getAttributeValue (ATTR_CREATED), 0),
+                            aElement.getAttributeValue (ATTR_SENDER),
+                            aElement.getAttributeValue (ATTR_RECEIVER),
+                            aElement.getAttributeValue (ATTR_DOCTYPE),
+                            aElement.getAttributeValue (ATTR_PROCESS),
+                            aElement.getAttributeValue (ATTR_COUNTRYC1),
+                            aElement.getAttributeValue (ATTR_SBDH_INSTANCE_ID),
+                            StringParser.parseInt (aElement.getAttributeValue (ATTR_ATTEMPTS), 0),
+                            StringParser.parseLong (aElement.getAttributeValue (ATTR_NEXT_ATTEMPT), 0),
+                            MicroHelper.getChildTextContent (aElement, ELEMENT_LAST_ERROR));
+  }
+
+  @Nonnull
+  private static String _createJobID ()
+  {
+    return UUID.randomUUID ().toString ();
+  }
+
+  /**
+   * Create a new job for a business document, where the SBDH is created when sending.
+   *
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryC1
+   *        The Country Code of the sender (C1)
+   * @param sSBDHInstanceID
+   *        The SBDH instance identifier to use. If <code>null</code> a new one is created.
+   * @return The new job and never <code>null</code>.
+   */
+  @Nonnull
+  public static OutboundJob createAS4 (@Nonnull @Nonempty final String sSenderID,
+                                       @Nonnull @Nonempty final String sReceiverID,
+                                       @Nonnull @Nonempty final String sDocTypeID,
+                                       @Nonnull @Nonempty final String sProcessID,
+                                       @Nonnull @Nonempty final String sCountryC1,
+                                       @Nullable final String sSBDHInstanceID)
+  {
+    return new OutboundJob (_createJobID (),
+                            EType.AS4,
+                            System.currentTimeMillis (),
+                            sSenderID,
+                            sReceiverID,
+                            sDocTypeID,
+                            sProcessID,
+                            sCountryC1,
+                            sSBDHInstanceID != null ? sSBDHInstanceID : UUID.randomUUID ().toString (),
+                            0,
+                            0,
+                            null);
+  }
+
+  @Nonnull
+  public static OutboundJob createSBDH ()
+  {
+    return createSBDH (null);
+  }
+
+  /**
+   * Create a new job for a complete SBDH.
+   *
+   * @param aHeader
+   *        The already read SBDH header. If present, the routing information is remembered in the
+   *        job. May be <code>null</code>.
+   * @return The new job and never <code>null</code>.
+   */
+  @Nonnull
+  public static OutboundJob createSBDH (@Nullable final SBDHHeaderReader.SBDHHeader aHeader)
+  {
+    return new OutboundJob (_createJobID (),
+                            EType.SBDH,
+                            System.currentTimeMillis (),
+                            aHeader == null ? null : aHeader.getSenderAsIdentifier ().getURIEncoded (),
+                            aHeader == null ? null : aHeader.getReceiverAsIdentifier ().getURIEncoded (),
+                            aHeader == null ? null : aHeader.getDocumentTypeAsIdentifier ().getURIEncoded (),
+                            aHeader == null ? null : aHeader.getProcessAsIdentifier ().getURIEncoded (),
+                            aHeader == null ? null : aHeader.getCountryC1 (),
+                            aHeader == null ? null : aHeader.getInstanceIdentifier (),
+                            0,
+                            0,
+                            null);
+  }
+}
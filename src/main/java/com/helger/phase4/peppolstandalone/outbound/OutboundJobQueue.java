@@ -0,0 +1,715 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToLongFunction;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.resource.FileSystemResource;
+import com.helger.commons.state.ESuccess;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.peppol.security.PeppolTrustedCA;
+import com.helger.peppol.servicedomain.EPeppolNetwork;
+import com.helger.peppol.sml.ESML;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppFileHelper;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+import com.helger.phase4.peppolstandalone.controller.PeppolSender;
+import com.helger.phase4.peppolstandalone.controller.PeppolSendingReportExtension;
+import com.helger.security.certificate.TrustedCAChecker;
+import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.MicroDocument;
+import com.helger.xml.microdom.serialize.MicroReader;
+import com.helger.xml.microdom.serialize.MicroWriter;
+
+/**
+ * A durable queue for asynchronous outbound sending. Each job consists of three files in the
+ * directory <code>outbound-jobs</code> below the data path:
+ * <ul>
+ * <li><code>{id}.payload</code> - the payload to be send. Deleted after sending.</li>
+ * <li><code>{id}.job.xml</code> - the job description. Written after the payload, so its presence
+ * marks a complete job.</li>
+ * <li><code>{id}.report.json</code> - the JSON sending report. Its presence marks a finished
+ * job.</li>
+ * </ul>
+ * Jobs that were not finished when the application was stopped, are resumed on the next startup. A
+ * job that was interrupted during sending may therefore be send twice.<br>
+ * Jobs that failed with a retryable error (see {@link OutboundRetryPolicy}) are send again after an
+ * increasing delay. The number of attempts and the time of the next attempt are stored in the job
+ * file, so that this survives a restart. When all attempts failed, the payload and the job are moved
+ * to the directory <code>outbound-deadletter</code> from where they can be replayed manually.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundJobQueue
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundJobQueue.class);
+  private static final String FILE_EXT_JOB = ".job.xml";
+  private static final String FILE_EXT_PAYLOAD = ".payload";
+  private static final String FILE_EXT_REPORT = ".report.json";
+  private static final Pattern JOB_ID_PATTERN = Pattern.compile ("[0-9a-f\\-]{36}");
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static OutboundJobQueue s_aInstance;
+
+  /**
+   * The status of a single job
+   *
+   * @author Philip Helger
+   */
+  public enum EJobStatus
+  {
+    QUEUED ("queued"),
+    RUNNING ("running"),
+    RETRY_SCHEDULED ("retrying"),
+    DONE ("done");
+
+    private final String m_sID;
+
+    EJobStatus (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  /**
+   * Sends the payload of a single job.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  interface IJobSender
+  {
+    /**
+     * @param aJob
+     *        The job to send. Never <code>null</code>.
+     * @param aPayload
+     *        The payload of the job. Never <code>null</code>.
+     * @param aReportExt
+     *        The sending report extension to be filled. Never <code>null</code>.
+     * @return The sending report. Never <code>null</code>.
+     */
+    @Nonnull
+    Phase4PeppolSendingReport send (@Nonnull OutboundJob aJob,
+                                    @Nonnull IHasInputStream aPayload,
+                                    @Nonnull PeppolSendingReportExtension aReportExt);
+  }
+
+  private final File m_aBaseDir;
+  private final File m_aDeadLetterDir;
+  private final int m_nMaxAttempts;
+  private final IntToLongFunction m_aRetryDelayMillis;
+  private final IJobSender m_aSender;
+  private final ExecutorService m_aExecutor;
+  private final ScheduledExecutorService m_aRetryScheduler;
+  private final Set <String> m_aRunningJobIDs = ConcurrentHashMap.newKeySet ();
+
+  OutboundJobQueue (@Nonnull final File aBaseDir,
+                    @Nonnull final File aDeadLetterDir,
+                    @Nonnegative final int nWorkers,
+                    @Nonnegative final int nMaxAttempts,
+                    @Nonnull final IntToLongFunction aRetryDelayMillis,
+                    @Nonnull final IJobSender aSender)
+  {
+    m_aBaseDir = aBaseDir;
+    m_aDeadLetterDir = aDeadLetterDir;
+    m_nMaxAttempts = nMaxAttempts;
+    m_aRetryDelayMillis = aRetryDelayMillis;
+    m_aSender = aSender;
+    m_aExecutor = Executors.newFixedThreadPool (nWorkers, new AppThreadFactory ("phase4-outbound-job"));
+    // Only hands over due jobs to the executor
+    m_aRetryScheduler = Executors.newSingleThreadScheduledExecutor (new AppThreadFactory ("phase4-outbound-retry"));
+  }
+
+  /**
+   * Initialize the queue and resume all unfinished jobs. Must be called once upon startup.
+   */
+  public static void init ()
+  {
+    final File aBaseDir = new File (AS4Configuration.getDataPath (), "outbound-jobs").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+    final File aDeadLetterDir = new File (AS4Configuration.getDataPath (), "outbound-deadletter").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aDeadLetterDir);
+
+    final OutboundJobQueue aQueue = new OutboundJobQueue (aBaseDir,
+                                                          aDeadLetterDir,
+                                                          APConfig.getOutboundJobWorkerCount (),
+                                                          APConfig.getOutboundRetryMaxAttempts (),
+                                                          OutboundRetryPolicy::getRetryDelayMillis,
+                                                          OutboundJobQueue::_sendViaPeppol);
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The outbound job queue is already initialized");
+      s_aInstance = aQueue;
+    });
+    aQueue.deleteOutdatedJobs ();
+    aQueue.open ();
+  }
+
+  /**
+   * @return The global instance. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If {@link #init()} was not called
+   */
+  @Nonnull
+  public static OutboundJobQueue getInstance ()
+  {
+    final OutboundJobQueue ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+      throw new IllegalStateException ("The outbound job queue is not initialized");
+    return ret;
+  }
+
+  /**
+   * Stop processing. Jobs that are not yet finished, stay on disk and are resumed on the next
+   * startup.
+   */
+  public static void shutdown ()
+  {
+    final OutboundJobQueue aQueue = RW_LOCK.writeLockedGet ( () -> {
+      final OutboundJobQueue ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aQueue != null)
+    {
+      aQueue.close ();
+      LOGGER.info ("Stopped the outbound job queue");
+    }
+  }
+
+  /**
+   * Resume all unfinished jobs. Must be called once before jobs are submitted.
+   */
+  void open ()
+  {
+    _resumeUnfinishedJobs ();
+  }
+
+  void close ()
+  {
+    // Scheduled retries are read from disk again upon restart
+    m_aRetryScheduler.shutdownNow ();
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+        m_aExecutor.shutdownNow ();
+    }
+    catch (final InterruptedException ex)
+    {
+      m_aExecutor.shutdownNow ();
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  public static boolean isValidJobID (@Nullable final String sJobID)
+  {
+    return sJobID != null && JOB_ID_PATTERN.matcher (sJobID).matches ();
+  }
+
+  @Nonnull
+  private File _getJobFile (@Nonnull final String sJobID)
+  {
+    return new File (m_aBaseDir, sJobID + FILE_EXT_JOB);
+  }
+
+  @Nonnull
+  private File _getPayloadFile (@Nonnull final String sJobID)
+  {
+    return new File (m_aBaseDir, sJobID + FILE_EXT_PAYLOAD);
+  }
+
+  @Nonnull
+  private File _getReportFile (@Nonnull final String sJobID)
+  {
+    return new File (m_aBaseDir, sJobID + FILE_EXT_REPORT);
+  }
+
+  @Nonnull
+  private File _getDeadLetterJobFile (@Nonnull final String sJobID)
+  {
+    return new File (m_aDeadLetterDir, sJobID + FILE_EXT_JOB);
+  }
+
+  @Nonnull
+  private File _getDeadLetterPayloadFile (@Nonnull final String sJobID)
+  {
+    return new File (m_aDeadLetterDir, sJobID + FILE_EXT_PAYLOAD);
+  }
+
+  @Nullable
+  private OutboundJob _readJob (@Nonnull final File aJobFile)
+  {
+    final IMicroDocument aDoc = MicroReader.readMicroXML (aJobFile);
+    return aDoc == null ? null : OutboundJob.createFromMicroElement (aDoc.getDocumentElement ());
+  }
+
+  private static void _writeJob (@Nonnull final OutboundJob aJob, @Nonnull final File aJobFile) throws IOException
+  {
+    final IMicroDocument aDoc = new MicroDocument ();
+    aDoc.appendChild (aJob.getAsMicroElement ());
+    AppFileHelper.writeFileDurable (aJobFile, MicroWriter.getNodeAsString (aDoc).getBytes (StandardCharsets.UTF_8));
+  }
+
+  private void _writeJob (@Nonnull final OutboundJob aJob) throws IOException
+  {
+    _writeJob (aJob, _getJobFile (aJob.getJobID ()));
+  }
+
+  private void _writeReport (@Nonnull final String sJobID, @Nonnull final String sReportJson) throws IOException
+  {
+    AppFileHelper.writeFileDurable (_getReportFile (sJobID), sReportJson.getBytes (StandardCharsets.UTF_8));
+  }
+
+  private void _resumeUnfinishedJobs ()
+  {
+    int nResumed = 0;
+    final File [] aJobFiles = m_aBaseDir.listFiles ( (d, n) -> n.endsWith (FILE_EXT_JOB));
+    if (aJobFiles != null)
+      for (final File aJobFile : aJobFiles)
+      {
+        final OutboundJob aJob = _readJob (aJobFile);
+        if (aJob == null)
+          LOGGER.error ("Failed to read outbound job file " + aJobFile.getAbsolutePath ());
+        else
+          if (!_getReportFile (aJob.getJobID ()).exists ())
+          {
+            _enqueue (aJob);
+            nResumed++;
+          }
+      }
+    LOGGER.info ("Outbound job queue in '" +
+                 m_aBaseDir.getAbsolutePath () +
+                 "' resumed " +
+                 nResumed +
+                 " unfinished jobs");
+  }
+
+  /**
+   * Delete all finished jobs that are older than the configured retention period.
+   *
+   * @return The number of deleted jobs. Always &ge; 0.
+   */
+  @Nonnegative
+  public int deleteOutdatedJobs ()
+  {
+    final long nRetentionMillis = TimeUnit.DAYS.toMillis (APConfig.getOutboundJobRetentionDays ());
+    final long nNow = System.currentTimeMillis ();
+    int nDeleted = 0;
+    final File [] aJobFiles = m_aBaseDir.listFiles ( (d, n) -> n.endsWith (FILE_EXT_JOB));
+    if (aJobFiles != null)
+      for (final File aJobFile : aJobFiles)
+      {
+        final OutboundJob aJob = _readJob (aJobFile);
+        if (aJob != null && nNow - aJob.getCreationMillis () > nRetentionMillis)
+        {
+          final File aReportFile = _getReportFile (aJob.getJobID ());
+          // Only finished jobs are deleted
+          if (aReportFile.exists ())
+          {
+            FileOperationManager.INSTANCE.deleteFileIfExisting (aReportFile);
+            FileOperationManager.INSTANCE.deleteFileIfExisting (aJobFile);
+            nDeleted++;
+          }
+        }
+      }
+    if (nDeleted > 0)
+      LOGGER.info ("Deleted " + nDeleted + " outdated outbound jobs");
+    return nDeleted;
+  }
+
+  private void _enqueue (@Nonnull final OutboundJob aJob)
+  {
+    final long nDelayMillis = aJob.getNextAttemptMillis () - System.currentTimeMillis ();
+    if (nDelayMillis > 0)
+      m_aRetryScheduler.schedule ( () -> m_aExecutor.execute ( () -> _process (aJob)),
+                                  nDelayMillis,
+                                  TimeUnit.MILLISECONDS);
+    else
+      m_aExecutor.execute ( () -> _process (aJob));
+  }
+
+  private void _moveToDeadLetter (@Nonnull final OutboundJob aJob) throws IOException
+  {
+    final String sJobID = aJob.getJobID ();
+    Files.move (_getPayloadFile (sJobID).toPath (),
+                _getDeadLetterPayloadFile (sJobID).toPath (),
+                StandardCopyOption.REPLACE_EXISTING);
+    _writeJob (aJob, _getDeadLetterJobFile (sJobID));
+    LOGGER.warn ("Moved outbound job '" + sJobID + "' to the dead letters after " + aJob.getAttempts () + " attempts");
+  }
+
+  @Nonnull
+  private static Phase4PeppolSendingReport _sendViaPeppol (@Nonnull final OutboundJob aJob,
+                                                           @Nonnull final IHasInputStream aPayload,
+                                                           @Nonnull final PeppolSendingReportExtension aReportExt)
+  {
+    final EPeppolNetwork eStage = APConfig.getPeppolStage ();
+    final ESML eSML = eStage.isProduction () ? ESML.DIGIT_PRODUCTION : ESML.DIGIT_TEST;
+    final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP ()
+                                                          : PeppolTrustedCA.peppolTestAP ();
+    if (aJob.getType () == OutboundJob.EType.SBDH)
+      return PeppolSender.sendPeppolMessagePredefinedSbdh (eSML, aAPCA, aPayload, aReportExt);
+    return PeppolSender.sendPeppolMessageCreatingSbdh (eSML,
+                                                       aAPCA,
+                                                       aPayload,
+                                                       aJob.getSenderID (),
+                                                       aJob.getReceiverID (),
+                                                       aJob.getDocTypeID (),
+                                                       aJob.getProcessID (),
+                                                       aJob.getCountryC1 (),
+                                                       aJob.getSBDHInstanceID (),
+                                                       aReportExt);
+  }
+
+  private void _process (@Nonnull final OutboundJob aJob)
+  {
+    final String sJobID = aJob.getJobID ();
+    m_aRunningJobIDs.add (sJobID);
+    try
+    {
+      final PeppolSendingReportExtension aReportExt = new PeppolSendingReportExtension ();
+      aReportExt.add ("jobId", sJobID);
+      aReportExt.add ("attempt", Integer.valueOf (aJob.getAttempts () + 1));
+
+      final File aPayloadFile = _getPayloadFile (sJobID);
+      if (!aPayloadFile.isFile ())
+      {
+        LOGGER.error ("The payload of outbound job '" + sJobID + "' is missing");
+        final IJsonObject aJson = new JsonObject ();
+        aJson.add ("jobId", sJobID);
+        aJson.add ("overallSuccess", false);
+        aJson.add ("error", "The payload of the job is missing");
+        _writeReport (sJobID, aJson.getAsJsonString ());
+        return;
+      }
+
+      LOGGER.info ("Processing outbound job '" +
+                   sJobID +
+                   "' of type " +
+                   aJob.getType () +
+                   " (attempt " +
+                   (aJob.getAttempts () + 1) +
+                   ")");
+
+      // Streamed from disk
+      final Phase4PeppolSendingReport aSendingReport = m_aSender.send (aJob,
+                                                                       new FileSystemResource (aPayloadFile),
+                                                                       aReportExt);
+
+      if (aReportExt.isRetryable ())
+      {
+        final int nAttempts = aJob.getAttempts () + 1;
+        final OutboundJob aFailedJob = aJob.getWithFailedAttempt (System.currentTimeMillis () +
+                                                                  m_aRetryDelayMillis.applyAsLong (nAttempts),
+                                                                  aReportExt.getErrorMessage ());
+        if (nAttempts < m_nMaxAttempts)
+        {
+          // Persist first, so that the retry survives a restart
+          _writeJob (aFailedJob);
+          _enqueue (aFailedJob);
+          LOGGER.info ("Outbound job '" +
+                       sJobID +
+                       "' failed with a retryable error - next attempt at " +
+                       Instant.ofEpochMilli (aFailedJob.getNextAttemptMillis ()));
+          return;
+        }
+
+        aReportExt.add ("deadLetter", Boolean.TRUE);
+        _moveToDeadLetter (aFailedJob);
+      }
+
+      _writeReport (sJobID, aReportExt.getAsJsonString (aSendingReport));
+
+      // Payload is no longer needed
+      FileOperationManager.INSTANCE.deleteFileIfExisting (_getPayloadFile (sJobID));
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to persist the result of outbound job '" + sJobID + "'", ex);
+    }
+    finally
+    {
+      m_aRunningJobIDs.remove (sJobID);
+    }
+  }
+
+  @Nonnull
+  private String _submit (@Nonnull final OutboundJob aJob, @Nonnull final IHasInputStream aPayload) throws IOException
+  {
+    final String sJobID = aJob.getJobID ();
+    // Payload first, the job file marks the job as complete
+    AppFileHelper.writeFileDurable (_getPayloadFile (sJobID), aPayload);
+    _writeJob (aJob);
+    _enqueue (aJob);
+    LOGGER.info ("Queued outbound job '" + sJobID + "' of type " + aJob.getType ());
+    return sJobID;
+  }
+
+  /**
+   * Queue a business document for sending, where the SBDH is created internally.
+   *
+   * @param aPayload
+   *        The business document. May not be <code>null</code>.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryC1
+   *        The Country Code of the sender (C1)
+   * @return The ID of the created job. Never <code>null</code>.
+   * @throws IOException
+   *         If the job could not be persisted
+   */
+  @Nonnull
+  @Nonempty
+  public String submitAS4 (@Nonnull final IHasInputStream aPayload,
+                           @Nonnull @Nonempty final String sSenderID,
+                           @Nonnull @Nonempty final String sReceiverID,
+                           @Nonnull @Nonempty final String sDocTypeID,
+                           @Nonnull @Nonempty final String sProcessID,
+                           @Nonnull @Nonempty final String sCountryC1) throws IOException
+  {
+    return _submit (OutboundJob.createAS4 (sSenderID, sReceiverID, sDocTypeID, sProcessID, sCountryC1, null),
+                    aPayload);
+  }
+
+  /**
+   * Queue a complete SBDH for sending.
+   *
+   * @param aSBDH
+   *        The SBDH. May not be <code>null</code>.
+   * @param aHeader
+   *        The already read SBDH header. May be <code>null</code>.
+   * @return The ID of the created job. Never <code>null</code>.
+   * @throws IOException
+   *         If the job could not be persisted
+   */
+  @Nonnull
+  @Nonempty
+  public String submitSBDH (@Nonnull final IHasInputStream aSBDH,
+                            @Nullable final SBDHHeaderReader.SBDHHeader aHeader) throws IOException
+  {
+    return _submit (OutboundJob.createSBDH (aHeader), aSBDH);
+  }
+
+  /**
+   * Get the status of a job.
+   *
+   * @param sJobID
+   *        The job ID to check. May be <code>null</code>.
+   * @return <code>null</code> if no such job exists.
+   */
+  @Nullable
+  public EJobStatus getJobStatus (@Nullable final String sJobID)
+  {
+    if (!isValidJobID (sJobID))
+      return null;
+    if (_getReportFile (sJobID).exists ())
+      return EJobStatus.DONE;
+    if (m_aRunningJobIDs.contains (sJobID))
+      return EJobStatus.RUNNING;
+    final File aJobFile = _getJobFile (sJobID);
+    if (aJobFile.exists ())
+    {
+      final OutboundJob aJob = _readJob (aJobFile);
+      return aJob != null && aJob.getAttempts () > 0 ? EJobStatus.RETRY_SCHEDULED : EJobStatus.QUEUED;
+    }
+    return null;
+  }
+
+  /**
+   * Get the JSON sending report of a finished job.
+   *
+   * @param sJobID
+   *        The job ID to check. May be <code>null</code>.
+   * @return <code>null</code> if no such job exists or if the job is not yet finished.
+   */
+  @Nullable
+  public String getJobReportJson (@Nullable final String sJobID)
+  {
+    if (!isValidJobID (sJobID))
+      return null;
+    return SimpleFileIO.getFileAsString (_getReportFile (sJobID), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Queue the retry of a synchronous sending that failed with a retryable error, where the SBDH is
+   * created internally.
+   *
+   * @param aPayload
+   *        The business document. May not be <code>null</code>.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryC1
+   *        The Country Code of the sender (C1)
+   * @param sSBDHInstanceID
+   *        The SBDH instance identifier used in the failed attempt. May not be <code>null</code>.
+   * @param sLastError
+   *        The error message of the failed attempt. May be <code>null</code>.
+   * @return The ID of the created job. Never <code>null</code>.
+   * @throws IOException
+   *         If the job could not be persisted
+   */
+  @Nonnull
+  @Nonempty
+  public String submitRetryAS4 (@Nonnull final IHasInputStream aPayload,
+                                @Nonnull @Nonempty final String sSenderID,
+                                @Nonnull @Nonempty final String sReceiverID,
+                                @Nonnull @Nonempty final String sDocTypeID,
+                                @Nonnull @Nonempty final String sProcessID,
+                                @Nonnull @Nonempty final String sCountryC1,
+                                @Nonnull @Nonempty final String sSBDHInstanceID,
+                                @Nullable final String sLastError) throws IOException
+  {
+    final OutboundJob aJob = OutboundJob.createAS4 (sSenderID,
+                                                    sReceiverID,
+                                                    sDocTypeID,
+                                                    sProcessID,
+                                                    sCountryC1,
+                                                    sSBDHInstanceID);
+    return _submit (aJob.getWithFailedAttempt (System.currentTimeMillis () + m_aRetryDelayMillis.applyAsLong (1),
+                                               sLastError),
+                    aPayload);
+  }
+
+  /**
+   * Queue the retry of a synchronous SBDH sending that failed with a retryable error.
+   *
+   * @param aSBDH
+   *        The SBDH. May not be <code>null</code>.
+   * @param sLastError
+   *        The error message of the failed attempt. May be <code>null</code>.
+   * @return The ID of the created job. Never <code>null</code>.
+   * @throws IOException
+   *         If the job could not be persisted
+   */
+  @Nonnull
+  @Nonempty
+  public String submitRetrySBDH (@Nonnull final IHasInputStream aSBDH, @Nullable final String sLastError) throws IOException
+  {
+    return _submit (OutboundJob.createSBDH ()
+                               .getWithFailedAttempt (System.currentTimeMillis () + m_aRetryDelayMillis.applyAsLong (1),
+                                                      sLastError),
+                    aSBDH);
+  }
+
+  /**
+   * @return All jobs for which all sending attempts failed. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <OutboundJob> getAllDeadLetters ()
+  {
+    final ICommonsList <OutboundJob> ret = new CommonsArrayList <> ();
+    final File [] aJobFiles = m_aDeadLetterDir.listFiles ( (d, n) -> n.endsWith (FILE_EXT_JOB));
+    if (aJobFiles != null)
+      for (final File aJobFile : aJobFiles)
+      {
+        final OutboundJob aJob = _readJob (aJobFile);
+        if (aJob != null)
+          ret.add (aJob);
+      }
+    return ret;
+  }
+
+  /**
+   * Send a dead letter again, with the attempts reset. The job keeps its ID and for
+   * {@link OutboundJob.EType#AS4} also its SBDH instance identifier.
+   *
+   * @param sJobID
+   *        The ID of the job to replay. May be <code>null</code>.
+   * @return {@link ESuccess#FAILURE} if no such dead letter exists.
+   * @throws IOException
+   *         If the job could not be moved back
+   */
+  @Nonnull
+  public ESuccess replayDeadLetter (@Nullable final String sJobID) throws IOException
+  {
+    if (!isValidJobID (sJobID))
+      return ESuccess.FAILURE;
+
+    final File aDeadLetterJobFile = _getDeadLetterJobFile (sJobID);
+    final OutboundJob aJob = aDeadLetterJobFile.exists () ? _readJob (aDeadLetterJobFile) : null;
+    if (aJob == null)
+      return ESuccess.FAILURE;
+
+    final OutboundJob aReplayJob = aJob.getWithAttemptsReset ();
+    Files.move (_getDeadLetterPayloadFile (sJobID).toPath (),
+                _getPayloadFile (sJobID).toPath (),
+                StandardCopyOption.REPLACE_EXISTING);
+    _writeJob (aReplayJob);
+    // No longer finished
+    FileOperationManager.INSTANCE.deleteFileIfExisting (_getReportFile (sJobID));
+    FileOperationManager.INSTANCE.deleteFileIfExisting (aDeadLetterJobFile);
+    _enqueue (aReplayJob);
+    LOGGER.info ("Replaying outbound dead letter '" + sJobID + "'");
+    return ESuccess.SUCCESS;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+
+/**
+ * Decides which failed sending attempts are worth a retry and when the next attempt should happen.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class OutboundRetryPolicy
+{
+  private OutboundRetryPolicy ()
+  {}
+
+  /**
+   * Check if a failed sending attempt may succeed when it is retried later. This is the case for
+   * network problems and missing receipts, but not for invalid documents, unknown receivers or error
+   * signals of the receiving AP.
+   *
+   * @param eResult
+   *        The sending result. May be <code>null</code> if sending was not even tried.
+   * @param aException
+   *        The exception that occurred. May be <code>null</code>.
+   * @return <code>true</code> if a retry may succeed.
+   */
+  public static boolean isRetryable (@Nullable final EAS4UserMessageSendResult eResult,
+                                     @Nullable final Exception aException)
+  {
+    if (eResult != null)
+    {
+      if (eResult.isSuccess ())
+        return false;
+      if (eResult == EAS4UserMessageSendResult.TRANSPORT_ERROR ||
+          eResult == EAS4UserMessageSendResult.NO_SIGNAL_MESSAGE_RECEIVED)
+        return true;
+    }
+
+    // The receiving AP is overloaded or known to be unreachable
+    if (aException instanceof OutboundEndpointUnavailableException)
+      return true;
+
+    // E.g. the SMP was not reachable
+    Throwable t = aException;
+    while (t != null)
+    {
+      if (t instanceof IOException)
+        return true;
+      t = t.getCause ();
+    }
+    return false;
+  }
+
+  /**
+   * Get the delay until the next attempt. The delay doubles with every attempt up to the configured
+   * maximum. The result is randomly reduced by up to 50%, so that many messages that failed at the
+   * same time are not all retried at the same time.
+   *
+   * @param nAttempts
+   *        The number of failed attempts so far. Must be &gt; 0.
+   * @return The delay in milliseconds.
+   */
+  @Nonnegative
+  public static long getRetryDelayMillis (@Nonnegative final int nAttempts)
+  {
+    final long nInitialMillis = TimeUnit.SECONDS.toMillis (APConfig.getOutboundRetryInitialDelaySeconds ());
+    final long nMaxMillis = TimeUnit.SECONDS.toMillis (APConfig.getOutboundRetryMaxDelaySeconds ());
+    // Avoid overflow
+    final int nShift = Math.min (Math.max (nAttempts - 1, 0), 30);
+    final long nDelay = Math.min (nMaxMillis, nInitialMillis << nShift);
+    return nDelay / 2 + ThreadLocalRandom.current ().nextLong (nDelay / 2 + 1);
+  }
+}
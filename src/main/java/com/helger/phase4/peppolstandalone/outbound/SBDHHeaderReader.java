@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.peppolid.peppol.PeppolIdentifierHelper;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Reads the routing relevant fields of a Peppol SBDH with StAX. Reading stops at the business
+ * message, so the effort is independent of the size of the payload. This is meant for decisions
+ * that need to be made before sending (like routing or queueing). The complete validation of the
+ * SBDH still happens with the full parsing when the message is send.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SBDHHeaderReader
+{
+  public static final String SBDH_NS = "http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader";
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SBDHHeaderReader.class);
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    final XMLInputFactory aFactory = XMLInputFactory.newFactory ();
+    aFactory.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    // No DTDs and no external entities
+    aFactory.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    aFactory.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    XML_INPUT_FACTORY = aFactory;
+  }
+
+  /**
+   * The routing relevant fields of a Peppol SBDH.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class SBDHHeader
+  {
+    private final IParticipantIdentifier m_aSenderID;
+    private final IParticipantIdentifier m_aReceiverID;
+    private final IDocumentTypeIdentifier m_aDocTypeID;
+    private final IProcessIdentifier m_aProcessID;
+    private final String m_sCountryC1;
+    private final String m_sInstanceIdentifier;
+    private final XmlPayloadInspector.RootElement m_aBusinessMessage;
+
+    SBDHHeader (@Nonnull final IParticipantIdentifier aSenderID,
+                @Nonnull final IParticipantIdentifier aReceiverID,
+                @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                @Nonnull final IProcessIdentifier aProcessID,
+                @Nonnull @Nonempty final String sCountryC1,
+                @Nonnull @Nonempty final String sInstanceIdentifier,
+                @Nonnull final XmlPayloadInspector.RootElement aBusinessMessage)
+    {
+      m_aSenderID = aSenderID;
+      m_aReceiverID = aReceiverID;
+      m_aDocTypeID = aDocTypeID;
+      m_aProcessID = aProcessID;
+      m_sCountryC1 = sCountryC1;
+      m_sInstanceIdentifier = sInstanceIdentifier;
+      m_aBusinessMessage = aBusinessMessage;
+    }
+
+    @Nonnull
+    public IParticipantIdentifier getSenderAsIdentifier ()
+    {
+      return m_aSenderID;
+    }
+
+    @Nonnull
+    public IParticipantIdentifier getReceiverAsIdentifier ()
+    {
+      return m_aReceiverID;
+    }
+
+    @Nonnull
+    public IDocumentTypeIdentifier getDocumentTypeAsIdentifier ()
+    {
+      return m_aDocTypeID;
+    }
+
+    @Nonnull
+    public IProcessIdentifier getProcessAsIdentifier ()
+    {
+      return m_aProcessID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getCountryC1 ()
+    {
+      return m_sCountryC1;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getInstanceIdentifier ()
+    {
+      return m_sInstanceIdentifier;
+    }
+
+    /**
+     * @return The root element of the business message following the header. Never
+     *         <code>null</code>.
+     */
+    @Nonnull
+    public XmlPayloadInspector.RootElement getBusinessMessage ()
+    {
+      return m_aBusinessMessage;
+    }
+
+    /**
+     * Check if the completely parsed SBDH contains the same routing relevant fields as this
+     * header.
+     *
+     * @param aData
+     *        The completely parsed SBDH. May not be <code>null</code>.
+     * @return The name of the first field that differs or <code>null</code> if all fields match.
+     */
+    @Nullable
+    public String getFirstMismatchingField (@Nonnull final PeppolSBDHData aData)
+    {
+      if (!m_aSenderID.hasSameContent (aData.getSenderAsIdentifier ()))
+        return "sender";
+      if (!m_aReceiverID.hasSameContent (aData.getReceiverAsIdentifier ()))
+        return "receiver";
+      if (!m_aDocTypeID.hasSameContent (aData.getDocumentTypeAsIdentifier ()))
+        return "document type";
+      if (!m_aProcessID.hasSameContent (aData.getProcessAsIdentifier ()))
+        return "process";
+      if (!m_sCountryC1.equals (aData.getCountryC1 ()))
+        return "country C1";
+      if (!m_sInstanceIdentifier.equals (aData.getInstanceIdentifier ()))
+        return "instance identifier";
+      return null;
+    }
+  }
+
+  private SBDHHeaderReader ()
+  {}
+
+  @Nullable
+  private static String _getElementTextTrimmed (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    return StringHelper.trim (aReader.getElementText ());
+  }
+
+  /**
+   * Read the header of the provided SBDH. The stream is closed afterwards.
+   *
+   * @param aISP
+   *        The SBDH to read. May not be <code>null</code>.
+   * @return <code>null</code> if the payload is not an SBDH or if a mandatory field is missing or
+   *         invalid. In that case the full parsing provides the details.
+   */
+  @Nullable
+  public static SBDHHeader readHeader (@Nonnull final IHasInputStream aISP)
+  {
+    String sSenderScheme = null;
+    String sSenderValue = null;
+    String sReceiverScheme = null;
+    String sReceiverValue = null;
+    String sInstanceIdentifier = null;
+    String sDocTypeScheme = null;
+    String sDocTypeValue = null;
+    String sProcessScheme = null;
+    String sProcessValue = null;
+    String sCountryC1 = null;
+    XmlPayloadInspector.RootElement aBusinessMessage = null;
+
+    try (final InputStream aIS = aISP.getInputStream ())
+    {
+      if (aIS == null)
+        return null;
+
+      final XMLStreamReader aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      try
+      {
+        int nDepth = 0;
+        String sSection = null;
+        String sScopeType = null;
+        String sScopeInstanceIdentifier = null;
+        String sScopeIdentifier = null;
+        while (aBusinessMessage == null && aReader.hasNext ())
+        {
+          final int nEvent = aReader.next ();
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+          {
+            final String sLocalName = aReader.getLocalName ();
+            switch (nDepth)
+            {
+              case 0:
+                if (!SBDH_NS.equals (aReader.getNamespaceURI ()) || !"StandardBusinessDocument".equals (sLocalName))
+                  return null;
+                break;
+              case 1:
+                if (!"StandardBusinessDocumentHeader".equals (sLocalName))
+                {
+                  // The business message - we're done
+                  final String sNamespaceURI = aReader.getNamespaceURI ();
+                  aBusinessMessage = new XmlPayloadInspector.RootElement (StringHelper.hasText (sNamespaceURI) ? sNamespaceURI
+                                                                                                             : null,
+                                                                          sLocalName);
+                }
+                break;
+              case 2:
+                sSection = sLocalName;
+                break;
+              case 3:
+                if ("Identifier".equals (sLocalName) && "Sender".equals (sSection))
+                {
+                  sSenderScheme = aReader.getAttributeValue (null, "Authority");
+                  sSenderValue = _getElementTextTrimmed (aReader);
+                  // Reader is now on the end element
+                  continue;
+                }
+                if ("Identifier".equals (sLocalName) && "Receiver".equals (sSection))
+                {
+                  sReceiverScheme = aReader.getAttributeValue (null, "Authority");
+                  sReceiverValue = _getElementTextTrimmed (aReader);
+                  continue;
+                }
+                if ("InstanceIdentifier".equals (sLocalName) && "DocumentIdentification".equals (sSection))
+                {
+                  sInstanceIdentifier = _getElementTextTrimmed (aReader);
+                  continue;
+                }
+                if ("Scope".equals (sLocalName))
+                {
+                  sScopeType = null;
+                  sScopeInstanceIdentifier = null;
+                  sScopeIdentifier = null;
+                }
+                break;
+              case 4:
+                if ("Type".equals (sLocalName))
+                {
+                  sScopeType = _getElementTextTrimmed (aReader);
+                  continue;
+                }
+                if ("InstanceIdentifier".equals (sLocalName))
+                {
+                  sScopeInstanceIdentifier = _getElementTextTrimmed (aReader);
+                  continue;
+                }
+                if ("Identifier".equals (sLocalName))
+                {
+                  sScopeIdentifier = _getElementTextTrimmed (aReader);
+                  continue;
+                }
+                break;
+            }
+            nDepth++;
+          }
+          else
+            if (nEvent == XMLStreamConstants.END_ELEMENT)
+            {
+              nDepth--;
+              if (nDepth == 3 && "BusinessScope".equals (sSection) && "Scope".equals (aReader.getLocalName ()))
+              {
+                if ("DOCUMENTID".equals (sScopeType))
+                {
+                  sDocTypeScheme = sScopeIdentifier;
+                  sDocTypeValue = sScopeInstanceIdentifier;
+                }
+                else
+                  if ("PROCESSID".equals (sScopeType))
+                  {
+                    sProcessScheme = sScopeIdentifier;
+                    sProcessValue = sScopeInstanceIdentifier;
+                  }
+                  else
+                    if ("COUNTRY_C1".equals (sScopeType))
+                      sCountryC1 = sScopeInstanceIdentifier;
+              }
+            }
+        }
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException | IOException ex)
+    {
+      LOGGER.warn ("Failed to read the SBDH header: " + ex.getMessage ());
+      return null;
+    }
+
+    if (aBusinessMessage == null || StringHelper.hasNoText (sInstanceIdentifier) || StringHelper.hasNoText (sCountryC1))
+      return null;
+
+    // The scope identifiers are optional and have Peppol defaults
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final IParticipantIdentifier aSenderID = aIF.createParticipantIdentifier (sSenderScheme, sSenderValue);
+    final IParticipantIdentifier aReceiverID = aIF.createParticipantIdentifier (sReceiverScheme, sReceiverValue);
+    final IDocumentTypeIdentifier aDocTypeID = aIF.createDocumentTypeIdentifier (StringHelper.hasText (sDocTypeScheme) ? sDocTypeScheme
+                                                                                                                     : PeppolIdentifierHelper.DOCUMENT_TYPE_SCHEME_BUSDOX_DOCID_QNS,
+                                                                               sDocTypeValue);
+    final IProcessIdentifier aProcessID = aIF.createProcessIdentifier (StringHelper.hasText (sProcessScheme) ? sProcessScheme
+                                                                                                             : PeppolIdentifierHelper.PROCESS_SCHEME_CENBII_PROCID_UBL,
+                                                                     sProcessValue);
+    if (aSenderID == null || aReceiverID == null || aDocTypeID == null || aProcessID == null)
+      return null;
+
+    return new SBDHHeader (aSenderID,
+                           aReceiverID,
+                           aDocTypeID,
+                           aProcessID,
+                           sCountryC1,
+                           sInstanceIdentifier,
+                           aBusinessMessage);
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * Creates a Peppol SBDH around a business document, without parsing the business document. The
+ * header is written with StAX and the bytes of the business document are copied behind it, with
+ * only the XML declaration removed. This way no DOM of a potentially large business document is
+ * needed for sending.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SBDHWriter
+{
+  /** The type version used, if the document type identifier does not contain one */
+  public static final String DEFAULT_TYPE_VERSION = "2.1";
+
+  private static final String PREFIX = "sh";
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newFactory ();
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte [] XML_DECL_START = "<?xml".getBytes (StandardCharsets.US_ASCII);
+  private static final int MAX_PROLOG_BYTES = 1024;
+  private static final Pattern ENCODING_PATTERN = Pattern.compile ("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+  private SBDHWriter ()
+  {}
+
+  /**
+   * Get the SBDH type version from a Peppol document type identifier, which ends with
+   * <code>::version</code>.
+   *
+   * @param aDocTypeID
+   *        The document type identifier. May not be <code>null</code>.
+   * @return The version or {@link #DEFAULT_TYPE_VERSION}. Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getTypeVersion (@Nonnull final IDocumentTypeIdentifier aDocTypeID)
+  {
+    final String sValue = aDocTypeID.getValue ();
+    final int nCustomizationStart = sValue.indexOf ("##");
+    final int nVersionStart = sValue.lastIndexOf ("::");
+    if (nCustomizationStart < 0 || nVersionStart < nCustomizationStart || nVersionStart + 2 == sValue.length ())
+      return DEFAULT_TYPE_VERSION;
+    return sValue.substring (nVersionStart + 2);
+  }
+
+  private static boolean _startsWith (@Nonnull final byte [] aBytes,
+                                      final int nOfs,
+                                      final int nLen,
+                                      @Nonnull final byte [] aPrefix)
+  {
+    if (nLen - nOfs < aPrefix.length)
+      return false;
+    for (int i = 0; i < aPrefix.length; ++i)
+      if (aBytes[nOfs + i] != aPrefix[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Determine the number of bytes to skip at the beginning of a business document, so that it can
+   * be embedded into another XML document. These are the optional UTF-8 BOM and the optional XML
+   * declaration.
+   *
+   * @param aHead
+   *        The first bytes of the business document.
+   * @param nHeadLen
+   *        The number of bytes in aHead.
+   * @return The number of bytes to skip.
+   * @throws IllegalArgumentException
+   *         If the business document is not UTF-8 encoded
+   */
+  static int getPrologLength (@Nonnull final byte [] aHead, final int nHeadLen)
+  {
+    int nOfs = 0;
+    if (_startsWith (aHead, 0, nHeadLen, UTF8_BOM))
+      nOfs = UTF8_BOM.length;
+
+    if (_startsWith (aHead, nOfs, nHeadLen, XML_DECL_START))
+    {
+      int nEnd = -1;
+      for (int i = nOfs + XML_DECL_START.length; i < nHeadLen - 1; ++i)
+        if (aHead[i] == '?' && aHead[i + 1] == '>')
+        {
+          nEnd = i + 2;
+          break;
+        }
+      if (nEnd < 0)
+        throw new IllegalArgumentException ("The XML declaration of the payload is invalid");
+
+      final String sDecl = new String (aHead, nOfs, nEnd - nOfs, StandardCharsets.ISO_8859_1);
+      final Matcher aMatcher = ENCODING_PATTERN.matcher (sDecl);
+      if (aMatcher.find ())
+      {
+        final String sEncoding = aMatcher.group (1);
+        if (!sEncoding.equalsIgnoreCase ("UTF-8") && !sEncoding.equalsIgnoreCase ("UTF8"))
+          throw new IllegalArgumentException ("Only UTF-8 encoded payloads are supported, but the payload uses '" +
+                                              sEncoding +
+                                              "'");
+      }
+      nOfs = nEnd;
+    }
+    return nOfs;
+  }
+
+  private static void _writeElement (@Nonnull final XMLStreamWriter aWriter,
+                                     @Nonnull final String sLocalName,
+                                     @Nonnull final String sText) throws XMLStreamException
+  {
+    aWriter.writeStartElement (PREFIX, sLocalName, SBDHHeaderReader.SBDH_NS);
+    aWriter.writeCharacters (sText);
+    aWriter.writeEndElement ();
+  }
+
+  private static void _writeParticipant (@Nonnull final XMLStreamWriter aWriter,
+                                         @Nonnull final String sLocalName,
+                                         @Nonnull final IParticipantIdentifier aParticipantID) throws XMLStreamException
+  {
+    aWriter.writeStartElement (PREFIX, sLocalName, SBDHHeaderReader.SBDH_NS);
+    aWriter.writeStartElement (PREFIX, "Identifier", SBDHHeaderReader.SBDH_NS);
+    aWriter.writeAttribute ("Authority", aParticipantID.getScheme ());
+    aWriter.writeCharacters (aParticipantID.getValue ());
+    aWriter.writeEndElement ();
+    aWriter.writeEndElement ();
+  }
+
+  private static void _writeScope (@Nonnull final XMLStreamWriter aWriter,
+                                   @Nonnull final String sType,
+                                   @Nonnull final String sInstanceIdentifier,
+                                   @Nullable final String sIdentifier) throws XMLStreamException
+  {
+    aWriter.writeStartElement (PREFIX, "Scope", SBDHHeaderReader.SBDH_NS);
+    _writeElement (aWriter, "Type", sType);
+    _writeElement (aWriter, "InstanceIdentifier", sInstanceIdentifier);
+    if (sIdentifier != null)
+      _writeElement (aWriter, "Identifier", sIdentifier);
+    aWriter.writeEndElement ();
+  }
+
+  /**
+   * Create a complete Peppol SBD.
+   *
+   * @param aPayload
+   *        The UTF-8 encoded business document. May not be <code>null</code>.
+   * @param nPayloadSizeHint
+   *        The size of the business document in bytes, or a value &lt; 0 if it is unknown.
+   * @param aBusinessMessage
+   *        The root element of the business document. May not be <code>null</code>.
+   * @param aSenderID
+   *        The sending participant. May not be <code>null</code>.
+   * @param aReceiverID
+   *        The receiving participant. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The document type. May not be <code>null</code>.
+   * @param aProcessID
+   *        The process. May not be <code>null</code>.
+   * @param sCountryC1
+   *        The country code of C1. May not be <code>null</code>.
+   * @param sInstanceIdentifier
+   *        The SBDH instance identifier. May not be <code>null</code>.
+   * @param aCreationDT
+   *        The creation date time. May not be <code>null</code>.
+   * @return The bytes of the SBD. Never <code>null</code>.
+   * @throws IOException
+   *         If reading the business document failed
+   * @throws IllegalArgumentException
+   *         If the business document is not UTF-8 encoded or has no namespace
+   */
+  @Nonnull
+  public static byte [] createSBD (@Nonnull final IHasInputStream aPayload,
+                                   final long nPayloadSizeHint,
+                                   @Nonnull final XmlPayloadInspector.RootElement aBusinessMessage,
+                                   @Nonnull final IParticipantIdentifier aSenderID,
+                                   @Nonnull final IParticipantIdentifier aReceiverID,
+                                   @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                   @Nonnull final IProcessIdentifier aProcessID,
+                                   @Nonnull @Nonempty final String sCountryC1,
+                                   @Nonnull @Nonempty final String sInstanceIdentifier,
+                                   @Nonnull final OffsetDateTime aCreationDT) throws IOException
+  {
+    if (!aBusinessMessage.hasNamespaceURI ())
+      throw new IllegalArgumentException ("Only business documents with a namespace are supported");
+
+    // The header has less than 2 KB
+    final int nInitialSize = nPayloadSizeHint < 0 ? 64 * 1024 : (int) Math.min (Integer.MAX_VALUE - 16,
+                                                                                nPayloadSizeHint + 2048);
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (nInitialSize))
+    {
+      try
+      {
+        final XMLStreamWriter aWriter = XML_OUTPUT_FACTORY.createXMLStreamWriter (aBAOS,
+                                                                                  StandardCharsets.UTF_8.name ());
+        aWriter.writeStartDocument (StandardCharsets.UTF_8.name (), "1.0");
+        // Use a prefix, so that the business document does not inherit a default namespace
+        aWriter.writeStartElement (PREFIX, "StandardBusinessDocument", SBDHHeaderReader.SBDH_NS);
+        aWriter.writeNamespace (PREFIX, SBDHHeaderReader.SBDH_NS);
+        aWriter.writeStartElement (PREFIX, "StandardBusinessDocumentHeader", SBDHHeaderReader.SBDH_NS);
+        _writeElement (aWriter, "HeaderVersion", "1.0");
+        _writeParticipant (aWriter, "Sender", aSenderID);
+        _writeParticipant (aWriter, "Receiver", aReceiverID);
+
+        aWriter.writeStartElement (PREFIX, "DocumentIdentification", SBDHHeaderReader.SBDH_NS);
+        _writeElement (aWriter, "Standard", aBusinessMessage.getNamespaceURI ());
+        _writeElement (aWriter, "TypeVersion", getTypeVersion (aDocTypeID));
+        _writeElement (aWriter, "InstanceIdentifier", sInstanceIdentifier);
+        _writeElement (aWriter, "Type", aBusinessMessage.getLocalName ());
+        _writeElement (aWriter, "CreationDateAndTime", DateTimeFormatter.ISO_OFFSET_DATE_TIME.format (aCreationDT));
+        aWriter.writeEndElement ();
+
+        aWriter.writeStartElement (PREFIX, "BusinessScope", SBDHHeaderReader.SBDH_NS);
+        _writeScope (aWriter, "DOCUMENTID", aDocTypeID.getValue (), aDocTypeID.getScheme ());
+        _writeScope (aWriter, "PROCESSID", aProcessID.getValue (), aProcessID.getScheme ());
+        _writeScope (aWriter, "COUNTRY_C1", sCountryC1, null);
+        aWriter.writeEndElement ();
+
+        aWriter.writeEndElement ();
+        // The business document follows - the writer does not know about it
+        aWriter.flush ();
+        aWriter.close ();
+      }
+      catch (final XMLStreamException ex)
+      {
+        throw new IOException ("Failed to write the SBDH", ex);
+      }
+
+      _copyBusinessDocument (aPayload, aBAOS);
+      aBAOS.write (("</" + PREFIX + ":StandardBusinessDocument>").getBytes (StandardCharsets.UTF_8));
+      return aBAOS.getBufferOrCopy ();
+    }
+  }
+
+  private static void _copyBusinessDocument (@Nonnull final IHasInputStream aPayload,
+                                             @Nonnull @WillNotClose final OutputStream aOS) throws IOException
+  {
+    try (final InputStream aIS = aPayload.getInputStream ())
+    {
+      if (aIS == null)
+        throw new IOException ("Failed to open the payload");
+
+      final BufferedInputStream aBIS = new BufferedInputStream (aIS, MAX_PROLOG_BYTES);
+      aBIS.mark (MAX_PROLOG_BYTES);
+      final byte [] aHead = new byte [MAX_PROLOG_BYTES];
+      int nHeadLen = 0;
+      int nRead;
+      while (nHeadLen < aHead.length && (nRead = aBIS.read (aHead, nHeadLen, aHead.length - nHeadLen)) > 0)
+        nHeadLen += nRead;
+      aBIS.reset ();
+
+      aBIS.skipNBytes (getPrologLength (aHead, nHeadLen));
+      aBIS.transferTo (aOS);
+    }
+  }
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Type;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.system.EJavaVersion;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.ESMPTransportProfile;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSender;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.xsds.peppol.smp1.EndpointType;
+
+/**
+ * Application wide cache for the SMP endpoint lookups performed when sending. The key consists of
+ * the SML, the receiver, the document type, the process and the transport profile. The cached value
+ * is the resolved endpoint URL, the AP certificate and the technical contact.<br>
+ * Answers of the type "receiver is not registered" are cached as well (with a separate TTL), but
+ * only if the DNS or the SMP definitely answered so. Temporary DNS and SMP errors are not cached and
+ * reported as retryable. Concurrent lookups for the same key are coalesced into a single SMP query.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class SMPEndpointCache
+{
+  /**
+   * The transport profile used for all lookups.
+   */
+  public static final ISMPTransportProfile TRANSPORT_PROFILE = ESMPTransportProfile.TRANSPORT_PROFILE_PEPPOL_AS4_V2;
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SMPEndpointCache.class);
+  private static final SMPEndpointCache INSTANCE = new SMPEndpointCache (APConfig.isSMPCacheEnabled (),
+                                                                         APConfig.getSMPCacheTTLSeconds (),
+                                                                         APConfig.getSMPCacheNegativeTTLSeconds (),
+                                                                         APConfig.getSMPCacheMaxEntries (),
+                                                                         SMPEndpointCache::_loadFromSMP,
+                                                                         System::nanoTime);
+
+  /**
+   * The source of a resolved endpoint.
+   *
+   * @author Philip Helger
+   */
+  public enum ELookupSource
+  {
+    /** Taken from the cache */
+    HIT ("hit"),
+    /** Resolved by this thread via SMP */
+    MISS ("miss"),
+    /** Waited for the result of a concurrent SMP lookup of another thread */
+    COALESCED ("coalesced");
+
+    private final String m_sID;
+
+    ELookupSource (@Nonnull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  /**
+   * A single cached SMP lookup result. Either positive (endpoint URL present) or negative (error
+   * message present).
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class CachedEndpoint
+  {
+    private final String m_sEndpointURL;
+    private final X509Certificate m_aCertificate;
+    private final String m_sTechnicalContact;
+    private final String m_sErrorMessage;
+
+    CachedEndpoint (@Nullable final String sEndpointURL,
+                    @Nullable final X509Certificate aCertificate,
+                    @Nullable final String sTechnicalContact,
+                    @Nullable final String sErrorMessage)
+    {
+      m_sEndpointURL = sEndpointURL;
+      m_aCertificate = aCertificate;
+      m_sTechnicalContact = sTechnicalContact;
+      m_sErrorMessage = sErrorMessage;
+    }
+
+    /**
+     * @return <code>true</code> if the receiver is registered for the requested combination,
+     *         <code>false</code> if this is a negative entry.
+     */
+    public boolean isFound ()
+    {
+      return m_sEndpointURL != null;
+    }
+
+    @Nullable
+    public String getEndpointURL ()
+    {
+      return m_sEndpointURL;
+    }
+
+    @Nullable
+    public X509Certificate getCertificate ()
+    {
+      return m_aCertificate;
+    }
+
+    @Nullable
+    public String getTechnicalContact ()
+    {
+      return m_sTechnicalContact;
+    }
+
+    @Nullable
+    public String getErrorMessage ()
+    {
+      return m_sErrorMessage;
+    }
+
+    /**
+     * @return An endpoint detail provider that returns the cached values without any further SMP
+     *         interaction. Only to be used on positive entries.
+     */
+    @Nonnull
+    public IAS4EndpointDetailProvider getAsEndpointDetailProvider ()
+    {
+      return new IAS4EndpointDetailProvider ()
+      {
+        public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                          @Nonnull final IProcessIdentifier aProcID,
+                          @Nonnull final IParticipantIdentifier aReceiverID)
+        {
+          // Already resolved
+        }
+
+        @Nullable
+        public X509Certificate getReceiverAPCertificate ()
+        {
+          return m_aCertificate;
+        }
+
+        @Nonnull
+        @Nonempty
+        public String getReceiverAPEndpointURL ()
+        {
+          return m_sEndpointURL;
+        }
+
+        @Nullable
+        public String getReceiverTechnicalContact ()
+        {
+          return m_sTechnicalContact;
+        }
+      };
+    }
+  }
+
+  /**
+   * A cached endpoint together with its expiration time.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  private static final class CacheEntry
+  {
+    private final CachedEndpoint m_aEndpoint;
+    private final long m_nExpirationNanos;
+
+    CacheEntry (@Nonnull final CachedEndpoint aEndpoint, final long nExpirationNanos)
+    {
+      m_aEndpoint = aEndpoint;
+      m_nExpirationNanos = nExpirationNanos;
+    }
+
+    boolean isExpired (final long nNowNanos)
+    {
+      return nNowNanos - m_nExpirationNanos >= 0;
+    }
+  }
+
+  /**
+   * Performs the actual lookup of a single endpoint, without any caching.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  interface IEndpointLoader
+  {
+    /**
+     * @return The resolved endpoint or a negative entry if the receiver is definitely not
+     *         registered. Never <code>null</code>.
+     * @throws Phase4Exception
+     *         In case of a temporary error. Such errors are not cached.
+     */
+    @Nonnull
+    CachedEndpoint load (@Nonnull ISMLInfo aSmlInfo,
+                         @Nonnull IParticipantIdentifier aReceiverID,
+                         @Nonnull IDocumentTypeIdentifier aDocTypeID,
+                         @Nonnull IProcessIdentifier aProcessID) throws Phase4Exception;
+  }
+
+  /**
+   * The result of a single {@link SMPEndpointCache#resolve(ISMLInfo, IParticipantIdentifier,
+   * IDocumentTypeIdentifier, IProcessIdentifier)} call.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Lookup
+  {
+    private final CachedEndpoint m_aEndpoint;
+    private final ELookupSource m_eSource;
+
+    Lookup (@Nonnull final CachedEndpoint aEndpoint, @Nonnull final ELookupSource eSource)
+    {
+      m_aEndpoint = aEndpoint;
+      m_eSource = eSource;
+    }
+
+    @Nonnull
+    public CachedEndpoint getEndpoint ()
+    {
+      return m_aEndpoint;
+    }
+
+    @Nonnull
+    public ELookupSource getSource ()
+    {
+      return m_eSource;
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final long m_nTTLNanos;
+  private final long m_nNegativeTTLNanos;
+  private final IEndpointLoader m_aLoader;
+  private final LongSupplier m_aNanoClock;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final Map <String, CacheEntry> m_aMap;
+  private final ConcurrentHashMap <String, CompletableFuture <CachedEndpoint>> m_aInFlight = new ConcurrentHashMap <> ();
+
+  private final AtomicLong m_aHits = new AtomicLong ();
+  private final AtomicLong m_aMisses = new AtomicLong ();
+  private final AtomicLong m_aCoalesced = new AtomicLong ();
+  private final AtomicLong m_aNegativeHits = new AtomicLong ();
+
+  SMPEndpointCache (final boolean bEnabled,
+                    final long nTTLSeconds,
+                    final long nNegativeTTLSeconds,
+                    final int nMaxEntries,
+                    @Nonnull final IEndpointLoader aLoader,
+                    @Nonnull final LongSupplier aNanoClock)
+  {
+    m_bEnabled = bEnabled;
+    m_nTTLNanos = TimeUnit.SECONDS.toNanos (nTTLSeconds);
+    m_nNegativeTTLNanos = TimeUnit.SECONDS.toNanos (nNegativeTTLSeconds);
+    m_aLoader = aLoader;
+    m_aNanoClock = aNanoClock;
+    // Access ordered, so that the least recently used entry is evicted first
+    m_aMap = new LinkedHashMap <> (256, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, CacheEntry> aEldest)
+      {
+        return size () > nMaxEntries;
+      }
+    };
+    if (bEnabled)
+      LOGGER.info ("SMP endpoint cache is enabled with a TTL of " +
+                   nTTLSeconds +
+                   " seconds, a negative TTL of " +
+                   nNegativeTTLSeconds +
+                   " seconds and at most " +
+                   nMaxEntries +
+                   " entries");
+    else
+      LOGGER.warn ("SMP endpoint cache is disabled");
+  }
+
+  @Nonnull
+  public static SMPEndpointCache getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final ISMLInfo aSmlInfo,
+                                 @Nonnull final IParticipantIdentifier aReceiverID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                 @Nonnull final IProcessIdentifier aProcessID)
+  {
+    return aSmlInfo.getID () +
+           '\n' +
+           aReceiverID.getURIEncoded () +
+           '\n' +
+           aDocTypeID.getURIEncoded () +
+           '\n' +
+           aProcessID.getURIEncoded () +
+           '\n' +
+           TRANSPORT_PROFILE.getID ();
+  }
+
+  @Nullable
+  private CachedEndpoint _getIfValid (@Nonnull final String sKey)
+  {
+    final long nNow = m_aNanoClock.getAsLong ();
+    return m_aRWLock.writeLockedGet ( () -> {
+      final CacheEntry aEntry = m_aMap.get (sKey);
+      if (aEntry == null)
+        return null;
+      if (aEntry.isExpired (nNow))
+      {
+        m_aMap.remove (sKey);
+        return null;
+      }
+      return aEntry.m_aEndpoint;
+    });
+  }
+
+  /**
+   * Check if the DNS answered that there is no NAPTR record for the participant. Only this answer
+   * may be cached as "not registered", because the SMP client also fails for timeouts or
+   * unreachable name servers.
+   *
+   * @param aSmlInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @return <code>true</code> if the DNS answered with NXDOMAIN or without a NAPTR record.
+   */
+  private static boolean _isDefinitelyNotInDNS (@Nonnull final ISMLInfo aSmlInfo,
+                                                @Nonnull final IParticipantIdentifier aReceiverID)
+  {
+    try
+    {
+      final String sDNSName = Phase4PeppolSender.URL_PROVIDER.getDNSNameOfParticipant (aReceiverID,
+                                                                                       aSmlInfo.getDNSZone ());
+      final Lookup aLookup = new Lookup (sDNSName, Type.NAPTR);
+      aLookup.run ();
+      final int nResult = aLookup.getResult ();
+      return nResult == Lookup.HOST_NOT_FOUND || nResult == Lookup.TYPE_NOT_FOUND;
+    }
+    catch (final Exception ex)
+    {
+      // Unknown - don't cache
+      return false;
+    }
+  }
+
+  @Nonnull
+  private static CachedEndpoint _loadFromSMP (@Nonnull final ISMLInfo aSmlInfo,
+                                              @Nonnull final IParticipantIdentifier aReceiverID,
+                                              @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                              @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    final SMPClientReadOnly aSMPClient;
+    try
+    {
+      aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER, aReceiverID, aSmlInfo);
+    }
+    catch (final Exception ex)
+    {
+      if (_isDefinitelyNotInDNS (aSmlInfo, aReceiverID))
+      {
+        // The participant is not registered in the SML (DNS)
+        LOGGER.warn ("Failed to resolve SMP of '" + aReceiverID.getURIEncoded () + "' via DNS: " + ex.getMessage ());
+        return new CachedEndpoint (null,
+                                   null,
+                                   null,
+                                   "The receiver '" + aReceiverID.getURIEncoded () + "' is not registered in the SML");
+      }
+
+      // Timeouts, SERVFAIL, no network etc. - not cached and retryable
+      throw new Phase4Exception ("Failed to resolve the SMP of '" + aReceiverID.getURIEncoded () + "' via DNS",
+                                 new IOException ("Temporary DNS resolution error: " + ex.getMessage (), ex));
+    }
+
+    aSMPClient.withHttpClientSettings (aHCS -> {
+      // TODO Add SMP HTTP outbound proxy settings here
+      // If this block is not used, it may be removed
+    });
+
+    if (EJavaVersion.getCurrentVersion ().isNewerOrEqualsThan (EJavaVersion.JDK_17))
+    {
+      // Work around the disabled SHA-1 in XMLDsig issue
+      aSMPClient.setSecureValidation (false);
+    }
+
+    final EndpointType aEndpoint;
+    try
+    {
+      aEndpoint = aSMPClient.getEndpoint (aReceiverID, aDocTypeID, aProcessID, TRANSPORT_PROFILE);
+    }
+    catch (final SMPClientException ex)
+    {
+      // Don't cache technical errors
+      throw new Phase4Exception ("Failed to query the SMP of '" + aReceiverID.getURIEncoded () + "'", ex);
+    }
+
+    if (aEndpoint == null)
+      return new CachedEndpoint (null,
+                                 null,
+                                 null,
+                                 "The receiver '" +
+                                       aReceiverID.getURIEncoded () +
+                                       "' is not registered for document type '" +
+                                       aDocTypeID.getURIEncoded () +
+                                       "', process '" +
+                                       aProcessID.getURIEncoded () +
+                                       "' and transport profile '" +
+                                       TRANSPORT_PROFILE.getID () +
+                                       "'");
+
+    final X509Certificate aCert;
+    try
+    {
+      aCert = SMPClientReadOnly.getEndpointCertificate (aEndpoint);
+    }
+    catch (final CertificateException ex)
+    {
+      throw new Phase4Exception ("Failed to parse the AP certificate from the SMP of '" +
+                                 aReceiverID.getURIEncoded () +
+                                 "'",
+                                 ex);
+    }
+
+    return new CachedEndpoint (SMPClientReadOnly.getEndpointAddress (aEndpoint),
+                               aCert,
+                               aEndpoint.getTechnicalContactUrl (),
+                               null);
+  }
+
+  @Nonnull
+  private static CachedEndpoint _await (@Nonnull final CompletableFuture <CachedEndpoint> aFuture) throws Phase4Exception
+  {
+    try
+    {
+      return aFuture.get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new Phase4Exception ("Interrupted while waiting for concurrent SMP lookup", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      if (ex.getCause () instanceof Phase4Exception)
+        throw (Phase4Exception) ex.getCause ();
+      throw new Phase4Exception ("Concurrent SMP lookup failed", ex.getCause ());
+    }
+  }
+
+  /**
+   * Resolve the endpoint of the provided receiver. Uses the cache if possible and coalesces
+   * concurrent lookups for the same key.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Process ID. May not be <code>null</code>.
+   * @return The lookup result and never <code>null</code>. It may contain a negative entry.
+   * @throws Phase4Exception
+   *         In case of a technical error during the SMP lookup. These errors are not cached.
+   */
+  @Nonnull
+  public Lookup resolve (@Nonnull final ISMLInfo aSmlInfo,
+                         @Nonnull final IParticipantIdentifier aReceiverID,
+                         @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                         @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    final String sKey = _getKey (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+
+    if (m_bEnabled)
+    {
+      final CachedEndpoint aCached = _getIfValid (sKey);
+      if (aCached != null)
+      {
+        m_aHits.incrementAndGet ();
+        if (!aCached.isFound ())
+          m_aNegativeHits.incrementAndGet ();
+        return new Lookup (aCached, ELookupSource.HIT);
+      }
+    }
+
+    final CompletableFuture <CachedEndpoint> aOwnFuture = new CompletableFuture <> ();
+    final CompletableFuture <CachedEndpoint> aOtherFuture = m_aInFlight.putIfAbsent (sKey, aOwnFuture);
+    if (aOtherFuture != null)
+    {
+      // Another thread is already querying the SMP
+      m_aCoalesced.incrementAndGet ();
+      return new Lookup (_await (aOtherFuture), ELookupSource.COALESCED);
+    }
+
+    try
+    {
+      if (m_bEnabled)
+      {
+        // Another thread may have finished in between
+        final CachedEndpoint aCached = _getIfValid (sKey);
+        if (aCached != null)
+        {
+          m_aHits.incrementAndGet ();
+          aOwnFuture.complete (aCached);
+          return new Lookup (aCached, ELookupSource.HIT);
+        }
+      }
+
+      m_aMisses.incrementAndGet ();
+      final CachedEndpoint aLoaded = m_aLoader.load (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+      if (m_bEnabled)
+      {
+        final long nExpirationNanos = m_aNanoClock.getAsLong () +
+                                      (aLoaded.isFound () ? m_nTTLNanos : m_nNegativeTTLNanos);
+        m_aRWLock.writeLocked ( () -> m_aMap.put (sKey, new CacheEntry (aLoaded, nExpirationNanos)));
+      }
+      aOwnFuture.complete (aLoaded);
+      return new Lookup (aLoaded, ELookupSource.MISS);
+    }
+    catch (final Phase4Exception | RuntimeException ex)
+    {
+      aOwnFuture.completeExceptionally (ex);
+      throw ex;
+    }
+    finally
+    {
+      m_aInFlight.remove (sKey, aOwnFuture);
+    }
+  }
+
+  /**
+   * Remove all cached entries.
+   */
+  public void clear ()
+  {
+    m_aRWLock.writeLocked (m_aMap::clear);
+  }
+
+  public long getHitCount ()
+  {
+    return m_aHits.get ();
+  }
+
+  public long getMissCount ()
+  {
+    return m_aMisses.get ();
+  }
+
+  public long getCoalescedCount ()
+  {
+    return m_aCoalesced.get ();
+  }
+
+  public long getNegativeHitCount ()
+  {
+    return m_aNegativeHits.get ();
+  }
+
+  public int getSize ()
+  {
+    return m_aRWLock.readLockedGet (m_aMap::size).intValue ();
+  }
+
+  /**
+   * Get the statistics of this cache together with the source of one specific lookup, as used in
+   * the sending report.
+   *
+   * @param eSource
+   *        The source of the current lookup. May be <code>null</code>.
+   * @return A new JSON object. Never <code>null</code>.
+   */
+  @Nonnull
+  public IJsonObject getStatisticsAsJson (@Nullable final ELookupSource eSource)
+  {
+    final IJsonObject ret = new JsonObject ();
+    if (eSource != null)
+      ret.add ("lookup", eSource.getID ());
+    ret.add ("hits", getHitCount ());
+    ret.add ("misses", getMissCount ());
+    ret.add ("coalesced", getCoalescedCount ());
+    ret.add ("negativeHits", getNegativeHitCount ());
+    ret.add ("size", getSize ());
+    return ret;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Determines the root element of an XML payload with StAX, by only reading the beginning of the
+ * document. Only the prolog and the start tag of the root element are read, so the effort does not
+ * depend on the size of the payload. This is used to reject payloads early and to create the SBDH
+ * around the payload. Payloads with a DTD are rejected, as they cannot be embedded into an SBDH.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class XmlPayloadInspector
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (XmlPayloadInspector.class);
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+
+  static
+  {
+    final XMLInputFactory aFactory = XMLInputFactory.newFactory ();
+    aFactory.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    // No DTDs and no external entities
+    aFactory.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    aFactory.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    XML_INPUT_FACTORY = aFactory;
+  }
+
+  /**
+   * The root element of an XML document
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class RootElement
+  {
+    private final String m_sNamespaceURI;
+    private final String m_sLocalName;
+
+    RootElement (@Nullable final String sNamespaceURI, @Nonnull @Nonempty final String sLocalName)
+    {
+      m_sNamespaceURI = sNamespaceURI;
+      m_sLocalName = sLocalName;
+    }
+
+    /**
+     * @return The namespace URI of the root element or <code>null</code> if it has none.
+     */
+    @Nullable
+    public String getNamespaceURI ()
+    {
+      return m_sNamespaceURI;
+    }
+
+    public boolean hasNamespaceURI ()
+    {
+      return m_sNamespaceURI != null;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getLocalName ()
+    {
+      return m_sLocalName;
+    }
+  }
+
+  private XmlPayloadInspector ()
+  {}
+
+  /**
+   * Read the root element of the provided XML. The stream is closed afterwards.
+   *
+   * @param aISP
+   *        The XML to read. May not be <code>null</code>.
+   * @return <code>null</code> if the payload is not XML or has a DTD.
+   */
+  @Nullable
+  public static RootElement readRootElement (@Nonnull final IHasInputStream aISP)
+  {
+    try (final InputStream aIS = aISP.getInputStream ())
+    {
+      if (aIS == null)
+        return null;
+
+      final XMLStreamReader aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      try
+      {
+        while (aReader.hasNext ())
+        {
+          final int nEvent = aReader.next ();
+          if (nEvent == XMLStreamConstants.DTD)
+          {
+            // Cannot be embedded into an SBDH
+            LOGGER.warn ("Payloads with a DTD are not supported");
+            return null;
+          }
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+          {
+            final String sNamespaceURI = aReader.getNamespaceURI ();
+            return new RootElement (StringHelper.hasText (sNamespaceURI) ? sNamespaceURI : null,
+                                    aReader.getLocalName ());
+          }
+        }
+        // No element at all
+        return null;
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException | IOException ex)
+    {
+      LOGGER.warn ("Failed to read the root element of the payload: " + ex.getMessage ());
+      return null;
+    }
+  }
+}
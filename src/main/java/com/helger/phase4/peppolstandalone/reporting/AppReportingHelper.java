@@ -20,6 +20,8 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.YearMonth;
+import java.util.EnumMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -27,19 +29,18 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 
 import com.helger.commons.ValueEnforcer;
-import com.helger.commons.collection.impl.CommonsArrayList;
-import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.datetime.PDTFactory;
 import com.helger.commons.string.StringHelper;
 import com.helger.commons.timing.StopWatch;
 import com.helger.commons.wrapper.Wrapper;
 import com.helger.peppol.reporting.api.CPeppolReporting;
 import com.helger.peppol.reporting.api.PeppolReportingHelper;
-import com.helger.peppol.reporting.api.PeppolReportingItem;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
 import com.helger.peppol.reporting.eusr.EndUserStatisticsReport;
+import com.helger.peppol.reporting.jaxb.eusr.EndUserStatisticsReport110Marshaller;
 import com.helger.peppol.reporting.jaxb.eusr.v110.EndUserStatisticsReportType;
+import com.helger.peppol.reporting.jaxb.tsr.TransactionStatisticsReport101Marshaller;
 import com.helger.peppol.reporting.jaxb.tsr.v101.TransactionStatisticsReportType;
 import com.helger.peppol.reporting.tsr.TransactionStatisticsReport;
 import com.helger.peppol.reportingsupport.EPeppolReportType;
@@ -85,50 +86,326 @@ public final class AppReportingHelper
     return YearMonth.of (nYear, nMonth);
   }
 
+  /**
+   * Read all reporting items of the period from the backend in a single scan and aggregate them.
+   *
+   * @param aYearMonth
+   *        The reporting period. May not be <code>null</code>.
+   * @param bPerEndUser
+   *        <code>true</code> if the aggregates are needed for the EUSR.
+   * @param sReportName
+   *        The name of the report(s) for logging. May not be <code>null</code>.
+   * @return <code>null</code> if the backend could not be read.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
   @Nullable
-  public static TransactionStatisticsReportType createTSR (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  private static PeppolReportingAggregator _aggregate (@Nonnull final YearMonth aYearMonth,
+                                                       final boolean bPerEndUser,
+                                                       @Nonnull final String sReportName) throws PeppolReportingBackendException
   {
-    LOGGER.info ("Trying to create Peppol Reporting TSR for " + aYearMonth);
+    LOGGER.info ("Trying to create Peppol Reporting " + sReportName + " for " + aYearMonth);
 
-    // Now get all items from data storage and store them in a list (we start
-    // with an initial size of 1K to avoid too many copy operations)
-    final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
+    // Aggregate the items while they are read from the data storage, so that
+    // only the distinct combinations are kept in memory
+    final PeppolReportingAggregator aAggregator = new PeppolReportingAggregator (bPerEndUser);
     if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                              aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                         aReportingItems::add))
-                              .isSuccess ())
+                                              aBackend -> aBackend.forEachReportingItem (aYearMonth, aAggregator))
+                              .isFailure ())
+      return null;
+
+    LOGGER.info ("Aggregated " +
+                 aAggregator.getItemCount () +
+                 " reporting items into " +
+                 aAggregator.getGroupCount () +
+                 " groups for the " +
+                 sReportName);
+    return aAggregator;
+  }
+
+  @Nonnull
+  private static TransactionStatisticsReportType _createTSR (@Nonnull final YearMonth aYearMonth,
+                                                            @Nonnull final PeppolReportingAggregator aAggregator)
+  {
+    return TransactionStatisticsReport.builder ()
+                                      .monthOf (aYearMonth)
+                                      .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
+                                      .reportingItemList (aAggregator.getTSRItems ())
+                                      .build ();
+  }
+
+  @Nonnull
+  private static EndUserStatisticsReportType _createEUSR (@Nonnull final YearMonth aYearMonth,
+                                                         @Nonnull final PeppolReportingAggregator aAggregator)
+  {
+    return EndUserStatisticsReport.builder ()
+                                  .monthOf (aYearMonth)
+                                  .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
+                                  .reportingItemList (aAggregator.getEUSRItems ())
+                                  .build ();
+  }
+
+  @Nullable
+  public static TransactionStatisticsReportType createTSR (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+    if (aIndex != null)
     {
-      // Create report with the read transactions
-      return TransactionStatisticsReport.builder ()
-                                        .monthOf (aYearMonth)
-                                        .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                        .reportingItemList (aReportingItems)
-                                        .build ();
+      final TransactionStatisticsReportType ret = aIndex.getFromIndex (aYearMonth, a -> _createTSR (aYearMonth, a));
+      if (ret != null)
+      {
+        LOGGER.info ("Created Peppol Reporting TSR for " + aYearMonth + " from the reporting index");
+        return ret;
+      }
     }
-    return null;
+
+    // The TSR does not need the end users
+    final PeppolReportingAggregator aAggregator = _aggregate (aYearMonth, false, "TSR");
+    return aAggregator == null ? null : _createTSR (aYearMonth, aAggregator);
   }
 
   @Nullable
   public static EndUserStatisticsReportType createEUSR (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
   {
-    LOGGER.info ("Trying to create Peppol Reporting EUSR for " + aYearMonth);
+    final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+    if (aIndex != null)
+    {
+      final EndUserStatisticsReportType ret = aIndex.getFromIndex (aYearMonth, a -> _createEUSR (aYearMonth, a));
+      if (ret != null)
+      {
+        LOGGER.info ("Created Peppol Reporting EUSR for " + aYearMonth + " from the reporting index");
+        return ret;
+      }
+    }
 
-    // Now get all items from data storage and store them in a list (we start
-    // with an initial size of 1K to avoid too many copy operations)
-    final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-    if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                              aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                         aReportingItems::add))
-                              .isSuccess ())
+    final PeppolReportingAggregator aAggregator = _aggregate (aYearMonth, true, "EUSR");
+    return aAggregator == null ? null : _createEUSR (aYearMonth, aAggregator);
+  }
+
+  /**
+   * Create the TSR and the EUSR of one period from the reporting index if it covers the period, or
+   * otherwise with a single scan of the reporting backend. The aggregates per end user also contain
+   * the counts needed for the TSR.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @return <code>null</code> if the backend could not be read.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
+  @Nullable
+  public static PeppolReports createTSRAndEUSR (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+    if (aIndex != null)
+    {
+      final PeppolReports ret = aIndex.getFromIndex (aYearMonth,
+                                                     a -> new PeppolReports (aYearMonth,
+                                                                             _createTSR (aYearMonth, a),
+                                                                             _createEUSR (aYearMonth, a)));
+      if (ret != null)
+      {
+        LOGGER.info ("Created Peppol Reporting TSR and EUSR for " + aYearMonth + " from the reporting index");
+        return ret;
+      }
+    }
+
+    final PeppolReportingAggregator aAggregator = _aggregate (aYearMonth, true, "TSR and EUSR");
+    if (aAggregator == null)
+      return null;
+    return new PeppolReports (aYearMonth, _createTSR (aYearMonth, aAggregator), _createEUSR (aYearMonth, aAggregator));
+  }
+
+  /**
+   * Get the marshalled TSR of one period. The reports of closed periods are taken from the
+   * {@link PeppolReportCache} if possible.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @return <code>null</code> if the backend could not be read or the report could not be
+   *         marshalled.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
+  @Nullable
+  public static PeppolReportCache.CachedReport getTSRAsXML (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportCache aCache = PeppolReportCache.getInstanceIfEnabled ();
+    if (aCache != null)
+    {
+      final PeppolReportCache.CachedReport ret = aCache.get (EPeppolReportType.TSR_V10, aYearMonth);
+      if (ret != null)
+        return ret;
+    }
+
+    // Must be determined before the backend is read
+    final long nRevision = aCache == null ? 0 : aCache.getRevision (aYearMonth);
+    final TransactionStatisticsReportType aTSR = createTSR (aYearMonth);
+    if (aTSR == null)
+      return null;
+    final String sXML = new TransactionStatisticsReport101Marshaller ().getAsString (aTSR);
+    if (sXML == null)
+      return null;
+    return aCache == null ? new PeppolReportCache.CachedReport (sXML) : aCache.put (EPeppolReportType.TSR_V10,
+                                                                                    aYearMonth,
+                                                                                    nRevision,
+                                                                                    sXML);
+  }
+
+  /**
+   * Get the marshalled EUSR of one period. The reports of closed periods are taken from the
+   * {@link PeppolReportCache} if possible.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @return <code>null</code> if the backend could not be read or the report could not be
+   *         marshalled.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
+  @Nullable
+  public static PeppolReportCache.CachedReport getEUSRAsXML (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportCache aCache = PeppolReportCache.getInstanceIfEnabled ();
+    if (aCache != null)
+    {
+      final PeppolReportCache.CachedReport ret = aCache.get (EPeppolReportType.EUSR_V11, aYearMonth);
+      if (ret != null)
+        return ret;
+    }
+
+    // Must be determined before the backend is read
+    final long nRevision = aCache == null ? 0 : aCache.getRevision (aYearMonth);
+    final EndUserStatisticsReportType aEUSR = createEUSR (aYearMonth);
+    if (aEUSR == null)
+      return null;
+    final String sXML = new EndUserStatisticsReport110Marshaller ().getAsString (aEUSR);
+    if (sXML == null)
+      return null;
+    return aCache == null ? new PeppolReportCache.CachedReport (sXML) : aCache.put (EPeppolReportType.EUSR_V11,
+                                                                                    aYearMonth,
+                                                                                    nRevision,
+                                                                                    sXML);
+  }
+
+  @Nullable
+  private static Map <EPeppolReportType, PeppolReportCache.CachedReport> _getAsXML (@Nonnull final PeppolReports aReports,
+                                                                                  @Nullable final PeppolReportCache aCache,
+                                                                                  final long nRevision)
+  {
+    final String sTSR = new TransactionStatisticsReport101Marshaller ().getAsString (aReports.getTSR ());
+    final String sEUSR = new EndUserStatisticsReport110Marshaller ().getAsString (aReports.getEUSR ());
+    if (sTSR == null || sEUSR == null)
+      return null;
+
+    final YearMonth aYearMonth = aReports.getYearMonth ();
+    final Map <EPeppolReportType, PeppolReportCache.CachedReport> ret = new EnumMap <> (EPeppolReportType.class);
+    if (aCache == null)
+    {
+      ret.put (EPeppolReportType.TSR_V10, new PeppolReportCache.CachedReport (sTSR));
+      ret.put (EPeppolReportType.EUSR_V11, new PeppolReportCache.CachedReport (sEUSR));
+    }
+    else
+    {
+      ret.put (EPeppolReportType.TSR_V10, aCache.put (EPeppolReportType.TSR_V10, aYearMonth, nRevision, sTSR));
+      ret.put (EPeppolReportType.EUSR_V11, aCache.put (EPeppolReportType.EUSR_V11, aYearMonth, nRevision, sEUSR));
+    }
+    return ret;
+  }
+
+  /**
+   * Get the marshalled TSR and EUSR of one period. The reports of closed periods are taken from the
+   * {@link PeppolReportCache} if possible, otherwise they are created like in
+   * {@link #createTSRAndEUSR(YearMonth)}.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @return The reports with the keys {@link EPeppolReportType#TSR_V10} and
+   *         {@link EPeppolReportType#EUSR_V11} or <code>null</code> if the backend could not be
+   *         read or the reports could not be marshalled.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
+  @Nullable
+  public static Map <EPeppolReportType, PeppolReportCache.CachedReport> getTSRAndEUSRAsXML (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportCache aCache = PeppolReportCache.getInstanceIfEnabled ();
+    if (aCache != null)
+    {
+      final PeppolReportCache.CachedReport aTSR = aCache.get (EPeppolReportType.TSR_V10, aYearMonth);
+      final PeppolReportCache.CachedReport aEUSR = aCache.get (EPeppolReportType.EUSR_V11, aYearMonth);
+      if (aTSR != null && aEUSR != null)
+      {
+        final Map <EPeppolReportType, PeppolReportCache.CachedReport> ret = new EnumMap <> (EPeppolReportType.class);
+        ret.put (EPeppolReportType.TSR_V10, aTSR);
+        ret.put (EPeppolReportType.EUSR_V11, aEUSR);
+        return ret;
+      }
+    }
+
+    // Must be determined before the backend is read
+    final long nRevision = aCache == null ? 0 : aCache.getRevision (aYearMonth);
+    final PeppolReports aReports = createTSRAndEUSR (aYearMonth);
+    return aReports == null ? null : _getAsXML (aReports, aCache, nRevision);
+  }
+
+  /**
+   * Get the TSR and EUSR of one period for sending. Cached reports of closed periods are read from
+   * the {@link PeppolReportCache}, newly created reports are added to it.
+   */
+  @Nullable
+  private static PeppolReports _getReportsForSending (@Nonnull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final PeppolReportCache aCache = PeppolReportCache.getInstanceIfEnabled ();
+    if (aCache != null)
     {
-      // Create report with the read transactions
-      return EndUserStatisticsReport.builder ()
-                                    .monthOf (aYearMonth)
-                                    .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                    .reportingItemList (aReportingItems)
-                                    .build ();
+      final PeppolReportCache.CachedReport aTSR = aCache.get (EPeppolReportType.TSR_V10, aYearMonth);
+      final PeppolReportCache.CachedReport aEUSR = aCache.get (EPeppolReportType.EUSR_V11, aYearMonth);
+      if (aTSR != null && aEUSR != null)
+      {
+        final TransactionStatisticsReportType aTSRReport = new TransactionStatisticsReport101Marshaller ().read (aTSR.getXML ());
+        final EndUserStatisticsReportType aEUSRReport = new EndUserStatisticsReport110Marshaller ().read (aEUSR.getXML ());
+        if (aTSRReport != null && aEUSRReport != null)
+        {
+          LOGGER.info ("Using the cached Peppol Reports of " + aYearMonth);
+          return new PeppolReports (aYearMonth, aTSRReport, aEUSRReport);
+        }
+      }
     }
-    return null;
+
+    // Must be determined before the backend is read
+    final long nRevision = aCache == null ? 0 : aCache.getRevision (aYearMonth);
+    final PeppolReports ret = createTSRAndEUSR (aYearMonth);
+    if (ret != null && aCache != null)
+      _getAsXML (ret, aCache, nRevision);
+    return ret;
+  }
+
+  /**
+   * Rebuild the counters of one period from the reporting backend and compare them with the
+   * reporting index.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @param bApply
+   *        <code>true</code> to replace the counters of the index with the rebuilt ones.
+   * @return The differences or <code>null</code> if the reporting index is disabled or the backend
+   *         could not be read.
+   * @throws PeppolReportingBackendException
+   *         in case of a backend error
+   */
+  @Nullable
+  public static Map <String, Object> reconcileIndex (@Nonnull final YearMonth aYearMonth,
+                                                     final boolean bApply) throws PeppolReportingBackendException
+  {
+    final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+    if (aIndex == null)
+      return null;
+
+    final PeppolReportingAggregator aAggregator = _aggregate (aYearMonth, true, "index reconciliation");
+    if (aAggregator == null)
+      return null;
+    return aIndex.reconcile (aYearMonth, aAggregator, bApply);
   }
 
   /**
@@ -183,11 +460,21 @@ public final class AppReportingHelper
                                                                                      IPeppolReportStorageFilenameProvider.DEFAULT);
       final PeppolReportingSupport aPRS = new PeppolReportingSupport (aReportingStorage);
 
+      // Create both reports with a single scan of the backend
+      PeppolReports aReports = null;
+      try
+      {
+        aReports = _getReportsForSending (aYearMonth);
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Failed to read the Peppol Reporting items for " + aYearMonth, ex);
+      }
+
       // Handle TSR
       try
       {
-        // Create
-        final TransactionStatisticsReportType aTSR = createTSR (aYearMonth);
+        final TransactionStatisticsReportType aTSR = aReports == null ? null : aReports.getTSR ();
         if (aTSR != null)
         {
           // Validate and store
@@ -217,8 +504,7 @@ public final class AppReportingHelper
       // Handle EUSR
       try
       {
-        // Create
-        final EndUserStatisticsReportType aEUSR = createEUSR (aYearMonth);
+        final EndUserStatisticsReportType aEUSR = aReports == null ? null : aReports.getEUSR ();
         if (aEUSR != null)
         {
           // Validate and store
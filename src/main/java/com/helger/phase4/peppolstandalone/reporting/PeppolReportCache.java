@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reportingsupport.EPeppolReportType;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppFileHelper;
+
+/**
+ * Cache of the marshalled Peppol Reports of closed months, so that repeated requests for the same
+ * report don't read the reporting backend again. Each month has a data revision that is
+ * incremented, whenever a reporting item of that (closed) month is stored late. A report is cached
+ * under report type, month and revision, so that a late item automatically invalidates all reports
+ * of its month. The reports of the current month are never cached, as they change with every
+ * exchanged message.<br>
+ * The reports are kept in a small LRU map in memory and as files
+ * <code>[type]-[yyyy-MM]-[revision].xml</code> on disk, so that they survive a restart. The
+ * revisions are persisted in the file <code>revisions</code>.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class PeppolReportCache
+{
+  /**
+   * A single marshalled report together with its entity tag.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class CachedReport
+  {
+    private final String m_sXML;
+    private final String m_sETag;
+
+    public CachedReport (@Nonnull final String sXML)
+    {
+      ValueEnforcer.notNull (sXML, "XML");
+      m_sXML = sXML;
+      m_sETag = getETag (sXML);
+    }
+
+    /**
+     * @return The marshalled report. Never <code>null</code>.
+     */
+    @Nonnull
+    public String getXML ()
+    {
+      return m_sXML;
+    }
+
+    /**
+     * @return The quoted strong entity tag derived from the content. Never <code>null</code>.
+     */
+    @Nonnull
+    public String getETag ()
+    {
+      return m_sETag;
+    }
+  }
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportCache.class);
+
+  private static final String FILE_EXT = ".xml";
+  private static final String REVISIONS_FILENAME = "revisions";
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static PeppolReportCache s_aInstance;
+
+  private final File m_aBaseDir;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final Map <YearMonth, Long> m_aRevisions = new TreeMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final Map <String, CachedReport> m_aLRU;
+  private final AtomicLong m_aHitCount = new AtomicLong ();
+  private final AtomicLong m_aDiskHitCount = new AtomicLong ();
+  private final AtomicLong m_aMissCount = new AtomicLong ();
+  private final AtomicLong m_aInvalidationCount = new AtomicLong ();
+
+  PeppolReportCache (@Nonnull final File aBaseDir, @Nonnegative final int nMaxEntries) throws IOException
+  {
+    ValueEnforcer.isGT0 (nMaxEntries, "MaxEntries");
+    m_aBaseDir = aBaseDir;
+    m_aLRU = new LinkedHashMap <> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, CachedReport> aEldest)
+      {
+        // Still available on disk
+        return size () > nMaxEntries;
+      }
+    };
+
+    final String sRevisions = SimpleFileIO.getFileAsString (new File (aBaseDir, REVISIONS_FILENAME),
+                                                            StandardCharsets.UTF_8);
+    if (sRevisions != null)
+      for (final String sLine : sRevisions.split ("\n"))
+      {
+        final String [] aParts = sLine.trim ().split (" ");
+        if (aParts.length == 2)
+          m_aRevisions.put (YearMonth.parse (aParts[0]), Long.valueOf (aParts[1]));
+      }
+
+    // Remove the reports of outdated revisions
+    final File [] aFiles = aBaseDir.listFiles ( (d, n) -> n.endsWith (FILE_EXT));
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        if (!_isCurrentFile (aFile.getName ()))
+          FileOperationManager.INSTANCE.deleteFileIfExisting (aFile);
+  }
+
+  /**
+   * Create a strong entity tag from the content.
+   *
+   * @param sContent
+   *        The content to use. May not be <code>null</code>.
+   * @return The quoted SHA-256 hash of the UTF-8 encoded content. Never <code>null</code>.
+   */
+  @Nonnull
+  public static String getETag (@Nonnull final String sContent)
+  {
+    try
+    {
+      final byte [] aDigest = MessageDigest.getInstance ("SHA-256").digest (sContent.getBytes (StandardCharsets.UTF_8));
+      return '"' + HexFormat.of ().formatHex (aDigest) + '"';
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("SHA-256 is not supported", ex);
+    }
+  }
+
+  private static boolean _isClosed (@Nonnull final YearMonth aYearMonth)
+  {
+    return aYearMonth.isBefore (YearMonth.now (ZoneOffset.UTC));
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private long _getRevision (@Nonnull final YearMonth aYearMonth)
+  {
+    final Long aRevision = m_aRevisions.get (aYearMonth);
+    return aRevision == null ? 0 : aRevision.longValue ();
+  }
+
+  @Nonnull
+  @GuardedBy ("m_aRWLock")
+  private String _getKey (@Nonnull final EPeppolReportType eType, @Nonnull final YearMonth aYearMonth)
+  {
+    return eType.name () + '-' + aYearMonth.toString () + '-' + _getRevision (aYearMonth);
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private boolean _isCurrentFile (@Nonnull final String sFilename)
+  {
+    // [type]-[yyyy]-[MM]-[revision].xml
+    final String sKey = sFilename.substring (0, sFilename.length () - FILE_EXT.length ());
+    final String [] aParts = sKey.split ("-");
+    if (aParts.length != 4)
+      return false;
+    try
+    {
+      return sKey.equals (_getKey (EPeppolReportType.valueOf (aParts[0]), YearMonth.parse (aParts[1] + '-' + aParts[2])));
+    }
+    catch (final IllegalArgumentException | DateTimeParseException ex)
+    {
+      return false;
+    }
+  }
+
+  @Nonnull
+  private File _getFile (@Nonnull final String sKey)
+  {
+    return new File (m_aBaseDir, sKey + FILE_EXT);
+  }
+
+  /**
+   * @param aYearMonth
+   *        The month to check. May not be <code>null</code>.
+   * @return The current data revision of the month. Must be passed to
+   *         {@link #put(EPeppolReportType, YearMonth, long, String)} and must therefore be
+   *         determined before the reporting backend is read.
+   */
+  public long getRevision (@Nonnull final YearMonth aYearMonth)
+  {
+    return m_aRWLock.readLockedGet ( () -> Long.valueOf (_getRevision (aYearMonth))).longValue ();
+  }
+
+  /**
+   * Get a cached report.
+   *
+   * @param eType
+   *        The report type. May not be <code>null</code>.
+   * @param aYearMonth
+   *        The reporting period. May not be <code>null</code>.
+   * @return <code>null</code> if the report is not cached or the period is not closed.
+   */
+  @Nullable
+  public CachedReport get (@Nonnull final EPeppolReportType eType, @Nonnull final YearMonth aYearMonth)
+  {
+    if (!_isClosed (aYearMonth))
+      return null;
+
+    // Updates the access order of the LRU map
+    return m_aRWLock.writeLockedGet ( () -> {
+      final String sKey = _getKey (eType, aYearMonth);
+      CachedReport ret = m_aLRU.get (sKey);
+      if (ret != null)
+      {
+        m_aHitCount.incrementAndGet ();
+        return ret;
+      }
+
+      final File aFile = _getFile (sKey);
+      if (aFile.isFile ())
+        try
+        {
+          ret = new CachedReport (Files.readString (aFile.toPath (), StandardCharsets.UTF_8));
+          m_aLRU.put (sKey, ret);
+          m_aDiskHitCount.incrementAndGet ();
+          return ret;
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.warn ("Failed to read the cached Peppol Report " + aFile.getAbsolutePath (), ex);
+        }
+      m_aMissCount.incrementAndGet ();
+      return null;
+    });
+  }
+
+  /**
+   * Cache a newly created report.
+   *
+   * @param eType
+   *        The report type. May not be <code>null</code>.
+   * @param aYearMonth
+   *        The reporting period. May not be <code>null</code>.
+   * @param nRevision
+   *        The data revision of the period (see {@link #getRevision(YearMonth)}) before the
+   *        reporting backend was read. If items were stored meanwhile, the report is not cached.
+   * @param sXML
+   *        The marshalled report. May not be <code>null</code>.
+   * @return The report with its entity tag. Never <code>null</code>.
+   */
+  @Nonnull
+  public CachedReport put (@Nonnull final EPeppolReportType eType,
+                           @Nonnull final YearMonth aYearMonth,
+                           final long nRevision,
+                           @Nonnull final String sXML)
+  {
+    final CachedReport ret = new CachedReport (sXML);
+    if (_isClosed (aYearMonth))
+      m_aRWLock.writeLocked ( () -> {
+        if (_getRevision (aYearMonth) != nRevision)
+        {
+          LOGGER.info ("Not caching the Peppol Report " + eType + " of " + aYearMonth + " because of late items");
+          return;
+        }
+
+        final String sKey = _getKey (eType, aYearMonth);
+        m_aLRU.put (sKey, ret);
+        try
+        {
+          AppFileHelper.writeFileDurable (_getFile (sKey), sXML.getBytes (StandardCharsets.UTF_8));
+        }
+        catch (final IOException ex)
+        {
+          // Still cached in memory
+          LOGGER.error ("Failed to store the cached Peppol Report " + eType + " of " + aYearMonth, ex);
+        }
+      });
+    return ret;
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _writeRevisions () throws IOException
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    for (final Map.Entry <YearMonth, Long> aEntry : m_aRevisions.entrySet ())
+      aSB.append (aEntry.getKey ().toString ()).append (' ').append (aEntry.getValue ().longValue ()).append ('\n');
+    AppFileHelper.writeFileDurable (new File (m_aBaseDir, REVISIONS_FILENAME),
+                                    aSB.toString ().getBytes (StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Invalidate the reports of all closed months, that the stored reporting items belong to. Must be
+   * called after the items were stored in the reporting backend.
+   *
+   * @param aItems
+   *        The stored items. May not be <code>null</code>.
+   */
+  public void onItemsStored (@Nonnull final Iterable <PeppolReportingItem> aItems)
+  {
+    // Usually all items belong to the current month
+    final TreeSet <YearMonth> aLateMonths = new TreeSet <> ();
+    for (final PeppolReportingItem aItem : aItems)
+    {
+      final YearMonth aYearMonth = YearMonth.from (aItem.getExchangeDTUTC ());
+      if (_isClosed (aYearMonth))
+        aLateMonths.add (aYearMonth);
+    }
+    if (aLateMonths.isEmpty ())
+      return;
+
+    m_aRWLock.writeLocked ( () -> {
+      for (final YearMonth aYearMonth : aLateMonths)
+      {
+        final long nOldRevision = _getRevision (aYearMonth);
+        for (final EPeppolReportType eType : EPeppolReportType.values ())
+        {
+          final String sKey = _getKey (eType, aYearMonth);
+          m_aLRU.remove (sKey);
+          FileOperationManager.INSTANCE.deleteFileIfExisting (_getFile (sKey));
+        }
+        m_aRevisions.put (aYearMonth, Long.valueOf (nOldRevision + 1));
+        m_aInvalidationCount.incrementAndGet ();
+        LOGGER.info ("Invalidated the cached Peppol Reports of " + aYearMonth + " because of late reporting items");
+      }
+      try
+      {
+        _writeRevisions ();
+      }
+      catch (final IOException ex)
+      {
+        // The files of the old revision were already deleted
+        LOGGER.error ("Failed to store the Peppol Report cache revisions", ex);
+      }
+    });
+  }
+
+  /**
+   * @return The statistics of this cache. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("hits", Long.valueOf (m_aHitCount.get ()));
+    ret.put ("diskHits", Long.valueOf (m_aDiskHitCount.get ()));
+    ret.put ("misses", Long.valueOf (m_aMissCount.get ()));
+    ret.put ("invalidations", Long.valueOf (m_aInvalidationCount.get ()));
+    m_aRWLock.readLocked ( () -> {
+      ret.put ("memoryEntries", Integer.valueOf (m_aLRU.size ()));
+      final Map <String, Object> aRevisions = new LinkedHashMap <> ();
+      for (final Map.Entry <YearMonth, Long> aEntry : m_aRevisions.entrySet ())
+        aRevisions.put (aEntry.getKey ().toString (), aEntry.getValue ());
+      ret.put ("revisions", aRevisions);
+    });
+    return ret;
+  }
+
+  /**
+   * Create the application wide instance, if the report cache is enabled in the configuration. Must
+   * be called once upon startup, before the reporting item writer is initialized.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isPeppolReportCacheEnabled ())
+      return;
+
+    final File aBaseDir = new File (AS4Configuration.getDataPath (), "peppol-report-cache").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+    final PeppolReportCache aCache;
+    try
+    {
+      aCache = new PeppolReportCache (aBaseDir, Math.max (1, APConfig.getPeppolReportCacheMaxEntries ()));
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      throw new IllegalStateException ("Failed to read the Peppol Report cache in " + aBaseDir.getAbsolutePath (), ex);
+    }
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The Peppol Report cache is already initialized");
+      s_aInstance = aCache;
+    });
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if the report cache is disabled.
+   */
+  @Nullable
+  public static PeppolReportCache getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Release the application wide instance. All changes are already on disk.
+   */
+  public static void shutdown ()
+  {
+    RW_LOCK.writeLocked ( () -> {
+      s_aInstance = null;
+    });
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Aggregates the Peppol Reporting items of a reporting period while they are read from the
+ * backend, so that the items don't need to be kept in memory. Only one representative item and a
+ * counter are kept per distinct combination of direction, C2, C3, document type, process, transport
+ * protocol and countries - and optionally per end user.<br>
+ * The report builders of peppol-reporting accept an {@link Iterable} of items. The aggregates are
+ * replayed from there without creating any new item: for the TSR each representative item is
+ * returned as often as it was counted, for the EUSR each representative item is returned once
+ * (that is once per end user).<br>
+ * Note: the TSR builder only counts items, so creating the TSR still takes time proportional to the
+ * number of transactions of the period (but only constant memory). The EUSR takes time proportional
+ * to the number of groups.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class PeppolReportingAggregator implements Consumer <PeppolReportingItem>
+{
+  /**
+   * A single group of reporting items.
+   *
+   * @author Philip Helger
+   */
+  private static final class Aggregate
+  {
+    private final PeppolReportingItem m_aRepresentative;
+    private long m_nCount;
+
+    Aggregate (@Nonnull final PeppolReportingItem aRepresentative)
+    {
+      m_aRepresentative = aRepresentative;
+    }
+  }
+
+  private final boolean m_bPerEndUser;
+  private final Map <String, Aggregate> m_aMap = new HashMap <> ();
+  private long m_nItemCount;
+
+  /**
+   * @param bPerEndUser
+   *        <code>true</code> to keep one group per end user, as needed for the EUSR.
+   *        <code>false</code> if only the TSR is needed, which does not depend on end users.
+   */
+  public PeppolReportingAggregator (final boolean bPerEndUser)
+  {
+    m_bPerEndUser = bPerEndUser;
+  }
+
+  @Nonnull
+  private String _getKey (@Nonnull final PeppolReportingItem aItem)
+  {
+    final StringBuilder aSB = new StringBuilder (256);
+    aSB.append (aItem.getDirection ())
+       .append ('\n')
+       .append (aItem.getC2ID ())
+       .append ('\n')
+       .append (aItem.getC3ID ())
+       .append ('\n')
+       .append (aItem.getDocTypeIDScheme ())
+       .append ('\n')
+       .append (aItem.getDocTypeIDValue ())
+       .append ('\n')
+       .append (aItem.getProcessIDScheme ())
+       .append ('\n')
+       .append (aItem.getProcessIDValue ())
+       .append ('\n')
+       .append (aItem.getTransportProtocol ())
+       .append ('\n')
+       .append (aItem.getC1CountryCode ())
+       .append ('\n')
+       .append (aItem.getC4CountryCode ());
+    if (m_bPerEndUser)
+      aSB.append ('\n').append (aItem.getEndUserID ());
+    return aSB.toString ();
+  }
+
+  public void accept (@Nonnull final PeppolReportingItem aItem)
+  {
+    add (aItem, 1);
+  }
+
+  /**
+   * Add an item that represents multiple transactions, e.g. when reading persisted aggregates.
+   *
+   * @param aItem
+   *        The item to add. May not be <code>null</code>.
+   * @param nCount
+   *        The number of transactions the item represents. Must be &gt; 0.
+   */
+  public void add (@Nonnull final PeppolReportingItem aItem, @Nonnegative final long nCount)
+  {
+    ValueEnforcer.isGT0 (nCount, "Count");
+    m_aMap.computeIfAbsent (_getKey (aItem), k -> new Aggregate (aItem)).m_nCount += nCount;
+    m_nItemCount += nCount;
+  }
+
+  /**
+   * Invoke the consumer for each group with the representative item and the number of items of the
+   * group.
+   *
+   * @param aConsumer
+   *        The consumer to invoke. May not be <code>null</code>.
+   */
+  public void forEachGroup (@Nonnull final ObjLongConsumer <? super PeppolReportingItem> aConsumer)
+  {
+    for (final Aggregate aAggregate : m_aMap.values ())
+      aConsumer.accept (aAggregate.m_aRepresentative, aAggregate.m_nCount);
+  }
+
+  /**
+   * @return The number of items per group key. Never <code>null</code>.
+   */
+  @Nonnull
+  Map <String, Long> getGroupCounts ()
+  {
+    final Map <String, Long> ret = new HashMap <> (m_aMap.size () * 2);
+    for (final Map.Entry <String, Aggregate> aEntry : m_aMap.entrySet ())
+      ret.put (aEntry.getKey (), Long.valueOf (aEntry.getValue ().m_nCount));
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if the groups are per end user and can be used for the EUSR.
+   */
+  public boolean isPerEndUser ()
+  {
+    return m_bPerEndUser;
+  }
+
+  /**
+   * @return The number of aggregated items (transactions).
+   */
+  public long getItemCount ()
+  {
+    return m_nItemCount;
+  }
+
+  /**
+   * @return The number of distinct groups kept in memory.
+   */
+  public int getGroupCount ()
+  {
+    return m_aMap.size ();
+  }
+
+  /**
+   * Iterating the returned items takes time proportional to {@link #getItemCount()}, as the TSR
+   * builder of peppol-reporting has no way to pass a count per item.
+   *
+   * @return The items to build the TSR from. Each representative item is returned as often as items
+   *         were aggregated into its group. Never <code>null</code>.
+   */
+  @Nonnull
+  public Iterable <PeppolReportingItem> getTSRItems ()
+  {
+    final Collection <Aggregate> aAggregates = m_aMap.values ();
+    return () -> new Iterator <> ()
+    {
+      private final Iterator <Aggregate> m_aIt = aAggregates.iterator ();
+      private Aggregate m_aCurrent;
+      private long m_nRemaining = 0;
+
+      public boolean hasNext ()
+      {
+        while (m_nRemaining == 0 && m_aIt.hasNext ())
+        {
+          m_aCurrent = m_aIt.next ();
+          m_nRemaining = m_aCurrent.m_nCount;
+        }
+        return m_nRemaining > 0;
+      }
+
+      public PeppolReportingItem next ()
+      {
+        if (!hasNext ())
+          throw new NoSuchElementException ();
+        m_nRemaining--;
+        return m_aCurrent.m_aRepresentative;
+      }
+    };
+  }
+
+  /**
+   * @return The items to build the EUSR from. Each representative item (one per end user) is
+   *         returned once. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If this aggregator does not group per end user
+   */
+  @Nonnull
+  public Iterable <PeppolReportingItem> getEUSRItems ()
+  {
+    if (!m_bPerEndUser)
+      throw new IllegalStateException ("The EUSR requires grouping per end user");
+
+    final Collection <Aggregate> aAggregates = m_aMap.values ();
+    return () -> new Iterator <> ()
+    {
+      private final Iterator <Aggregate> m_aIt = aAggregates.iterator ();
+
+      public boolean hasNext ()
+      {
+        return m_aIt.hasNext ();
+      }
+
+      public PeppolReportingItem next ()
+      {
+        return m_aIt.next ().m_aRepresentative;
+      }
+    };
+  }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.annotation.IsSPIImplementation;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.StringHelper;
+import com.helger.config.fallback.IConfigWithFallback;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reporting.api.backend.IPeppolReportingBackendSPI;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.AppFileHelper;
+
+/**
+ * Peppol Reporting backend storing the items in append-only binary segment files, partitioned by
+ * month (see {@link ReportingSegmentFile}). Querying a month only reads the segments of that month
+ * via memory mapping, and the repeating identifiers are only stored once per segment.<br>
+ * Items are written to the operating system upon storage. The segment files are forced to disk
+ * when they are completed and upon shutdown. Segments that were not completed (e.g. because of a
+ * crash) are completed upon the next start.<br>
+ * If the file configured in <code>peppol.reporting.csv.filename</code> exists, its items are
+ * migrated once upon the first start. The migration writes into a staging directory first and only
+ * moves the completed segments into place afterwards, so that an interrupted migration is either
+ * started from scratch or its move is continued - but the items are never migrated twice.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+@IsSPIImplementation
+public class PeppolReportingBackendBinarySPI implements IPeppolReportingBackendSPI
+{
+  public static final String CONFIG_DIRECTORY = "peppol.reporting.binary.directory";
+  public static final String CONFIG_SEGMENT_MAX_ITEMS = "peppol.reporting.binary.segment.maxitems";
+  public static final long DEFAULT_SEGMENT_MAX_ITEMS = 1_000_000;
+  public static final String CONFIG_CSV_FILENAME = "peppol.reporting.csv.filename";
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingBackendBinarySPI.class);
+
+  private static final String CSV_MIGRATION_MARKER = "csv-migrated";
+  private static final String CSV_MIGRATION_STAGING_DIR = "csv-migration";
+  // Stay well below the 2GB limit of a single memory mapping
+  private static final long SEGMENT_MAX_BYTES = 1L << 30;
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  @GuardedBy ("m_aLock")
+  private File m_aBaseDir;
+  @GuardedBy ("m_aLock")
+  private long m_nSegmentMaxItems;
+  @GuardedBy ("m_aLock")
+  private final Map <YearMonth, ReportingSegmentFile> m_aActiveSegments = new HashMap <> ();
+  // The footers of all completed segments
+  private final Map <File, ReportingSegmentFile.Footer> m_aFooters = new ConcurrentHashMap <> ();
+  private volatile boolean m_bInitialized = false;
+
+  @Nonnull
+  @Nonempty
+  public String getDisplayName ()
+  {
+    return "Binary segment files";
+  }
+
+  @Nonnull
+  private File _getMonthDir (@Nonnull final YearMonth aYearMonth)
+  {
+    return new File (m_aBaseDir, aYearMonth.toString ());
+  }
+
+  @Nonnull
+  private static List <File> _getSegmentFiles (@Nonnull final File aMonthDir)
+  {
+    final File [] aFiles = aMonthDir.listFiles ( (d, n) -> n.endsWith (ReportingSegmentFile.FILE_EXT));
+    if (aFiles == null)
+      return new ArrayList <> ();
+    // The names have a fixed length
+    Arrays.sort (aFiles);
+    return new ArrayList <> (Arrays.asList (aFiles));
+  }
+
+  @Nonnull
+  private static File _getNextSegmentFile (@Nonnull final File aMonthDir)
+  {
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aMonthDir);
+    final List <File> aExisting = _getSegmentFiles (aMonthDir);
+    int nNext = 1;
+    if (!aExisting.isEmpty ())
+    {
+      final String sLast = aExisting.get (aExisting.size () - 1).getName ();
+      nNext = Integer.parseInt (sLast.substring (0, sLast.length () - ReportingSegmentFile.FILE_EXT.length ())) + 1;
+    }
+    return new File (aMonthDir, String.format ("%08d", Integer.valueOf (nNext)) + ReportingSegmentFile.FILE_EXT);
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _completeSegment (@Nonnull final ReportingSegmentFile aSegment) throws IOException
+  {
+    m_aFooters.put (aSegment.getFile (), aSegment.close ());
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _completeAllSegments ()
+  {
+    for (final ReportingSegmentFile aSegment : m_aActiveSegments.values ())
+      try
+      {
+        _completeSegment (aSegment);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to complete the reporting segment " + aSegment.getFile ().getAbsolutePath (), ex);
+      }
+    m_aActiveSegments.clear ();
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _recoverSegments () throws IOException
+  {
+    final File [] aMonthDirs = m_aBaseDir.listFiles (File::isDirectory);
+    if (aMonthDirs != null)
+      for (final File aMonthDir : aMonthDirs)
+      {
+        try
+        {
+          YearMonth.parse (aMonthDir.getName ());
+        }
+        catch (final DateTimeParseException ex)
+        {
+          continue;
+        }
+        for (final File aFile : _getSegmentFiles (aMonthDir))
+        {
+          ReportingSegmentFile.Footer aFooter = ReportingSegmentFile.readFooter (aFile);
+          if (aFooter == null)
+          {
+            aFooter = ReportingSegmentFile.recover (aFile);
+            LOGGER.warn ("Completed the reporting segment " +
+                         aFile.getAbsolutePath () +
+                         " with " +
+                         aFooter.getItemCount () +
+                         " items");
+          }
+          m_aFooters.put (aFile, aFooter);
+        }
+      }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _store (@Nonnull final PeppolReportingItem aItem) throws IOException
+  {
+    final YearMonth aYearMonth = YearMonth.from (aItem.getExchangeDTUTC ());
+    ReportingSegmentFile aSegment = m_aActiveSegments.get (aYearMonth);
+    if (aSegment != null &&
+        (aSegment.getItemCount () >= m_nSegmentMaxItems || aSegment.getDataEnd () >= SEGMENT_MAX_BYTES))
+    {
+      m_aActiveSegments.remove (aYearMonth);
+      _completeSegment (aSegment);
+      aSegment = null;
+    }
+
+    if (aSegment == null)
+    {
+      // Previous months are usually done
+      final Iterator <Map.Entry <YearMonth, ReportingSegmentFile>> it = m_aActiveSegments.entrySet ().iterator ();
+      while (it.hasNext ())
+      {
+        final Map.Entry <YearMonth, ReportingSegmentFile> aEntry = it.next ();
+        if (aEntry.getKey ().isBefore (aYearMonth))
+        {
+          it.remove ();
+          _completeSegment (aEntry.getValue ());
+        }
+      }
+
+      aSegment = ReportingSegmentFile.create (_getNextSegmentFile (_getMonthDir (aYearMonth)));
+      m_aActiveSegments.put (aYearMonth, aSegment);
+    }
+
+    try
+    {
+      aSegment.append (aItem);
+    }
+    catch (final IOException ex)
+    {
+      // The state of the segment is unknown - continue with a new one
+      m_aActiveSegments.remove (aYearMonth);
+      try
+      {
+        _completeSegment (aSegment);
+      }
+      catch (final IOException ex2)
+      {
+        ex.addSuppressed (ex2);
+      }
+      throw ex;
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private long _migrateCSVToStaging (@Nonnull final File aCSVFile, @Nonnull final File aStagingDir) throws IOException
+  {
+    final File aBaseDir = m_aBaseDir;
+    m_aBaseDir = aStagingDir;
+    try
+    {
+      final IOException [] aError = new IOException [1];
+      final long nCount = ReportingCSVMigration.readAll (aCSVFile, aItem -> {
+        if (aError[0] == null)
+          try
+          {
+            _store (aItem);
+          }
+          catch (final IOException ex)
+          {
+            aError[0] = ex;
+          }
+      });
+      if (aError[0] != null)
+        throw aError[0];
+      return nCount;
+    }
+    finally
+    {
+      // Forces the segments to disk
+      _completeAllSegments ();
+      m_aBaseDir = aBaseDir;
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _moveStagedSegments (@Nonnull final File aStagingDir) throws IOException
+  {
+    final File [] aMonthDirs = aStagingDir.listFiles (File::isDirectory);
+    if (aMonthDirs != null)
+      for (final File aStagedMonthDir : aMonthDirs)
+      {
+        final File aMonthDir = new File (m_aBaseDir, aStagedMonthDir.getName ());
+        for (final File aStagedFile : _getSegmentFiles (aStagedMonthDir))
+        {
+          // Each segment is moved atomically, so it is either staged or in place
+          Files.move (aStagedFile.toPath (),
+                      _getNextSegmentFile (aMonthDir).toPath (),
+                      StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _migrateCSV (@Nullable final File aCSVFile) throws IOException
+  {
+    final File aMarker = new File (m_aBaseDir, CSV_MIGRATION_MARKER);
+    final File aStagingDir = new File (m_aBaseDir, CSV_MIGRATION_STAGING_DIR);
+    final File aStagedMarker = new File (aStagingDir, CSV_MIGRATION_MARKER);
+    if (aMarker.exists ())
+    {
+      // Left over if the application terminated right after the migration
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aStagingDir);
+      return;
+    }
+
+    if (!aStagedMarker.exists ())
+    {
+      // Partial output of an interrupted migration is never used
+      FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aStagingDir);
+      if (aCSVFile == null || !aCSVFile.isFile ())
+        return;
+
+      LOGGER.info ("Migrating the Peppol Reporting items of " + aCSVFile.getAbsolutePath ());
+      FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aStagingDir);
+      final long nCount = _migrateCSVToStaging (aCSVFile, aStagingDir);
+      AppFileHelper.writeFileDurable (aStagedMarker,
+                                      (aCSVFile.getAbsolutePath () + "\n" + nCount + "\n").getBytes (StandardCharsets.UTF_8));
+      LOGGER.info ("Migrated " + nCount + " Peppol Reporting items of " + aCSVFile.getAbsolutePath ());
+    }
+    else
+      LOGGER.info ("Continuing the interrupted Peppol Reporting CSV migration");
+
+    _moveStagedSegments (aStagingDir);
+    // Completes the migration
+    Files.move (aStagedMarker.toPath (), aMarker.toPath (), StandardCopyOption.ATOMIC_MOVE);
+    FileOperationManager.INSTANCE.deleteDirRecursiveIfExisting (aStagingDir);
+  }
+
+  /**
+   * Initialize the backend with explicit settings.
+   *
+   * @param aBaseDir
+   *        The directory containing the month directories. May not be <code>null</code>.
+   * @param nSegmentMaxItems
+   *        The maximum number of items per segment file. Must be &gt; 0.
+   * @param aCSVFile
+   *        The file of the CSV backend to migrate once. May be <code>null</code>.
+   * @return {@link ESuccess}
+   */
+  @Nonnull
+  ESuccess initBackend (@Nonnull final File aBaseDir,
+                        @Nonnegative final long nSegmentMaxItems,
+                        @Nullable final File aCSVFile)
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_bInitialized)
+        return ESuccess.SUCCESS;
+
+      FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+      m_aBaseDir = aBaseDir;
+      m_nSegmentMaxItems = nSegmentMaxItems;
+      _migrateCSV (aCSVFile);
+      // Also reads the footers of the migrated segments
+      m_aFooters.clear ();
+      _recoverSegments ();
+      m_bInitialized = true;
+      LOGGER.info ("The binary Peppol Reporting backend uses " + aBaseDir.getAbsolutePath ());
+      return ESuccess.SUCCESS;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      _completeAllSegments ();
+      LOGGER.error ("Failed to initialize the binary Peppol Reporting backend in " + aBaseDir.getAbsolutePath (), ex);
+      return ESuccess.FAILURE;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Nonnull
+  public ESuccess initBackend (@Nonnull final IConfigWithFallback aConfig)
+  {
+    final String sDir = aConfig.getAsString (CONFIG_DIRECTORY);
+    final File aBaseDir = StringHelper.hasText (sDir) ? new File (sDir)
+                                                      : new File (AS4Configuration.getDataPath (), "peppol-reporting");
+    final String sCSVFilename = aConfig.getAsString (CONFIG_CSV_FILENAME);
+    return initBackend (aBaseDir.getAbsoluteFile (),
+                        Math.max (1, aConfig.getAsLong (CONFIG_SEGMENT_MAX_ITEMS, DEFAULT_SEGMENT_MAX_ITEMS)),
+                        StringHelper.hasText (sCSVFilename) ? new File (sCSVFilename) : null);
+  }
+
+  public boolean isInitialized ()
+  {
+    return m_bInitialized;
+  }
+
+  public void shutdownBackend ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      _completeAllSegments ();
+      m_bInitialized = false;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void storeReportingItem (@Nonnull final PeppolReportingItem aReportingItem) throws PeppolReportingBackendException
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (!m_bInitialized)
+        throw new PeppolReportingBackendException ("The binary Peppol Reporting backend is not initialized");
+      _store (aReportingItem);
+    }
+    catch (final IOException ex)
+    {
+      throw new PeppolReportingBackendException ("Failed to store Peppol Reporting item", ex);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void forEachReportingItem (@Nonnull final LocalDate aStartDateIncl,
+                                    @Nonnull final LocalDate aEndDateIncl,
+                                    @Nonnull final Consumer <? super PeppolReportingItem> aConsumer) throws PeppolReportingBackendException
+  {
+    final long nFromMillis = aStartDateIncl.atStartOfDay (ZoneOffset.UTC).toInstant ().toEpochMilli ();
+    final long nToMillis = aEndDateIncl.plusDays (1).atStartOfDay (ZoneOffset.UTC).toInstant ().toEpochMilli ();
+
+    // Determine what to read - appended data is not part of the result
+    final Map <File, Long> aToRead = new LinkedHashMap <> ();
+    m_aLock.lock ();
+    try
+    {
+      if (!m_bInitialized)
+        throw new PeppolReportingBackendException ("The binary Peppol Reporting backend is not initialized");
+
+      final YearMonth aLast = YearMonth.from (aEndDateIncl);
+      for (YearMonth aYearMonth = YearMonth.from (aStartDateIncl); !aYearMonth.isAfter (aLast); aYearMonth = aYearMonth.plusMonths (1))
+      {
+        final ReportingSegmentFile aActive = m_aActiveSegments.get (aYearMonth);
+        for (final File aFile : _getSegmentFiles (_getMonthDir (aYearMonth)))
+          if (aActive != null && aActive.getFile ().equals (aFile))
+            aToRead.put (aFile, Long.valueOf (aActive.getDataEnd ()));
+          else
+          {
+            final ReportingSegmentFile.Footer aFooter = m_aFooters.get (aFile);
+            if (aFooter != null && aFooter.overlaps (nFromMillis, nToMillis))
+              aToRead.put (aFile, Long.valueOf (aFooter.getDataEnd ()));
+          }
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    for (final Map.Entry <File, Long> aEntry : aToRead.entrySet ())
+      try
+      {
+        ReportingSegmentFile.read (aEntry.getKey (),
+                                   aEntry.getValue ().longValue (),
+                                   nFromMillis,
+                                   nToMillis,
+                                   aConsumer);
+      }
+      catch (final IOException ex)
+      {
+        throw new PeppolReportingBackendException ("Failed to read the reporting segment " +
+                                                   aEntry.getKey ().getAbsolutePath (),
+                                                   ex);
+      }
+  }
+
+  @Nonnull
+  public Iterable <PeppolReportingItem> iterateReportingItems (@Nonnull final LocalDate aStartDateIncl,
+                                                               @Nonnull final LocalDate aEndDateIncl) throws PeppolReportingBackendException
+  {
+    // Prefer forEachReportingItem, which does not keep the items in memory
+    final ICommonsList <PeppolReportingItem> ret = new CommonsArrayList <> ();
+    forEachReportingItem (aStartDateIncl, aEndDateIncl, ret::add);
+    return ret;
+  }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.peppol.reporting.api.EReportingDirection;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppFileHelper;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+
+/**
+ * Pre-aggregated Peppol Reporting counters per month. Each stored reporting item increments the
+ * counter of its group (see {@link PeppolReportingAggregator} with end users), so that TSR and EUSR
+ * can be created from the counters instead of reading all items of the month from the reporting
+ * backend. This also allows to create month-to-date reports at any time.<br>
+ * Each month is persisted in a small binary file <code>[yyyy-MM].idx</code>. Changed months are
+ * written regularly by a timer and upon shutdown - not for each stored batch. A month is only used
+ * for reports, if the index covers all items of the month. That is the case for all months starting
+ * after the index was first enabled, and for months that were reconciled with the reporting
+ * backend via {@link #reconcile(YearMonth, PeppolReportingAggregator, boolean)}.<br>
+ * While the index is open, the file <code>open</code> contains the oldest month that may have
+ * items in the backend which are not yet written to the index. If that file still exists upon
+ * startup, the application was not shut down cleanly and the counters of that month and all later
+ * months may be too low. These months are marked as not complete, so that the reports are created
+ * from the backend until they are reconciled.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class PeppolReportingIndex
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingIndex.class);
+
+  private static final int FILE_VERSION = 1;
+  private static final String FILE_EXT = ".idx";
+  private static final String SINCE_FILENAME = "since";
+  private static final String OPEN_FILENAME = "open";
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static PeppolReportingIndex s_aInstance;
+
+  /**
+   * The counters of a single month.
+   *
+   * @author Philip Helger
+   */
+  private static final class MonthTable
+  {
+    private final PeppolReportingAggregator m_aAggregator;
+    private final boolean m_bComplete;
+    private boolean m_bDirty;
+
+    MonthTable (@Nonnull final PeppolReportingAggregator aAggregator, final boolean bComplete)
+    {
+      m_aAggregator = aAggregator;
+      m_bComplete = bComplete;
+    }
+  }
+
+  private final File m_aBaseDir;
+  // The first month of which all items went through the index
+  private final YearMonth m_aSince;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final Map <YearMonth, MonthTable> m_aMonths = new TreeMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private YearMonth m_aOpenMonth;
+  private final AtomicLong m_aAddedCount = new AtomicLong ();
+  private final AtomicLong m_aWriteFailureCount = new AtomicLong ();
+  private ScheduledExecutorService m_aFlusher;
+
+  PeppolReportingIndex (@Nonnull final File aBaseDir, @Nonnull final YearMonth aCurrentMonth) throws IOException
+  {
+    m_aBaseDir = aBaseDir;
+
+    final File aSinceFile = new File (aBaseDir, SINCE_FILENAME);
+    final String sSince = SimpleFileIO.getFileAsString (aSinceFile, StandardCharsets.UTF_8);
+    if (sSince != null)
+      m_aSince = YearMonth.parse (sSince.trim ());
+    else
+    {
+      // The backend may already contain items of the current month
+      m_aSince = aCurrentMonth.plusMonths (1);
+      AppFileHelper.writeFileDurable (aSinceFile, m_aSince.toString ().getBytes (StandardCharsets.UTF_8));
+    }
+
+    final File [] aFiles = aBaseDir.listFiles ( (d, n) -> n.endsWith (FILE_EXT));
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final String sName = aFile.getName ();
+        final YearMonth aYearMonth;
+        try
+        {
+          aYearMonth = YearMonth.parse (sName.substring (0, sName.length () - FILE_EXT.length ()));
+        }
+        catch (final DateTimeParseException ex)
+        {
+          LOGGER.warn ("Ignoring the unexpected file " + aFile.getAbsolutePath ());
+          continue;
+        }
+        m_aMonths.put (aYearMonth, _readTable (aYearMonth, aFile));
+      }
+
+    final File aOpenFile = new File (aBaseDir, OPEN_FILENAME);
+    final String sOpen = SimpleFileIO.getFileAsString (aOpenFile, StandardCharsets.UTF_8);
+    if (sOpen != null)
+      _markIncompleteSince (YearMonth.parse (sOpen.trim ()), aCurrentMonth);
+
+    // From now on, items of the current month may be in the backend but not yet in the index
+    _writeOpenMonth (aCurrentMonth);
+  }
+
+  /**
+   * Mark all months since the provided month as not complete, because items stored in the backend
+   * may be missing in the index after an unclean shutdown.
+   */
+  private void _markIncompleteSince (@Nonnull final YearMonth aOpenMonth, @Nonnull final YearMonth aCurrentMonth) throws IOException
+  {
+    for (YearMonth aYearMonth = aOpenMonth; !aYearMonth.isAfter (aCurrentMonth); aYearMonth = aYearMonth.plusMonths (1))
+      m_aMonths.putIfAbsent (aYearMonth, new MonthTable (new PeppolReportingAggregator (true), true));
+
+    final List <YearMonth> aMarked = new ArrayList <> ();
+    for (final Map.Entry <YearMonth, MonthTable> aEntry : m_aMonths.entrySet ())
+      if (!aEntry.getKey ().isBefore (aOpenMonth) && aEntry.getValue ().m_bComplete)
+      {
+        final MonthTable aTable = new MonthTable (aEntry.getValue ().m_aAggregator, false);
+        aTable.m_bDirty = true;
+        aEntry.setValue (aTable);
+        aMarked.add (aEntry.getKey ());
+      }
+    // Must be on disk, before the open month is overwritten
+    if (!_writeDirtyTables ())
+      throw new IOException ("Failed to mark the Peppol Reporting index months " + aMarked + " as not complete");
+    if (!aMarked.isEmpty ())
+      LOGGER.warn ("The Peppol Reporting index was not closed cleanly - the months " +
+                   aMarked +
+                   " are created from the reporting backend until they are reconciled");
+  }
+
+  private void _writeOpenMonth (@Nonnull final YearMonth aOpenMonth) throws IOException
+  {
+    AppFileHelper.writeFileDurable (new File (m_aBaseDir, OPEN_FILENAME),
+                                    aOpenMonth.toString ().getBytes (StandardCharsets.UTF_8));
+    m_aOpenMonth = aOpenMonth;
+  }
+
+  @Nullable
+  private static String _readNullable (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return aDIS.readBoolean () ? aDIS.readUTF () : null;
+  }
+
+  private static void _writeNullable (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    aDOS.writeBoolean (s != null);
+    if (s != null)
+      aDOS.writeUTF (s);
+  }
+
+  @Nonnull
+  private static MonthTable _readTable (@Nonnull final YearMonth aYearMonth, @Nonnull final File aFile) throws IOException
+  {
+    try (final DataInputStream aDIS = new DataInputStream (Files.newInputStream (aFile.toPath ())))
+    {
+      final int nVersion = aDIS.readInt ();
+      if (nVersion != FILE_VERSION)
+        throw new IOException ("Unsupported version " + nVersion + " of " + aFile.getAbsolutePath ());
+
+      final MonthTable ret = new MonthTable (new PeppolReportingAggregator (true), aDIS.readBoolean ());
+      final int nGroups = aDIS.readInt ();
+      for (int i = 0; i < nGroups; ++i)
+      {
+        final String sDirection = aDIS.readUTF ();
+        final EReportingDirection eDirection = EReportingDirection.getFromIDOrNull (sDirection);
+        if (eDirection == null)
+          throw new IOException ("Invalid reporting direction '" + sDirection + "' in " + aFile.getAbsolutePath ());
+
+        // The exchange date is not part of the group, any date of the month will do
+        final PeppolReportingItem aItem = PeppolReportingItem.builder ()
+                                                             .exchangeDateTime (aYearMonth.atDay (1)
+                                                                                          .atStartOfDay ()
+                                                                                          .atOffset (ZoneOffset.UTC))
+                                                             .direction (eDirection)
+                                                             .c2ID (_readNullable (aDIS))
+                                                             .c3ID (_readNullable (aDIS))
+                                                             .docTypeIDScheme (_readNullable (aDIS))
+                                                             .docTypeIDValue (_readNullable (aDIS))
+                                                             .processIDScheme (_readNullable (aDIS))
+                                                             .processIDValue (_readNullable (aDIS))
+                                                             .transportProtocol (_readNullable (aDIS))
+                                                             .c1CountryCode (_readNullable (aDIS))
+                                                             .c4CountryCode (_readNullable (aDIS))
+                                                             .endUserID (_readNullable (aDIS))
+                                                             .build ();
+        ret.m_aAggregator.add (aItem, aDIS.readLong ());
+      }
+      return ret;
+    }
+  }
+
+  @Nonnull
+  private static byte [] _getAsBytes (@Nonnull final MonthTable aTable) throws IOException
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeInt (FILE_VERSION);
+      aDOS.writeBoolean (aTable.m_bComplete);
+      aDOS.writeInt (aTable.m_aAggregator.getGroupCount ());
+      final IOException [] aError = new IOException [1];
+      aTable.m_aAggregator.forEachGroup ( (aItem, nCount) -> {
+        if (aError[0] == null)
+          try
+          {
+            aDOS.writeUTF (aItem.getDirection ().getID ());
+            _writeNullable (aDOS, aItem.getC2ID ());
+            _writeNullable (aDOS, aItem.getC3ID ());
+            _writeNullable (aDOS, aItem.getDocTypeIDScheme ());
+            _writeNullable (aDOS, aItem.getDocTypeIDValue ());
+            _writeNullable (aDOS, aItem.getProcessIDScheme ());
+            _writeNullable (aDOS, aItem.getProcessIDValue ());
+            _writeNullable (aDOS, aItem.getTransportProtocol ());
+            _writeNullable (aDOS, aItem.getC1CountryCode ());
+            _writeNullable (aDOS, aItem.getC4CountryCode ());
+            _writeNullable (aDOS, aItem.getEndUserID ());
+            aDOS.writeLong (nCount);
+          }
+          catch (final IOException ex)
+          {
+            aError[0] = ex;
+          }
+      });
+      if (aError[0] != null)
+        throw aError[0];
+    }
+    return aBAOS.toByteArray ();
+  }
+
+  @Nonnull
+  private File _getFile (@Nonnull final YearMonth aYearMonth)
+  {
+    return new File (m_aBaseDir, aYearMonth.toString () + FILE_EXT);
+  }
+
+  /**
+   * @return <code>true</code> if all changes are on disk, <code>false</code> if writing failed.
+   */
+  @GuardedBy ("m_aRWLock")
+  private boolean _writeDirtyTables ()
+  {
+    boolean ret = true;
+    for (final Map.Entry <YearMonth, MonthTable> aEntry : m_aMonths.entrySet ())
+    {
+      final MonthTable aTable = aEntry.getValue ();
+      if (aTable.m_bDirty)
+        try
+        {
+          AppFileHelper.writeFileDurable (_getFile (aEntry.getKey ()), _getAsBytes (aTable));
+          aTable.m_bDirty = false;
+        }
+        catch (final IOException ex)
+        {
+          // Stays dirty and is written again with the next flush
+          m_aWriteFailureCount.incrementAndGet ();
+          LOGGER.error ("Failed to write the Peppol Reporting index of " + aEntry.getKey (), ex);
+          ret = false;
+        }
+    }
+    return ret;
+  }
+
+  /**
+   * Write all changed months to disk. Called regularly by a timer.
+   *
+   * @param aOldestOpenMonth
+   *        The oldest month of which items may currently be stored in the backend, but not yet added
+   *        to the index. May not be <code>null</code>.
+   */
+  void flush (@Nonnull final YearMonth aOldestOpenMonth)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (_writeDirtyTables () && aOldestOpenMonth.isAfter (m_aOpenMonth))
+        try
+        {
+          // Everything before is on disk now
+          _writeOpenMonth (aOldestOpenMonth);
+        }
+        catch (final IOException ex)
+        {
+          m_aWriteFailureCount.incrementAndGet ();
+          LOGGER.error ("Failed to write the open month of the Peppol Reporting index", ex);
+        }
+    });
+  }
+
+  /**
+   * Write all changed months to disk and mark the index as cleanly closed. Must only be called,
+   * after all items stored in the backend were added.
+   */
+  void close ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (_writeDirtyTables ())
+        try
+        {
+          Files.deleteIfExists (new File (m_aBaseDir, OPEN_FILENAME).toPath ());
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to delete the open marker of the Peppol Reporting index", ex);
+        }
+      else
+        LOGGER.error ("Not all Peppol Reporting index changes could be written - keeping the open marker");
+    });
+  }
+
+  /**
+   * Count reporting items that were successfully stored in the reporting backend. The changes are
+   * written to disk with the next flush.
+   *
+   * @param aItems
+   *        The stored items. May not be <code>null</code>.
+   */
+  public void addAll (@Nonnull final Iterable <PeppolReportingItem> aItems)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      for (final PeppolReportingItem aItem : aItems)
+      {
+        final YearMonth aYearMonth = YearMonth.from (aItem.getExchangeDTUTC ());
+        final MonthTable aTable = m_aMonths.computeIfAbsent (aYearMonth,
+                                                             k -> new MonthTable (new PeppolReportingAggregator (true),
+                                                                                  !k.isBefore (m_aSince)));
+        aTable.m_aAggregator.accept (aItem);
+        aTable.m_bDirty = true;
+        m_aAddedCount.incrementAndGet ();
+      }
+    });
+  }
+
+  /**
+   * Evaluate the counters of a month, if they contain all items of the month.
+   *
+   * @param <T>
+   *        The result type
+   * @param aYearMonth
+   *        The month to use. May not be <code>null</code>.
+   * @param aFunction
+   *        The function to create the result from the aggregated items. It is invoked while no
+   *        items can be added. May not be <code>null</code>.
+   * @return <code>null</code> if the month is not completely covered by the index.
+   */
+  @Nullable
+  public <T> T getFromIndex (@Nonnull final YearMonth aYearMonth,
+                             @Nonnull final Function <? super PeppolReportingAggregator, ? extends T> aFunction)
+  {
+    return m_aRWLock.readLockedGet ( () -> {
+      final MonthTable aTable = m_aMonths.get (aYearMonth);
+      if (aTable == null)
+      {
+        // Nothing was stored in this month yet
+        return aYearMonth.isBefore (m_aSince) ? null : aFunction.apply (new PeppolReportingAggregator (true));
+      }
+      return aTable.m_bComplete ? aFunction.apply (aTable.m_aAggregator) : null;
+    });
+  }
+
+  @Nonnull
+  private static String _getReadableKey (@Nonnull final String sKey)
+  {
+    return sKey.replace ("\n", " | ");
+  }
+
+  /**
+   * Compare the counters of a month with the items read from the reporting backend and optionally
+   * replace the counters. Items that are stored while the backend is read may be counted only on
+   * one side, so the current month should only be replaced when little traffic is expected.
+   *
+   * @param aYearMonth
+   *        The month to reconcile. May not be <code>null</code>.
+   * @param aBackendAggregator
+   *        All items of the month read from the reporting backend, grouped per end user. May not be
+   *        <code>null</code>.
+   * @param bApply
+   *        <code>true</code> to replace the counters with the ones from the backend. The month is
+   *        complete afterwards.
+   * @return The differences. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> reconcile (@Nonnull final YearMonth aYearMonth,
+                                         @Nonnull final PeppolReportingAggregator aBackendAggregator,
+                                         final boolean bApply)
+  {
+    ValueEnforcer.notNull (aYearMonth, "YearMonth");
+    ValueEnforcer.isTrue (aBackendAggregator.isPerEndUser (), "The backend aggregator must group per end user");
+
+    return m_aRWLock.writeLockedGet ( () -> {
+      final MonthTable aTable = m_aMonths.get (aYearMonth);
+      final Map <String, Long> aIndexCounts = aTable == null ? Collections.emptyMap () : aTable.m_aAggregator
+                                                                                                 .getGroupCounts ();
+      final Map <String, Long> aBackendCounts = aBackendAggregator.getGroupCounts ();
+
+      final Set <String> aAllKeys = new TreeSet <> (aIndexCounts.keySet ());
+      aAllKeys.addAll (aBackendCounts.keySet ());
+      final List <Map <String, Object>> aDifferences = new ArrayList <> ();
+      for (final String sKey : aAllKeys)
+      {
+        final Long aIndexCount = aIndexCounts.getOrDefault (sKey, Long.valueOf (0));
+        final Long aBackendCount = aBackendCounts.getOrDefault (sKey, Long.valueOf (0));
+        if (!aIndexCount.equals (aBackendCount))
+        {
+          final Map <String, Object> aDiff = new LinkedHashMap <> ();
+          aDiff.put ("group", _getReadableKey (sKey));
+          aDiff.put ("index", aIndexCount);
+          aDiff.put ("backend", aBackendCount);
+          aDifferences.add (aDiff);
+        }
+      }
+
+      final Map <String, Object> ret = new LinkedHashMap <> ();
+      ret.put ("period", aYearMonth.toString ());
+      ret.put ("complete",
+               Boolean.valueOf (aTable != null ? aTable.m_bComplete : !aYearMonth.isBefore (m_aSince)));
+      ret.put ("indexItemCount", Long.valueOf (aTable == null ? 0 : aTable.m_aAggregator.getItemCount ()));
+      ret.put ("backendItemCount", Long.valueOf (aBackendAggregator.getItemCount ()));
+      ret.put ("differences", aDifferences);
+
+      if (bApply)
+      {
+        final MonthTable aNewTable = new MonthTable (aBackendAggregator, true);
+        aNewTable.m_bDirty = true;
+        m_aMonths.put (aYearMonth, aNewTable);
+        _writeDirtyTables ();
+        ret.put ("applied", Boolean.TRUE);
+        LOGGER.info ("Replaced the Peppol Reporting index of " +
+                     aYearMonth +
+                     " with " +
+                     aDifferences.size () +
+                     " differences");
+      }
+      return ret;
+    });
+  }
+
+  /**
+   * @return The counters per month. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("since", m_aSince.toString ());
+    ret.put ("open", m_aRWLock.readLockedGet ( () -> m_aOpenMonth.toString ()));
+    ret.put ("added", Long.valueOf (m_aAddedCount.get ()));
+    ret.put ("writeFailures", Long.valueOf (m_aWriteFailureCount.get ()));
+    final Map <String, Object> aMonths = new LinkedHashMap <> ();
+    m_aRWLock.readLocked ( () -> {
+      for (final Map.Entry <YearMonth, MonthTable> aEntry : m_aMonths.entrySet ())
+      {
+        final MonthTable aTable = aEntry.getValue ();
+        final Map <String, Object> aMonth = new LinkedHashMap <> ();
+        aMonth.put ("complete", Boolean.valueOf (aTable.m_bComplete));
+        aMonth.put ("items", Long.valueOf (aTable.m_aAggregator.getItemCount ()));
+        aMonth.put ("groups", Integer.valueOf (aTable.m_aAggregator.getGroupCount ()));
+        aMonths.put (aEntry.getKey ().toString (), aMonth);
+      }
+    });
+    ret.put ("months", aMonths);
+    return ret;
+  }
+
+  /**
+   * Create the application wide instance, if the reporting index is enabled in the configuration.
+   * Must be called once upon startup, before the reporting item writer is initialized.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isPeppolReportingIndexEnabled ())
+      return;
+
+    final File aBaseDir = new File (AS4Configuration.getDataPath (), "peppol-reporting-index").getAbsoluteFile ();
+    FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (aBaseDir);
+    final PeppolReportingIndex aIndex;
+    try
+    {
+      aIndex = new PeppolReportingIndex (aBaseDir, YearMonth.now (ZoneOffset.UTC));
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      throw new IllegalStateException ("Failed to read the Peppol Reporting index in " + aBaseDir.getAbsolutePath (),
+                                       ex);
+    }
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The Peppol Reporting index is already initialized");
+      s_aInstance = aIndex;
+    });
+
+    final long nFlushSeconds = APConfig.getPeppolReportingIndexFlushSeconds ();
+    aIndex.m_aFlusher = Executors.newSingleThreadScheduledExecutor (new AppThreadFactory ("phase4-reporting-index"));
+    aIndex.m_aFlusher.scheduleWithFixedDelay ( () -> {
+      // Items are stored shortly after their exchange - one day is a safe margin
+      aIndex.flush (YearMonth.from (OffsetDateTime.now (ZoneOffset.UTC).minusDays (1)));
+    }, nFlushSeconds, nFlushSeconds, TimeUnit.SECONDS);
+    LOGGER.info ("The Peppol Reporting index covers all months since " + aIndex.m_aSince);
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if the reporting index is disabled.
+   */
+  @Nullable
+  public static PeppolReportingIndex getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Write all changes to disk. Must be called upon application shutdown, after the reporting item
+   * writer was shut down.
+   */
+  public static void shutdown ()
+  {
+    final PeppolReportingIndex aIndex = RW_LOCK.writeLockedGet ( () -> {
+      final PeppolReportingIndex ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aIndex != null)
+    {
+      aIndex.m_aFlusher.shutdownNow ();
+      aIndex.close ();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Actuator endpoint <code>/actuator/reportingindex</code> showing the counters of the
+ * {@link PeppolReportingIndex} per month. A <code>POST</code> request to
+ * <code>/actuator/reportingindex/{yyyy-MM}</code> rebuilds the counters of that month from the
+ * reporting backend and returns the differences. If the JSON body contains <code>"apply":true</code>
+ * the counters of the index are replaced.
+ *
+ * @author Philip Helger
+ */
+@Component
+@Endpoint (id = "reportingindex")
+public class PeppolReportingIndexEndpoint
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingIndexEndpoint.class);
+
+  @ReadOperation
+  public Map <String, Object> getStatistics ()
+  {
+    final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+    if (aIndex == null)
+      return Collections.emptyMap ();
+    return aIndex.getStatistics ();
+  }
+
+  @WriteOperation
+  public Map <String, Object> reconcile (@Selector final String period, @Nullable final Boolean apply)
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    final YearMonth aYearMonth;
+    try
+    {
+      aYearMonth = YearMonth.parse (period);
+    }
+    catch (final DateTimeParseException ex)
+    {
+      ret.put ("error", "Invalid period '" + period + "' - expected yyyy-MM");
+      return ret;
+    }
+
+    try
+    {
+      final Map <String, Object> aResult = AppReportingHelper.reconcileIndex (aYearMonth,
+                                                                              apply != null && apply.booleanValue ());
+      if (aResult != null)
+        return aResult;
+      ret.put ("error", "The reporting index is disabled or the reporting backend could not be read");
+    }
+    catch (final PeppolReportingBackendException ex)
+    {
+      LOGGER.error ("Failed to reconcile the Peppol Reporting index of " + aYearMonth, ex);
+      ret.put ("error", ex.getMessage ());
+    }
+    return ret;
+  }
+}
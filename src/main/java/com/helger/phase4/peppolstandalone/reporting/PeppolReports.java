@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.time.YearMonth;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.reporting.jaxb.eusr.v110.EndUserStatisticsReportType;
+import com.helger.peppol.reporting.jaxb.tsr.v101.TransactionStatisticsReportType;
+
+/**
+ * The TSR and the EUSR of one reporting period, created from a single scan of the reporting
+ * backend.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class PeppolReports
+{
+  private final YearMonth m_aYearMonth;
+  private final TransactionStatisticsReportType m_aTSR;
+  private final EndUserStatisticsReportType m_aEUSR;
+
+  public PeppolReports (@Nonnull final YearMonth aYearMonth,
+                        @Nonnull final TransactionStatisticsReportType aTSR,
+                        @Nonnull final EndUserStatisticsReportType aEUSR)
+  {
+    ValueEnforcer.notNull (aYearMonth, "YearMonth");
+    ValueEnforcer.notNull (aTSR, "TSR");
+    ValueEnforcer.notNull (aEUSR, "EUSR");
+    m_aYearMonth = aYearMonth;
+    m_aTSR = aTSR;
+    m_aEUSR = aEUSR;
+  }
+
+  /**
+   * @return The reporting period. Never <code>null</code>.
+   */
+  @Nonnull
+  public YearMonth getYearMonth ()
+  {
+    return m_aYearMonth;
+  }
+
+  /**
+   * @return The Transaction Statistics Report. Never <code>null</code>.
+   */
+  @Nonnull
+  public TransactionStatisticsReportType getTSR ()
+  {
+    return m_aTSR;
+  }
+
+  /**
+   * @return The End User Statistics Report. Never <code>null</code>.
+   */
+  @Nonnull
+  public EndUserStatisticsReportType getEUSR ()
+  {
+    return m_aEUSR;
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+
+import com.helger.peppol.reporting.api.EReportingDirection;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Reads the reporting items of the file written by the CSV reporting backend, to migrate them to
+ * the {@link PeppolReportingBackendBinarySPI}. Each line contains the exchange date time, the
+ * direction, C2 ID, C3 ID, document type scheme and value, process scheme and value, transport
+ * protocol, C1 country code, C4 country code and end user ID. The separator (<code>;</code> or
+ * <code>,</code>) is detected per line, values may be quoted. Only the first line may be a header
+ * line that cannot be parsed - any other line that cannot be parsed aborts the migration, so that no
+ * reporting items are silently lost.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+final class ReportingCSVMigration
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReportingCSVMigration.class);
+
+  private static final int COLUMN_COUNT = 12;
+
+  private ReportingCSVMigration ()
+  {}
+
+  @Nonnull
+  private static List <String> _split (@Nonnull final String sLine, final char cSep)
+  {
+    final List <String> ret = new ArrayList <> (COLUMN_COUNT);
+    final StringBuilder aSB = new StringBuilder ();
+    boolean bInQuotes = false;
+    final int nLen = sLine.length ();
+    for (int i = 0; i < nLen; ++i)
+    {
+      final char c = sLine.charAt (i);
+      if (bInQuotes)
+      {
+        if (c == '"')
+        {
+          if (i + 1 < nLen && sLine.charAt (i + 1) == '"')
+          {
+            // Escaped quote
+            aSB.append ('"');
+            ++i;
+          }
+          else
+            bInQuotes = false;
+        }
+        else
+          aSB.append (c);
+      }
+      else
+        if (c == '"')
+          bInQuotes = true;
+        else
+          if (c == cSep)
+          {
+            ret.add (aSB.toString ());
+            aSB.setLength (0);
+          }
+          else
+            aSB.append (c);
+    }
+    ret.add (aSB.toString ());
+    return ret;
+  }
+
+  @Nullable
+  private static String _nullIfEmpty (@Nonnull final String s)
+  {
+    final String ret = s.trim ();
+    return ret.isEmpty () ? null : ret;
+  }
+
+  @Nullable
+  private static OffsetDateTime _parseDateTime (@Nonnull final String s)
+  {
+    try
+    {
+      return OffsetDateTime.parse (s);
+    }
+    catch (final DateTimeParseException ex)
+    {
+      try
+      {
+        return LocalDateTime.parse (s).atOffset (ZoneOffset.UTC);
+      }
+      catch (final DateTimeParseException ex2)
+      {
+        return null;
+      }
+    }
+  }
+
+  @Nullable
+  private static EReportingDirection _parseDirection (@Nonnull final String s)
+  {
+    final EReportingDirection ret = EReportingDirection.getFromIDOrNull (s);
+    if (ret != null)
+      return ret;
+    for (final EReportingDirection e : EReportingDirection.values ())
+      if (e.name ().equalsIgnoreCase (s))
+        return e;
+    return null;
+  }
+
+  /**
+   * Parse a single line of the CSV file.
+   *
+   * @param sLine
+   *        The line to parse. May not be <code>null</code>.
+   * @return <code>null</code> if the line does not contain a valid reporting item.
+   */
+  @Nullable
+  static PeppolReportingItem parseLine (@Nonnull final String sLine)
+  {
+    List <String> aColumns = _split (sLine, ';');
+    if (aColumns.size () < COLUMN_COUNT)
+      aColumns = _split (sLine, ',');
+    if (aColumns.size () < COLUMN_COUNT)
+      return null;
+
+    final OffsetDateTime aExchangeDT = _parseDateTime (aColumns.get (0).trim ());
+    final EReportingDirection eDirection = _parseDirection (aColumns.get (1).trim ());
+    if (aExchangeDT == null || eDirection == null)
+      return null;
+
+    try
+    {
+      return PeppolReportingItem.builder ()
+                                .exchangeDateTime (aExchangeDT)
+                                .direction (eDirection)
+                                .c2ID (_nullIfEmpty (aColumns.get (2)))
+                                .c3ID (_nullIfEmpty (aColumns.get (3)))
+                                .docTypeIDScheme (_nullIfEmpty (aColumns.get (4)))
+                                .docTypeIDValue (_nullIfEmpty (aColumns.get (5)))
+                                .processIDScheme (_nullIfEmpty (aColumns.get (6)))
+                                .processIDValue (_nullIfEmpty (aColumns.get (7)))
+                                .transportProtocol (_nullIfEmpty (aColumns.get (8)))
+                                .c1CountryCode (_nullIfEmpty (aColumns.get (9)))
+                                .c4CountryCode (_nullIfEmpty (aColumns.get (10)))
+                                .endUserID (_nullIfEmpty (aColumns.get (11)))
+                                .build ();
+    }
+    catch (final RuntimeException ex)
+    {
+      // Mandatory values are missing
+      return null;
+    }
+  }
+
+  /**
+   * Read all items of a CSV file.
+   *
+   * @param aCSVFile
+   *        The file to read. May not be <code>null</code>.
+   * @param aConsumer
+   *        The consumer of the items. May not be <code>null</code>.
+   * @return The number of items read.
+   * @throws IOException
+   *         In case of an error or if a line other than the first one cannot be parsed
+   */
+  static long readAll (@Nonnull final File aCSVFile, @Nonnull final Consumer <? super PeppolReportingItem> aConsumer) throws IOException
+  {
+    long nCount = 0;
+    long nLineNumber = 0;
+    try (final BufferedReader aReader = Files.newBufferedReader (aCSVFile.toPath (), StandardCharsets.UTF_8))
+    {
+      String sLine;
+      while ((sLine = aReader.readLine ()) != null)
+      {
+        nLineNumber++;
+        if (sLine.isEmpty ())
+          continue;
+        final PeppolReportingItem aItem = parseLine (sLine);
+        if (aItem != null)
+        {
+          aConsumer.accept (aItem);
+          nCount++;
+        }
+        else
+          if (nLineNumber == 1)
+            LOGGER.info ("Skipping the header line of " + aCSVFile.getAbsolutePath ());
+          else
+            throw new IOException ("Line " +
+                                   nLineNumber +
+                                   " of " +
+                                   aCSVFile.getAbsolutePath () +
+                                   " is no valid reporting item - fix or remove it and restart");
+      }
+    }
+    return nCount;
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.state.ESuccess;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+
+/**
+ * Stores Peppol Reporting items of received and sent messages in the background. The items are
+ * put into a bounded queue and a single writer thread stores everything that is queued with one
+ * access to the reporting backend. If the queue is full, the caller waits for a short time and the
+ * item is dropped afterwards, so that a slow backend cannot block message exchange.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class ReportingItemWriter
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReportingItemWriter.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static ReportingItemWriter s_aInstance;
+
+  private final BlockingQueue <PeppolReportingItem> m_aQueue;
+  private final int m_nMaxBatchSize;
+  private final long m_nOfferTimeoutMillis;
+  private final Thread m_aWriter;
+  private final AtomicLong m_aWrittenCount = new AtomicLong ();
+  private final AtomicLong m_aDroppedCount = new AtomicLong ();
+  private final AtomicLong m_aFailedCount = new AtomicLong ();
+  private final AtomicLong m_aBatchCount = new AtomicLong ();
+  private volatile boolean m_bShutdown = false;
+
+  private ReportingItemWriter (@Nonnegative final int nQueueSize,
+                               @Nonnegative final int nMaxBatchSize,
+                               @Nonnegative final long nOfferTimeoutMillis)
+  {
+    m_aQueue = new ArrayBlockingQueue <> (nQueueSize);
+    m_nMaxBatchSize = nMaxBatchSize;
+    m_nOfferTimeoutMillis = nOfferTimeoutMillis;
+    m_aWriter = new AppThreadFactory ("phase4-reporting-writer").newThread (this::_run);
+    m_aWriter.start ();
+  }
+
+  private void _flush (@Nonnull final List <PeppolReportingItem> aBatch)
+  {
+    final List <PeppolReportingItem> aStored = new ArrayList <> (aBatch.size ());
+
+    // One backend access for all items
+    final ESuccess eSuccess = PeppolReportingBackend.withBackendDo (APConfig.getConfig (), aBackend -> {
+      for (final PeppolReportingItem aItem : aBatch)
+        try
+        {
+          aBackend.storeReportingItem (aItem);
+          m_aWrittenCount.incrementAndGet ();
+          aStored.add (aItem);
+        }
+        catch (final PeppolReportingBackendException ex)
+        {
+          LOGGER.error ("Failed to store Peppol Reporting Item " + aItem, ex);
+          m_aFailedCount.incrementAndGet ();
+        }
+    });
+    if (eSuccess.isFailure ())
+    {
+      LOGGER.error ("The Peppol Reporting backend is not available - " + aBatch.size () + " items are lost");
+      m_aFailedCount.addAndGet (aBatch.size ());
+    }
+    // Only count what is in the backend
+    if (!aStored.isEmpty ())
+    {
+      final PeppolReportingIndex aIndex = PeppolReportingIndex.getInstanceIfEnabled ();
+      if (aIndex != null)
+        aIndex.addAll (aStored);
+      final PeppolReportCache aCache = PeppolReportCache.getInstanceIfEnabled ();
+      if (aCache != null)
+        aCache.onItemsStored (aStored);
+    }
+    m_aBatchCount.incrementAndGet ();
+  }
+
+  private void _run ()
+  {
+    final List <PeppolReportingItem> aBatch = new ArrayList <> (m_nMaxBatchSize);
+    while (true)
+    {
+      try
+      {
+        final PeppolReportingItem aFirst = m_aQueue.poll (1, TimeUnit.SECONDS);
+        if (aFirst != null)
+        {
+          // Everything that arrived meanwhile goes into the same batch
+          aBatch.add (aFirst);
+          m_aQueue.drainTo (aBatch, m_nMaxBatchSize - 1);
+          _flush (aBatch);
+          aBatch.clear ();
+        }
+        else
+          if (m_bShutdown)
+            break;
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      catch (final RuntimeException ex)
+      {
+        LOGGER.error ("Failed to store " + aBatch.size () + " Peppol Reporting Items", ex);
+        m_aFailedCount.addAndGet (aBatch.size ());
+        aBatch.clear ();
+      }
+    }
+
+    // Submitted while shutting down
+    m_aQueue.drainTo (aBatch);
+    if (!aBatch.isEmpty ())
+      _flush (aBatch);
+  }
+
+  /**
+   * Queue a reporting item for storage. If the queue is full, this method waits for the configured
+   * time and drops the item afterwards.
+   *
+   * @param aItem
+   *        The item to be stored. May not be <code>null</code>.
+   * @return <code>true</code> if the item was queued, <code>false</code> if it was dropped.
+   */
+  public boolean submit (@Nonnull final PeppolReportingItem aItem)
+  {
+    boolean bQueued = false;
+    if (!m_bShutdown)
+      try
+      {
+        bQueued = m_aQueue.offer (aItem, m_nOfferTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    if (!bQueued)
+    {
+      m_aDroppedCount.incrementAndGet ();
+      LOGGER.error ("Dropped Peppol Reporting Item, because the queue is full: " + aItem);
+    }
+    return bQueued;
+  }
+
+  /**
+   * @return Statistics of this writer. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("queueDepth", Integer.valueOf (m_aQueue.size ()));
+    ret.put ("queueCapacity", Integer.valueOf (m_aQueue.size () + m_aQueue.remainingCapacity ()));
+    ret.put ("written", Long.valueOf (m_aWrittenCount.get ()));
+    ret.put ("batches", Long.valueOf (m_aBatchCount.get ()));
+    ret.put ("dropped", Long.valueOf (m_aDroppedCount.get ()));
+    ret.put ("failed", Long.valueOf (m_aFailedCount.get ()));
+    return ret;
+  }
+
+  /**
+   * Create the application wide instance. Must be called once upon startup, after the reporting
+   * backend was initialized.
+   */
+  public static void init ()
+  {
+    final ReportingItemWriter aWriter = new ReportingItemWriter (APConfig.getPeppolReportingWriterQueueSize (),
+                                                                 APConfig.getPeppolReportingWriterMaxBatchSize (),
+                                                                 APConfig.getPeppolReportingWriterOfferTimeoutMillis ());
+    RW_LOCK.writeLocked ( () -> {
+      if (s_aInstance != null)
+        throw new IllegalStateException ("The reporting item writer is already initialized");
+      s_aInstance = aWriter;
+    });
+  }
+
+  /**
+   * @return The application wide instance. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If {@link #init()} was not called
+   */
+  @Nonnull
+  public static ReportingItemWriter getInstance ()
+  {
+    final ReportingItemWriter ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+      throw new IllegalStateException ("The reporting item writer is not initialized");
+    return ret;
+  }
+
+  /**
+   * Store all queued items and stop the writer. Must be called upon application shutdown, before the
+   * reporting backend is shut down.
+   */
+  public static void shutdown ()
+  {
+    final ReportingItemWriter aWriter = RW_LOCK.writeLockedGet ( () -> {
+      final ReportingItemWriter ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aWriter != null)
+    {
+      aWriter.m_bShutdown = true;
+      try
+      {
+        aWriter.m_aWriter.join (TimeUnit.SECONDS.toMillis (30));
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      if (aWriter.m_aWriter.isAlive ())
+        LOGGER.error ("Failed to store all queued Peppol Reporting Items - " +
+                      aWriter.m_aQueue.size () +
+                      " items are lost");
+      else
+        LOGGER.info ("Stored all queued Peppol Reporting Items: " + aWriter.getStatistics ());
+    }
+  }
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.peppol.reporting.api.EReportingDirection;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * A single append-only segment file of the {@link PeppolReportingBackendBinarySPI}. All items of a
+ * segment belong to the same month. The identifiers of an item (participant IDs, document types,
+ * processes, country codes etc.) are dictionary encoded: the first occurrence of a value in a
+ * segment is written as a dictionary record, and the items only contain the numbers of their
+ * values. Each record is written as <code>[varint length][payload][CRC32]</code>.<br>
+ * A completed segment ends with a fixed size footer containing the number of items, the range of
+ * the exchange dates and the end of the records, so that segments outside of a queried period are
+ * skipped without reading them. Segments are read via memory mapping.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+final class ReportingSegmentFile
+{
+  static final String FILE_EXT = ".seg";
+
+  private static final int HEADER_MAGIC = 0x50524253;
+  private static final int FOOTER_MAGIC = 0x50524246;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int FOOTER_SIZE = 4 * 8 + 4;
+  private static final byte RECORD_DICTIONARY = 1;
+  private static final byte RECORD_ITEM = 2;
+  // Direction, C2, C3, document type scheme and value, process scheme and value, transport
+  // protocol, C1, C4 and end user
+  private static final int VALUE_COUNT = 11;
+
+  /**
+   * The summary of a segment as stored in the footer.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  static final class Footer
+  {
+    private final long m_nItemCount;
+    private final long m_nMinMillis;
+    private final long m_nMaxMillis;
+    private final long m_nDataEnd;
+
+    Footer (final long nItemCount, final long nMinMillis, final long nMaxMillis, final long nDataEnd)
+    {
+      m_nItemCount = nItemCount;
+      m_nMinMillis = nMinMillis;
+      m_nMaxMillis = nMaxMillis;
+      m_nDataEnd = nDataEnd;
+    }
+
+    long getItemCount ()
+    {
+      return m_nItemCount;
+    }
+
+    long getDataEnd ()
+    {
+      return m_nDataEnd;
+    }
+
+    /**
+     * @return <code>true</code> if the segment may contain items in the provided range.
+     */
+    boolean overlaps (final long nFromMillisIncl, final long nToMillisExcl)
+    {
+      return m_nItemCount > 0 && m_nMaxMillis >= nFromMillisIncl && m_nMinMillis < nToMillisExcl;
+    }
+  }
+
+  /**
+   * A growable byte array, reused for all records.
+   *
+   * @author Philip Helger
+   */
+  private static final class ByteSink
+  {
+    private byte [] m_aBytes = new byte [256];
+    private int m_nSize;
+
+    private void _ensure (final int nAdditional)
+    {
+      if (m_nSize + nAdditional > m_aBytes.length)
+        m_aBytes = Arrays.copyOf (m_aBytes, Math.max (m_aBytes.length * 2, m_nSize + nAdditional));
+    }
+
+    void reset ()
+    {
+      m_nSize = 0;
+    }
+
+    void writeByte (final int n)
+    {
+      _ensure (1);
+      m_aBytes[m_nSize++] = (byte) n;
+    }
+
+    void writeVarLong (final long n)
+    {
+      _ensure (10);
+      long nRest = n;
+      while ((nRest & ~0x7fL) != 0)
+      {
+        m_aBytes[m_nSize++] = (byte) ((nRest & 0x7f) | 0x80);
+        nRest >>>= 7;
+      }
+      m_aBytes[m_nSize++] = (byte) nRest;
+    }
+
+    void writeInt (final int n)
+    {
+      _ensure (4);
+      m_aBytes[m_nSize++] = (byte) (n >>> 24);
+      m_aBytes[m_nSize++] = (byte) (n >>> 16);
+      m_aBytes[m_nSize++] = (byte) (n >>> 8);
+      m_aBytes[m_nSize++] = (byte) n;
+    }
+
+    void write (@Nonnull final byte [] aBytes, final int nOfs, final int nLen)
+    {
+      _ensure (nLen);
+      System.arraycopy (aBytes, nOfs, m_aBytes, m_nSize, nLen);
+      m_nSize += nLen;
+    }
+  }
+
+  private final File m_aFile;
+  private final FileChannel m_aChannel;
+  private final Map <String, Integer> m_aDictionary = new HashMap <> ();
+  private final ByteSink m_aRecord = new ByteSink ();
+  private final ByteSink m_aOut = new ByteSink ();
+  private final CRC32 m_aCRC = new CRC32 ();
+  private final int [] m_aIDs = new int [VALUE_COUNT];
+  // Read by concurrent readers of this segment
+  private volatile long m_nDataEnd = HEADER_SIZE;
+  private long m_nItemCount;
+  private long m_nMinMillis = Long.MAX_VALUE;
+  private long m_nMaxMillis = Long.MIN_VALUE;
+
+  private ReportingSegmentFile (@Nonnull final File aFile, @Nonnull final FileChannel aChannel)
+  {
+    m_aFile = aFile;
+    m_aChannel = aChannel;
+  }
+
+  private static void _writeFully (@Nonnull final FileChannel aFC, @Nonnull final ByteBuffer aBB, final long nPos) throws IOException
+  {
+    long nCurPos = nPos;
+    while (aBB.hasRemaining ())
+      nCurPos += aFC.write (aBB, nCurPos);
+  }
+
+  /**
+   * Create a new, empty segment file for appending.
+   *
+   * @param aFile
+   *        The file to create. May not exist yet.
+   * @return The new segment. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  static ReportingSegmentFile create (@Nonnull final File aFile) throws IOException
+  {
+    final FileChannel aFC = FileChannel.open (aFile.toPath (),
+                                              StandardOpenOption.CREATE_NEW,
+                                              StandardOpenOption.READ,
+                                              StandardOpenOption.WRITE);
+    try
+    {
+      _writeFully (aFC, ByteBuffer.allocate (HEADER_SIZE).putInt (HEADER_MAGIC).putInt (VERSION).flip (), 0);
+    }
+    catch (final IOException ex)
+    {
+      aFC.close ();
+      throw ex;
+    }
+    return new ReportingSegmentFile (aFile, aFC);
+  }
+
+  @Nonnull
+  File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return The end of the completely written records. Everything before can be read concurrently.
+   */
+  long getDataEnd ()
+  {
+    return m_nDataEnd;
+  }
+
+  long getItemCount ()
+  {
+    return m_nItemCount;
+  }
+
+  private void _frameRecord ()
+  {
+    m_aCRC.reset ();
+    m_aCRC.update (m_aRecord.m_aBytes, 0, m_aRecord.m_nSize);
+    m_aOut.writeVarLong (m_aRecord.m_nSize);
+    m_aOut.write (m_aRecord.m_aBytes, 0, m_aRecord.m_nSize);
+    m_aOut.writeInt ((int) m_aCRC.getValue ());
+    m_aRecord.reset ();
+  }
+
+  private int _getID (@Nullable final String sValue)
+  {
+    if (sValue == null)
+      return 0;
+    final Integer aID = m_aDictionary.get (sValue);
+    if (aID != null)
+      return aID.intValue ();
+
+    // First occurrence in this segment
+    final int nID = m_aDictionary.size () + 1;
+    final byte [] aBytes = sValue.getBytes (StandardCharsets.UTF_8);
+    m_aRecord.writeByte (RECORD_DICTIONARY);
+    m_aRecord.writeVarLong (nID);
+    m_aRecord.write (aBytes, 0, aBytes.length);
+    _frameRecord ();
+    m_aDictionary.put (sValue, Integer.valueOf (nID));
+    return nID;
+  }
+
+  /**
+   * Append a reporting item. If this method fails, the segment must be closed and not used for
+   * appending anymore.
+   *
+   * @param aItem
+   *        The item to append. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  void append (@Nonnull final PeppolReportingItem aItem) throws IOException
+  {
+    m_aRecord.reset ();
+    m_aOut.reset ();
+
+    final int [] aIDs = m_aIDs;
+    aIDs[0] = _getID (aItem.getDirection ().getID ());
+    aIDs[1] = _getID (aItem.getC2ID ());
+    aIDs[2] = _getID (aItem.getC3ID ());
+    aIDs[3] = _getID (aItem.getDocTypeIDScheme ());
+    aIDs[4] = _getID (aItem.getDocTypeIDValue ());
+    aIDs[5] = _getID (aItem.getProcessIDScheme ());
+    aIDs[6] = _getID (aItem.getProcessIDValue ());
+    aIDs[7] = _getID (aItem.getTransportProtocol ());
+    aIDs[8] = _getID (aItem.getC1CountryCode ());
+    aIDs[9] = _getID (aItem.getC4CountryCode ());
+    aIDs[10] = _getID (aItem.getEndUserID ());
+
+    final long nMillis = aItem.getExchangeDTUTC ().toInstant ().toEpochMilli ();
+    m_aRecord.writeByte (RECORD_ITEM);
+    m_aRecord.writeVarLong (nMillis);
+    for (final int nID : aIDs)
+      m_aRecord.writeVarLong (nID);
+    _frameRecord ();
+
+    final long nDataEnd = m_nDataEnd;
+    _writeFully (m_aChannel, ByteBuffer.wrap (m_aOut.m_aBytes, 0, m_aOut.m_nSize), nDataEnd);
+    m_nItemCount++;
+    m_nMinMillis = Math.min (m_nMinMillis, nMillis);
+    m_nMaxMillis = Math.max (m_nMaxMillis, nMillis);
+    // Publish last
+    m_nDataEnd = nDataEnd + m_aOut.m_nSize;
+  }
+
+  /**
+   * Write everything to disk without completing the segment.
+   *
+   * @throws IOException
+   *         In case of an error
+   */
+  void force () throws IOException
+  {
+    m_aChannel.force (false);
+  }
+
+  private static void _writeFooter (@Nonnull final FileChannel aFC, @Nonnull final Footer aFooter) throws IOException
+  {
+    aFC.truncate (aFooter.m_nDataEnd);
+    final ByteBuffer aBB = ByteBuffer.allocate (FOOTER_SIZE)
+                                     .putLong (aFooter.m_nItemCount)
+                                     .putLong (aFooter.m_nMinMillis)
+                                     .putLong (aFooter.m_nMaxMillis)
+                                     .putLong (aFooter.m_nDataEnd)
+                                     .putInt (FOOTER_MAGIC)
+                                     .flip ();
+    _writeFully (aFC, aBB, aFooter.m_nDataEnd);
+    aFC.force (true);
+  }
+
+  /**
+   * Complete the segment by writing the footer, and close the file. Incompletely written records
+   * are removed.
+   *
+   * @return The footer. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  Footer close () throws IOException
+  {
+    try
+    {
+      final Footer ret = new Footer (m_nItemCount, m_nMinMillis, m_nMaxMillis, m_nDataEnd);
+      _writeFooter (m_aChannel, ret);
+      return ret;
+    }
+    finally
+    {
+      m_aChannel.close ();
+    }
+  }
+
+  /**
+   * Read the footer of a completed segment.
+   *
+   * @param aFile
+   *        The segment file. May not be <code>null</code>.
+   * @return <code>null</code> if the segment was not completed, e.g. because the application
+   *         terminated while writing it.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nullable
+  static Footer readFooter (@Nonnull final File aFile) throws IOException
+  {
+    try (final FileChannel aFC = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+    {
+      final long nSize = aFC.size ();
+      if (nSize < HEADER_SIZE + FOOTER_SIZE)
+        return null;
+      final ByteBuffer aBB = ByteBuffer.allocate (FOOTER_SIZE);
+      long nPos = nSize - FOOTER_SIZE;
+      while (aBB.hasRemaining ())
+      {
+        final int nRead = aFC.read (aBB, nPos);
+        if (nRead < 0)
+          return null;
+        nPos += nRead;
+      }
+      aBB.flip ();
+      final Footer ret = new Footer (aBB.getLong (), aBB.getLong (), aBB.getLong (), aBB.getLong ());
+      if (aBB.getInt () != FOOTER_MAGIC || ret.m_nDataEnd != nSize - FOOTER_SIZE)
+        return null;
+      return ret;
+    }
+  }
+
+  private static long _readVarLong (@Nonnull final ByteBuffer aBB)
+  {
+    long ret = 0;
+    int nShift = 0;
+    byte b;
+    do
+    {
+      b = aBB.get ();
+      ret |= (long) (b & 0x7f) << nShift;
+      nShift += 7;
+    } while (b < 0);
+    return ret;
+  }
+
+  @Nonnull
+  private static PeppolReportingItem _createItem (final long nMillis,
+                                                  @Nonnull final EReportingDirection eDirection,
+                                                  @Nonnull final String [] aValues)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (OffsetDateTime.ofInstant (Instant.ofEpochMilli (nMillis),
+                                                                           ZoneOffset.UTC))
+                              .direction (eDirection)
+                              .c2ID (aValues[1])
+                              .c3ID (aValues[2])
+                              .docTypeIDScheme (aValues[3])
+                              .docTypeIDValue (aValues[4])
+                              .processIDScheme (aValues[5])
+                              .processIDValue (aValues[6])
+                              .transportProtocol (aValues[7])
+                              .c1CountryCode (aValues[8])
+                              .c4CountryCode (aValues[9])
+                              .endUserID (aValues[10])
+                              .build ();
+  }
+
+  /**
+   * Read the records of a segment.
+   *
+   * @param aBB
+   *        The mapped segment, positioned after the header and limited to the end of the records.
+   * @param bVerify
+   *        <code>true</code> to check the CRC of each record and to stop at the first invalid
+   *        record, <code>false</code> to trust the data.
+   * @param nFromMillisIncl
+   *        Start of the range of the items to pass to the consumer.
+   * @param nToMillisExcl
+   *        End of the range of the items to pass to the consumer.
+   * @param aConsumer
+   *        The consumer of the items. May be <code>null</code>.
+   * @return The summary of all valid records. Never <code>null</code>.
+   * @throws IOException
+   *         If the data is invalid and not verified
+   */
+  @Nonnull
+  private static Footer _scan (@Nonnull final ByteBuffer aBB,
+                               final boolean bVerify,
+                               final long nFromMillisIncl,
+                               final long nToMillisExcl,
+                               @Nullable final Consumer <? super PeppolReportingItem> aConsumer) throws IOException
+  {
+    final List <String> aDictionary = new ArrayList <> ();
+    // ID 0 is null
+    aDictionary.add (null);
+    final String [] aValues = new String [VALUE_COUNT];
+    final CRC32 aCRC = bVerify ? new CRC32 () : null;
+    long nItemCount = 0;
+    long nMinMillis = Long.MAX_VALUE;
+    long nMaxMillis = Long.MIN_VALUE;
+    int nValidEnd = aBB.position ();
+
+    try
+    {
+      while (aBB.hasRemaining ())
+      {
+        final long nLength = _readVarLong (aBB);
+        final int nStart = aBB.position ();
+        if (nLength <= 0 || nStart + nLength + 4 > aBB.limit ())
+          throw new IOException ("Invalid record length " + nLength);
+        final int nEnd = nStart + (int) nLength;
+
+        if (aCRC != null)
+        {
+          aCRC.reset ();
+          final ByteBuffer aPayload = aBB.duplicate ();
+          aPayload.limit (nEnd);
+          aCRC.update (aPayload);
+          if ((int) aCRC.getValue () != aBB.getInt (nEnd))
+            throw new IOException ("CRC mismatch");
+        }
+
+        final byte nType = aBB.get ();
+        if (nType == RECORD_DICTIONARY)
+        {
+          final long nID = _readVarLong (aBB);
+          if (nID != aDictionary.size ())
+            throw new IOException ("Unexpected dictionary ID " + nID);
+          final byte [] aBytes = new byte [nEnd - aBB.position ()];
+          aBB.get (aBytes);
+          aDictionary.add (new String (aBytes, StandardCharsets.UTF_8));
+        }
+        else
+          if (nType == RECORD_ITEM)
+          {
+            final long nMillis = _readVarLong (aBB);
+            for (int i = 0; i < VALUE_COUNT; ++i)
+              aValues[i] = aDictionary.get ((int) _readVarLong (aBB));
+            if (aBB.position () != nEnd)
+              throw new IOException ("Invalid item record");
+
+            nItemCount++;
+            nMinMillis = Math.min (nMinMillis, nMillis);
+            nMaxMillis = Math.max (nMaxMillis, nMillis);
+            if (aConsumer != null && nMillis >= nFromMillisIncl && nMillis < nToMillisExcl)
+            {
+              final EReportingDirection eDirection = EReportingDirection.getFromIDOrNull (aValues[0]);
+              if (eDirection == null)
+                throw new IOException ("Invalid reporting direction '" + aValues[0] + "'");
+              aConsumer.accept (_createItem (nMillis, eDirection, aValues));
+            }
+          }
+          else
+            throw new IOException ("Invalid record type " + nType);
+
+        // Skip the CRC
+        aBB.position (nEnd + 4);
+        nValidEnd = nEnd + 4;
+      }
+    }
+    catch (final IOException | BufferUnderflowException | IndexOutOfBoundsException ex)
+    {
+      if (!bVerify)
+        throw ex instanceof IOException ? (IOException) ex : new IOException ("Truncated record", ex);
+      // Verifying: everything from here on is ignored
+    }
+    return new Footer (nItemCount, nMinMillis, nMaxMillis, nValidEnd);
+  }
+
+  private static void _checkHeader (@Nonnull final ByteBuffer aBB, @Nonnull final File aFile) throws IOException
+  {
+    if (aBB.limit () < HEADER_SIZE || aBB.getInt () != HEADER_MAGIC)
+      throw new IOException ("The file " + aFile.getAbsolutePath () + " is not a reporting segment");
+    final int nVersion = aBB.getInt ();
+    if (nVersion != VERSION)
+      throw new IOException ("Unsupported version " + nVersion + " of " + aFile.getAbsolutePath ());
+  }
+
+  /**
+   * Pass all items of a segment in the provided range to the consumer.
+   *
+   * @param aFile
+   *        The segment file. May not be <code>null</code>.
+   * @param nDataEnd
+   *        The end of the records to read.
+   * @param nFromMillisIncl
+   *        Start of the range.
+   * @param nToMillisExcl
+   *        End of the range.
+   * @param aConsumer
+   *        The consumer of the items. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  static void read (@Nonnull final File aFile,
+                    @Nonnegative final long nDataEnd,
+                    final long nFromMillisIncl,
+                    final long nToMillisExcl,
+                    @Nonnull final Consumer <? super PeppolReportingItem> aConsumer) throws IOException
+  {
+    try (final FileChannel aFC = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+    {
+      final MappedByteBuffer aBB = aFC.map (FileChannel.MapMode.READ_ONLY, 0, nDataEnd);
+      _checkHeader (aBB, aFile);
+      _scan (aBB, false, nFromMillisIncl, nToMillisExcl, aConsumer);
+    }
+  }
+
+  /**
+   * Complete a segment that was not closed, e.g. because the application terminated. All records
+   * after the last valid one are removed.
+   *
+   * @param aFile
+   *        The segment file. May not be <code>null</code>.
+   * @return The footer of the completed segment. Never <code>null</code>.
+   * @throws IOException
+   *         In case of an error
+   */
+  @Nonnull
+  static Footer recover (@Nonnull final File aFile) throws IOException
+  {
+    try (final FileChannel aFC = FileChannel.open (aFile.toPath (), StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      final Footer ret;
+      if (aFC.size () < HEADER_SIZE)
+      {
+        // Not even the header was written
+        _writeFully (aFC, ByteBuffer.allocate (HEADER_SIZE).putInt (HEADER_MAGIC).putInt (VERSION).flip (), 0);
+        ret = new Footer (0, Long.MAX_VALUE, Long.MIN_VALUE, HEADER_SIZE);
+      }
+      else
+      {
+        final MappedByteBuffer aBB = aFC.map (FileChannel.MapMode.READ_ONLY, 0, aFC.size ());
+        _checkHeader (aBB, aFile);
+        ret = _scan (aBB, true, 0, 0, null);
+      }
+      _writeFooter (aFC, ret);
+      return ret;
+    }
+  }
+}
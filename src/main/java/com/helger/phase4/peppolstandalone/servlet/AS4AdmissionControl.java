@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * Admission control for inbound AS4 requests. It limits the number of requests processed in
+ * parallel as well as the sum of their sizes. Requests that cannot be admitted immediately wait a
+ * short time in a bounded queue. If there is still no room after that time, or if the queue is
+ * full, the request is shed, so that the sending AP can retry later instead of waiting for a
+ * timeout.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AS4AdmissionControl
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (AS4AdmissionControl.class);
+
+  /** The assumed size of requests without a Content-Length (chunked transfer encoding) */
+  static final long UNKNOWN_REQUEST_BYTES = 1024L * 1024;
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static AS4AdmissionControl s_aInstance;
+
+  private final int m_nMaxConcurrent;
+  private final long m_nMaxInFlightBytes;
+  private final int m_nMaxQueueLength;
+  private final long m_nMaxQueueWaitMillis;
+
+  // Fair, so that waiting requests are admitted roughly in the order of arrival
+  private final ReentrantLock m_aLock = new ReentrantLock (true);
+  private final Condition m_aReleased = m_aLock.newCondition ();
+  @GuardedBy ("m_aLock")
+  private int m_nActive = 0;
+  @GuardedBy ("m_aLock")
+  private long m_nActiveBytes = 0;
+  @GuardedBy ("m_aLock")
+  private int m_nQueued = 0;
+
+  private final AtomicLong m_aAdmittedCount = new AtomicLong ();
+  private final AtomicLong m_aQueuedCount = new AtomicLong ();
+  private final AtomicLong m_aShedQueueFullCount = new AtomicLong ();
+  private final AtomicLong m_aShedTimeoutCount = new AtomicLong ();
+  private final AtomicLong m_aQueueWaitMillisTotal = new AtomicLong ();
+
+  AS4AdmissionControl (@Nonnegative final int nMaxConcurrent,
+                       @Nonnegative final long nMaxInFlightBytes,
+                       @Nonnegative final int nMaxQueueLength,
+                       @Nonnegative final long nMaxQueueWaitMillis)
+  {
+    ValueEnforcer.isGT0 (nMaxConcurrent, "MaxConcurrent");
+    ValueEnforcer.isGT0 (nMaxInFlightBytes, "MaxInFlightBytes");
+    ValueEnforcer.isGE0 (nMaxQueueLength, "MaxQueueLength");
+    ValueEnforcer.isGE0 (nMaxQueueWaitMillis, "MaxQueueWaitMillis");
+    m_nMaxConcurrent = nMaxConcurrent;
+    m_nMaxInFlightBytes = nMaxInFlightBytes;
+    m_nMaxQueueLength = nMaxQueueLength;
+    m_nMaxQueueWaitMillis = nMaxQueueWaitMillis;
+  }
+
+  /**
+   * A request that was admitted. Must be released after processing.
+   *
+   * @author Philip Helger
+   */
+  public final class Permit implements AutoCloseable
+  {
+    private final long m_nBytes;
+    private boolean m_bReleased = false;
+
+    Permit (final long nBytes)
+    {
+      m_nBytes = nBytes;
+    }
+
+    /**
+     * @return The number of bytes reserved for this request.
+     */
+    public long getBytes ()
+    {
+      return m_nBytes;
+    }
+
+    /**
+     * Release the permit. Calling it more than once has no effect.
+     */
+    public void close ()
+    {
+      if (!m_bReleased)
+      {
+        m_bReleased = true;
+        _release (m_nBytes);
+      }
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _tryReserve (final long nBytes)
+  {
+    // A request that is larger than the whole budget is admitted if nothing else is in flight,
+    // otherwise it would never be admitted
+    if (m_nActive < m_nMaxConcurrent && (m_nActive == 0 || m_nActiveBytes + nBytes <= m_nMaxInFlightBytes))
+    {
+      m_nActive++;
+      m_nActiveBytes += nBytes;
+      return true;
+    }
+    return false;
+  }
+
+  private void _release (final long nBytes)
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_nActive--;
+      m_nActiveBytes -= nBytes;
+      // Requests have different sizes, so every waiting request must check again
+      m_aReleased.signalAll ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Try to admit a request. If there is no room right now, the calling thread waits at most the
+   * configured queue time.
+   *
+   * @param nContentLength
+   *        The Content-Length of the request. Negative if unknown.
+   * @return The permit to be closed after processing, or <code>null</code> if the request was shed.
+   * @throws InterruptedException
+   *         If the calling thread was interrupted while waiting
+   */
+  @Nullable
+  public Permit tryAdmit (final long nContentLength) throws InterruptedException
+  {
+    final long nBytes = nContentLength < 0 ? UNKNOWN_REQUEST_BYTES : nContentLength;
+
+    m_aLock.lock ();
+    try
+    {
+      // Don't overtake requests that are already waiting
+      if (m_nQueued == 0 && _tryReserve (nBytes))
+      {
+        m_aAdmittedCount.incrementAndGet ();
+        return new Permit (nBytes);
+      }
+
+      if (m_nQueued >= m_nMaxQueueLength)
+      {
+        m_aShedQueueFullCount.incrementAndGet ();
+        return null;
+      }
+
+      m_nQueued++;
+      m_aQueuedCount.incrementAndGet ();
+      final long nStart = System.nanoTime ();
+      try
+      {
+        long nRemainingNanos = TimeUnit.MILLISECONDS.toNanos (m_nMaxQueueWaitMillis);
+        while (!_tryReserve (nBytes))
+        {
+          if (nRemainingNanos <= 0)
+          {
+            m_aShedTimeoutCount.incrementAndGet ();
+            return null;
+          }
+          nRemainingNanos = m_aReleased.awaitNanos (nRemainingNanos);
+        }
+        m_aAdmittedCount.incrementAndGet ();
+        return new Permit (nBytes);
+      }
+      finally
+      {
+        m_nQueued--;
+        m_aQueueWaitMillisTotal.addAndGet (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart));
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The current state and the counters since startup. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    m_aLock.lock ();
+    try
+    {
+      ret.put ("active", Integer.valueOf (m_nActive));
+      ret.put ("activeBytes", Long.valueOf (m_nActiveBytes));
+      ret.put ("queued", Integer.valueOf (m_nQueued));
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    ret.put ("maxConcurrent", Integer.valueOf (m_nMaxConcurrent));
+    ret.put ("maxInFlightBytes", Long.valueOf (m_nMaxInFlightBytes));
+    ret.put ("maxQueueLength", Integer.valueOf (m_nMaxQueueLength));
+    ret.put ("maxQueueWaitMillis", Long.valueOf (m_nMaxQueueWaitMillis));
+    ret.put ("admittedCount", Long.valueOf (m_aAdmittedCount.get ()));
+    ret.put ("queuedCount", Long.valueOf (m_aQueuedCount.get ()));
+    ret.put ("shedQueueFullCount", Long.valueOf (m_aShedQueueFullCount.get ()));
+    ret.put ("shedTimeoutCount", Long.valueOf (m_aShedTimeoutCount.get ()));
+    ret.put ("queueWaitMillisTotal", Long.valueOf (m_aQueueWaitMillisTotal.get ()));
+    return ret;
+  }
+
+  /**
+   * Create the application wide instance from the configuration, if admission control is enabled.
+   */
+  public static void init ()
+  {
+    if (!APConfig.isInboundAdmissionEnabled ())
+    {
+      LOGGER.info ("Admission control for inbound AS4 requests is disabled");
+      return;
+    }
+
+    final AS4AdmissionControl aInstance = new AS4AdmissionControl (APConfig.getInboundAdmissionMaxConcurrent (),
+                                                                   APConfig.getInboundAdmissionMaxInFlightBytes (),
+                                                                   APConfig.getInboundAdmissionQueueMaxLength (),
+                                                                   APConfig.getInboundAdmissionQueueMaxWaitMillis ());
+    RW_LOCK.writeLocked ( () -> s_aInstance = aInstance);
+    LOGGER.info ("Admission control for inbound AS4 requests allows " +
+                 aInstance.m_nMaxConcurrent +
+                 " concurrent requests with at most " +
+                 aInstance.m_nMaxInFlightBytes +
+                 " bytes and queues at most " +
+                 aInstance.m_nMaxQueueLength +
+                 " requests for at most " +
+                 aInstance.m_nMaxQueueWaitMillis +
+                 " ms");
+  }
+
+  /**
+   * @return The application wide instance or <code>null</code> if admission control is disabled.
+   */
+  @Nullable
+  public static AS4AdmissionControl getInstanceIfEnabled ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Forget the application wide instance. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    RW_LOCK.writeLocked ( () -> s_aInstance = null);
+  }
+}
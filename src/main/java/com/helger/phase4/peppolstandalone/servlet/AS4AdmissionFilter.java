@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet filter in front of the AS4 servlet, that applies the {@link AS4AdmissionControl} to all
+ * POST requests. Shed requests are answered with HTTP 503 and a <code>Retry-After</code> header,
+ * before the AS4 message is read.
+ *
+ * @author Philip Helger
+ */
+public class AS4AdmissionFilter implements Filter
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (AS4AdmissionFilter.class);
+
+  public void doFilter (final ServletRequest aRequest,
+                        final ServletResponse aResponse,
+                        final FilterChain aChain) throws IOException, ServletException
+  {
+    final AS4AdmissionControl aAdmissionControl = AS4AdmissionControl.getInstanceIfEnabled ();
+    if (aAdmissionControl == null ||
+        !(aRequest instanceof HttpServletRequest) ||
+        !"POST".equals (((HttpServletRequest) aRequest).getMethod ()))
+    {
+      aChain.doFilter (aRequest, aResponse);
+      return;
+    }
+
+    final AS4AdmissionControl.Permit aPermit;
+    try
+    {
+      aPermit = aAdmissionControl.tryAdmit (aRequest.getContentLengthLong ());
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new ServletException ("Interrupted while waiting for admission", ex);
+    }
+
+    if (aPermit == null)
+    {
+      LOGGER.warn ("Rejecting inbound AS4 request from '" + aRequest.getRemoteAddr () + "' because the AP is saturated");
+      final HttpServletResponse aHttpResponse = (HttpServletResponse) aResponse;
+      aHttpResponse.setHeader ("Retry-After", Long.toString (APConfig.getInboundAdmissionRetryAfterSeconds ()));
+      aHttpResponse.sendError (HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent requests");
+      return;
+    }
+
+    try
+    {
+      aChain.doFilter (aRequest, aResponse);
+    }
+    finally
+    {
+      aPermit.close ();
+    }
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.crypto.AS4CryptoFactoryInMemoryKeyStore;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.AppThreadFactory;
+
+/**
+ * Holds the crypto factory used for all inbound and outbound AS4 messages. It is created once, so
+ * that the key store and trust store are only parsed upon startup. If the key store or trust store
+ * files are changed (e.g. on certificate renewal), a new crypto factory is created and atomically
+ * replaces the previous one, without a restart. Messages that are currently processed continue to
+ * use the previous crypto factory.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class CryptoFactoryHolder
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (CryptoFactoryHolder.class);
+
+  private static final String [] WATCHED_CONFIG_KEYS = { "org.apache.wss4j.crypto.merlin.keystore.file",
+                                                         "org.apache.wss4j.crypto.merlin.truststore.file" };
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static CryptoFactoryHolder s_aInstance;
+
+  private final Supplier <? extends AS4CryptoFactoryInMemoryKeyStore> m_aCreator;
+  private final Consumer <? super AS4CryptoFactoryInMemoryKeyStore> m_aReloadCallback;
+  private final List <File> m_aWatchedFiles;
+  private volatile AS4CryptoFactoryInMemoryKeyStore m_aCryptoFactory;
+  // Only accessed from the reload thread
+  private String m_sLastStamp;
+  private final AtomicLong m_aReloadCount = new AtomicLong ();
+  private final AtomicLong m_aReloadFailureCount = new AtomicLong ();
+  private volatile long m_nLastReloadMillis;
+  private ScheduledExecutorService m_aWatcher;
+
+  CryptoFactoryHolder (@Nonnull final Supplier <? extends AS4CryptoFactoryInMemoryKeyStore> aCreator,
+                               @Nonnull final Consumer <? super AS4CryptoFactoryInMemoryKeyStore> aReloadCallback,
+                               @Nonnull final List <File> aWatchedFiles)
+  {
+    m_aCreator = aCreator;
+    m_aReloadCallback = aReloadCallback;
+    m_aWatchedFiles = aWatchedFiles;
+  }
+
+  @Nullable
+  private static String _getUsabilityError (@Nonnull final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory)
+  {
+    if (aCryptoFactory.getKeyStore () == null)
+      return "Failed to load configured AS4 Key store";
+    if (aCryptoFactory.getPrivateKeyEntry () == null)
+      return "Failed to load configured AS4 private key";
+    return null;
+  }
+
+  /**
+   * @return The stamp of all watched files. Changes if any of the files was modified or replaced.
+   */
+  @Nonnull
+  private String _getStamp ()
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    for (final File aFile : m_aWatchedFiles)
+    {
+      String sRealPath;
+      try
+      {
+        // Detects replaced symbolic links as used e.g. by Kubernetes secrets
+        sRealPath = aFile.toPath ().toRealPath ().toString ();
+      }
+      catch (final IOException ex)
+      {
+        sRealPath = aFile.getAbsolutePath ();
+      }
+      aSB.append (sRealPath).append ('|').append (aFile.lastModified ()).append ('|').append (aFile.length ()).append ('\n');
+    }
+    return aSB.toString ();
+  }
+
+  /**
+   * Create the initial crypto factory.
+   *
+   * @throws InitializationException
+   *         If the initial crypto factory cannot be used
+   */
+  void open ()
+  {
+    m_sLastStamp = _getStamp ();
+    final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory = m_aCreator.get ();
+    final String sError = _getUsabilityError (aCryptoFactory);
+    if (sError != null)
+      throw new InitializationException (sError + " - fix the configuration");
+    m_aCryptoFactory = aCryptoFactory;
+  }
+
+  /**
+   * Reload the crypto factory if any of the watched files changed. Called regularly by the watcher.
+   */
+  void checkForChanges ()
+  {
+    final String sStamp = _getStamp ();
+    if (!sStamp.equals (m_sLastStamp))
+    {
+      // The stamp is only remembered after a successful reload, so that a partially written file is
+      // tried again next time
+      if (reload ())
+        m_sLastStamp = sStamp;
+    }
+  }
+
+  /**
+   * Create a new crypto factory and use it, if the key store and the private key can be loaded.
+   * Otherwise the previous crypto factory stays active.
+   *
+   * @return <code>true</code> if the new crypto factory is used, <code>false</code> if not.
+   */
+  public boolean reload ()
+  {
+    try
+    {
+      final AS4CryptoFactoryInMemoryKeyStore aNewCryptoFactory = m_aCreator.get ();
+      final String sError = _getUsabilityError (aNewCryptoFactory);
+      if (sError != null)
+      {
+        m_aReloadFailureCount.incrementAndGet ();
+        LOGGER.error (sError + " - keeping the previous crypto factory");
+        return false;
+      }
+
+      m_aCryptoFactory = aNewCryptoFactory;
+      m_aReloadCount.incrementAndGet ();
+      m_nLastReloadMillis = System.currentTimeMillis ();
+      m_aReloadCallback.accept (aNewCryptoFactory);
+      LOGGER.info ("Successfully reloaded the AS4 crypto factory");
+      return true;
+    }
+    catch (final RuntimeException ex)
+    {
+      m_aReloadFailureCount.incrementAndGet ();
+      LOGGER.error ("Failed to reload the AS4 crypto factory - keeping the previous one", ex);
+      return false;
+    }
+  }
+
+  /**
+   * @return The crypto factory to use. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4CryptoFactoryInMemoryKeyStore getCryptoFactory ()
+  {
+    return m_aCryptoFactory;
+  }
+
+  /**
+   * @return The watched files and the reload counters. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, Object> getStatistics ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    final List <String> aFiles = new ArrayList <> ();
+    for (final File aFile : m_aWatchedFiles)
+      aFiles.add (aFile.getAbsolutePath ());
+    ret.put ("watchedFiles", aFiles);
+    ret.put ("reloadCount", Long.valueOf (m_aReloadCount.get ()));
+    ret.put ("reloadFailureCount", Long.valueOf (m_aReloadFailureCount.get ()));
+    ret.put ("lastReloadMillis", Long.valueOf (m_nLastReloadMillis));
+    return ret;
+  }
+
+  @Nullable
+  private static File _resolveFile (@Nullable final String sPath)
+  {
+    if (StringHelper.hasNoText (sPath))
+      return null;
+    final File aFile = new File (sPath);
+    if (aFile.isFile ())
+      return aFile;
+    // Only works for class path resources that are not part of a JAR file
+    final File aCPFile = new ClassPathResource (sPath).getAsFile ();
+    if (aCPFile != null && aCPFile.isFile ())
+      return aCPFile;
+    return null;
+  }
+
+  /**
+   * Create the crypto factory and start watching the key store and trust store files, if enabled.
+   *
+   * @param aCreator
+   *        Creates a new crypto factory from the current state of the files. Called upon startup
+   *        and after each change. May not be <code>null</code>.
+   * @param aReloadCallback
+   *        Invoked after a changed crypto factory is used. Not invoked for the initial one. May not
+   *        be <code>null</code>.
+   * @throws InitializationException
+   *         If the initial crypto factory cannot be used
+   */
+  public static void init (@Nonnull final Supplier <? extends AS4CryptoFactoryInMemoryKeyStore> aCreator,
+                           @Nonnull final Consumer <? super AS4CryptoFactoryInMemoryKeyStore> aReloadCallback)
+  {
+    final List <File> aWatchedFiles = new ArrayList <> ();
+    for (final String sKey : WATCHED_CONFIG_KEYS)
+    {
+      final String sPath = AS4Configuration.getConfig ().getAsString (sKey);
+      final File aFile = _resolveFile (sPath);
+      if (aFile != null)
+        aWatchedFiles.add (aFile);
+      else
+        if (StringHelper.hasText (sPath))
+          LOGGER.warn ("The file '" + sPath + "' of '" + sKey + "' cannot be watched for changes");
+    }
+
+    final CryptoFactoryHolder aInstance = new CryptoFactoryHolder (aCreator, aReloadCallback, aWatchedFiles);
+    aInstance.open ();
+
+    final long nCheckSeconds = APConfig.getCryptoReloadCheckSeconds ();
+    if (APConfig.isCryptoReloadEnabled () && nCheckSeconds > 0 && !aWatchedFiles.isEmpty ())
+    {
+      aInstance.m_aWatcher = Executors.newSingleThreadScheduledExecutor (new AppThreadFactory ("phase4-crypto-watcher"));
+      aInstance.m_aWatcher.scheduleWithFixedDelay (aInstance::checkForChanges,
+                                                   nCheckSeconds,
+                                                   nCheckSeconds,
+                                                   TimeUnit.SECONDS);
+      LOGGER.info ("Checking " + aWatchedFiles + " for changes every " + nCheckSeconds + " seconds");
+    }
+
+    RW_LOCK.writeLocked ( () -> s_aInstance = aInstance);
+  }
+
+  /**
+   * @return The application wide instance. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If {@link #init(Supplier, Consumer)} was not called
+   */
+  @Nonnull
+  public static CryptoFactoryHolder getInstance ()
+  {
+    final CryptoFactoryHolder ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+      throw new IllegalStateException ("The crypto factory holder was not initialized");
+    return ret;
+  }
+
+  /**
+   * @return The application wide instance if it was already initialized, <code>null</code>
+   *         otherwise.
+   */
+  @Nullable
+  public static CryptoFactoryHolder getInstanceIfInitialized ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+
+  /**
+   * Stop watching the files. Must be called upon application shutdown.
+   */
+  public static void shutdown ()
+  {
+    final CryptoFactoryHolder aInstance = RW_LOCK.writeLockedGet ( () -> {
+      final CryptoFactoryHolder ret = s_aInstance;
+      s_aInstance = null;
+      return ret;
+    });
+    if (aInstance != null && aInstance.m_aWatcher != null)
+      aInstance.m_aWatcher.shutdownNow ();
+  }
+}
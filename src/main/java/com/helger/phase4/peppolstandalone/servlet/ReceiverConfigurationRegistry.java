@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.string.StringHelper;
+import com.helger.config.fallback.IConfigWithFallback;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
+import com.helger.phase4.peppol.servlet.Phase4PeppolReceiverConfiguration;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.inbound.ReceiverCheckSMPCache;
+import com.helger.security.certificate.CertificateHelper;
+
+/**
+ * The Peppol receiver configurations of all AP identities (tenants) hosted by this AP, e.g. a test
+ * and a production AP behind different host names. The configurations are built once from the
+ * configuration, including the parsed AP certificates and the (cached) SMP clients. An inbound
+ * request selects its configuration by host name and the longest matching path, with one hash
+ * lookup per path segment.
+ * Requests not matching any tenant use the {@link Phase4PeppolDefaultReceiverConfiguration}.<br>
+ * The tenants are defined by the configuration property <code>inbound.tenants</code> (comma
+ * separated list of IDs), and for each ID the properties <code>inbound.tenant.[id].host</code>,
+ * <code>.path</code> (optional), <code>.as4url</code>, <code>.smp.url</code> and
+ * <code>.certificate.file</code>.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class ReceiverConfigurationRegistry
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReceiverConfigurationRegistry.class);
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static ReceiverConfigurationRegistry s_aInstance;
+
+  // Never modified, only replaced as a whole
+  private volatile Map <String, Phase4PeppolReceiverConfiguration> m_aMap = Collections.emptyMap ();
+  private volatile Map <String, String> m_aTenantKeys = Collections.emptyMap ();
+
+  private ReceiverConfigurationRegistry ()
+  {}
+
+  /**
+   * Normalize a path so that it starts with a slash and does not end with a slash.
+   *
+   * @param sPath
+   *        The path to normalize. May be <code>null</code>.
+   * @return <code>null</code> if the path is empty or only consists of slashes.
+   */
+  @Nullable
+  static String normalizePath (@Nullable final String sPath)
+  {
+    if (sPath == null)
+      return null;
+    final String sTrimmed = sPath.trim ();
+    int nEnd = sTrimmed.length ();
+    while (nEnd > 0 && sTrimmed.charAt (nEnd - 1) == '/')
+      nEnd--;
+    if (nEnd == 0)
+      return null;
+    final String ret = sTrimmed.substring (0, nEnd);
+    return ret.charAt (0) == '/' ? ret : "/" + ret;
+  }
+
+  @Nonnull
+  static String getKey (@Nonnull final String sHost, @Nullable final String sPath)
+  {
+    final String sHostLC = sHost.toLowerCase (Locale.ROOT);
+    final String sNormalizedPath = normalizePath (sPath);
+    return sNormalizedPath != null ? sHostLC + sNormalizedPath : sHostLC;
+  }
+
+  /**
+   * Find the entry with the longest path that is a prefix of the provided path, comparing whole
+   * path segments only. The entry without a path is the fallback.
+   *
+   * @param <T>
+   *        Value type
+   * @param aMap
+   *        The map from {@link #getKey(String, String)} to the value. May not be <code>null</code>.
+   * @param sHost
+   *        The host name. May not be <code>null</code>.
+   * @param sPath
+   *        The path. May be <code>null</code>.
+   * @return <code>null</code> if nothing matches.
+   */
+  @Nullable
+  static <T> T getLongestPathMatch (@Nonnull final Map <String, T> aMap,
+                                    @Nonnull final String sHost,
+                                    @Nullable final String sPath)
+  {
+    // One lookup per path segment - "/as4/test/x" tries "/as4/test/x", "/as4/test" and "/as4"
+    String sCurPath = normalizePath (sPath);
+    while (sCurPath != null)
+    {
+      final T ret = aMap.get (getKey (sHost, sCurPath));
+      if (ret != null)
+        return ret;
+      final int nLastSlash = sCurPath.lastIndexOf ('/');
+      sCurPath = nLastSlash > 0 ? sCurPath.substring (0, nLastSlash) : null;
+    }
+    return aMap.get (getKey (sHost, null));
+  }
+
+  @Nonnull
+  private static X509Certificate _readCertificate (@Nonnull final String sTenantID, @Nonnull final String sPath)
+  {
+    File aFile = new File (sPath);
+    if (!aFile.isFile ())
+      aFile = new ClassPathResource (sPath).getAsFile ();
+    final String sPEM = aFile == null ? null : SimpleFileIO.getFileAsString (aFile, StandardCharsets.UTF_8);
+    if (sPEM == null)
+      throw new IllegalStateException ("Failed to read the AP certificate '" + sPath + "' of tenant '" + sTenantID + "'");
+    final X509Certificate ret = CertificateHelper.convertStringToCertficateOrNull (sPEM);
+    if (ret == null)
+      throw new IllegalStateException ("Failed to parse the AP certificate '" +
+                                       sPath +
+                                       "' of tenant '" +
+                                       sTenantID +
+                                       "'");
+    return ret;
+  }
+
+  @Nonnull
+  private static String _getMandatory (@Nonnull final IConfigWithFallback aConfig,
+                                       @Nonnull final String sTenantID,
+                                       @Nonnull final String sName)
+  {
+    final String sKey = "inbound.tenant." + sTenantID + "." + sName;
+    final String ret = aConfig.getAsString (sKey);
+    if (StringHelper.hasNoText (ret))
+      throw new IllegalStateException ("The configuration property '" + sKey + "' is missing");
+    return ret.trim ();
+  }
+
+  /**
+   * Build all tenant configurations from the current configuration and replace the previous ones
+   * atomically. If any tenant is invalid, the previous configurations stay active.
+   *
+   * @return The number of configured tenants.
+   * @throws IllegalStateException
+   *         If a tenant configuration is invalid
+   */
+  public int reload ()
+  {
+    final IConfigWithFallback aConfig = APConfig.getConfig ();
+    final Map <String, Phase4PeppolReceiverConfiguration> aMap = new HashMap <> ();
+    final Map <String, String> aTenantKeys = new LinkedHashMap <> ();
+    for (final String sTenantIDRaw : StringHelper.getExplodedArray (',', aConfig.getAsString ("inbound.tenants", "")))
+    {
+      final String sTenantID = sTenantIDRaw.trim ();
+      if (sTenantID.isEmpty ())
+        continue;
+
+      final String sHost = _getMandatory (aConfig, sTenantID, "host");
+      final String sPath = aConfig.getAsString ("inbound.tenant." + sTenantID + ".path");
+      final String sAS4URL = _getMandatory (aConfig, sTenantID, "as4url");
+      final String sSMPURL = _getMandatory (aConfig, sTenantID, "smp.url");
+      final X509Certificate aAPCert = _readCertificate (sTenantID, _getMandatory (aConfig, sTenantID, "certificate.file"));
+
+      final Phase4PeppolReceiverConfiguration aReceiverConfig = Phase4PeppolReceiverConfiguration.builder ()
+                                                                                                 .receiverCheckEnabled (true)
+                                                                                                 .serviceMetadataProvider (ReceiverCheckSMPCache.getProvider (sSMPURL))
+                                                                                                 .as4EndpointUrl (sAS4URL)
+                                                                                                 .apCertificate (aAPCert)
+                                                                                                 .sbdhIdentifierFactoryPeppol ()
+                                                                                                 .performSBDHValueChecks (Phase4PeppolDefaultReceiverConfiguration.isPerformSBDHValueChecks ())
+                                                                                                 .checkSBDHForMandatoryCountryC1 (Phase4PeppolDefaultReceiverConfiguration.isCheckSBDHForMandatoryCountryC1 ())
+                                                                                                 .checkSigningCertificateRevocation (Phase4PeppolDefaultReceiverConfiguration.isCheckSigningCertificateRevocation ())
+                                                                                                 .build ();
+      final String sKey = getKey (sHost.trim (), sPath);
+      if (aMap.put (sKey, aReceiverConfig) != null)
+        throw new IllegalStateException ("The tenant '" + sTenantID + "' uses the same host and path as another tenant");
+      aTenantKeys.put (sTenantID, sKey);
+    }
+
+    m_aMap = aMap;
+    m_aTenantKeys = aTenantKeys;
+    if (aTenantKeys.isEmpty ())
+      LOGGER.info ("No inbound tenants are configured - using the default receiver configuration");
+    else
+      LOGGER.info ("Loaded the receiver configurations of the inbound tenants " + aTenantKeys);
+    return aTenantKeys.size ();
+  }
+
+  /**
+   * Find the receiver configuration of an inbound request. The configuration with the longest path
+   * that is a prefix of the request path (on path segment boundaries) is used, so e.g. the path
+   * <code>/as4/test</code> also matches <code>/as4/test/</code> and <code>/as4/test/x</code>.
+   * Configurations without a path are only used if no path matches.
+   *
+   * @param sHost
+   *        The host name the request was sent to. May be <code>null</code>.
+   * @param sPath
+   *        The path of the request URL. May be <code>null</code>.
+   * @return <code>null</code> if no tenant matches.
+   */
+  @Nullable
+  public Phase4PeppolReceiverConfiguration getReceiverConfiguration (@Nullable final String sHost,
+                                                                     @Nullable final String sPath)
+  {
+    final Map <String, Phase4PeppolReceiverConfiguration> aMap = m_aMap;
+    if (aMap.isEmpty () || sHost == null)
+      return null;
+    return getLongestPathMatch (aMap, sHost, sPath);
+  }
+
+  /**
+   * @return The tenant IDs and their host and path. Never <code>null</code>.
+   */
+  @Nonnull
+  public Map <String, String> getTenants ()
+  {
+    return m_aTenantKeys;
+  }
+
+  /**
+   * Load the tenants from the configuration.
+   *
+   * @throws IllegalStateException
+   *         If a tenant configuration is invalid
+   */
+  public static void init ()
+  {
+    final ReceiverConfigurationRegistry aInstance = new ReceiverConfigurationRegistry ();
+    aInstance.reload ();
+    RW_LOCK.writeLocked ( () -> s_aInstance = aInstance);
+  }
+
+  /**
+   * @return The application wide instance. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If {@link #init()} was not called
+   */
+  @Nonnull
+  public static ReceiverConfigurationRegistry getInstance ()
+  {
+    final ReceiverConfigurationRegistry ret = RW_LOCK.readLockedGet ( () -> s_aInstance);
+    if (ret == null)
+      throw new IllegalStateException ("The receiver configuration registry was not initialized");
+    return ret;
+  }
+
+  /**
+   * @return The application wide instance if it was already initialized, <code>null</code>
+   *         otherwise.
+   */
+  @Nullable
+  public static ReceiverConfigurationRegistry getInstanceIfInitialized ()
+  {
+    return RW_LOCK.readLockedGet ( () -> s_aInstance);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * Actuator endpoint <code>/actuator/inboundtenants</code> showing the host and path of all inbound
+ * tenants. A <code>POST</code> request re-reads the configuration files and replaces the tenant
+ * configurations.
+ *
+ * @author Philip Helger
+ */
+@Component
+@Endpoint (id = "inboundtenants")
+public class ReceiverConfigurationsEndpoint
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReceiverConfigurationsEndpoint.class);
+
+  @ReadOperation
+  public Map <String, Object> getTenants ()
+  {
+    final ReceiverConfigurationRegistry aRegistry = ReceiverConfigurationRegistry.getInstanceIfInitialized ();
+    if (aRegistry == null)
+      return Collections.emptyMap ();
+    return new LinkedHashMap <> (aRegistry.getTenants ());
+  }
+
+  @WriteOperation
+  public Map <String, Object> reload ()
+  {
+    final ReceiverConfigurationRegistry aRegistry = ReceiverConfigurationRegistry.getInstanceIfInitialized ();
+    if (aRegistry == null)
+      return Collections.emptyMap ();
+
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    try
+    {
+      APConfig.getConfig ().reloadAllResourceBasedConfigurationValues ();
+      ret.put ("tenants", Integer.valueOf (aRegistry.reload ()));
+    }
+    catch (final RuntimeException ex)
+    {
+      LOGGER.error ("Failed to reload the inbound tenants - keeping the previous ones", ex);
+      ret.put ("error", ex.getMessage ());
+    }
+    return ret;
+  }
+}
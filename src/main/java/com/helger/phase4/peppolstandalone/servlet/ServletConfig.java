@@ -25,6 +25,7 @@ import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.bridge.SLF4JBridgeHandler;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -35,7 +36,6 @@ import com.helger.commons.exception.InitializationException;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.state.ETriState;
 import com.helger.commons.string.StringHelper;
-import com.helger.commons.url.URLHelper;
 import com.helger.httpclient.HttpDebugger;
 import com.helger.peppol.reporting.api.backend.IPeppolReportingBackendSPI;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
@@ -54,7 +54,20 @@ import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.controller.PayloadBuffer;
+import com.helger.phase4.peppolstandalone.inbound.InboundBatchDispatcher;
+import com.helger.phase4.peppolstandalone.inbound.InboundDuplicateDetector;
+import com.helger.phase4.peppolstandalone.inbound.InboundForwardingClient;
+import com.helger.phase4.peppolstandalone.inbound.InboundInbox;
+import com.helger.phase4.peppolstandalone.inbound.ReceiverCheckSMPCache;
+import com.helger.phase4.peppolstandalone.outbound.OutboundBatchSender;
+import com.helger.phase4.peppolstandalone.outbound.OutboundHttpClientFactory;
+import com.helger.phase4.peppolstandalone.outbound.OutboundIdempotencyStore;
+import com.helger.phase4.peppolstandalone.outbound.OutboundJobQueue;
 import com.helger.phase4.peppolstandalone.reporting.AppReportingHelper;
+import com.helger.phase4.peppolstandalone.reporting.PeppolReportCache;
+import com.helger.phase4.peppolstandalone.reporting.PeppolReportingIndex;
+import com.helger.phase4.peppolstandalone.reporting.ReportingItemWriter;
 import com.helger.phase4.profile.peppol.AS4PeppolProfileRegistarSPI;
 import com.helger.phase4.profile.peppol.PeppolCRLDownloader;
 import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
@@ -62,7 +75,6 @@ import com.helger.photon.io.WebFileIO;
 import com.helger.security.certificate.ECertificateCheckResult;
 import com.helger.security.certificate.TrustedCAChecker;
 import com.helger.servlet.ServletHelper;
-import com.helger.smpclient.peppol.SMPClientReadOnly;
 import com.helger.web.scope.mgr.WebScopeManager;
 import com.helger.xservlet.requesttrack.RequestTrackerSettings;
 
@@ -76,18 +88,29 @@ public class ServletConfig
   private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ServletConfig.class);
 
   /**
-   * This method is a placeholder for retrieving a custom {@link IAS4CryptoFactory}.
+   * This method is a placeholder for creating a custom {@link IAS4CryptoFactory}. It is called upon
+   * startup and every time the key store or trust store file changed.
    *
-   * @return the {@link IAS4CryptoFactory} to use. May not be <code>null</code>.
+   * @return the new {@link IAS4CryptoFactory} to use. May not be <code>null</code>.
    */
   @Nonnull
-  public static AS4CryptoFactoryInMemoryKeyStore getCryptoFactoryToUse ()
+  private static AS4CryptoFactoryInMemoryKeyStore _createCryptoFactory ()
   {
-    final AS4CryptoFactoryConfiguration ret = AS4CryptoFactoryConfiguration.getDefaultInstance ();
+    // Don't use the default instance, as it is never reloaded
+    final AS4CryptoFactoryConfiguration ret = new AS4CryptoFactoryConfiguration (AS4Configuration.getConfig ());
     // TODO If you have a custom crypto factory, build/return it here
     return ret;
   }
 
+  /**
+   * @return the {@link IAS4CryptoFactory} to use. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4CryptoFactoryInMemoryKeyStore getCryptoFactoryToUse ()
+  {
+    return CryptoFactoryHolder.getInstance ().getCryptoFactory ();
+  }
+
   @Bean
   public ServletRegistrationBean <SpringBootAS4Servlet> servletRegistrationBean (final ServletContext ctx)
   {
@@ -97,11 +120,21 @@ public class ServletConfig
     // Instantiate and register Servlet
     final ServletRegistrationBean <SpringBootAS4Servlet> bean = new ServletRegistrationBean <> (new SpringBootAS4Servlet (),
                                                                                                 true,
-                                                                                                "/as4");
+                                                                                                "/as4",
+                                                                                                "/as4/*");
     bean.setLoadOnStartup (1);
     return bean;
   }
 
+  @Bean
+  public FilterRegistrationBean <AS4AdmissionFilter> as4AdmissionFilterRegistrationBean ()
+  {
+    // Reject requests before the AS4 servlet reads them, if the AP is saturated
+    final FilterRegistrationBean <AS4AdmissionFilter> bean = new FilterRegistrationBean <> (new AS4AdmissionFilter ());
+    bean.addUrlPatterns ("/as4", "/as4/*");
+    return bean;
+  }
+
   private void _init (@Nonnull final ServletContext aSC)
   {
     // Do it only once
@@ -111,6 +144,8 @@ public class ServletConfig
       _initGlobalSettings (aSC);
       _initAS4 ();
       _initPeppolAS4 ();
+      _initOutbound ();
+      _initInbound ();
     }
   }
 
@@ -176,19 +211,13 @@ public class ServletConfig
       PeppolCRLDownloader.setAsDefaultCRLCache (aHCS);
     }
 
-    // Throws an exception if configuration parameters are missing
+    // Throws an exception if configuration parameters are missing or if the key store or private
+    // key cannot be loaded
+    CryptoFactoryHolder.init (ServletConfig::_createCryptoFactory, ServletConfig::_onCryptoFactoryReloaded);
     final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory = getCryptoFactoryToUse ();
-
-    // Check if crypto factory configuration is valid
-    final KeyStore aKS = aCryptoFactory.getKeyStore ();
-    if (aKS == null)
-      throw new InitializationException ("Failed to load configured AS4 Key store - fix the configuration");
-    LOGGER.info ("Successfully loaded configured AS4 key store from the crypto factory");
+    LOGGER.info ("Successfully loaded configured AS4 key store and private key from the crypto factory");
 
     final KeyStore.PrivateKeyEntry aPKE = aCryptoFactory.getPrivateKeyEntry ();
-    if (aPKE == null)
-      throw new InitializationException ("Failed to load configured AS4 private key - fix the configuration");
-    LOGGER.info ("Successfully loaded configured AS4 private key from the crypto factory");
 
     // Configure the stage correctly
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
@@ -233,7 +262,8 @@ public class ServletConfig
       // To process the message even though the receiver is not registered in
       // our AP
       Phase4PeppolDefaultReceiverConfiguration.setReceiverCheckEnabled (true);
-      Phase4PeppolDefaultReceiverConfiguration.setSMPClient (new SMPClientReadOnly (URLHelper.getAsURI (sSMPURL)));
+      // Cached, so that received documents don't depend on the latency and availability of the SMP
+      Phase4PeppolDefaultReceiverConfiguration.setSMPClient (ReceiverCheckSMPCache.getProvider (sSMPURL));
       Phase4PeppolDefaultReceiverConfiguration.setAS4EndpointURL (sAPURL);
       Phase4PeppolDefaultReceiverConfiguration.setAPCertificate (aAPCert);
       LOGGER.info ("phase4 Peppol receiver checks are enabled");
@@ -244,9 +274,82 @@ public class ServletConfig
       LOGGER.warn ("phase4 Peppol receiver checks are disabled");
     }
 
+    // The receiver checks of additional AP identities - uses the default settings from above
+    ReceiverConfigurationRegistry.init ();
+
     // Initialize the Reporting Backend only once
     if (PeppolReportingBackend.getBackendService ().initBackend (APConfig.getConfig ()).isFailure ())
       throw new InitializationException ("Failed to init Peppol Reporting Backend Service");
+
+    // Pre-aggregated reporting counters - updated by the writer
+    PeppolReportingIndex.init ();
+
+    // Created reports of closed months - invalidated by the writer
+    PeppolReportCache.init ();
+
+    // Stores the reporting items of all exchanged messages
+    ReportingItemWriter.init ();
+  }
+
+  private static void _onCryptoFactoryReloaded (@Nonnull final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory)
+  {
+    final X509Certificate aAPCert = (X509Certificate) aCryptoFactory.getPrivateKeyEntry ().getCertificate ();
+    final ECertificateCheckResult eCheckResult = Phase4PeppolDefaultReceiverConfiguration.getAPCAChecker ()
+                                                                                         .checkCertificate (aAPCert,
+                                                                                                            MetaAS4Manager.getTimestampMgr ()
+                                                                                                                          .getCurrentDateTime (),
+                                                                                                            ETriState.FALSE,
+                                                                                                            null);
+    if (eCheckResult.isInvalid ())
+      LOGGER.error ("The reloaded certificate is not a valid Peppol certificate. Check result: " + eCheckResult);
+    else
+      LOGGER.info ("Using the reloaded Peppol AP certificate " + aAPCert.getSubjectX500Principal ().getName ());
+
+    // The receiver check compares the certificate in the SMP with our own one
+    if (Phase4PeppolDefaultReceiverConfiguration.isReceiverCheckEnabled ())
+      Phase4PeppolDefaultReceiverConfiguration.setAPCertificate (aAPCert);
+  }
+
+  private static void _initOutbound ()
+  {
+    // Leftovers from a crash
+    PayloadBuffer.deleteTemporaryFiles ();
+
+    // Resume all asynchronous jobs that were not finished before the last shutdown
+    OutboundJobQueue.init ();
+
+    // Remembered results of previous sending requests
+    OutboundIdempotencyStore.init ();
+  }
+
+  private static void _initInbound ()
+  {
+    // Limit the number of concurrently processed AS4 requests
+    AS4AdmissionControl.init ();
+
+    // Remembered IDs of previously received documents
+    InboundDuplicateDetector.init ();
+
+    // Optional batching - must be available before the inbox starts forwarding
+    InboundBatchDispatcher.init ();
+
+    // Forward all received documents that were not forwarded before the last shutdown
+    InboundInbox.init ();
+  }
+
+  // At 04:00 AM, every day
+  @Scheduled (cron = "0 0 4 * * *")
+  public void deleteOutdatedOutboundJobs ()
+  {
+    OutboundJobQueue.getInstance ().deleteOutdatedJobs ();
+
+    final OutboundIdempotencyStore aIdempotencyStore = OutboundIdempotencyStore.getInstanceIfEnabled ();
+    if (aIdempotencyStore != null)
+      aIdempotencyStore.deleteOutdatedEntries ();
+
+    final InboundDuplicateDetector aDuplicateDetector = InboundDuplicateDetector.getInstanceIfEnabled ();
+    if (aDuplicateDetector != null)
+      aDuplicateDetector.deleteOutdatedEntries ();
   }
 
   // At 05:00 AM, on day 2 of the month
@@ -276,11 +379,35 @@ public class ServletConfig
     {
       if (WebScopeManager.isGlobalScopePresent ())
       {
+        // Stop the asynchronous sending - unfinished jobs are resumed on restart
+        OutboundJobQueue.shutdown ();
+        OutboundIdempotencyStore.shutdown ();
+        OutboundBatchSender.shutdown ();
+
+        // Stop forwarding - unforwarded documents are forwarded on restart
+        InboundInbox.shutdown ();
+        InboundBatchDispatcher.shutdown ();
+        InboundDuplicateDetector.shutdown ();
+        AS4AdmissionControl.shutdown ();
+        ReceiverCheckSMPCache.shutdown ();
+
+        // Store the queued reporting items while the backend is still available
+        ReportingItemWriter.shutdown ();
+        PeppolReportingIndex.shutdown ();
+        PeppolReportCache.shutdown ();
+
         // Shutdown the Peppol Reporting Backend service, if it was initialized
         final IPeppolReportingBackendSPI aPRBS = PeppolReportingBackend.getBackendService ();
         if (aPRBS != null && aPRBS.isInitialized ())
           aPRBS.shutdownBackend ();
 
+        // Close the shared outbound connection pool
+        OutboundHttpClientFactory.shutdown ();
+        InboundForwardingClient.shutdown ();
+
+        // Stop watching the key store
+        CryptoFactoryHolder.shutdown ();
+
         AS4ServerInitializer.shutdownAS4Server ();
         WebFileIO.resetPaths ();
         WebScopeManager.onGlobalEnd ();
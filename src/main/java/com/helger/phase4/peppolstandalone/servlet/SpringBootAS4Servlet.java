@@ -16,29 +16,58 @@
  */
 package com.helger.phase4.peppolstandalone.servlet;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
 
 import com.helger.commons.http.EHttpMethod;
 import com.helger.commons.string.StringHelper;
-import com.helger.commons.url.URLHelper;
 import com.helger.phase4.crypto.AS4CryptoFactoryInMemoryKeyStore;
 import com.helger.phase4.incoming.AS4IncomingProfileSelectorConstant;
 import com.helger.phase4.incoming.AS4RequestHandler;
 import com.helger.phase4.incoming.mgr.AS4ProfileSelector;
 import com.helger.phase4.model.pmode.resolve.AS4DefaultPModeResolver;
-import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
 import com.helger.phase4.peppol.servlet.Phase4PeppolReceiverConfiguration;
 import com.helger.phase4.peppol.servlet.Phase4PeppolServletMessageProcessorSPI;
 import com.helger.phase4.servlet.AS4UnifiedResponse;
 import com.helger.phase4.servlet.AS4XServletHandler;
 import com.helger.phase4.servlet.IAS4ServletRequestHandlerCustomizer;
-import com.helger.security.certificate.CertificateHelper;
-import com.helger.smpclient.peppol.SMPClientReadOnly;
 import com.helger.web.scope.IRequestWebScopeWithoutResponse;
 import com.helger.xservlet.AbstractXServlet;
 
+import jakarta.servlet.http.HttpServletRequest;
+
 public class SpringBootAS4Servlet extends AbstractXServlet
 {
+  /**
+   * The request handler settings that only depend on the AS4 profile ID. They are created once per
+   * profile and shared between all requests.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  static final class ProfileSettings
+  {
+    private static final Map <String, ProfileSettings> CACHE = new ConcurrentHashMap <> ();
+
+    private final AS4DefaultPModeResolver m_aPModeResolver;
+    private final AS4IncomingProfileSelectorConstant m_aProfileSelector;
+
+    private ProfileSettings (@Nonnull final String sAS4ProfileID)
+    {
+      m_aPModeResolver = new AS4DefaultPModeResolver (sAS4ProfileID);
+      m_aProfileSelector = new AS4IncomingProfileSelectorConstant (sAS4ProfileID);
+    }
+
+    @Nonnull
+    static ProfileSettings get (@Nonnull final String sAS4ProfileID)
+    {
+      return CACHE.computeIfAbsent (sAS4ProfileID, ProfileSettings::new);
+    }
+  }
+
   public SpringBootAS4Servlet ()
   {
     // Multipart is handled specifically inside
@@ -52,6 +81,7 @@ public class SpringBootAS4Servlet extends AbstractXServlet
                                            @Nonnull final AS4UnifiedResponse aUnifiedResponse,
                                            @Nonnull final AS4RequestHandler aRequestHandler)
       {
+        // Created once and only replaced if the key store changes
         final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory = ServletConfig.getCryptoFactoryToUse ();
 
         // This method refers to the outer static method
@@ -62,8 +92,9 @@ public class SpringBootAS4Servlet extends AbstractXServlet
         final String sAS4ProfileID = AS4ProfileSelector.getDefaultAS4ProfileID ();
         if (StringHelper.hasText (sAS4ProfileID))
         {
-          aRequestHandler.setPModeResolver (new AS4DefaultPModeResolver (sAS4ProfileID));
-          aRequestHandler.setIncomingProfileSelector (new AS4IncomingProfileSelectorConstant (sAS4ProfileID));
+          final ProfileSettings aProfileSettings = ProfileSettings.get (sAS4ProfileID);
+          aRequestHandler.setPModeResolver (aProfileSettings.m_aPModeResolver);
+          aRequestHandler.setIncomingProfileSelector (aProfileSettings.m_aProfileSelector);
 
           // TODO Example code to disable PMode validation
           // Delete the block if you don't need it
@@ -75,42 +106,13 @@ public class SpringBootAS4Servlet extends AbstractXServlet
           }
         }
 
-        // TODO Example code for changing the Peppol receiver data based on the
-        // source URL
-        // Delete the block if you don't need it
-        if (false)
+        // Use the receiver data of the addressed tenant (if any)
+        final HttpServletRequest aHttpRequest = aRequestScope.getRequest ();
+        final Phase4PeppolReceiverConfiguration aReceiverCheckData = ReceiverConfigurationRegistry.getInstance ()
+                                                                                                  .getReceiverConfiguration (aHttpRequest.getServerName (),
+                                                                                                                             aHttpRequest.getRequestURI ());
+        if (aReceiverCheckData != null)
         {
-          final String sUrl = aRequestScope.getURLDecoded ();
-
-          // The receiver check data you want to set
-          final Phase4PeppolReceiverConfiguration aReceiverCheckData;
-          if (sUrl != null && sUrl.startsWith ("https://ap-prod.example.org/as4"))
-          {
-            aReceiverCheckData = Phase4PeppolReceiverConfiguration.builder ()
-                                                                  .receiverCheckEnabled (true)
-                                                                  .serviceMetadataProvider (new SMPClientReadOnly (URLHelper.getAsURI ("http://smp-prod.example.org")))
-                                                                  .as4EndpointUrl ("https://ap-prod.example.org/as4")
-                                                                  .apCertificate (CertificateHelper.convertStringToCertficateOrNull ("....Public Prod AP Cert...."))
-                                                                  .sbdhIdentifierFactoryPeppol ()
-                                                                  .performSBDHValueChecks (Phase4PeppolDefaultReceiverConfiguration.isPerformSBDHValueChecks ())
-                                                                  .checkSBDHForMandatoryCountryC1 (Phase4PeppolDefaultReceiverConfiguration.isCheckSBDHForMandatoryCountryC1 ())
-                                                                  .checkSigningCertificateRevocation (Phase4PeppolDefaultReceiverConfiguration.isCheckSigningCertificateRevocation ())
-                                                                  .build ();
-          }
-          else
-          {
-            aReceiverCheckData = Phase4PeppolReceiverConfiguration.builder ()
-                                                                  .receiverCheckEnabled (true)
-                                                                  .serviceMetadataProvider (new SMPClientReadOnly (URLHelper.getAsURI ("http://smp-test.example.org")))
-                                                                  .as4EndpointUrl ("https://ap-test.example.org/as4")
-                                                                  .apCertificate (CertificateHelper.convertStringToCertficateOrNull ("....Public Test AP Cert...."))
-                                                                  .sbdhIdentifierFactoryPeppol ()
-                                                                  .performSBDHValueChecks (Phase4PeppolDefaultReceiverConfiguration.isPerformSBDHValueChecks ())
-                                                                  .checkSBDHForMandatoryCountryC1 (Phase4PeppolDefaultReceiverConfiguration.isCheckSBDHForMandatoryCountryC1 ())
-                                                                  .checkSigningCertificateRevocation (Phase4PeppolDefaultReceiverConfiguration.isCheckSigningCertificateRevocation ())
-                                                                  .build ();
-          }
-
           // Find the right SPI handler
           aRequestHandler.getProcessorOfType (Phase4PeppolServletMessageProcessorSPI.class)
                          .setReceiverCheckData (aReceiverCheckData);
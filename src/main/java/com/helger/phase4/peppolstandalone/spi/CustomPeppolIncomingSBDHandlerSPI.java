@@ -16,18 +16,17 @@
  */
 package com.helger.phase4.peppolstandalone.spi;
 
+import java.io.IOException;
+
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
-import org.w3c.dom.Element;
 
 import com.helger.commons.annotation.IsSPIImplementation;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.peppol.reporting.api.PeppolReportingItem;
-import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
-import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
 import com.helger.peppol.sbdh.PeppolSBDHData;
 import com.helger.peppol.sbdh.payload.PeppolSBDHPayloadBinaryMarshaller;
 import com.helger.peppol.sbdh.spec12.BinaryContentType;
@@ -40,16 +39,12 @@ import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDHandlerSPI;
 import com.helger.phase4.peppol.servlet.Phase4PeppolServletMessageProcessorSPI;
 import com.helger.phase4.peppolstandalone.APConfig;
-
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.net.http.HttpRequest.BodyPublishers;
-import java.util.HashMap;
-import java.util.Map;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.helger.xml.serialize.write.XMLWriter;
+import com.helger.phase4.peppolstandalone.inbound.InboundBatchDispatcher;
+import com.helger.phase4.peppolstandalone.inbound.InboundDocument;
+import com.helger.phase4.peppolstandalone.inbound.InboundDuplicateDetector;
+import com.helger.phase4.peppolstandalone.inbound.InboundForwardingClient;
+import com.helger.phase4.peppolstandalone.inbound.InboundInbox;
+import com.helger.phase4.peppolstandalone.reporting.ReportingItemWriter;
 
 /**
  * This is a way of handling incoming Peppol messages
@@ -72,107 +67,98 @@ public class CustomPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingS
   {
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
 
-    String senderId = aPeppolSBD.getSenderAsIdentifier().getURIEncoded();
-    String receiverId = aPeppolSBD.getReceiverAsIdentifier().getURIEncoded();
-    String docTypeId = aPeppolSBD.getDocumentTypeAsIdentifier().getURIEncoded();
-    String processId = aPeppolSBD.getProcessAsIdentifier().getURIEncoded();
-    String countryC1 = aPeppolSBD.getCountryC1();
-    String body = XMLWriter.getNodeAsString(aPeppolSBD.getBusinessMessage());
-    String instanceIdentifier = aPeppolSBD.getInstanceIdentifier();
-    
-    // Extract AS4 message metadata
-    String as4MessageId = aUserMessage.getMessageInfo() != null && aUserMessage.getMessageInfo().getMessageId() != null 
-        ? aUserMessage.getMessageInfo().getMessageId() 
-        : null;
-    String as4ConversationId = aUserMessage.getCollaborationInfo() != null && aUserMessage.getCollaborationInfo().getConversationId() != null 
-        ? aUserMessage.getCollaborationInfo().getConversationId() 
-        : null;
-
-    // Create JSON payload using Jackson
-    Map<String, Object> payloadMap = new HashMap<>();
-    payloadMap.put("senderId", senderId);
-    payloadMap.put("receiverId", receiverId);
-    payloadMap.put("docTypeId", docTypeId);
-    payloadMap.put("processId", processId);
-    payloadMap.put("countryC1", countryC1);
-    payloadMap.put("body", body);
-    payloadMap.put("as4MessageId", as4MessageId);
-    payloadMap.put("as4ConversationId", as4ConversationId);
-    payloadMap.put("sbdhInstanceIdentifier", instanceIdentifier);
-
-    String jsonPayload = new ObjectMapper().writeValueAsString(payloadMap);
-
-    LOGGER.info("Received document from " + senderId + " to " + receiverId + " with docTypeId " + docTypeId + " and processId " + processId + " and countryC1 " + countryC1);
-    LOGGER.info("About to send document to: " + APConfig.getRecommandApiEndpoint() + "/api/peppol/internal/receiveDocument");
-
-    // Send to endpoint
+    InboundDocument doc = InboundDocument.create(aUserMessage, aPeppolSBD);
+
+    LOGGER.info("Received document from " + doc.getSenderID() + " to " + doc.getReceiverID() + " with docTypeId " + doc.getDocTypeID() + " and processId " + doc.getProcessID() + " and countryC1 " + doc.getCountryC1());
+
+    // Senders retry if they missed our receipt - don't forward and report those twice
+    InboundDuplicateDetector duplicateDetector = InboundDuplicateDetector.getInstanceIfEnabled();
+    if (duplicateDetector != null) {
+      switch (duplicateDetector.begin(doc)) {
+        case DUPLICATE:
+          LOGGER.warn("Ignoring duplicate document with AS4 message ID " + doc.getAS4MessageID() + " and SBDH instance identifier " + doc.getSBDHInstanceIdentifier());
+          return;
+        case IN_PROCESS:
+          // Will lead to an AS4 Error Message - the sender retries later
+          throw new Exception("The same document is currently being processed");
+        default:
+          break;
+      }
+    }
+
+    boolean processed = false;
     try {
-      HttpClient client = HttpClient.newHttpClient();
-      HttpRequest request = HttpRequest.newBuilder()
-          .uri(URI.create(APConfig.getRecommandApiEndpoint() + "/api/peppol/internal/receiveDocument"))
-          .header("Content-Type", "application/json")
-          .header("X-Internal-Token", APConfig.getRecommandApiInternalToken())
-          .POST(BodyPublishers.ofString(jsonPayload))
-          .build();
-
-      HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-      
-      if (response.statusCode() != 200) {
-        LOGGER.error("Failed to send document to endpoint. Status code: " + response.statusCode());
-        throw new Exception("Failed to process document");
+      InboundInbox inbox = InboundInbox.getInstanceIfEnabled();
+      if (inbox != null) {
+        // Store durably and deliver in the background - the receipt does not wait for the endpoint
+        try {
+          inbox.store(doc, aSBDBytes);
+        } catch (IOException e) {
+          // Will lead to an AS4 Error Message to the sender
+          LOGGER.error("Error storing document in the inbound inbox", e);
+          throw e;
+        }
+      } else {
+        InboundForwardingClient forwardingClient = InboundForwardingClient.getInstance();
+        InboundBatchDispatcher batchDispatcher = InboundBatchDispatcher.getInstanceIfEnabled();
+        LOGGER.info("About to send document to: " + (batchDispatcher != null ? forwardingClient.getBulkEndpoint() : forwardingClient.getEndpoint()) + " as " + forwardingClient.getForwardMode().getID());
+
+        // Send to endpoint
+        try {
+          int statusCode = batchDispatcher != null
+              ? batchDispatcher.forward(doc, aSBDBytes, aPeppolSBD.getBusinessMessage())
+              : forwardingClient.forward(doc, aSBDBytes, aPeppolSBD.getBusinessMessage());
+          if (statusCode != 200) {
+            LOGGER.error("Failed to send document to endpoint. Status code: " + statusCode);
+            throw new Exception("Failed to process document");
+          }
+
+          LOGGER.info("Successfully sent document to endpoint");
+        } catch (Exception e) {
+          // In case there is an error, throw any Exception -> will lead to an AS4
+          // Error Message to the sender
+          LOGGER.error("Error sending document to endpoint", e);
+          throw e;
+        }
       }
-      
-      LOGGER.info("Successfully sent document to endpoint");
-    } catch (Exception e) {
-      // In case there is an error, throw any Exception -> will lead to an AS4
-      // Error Message to the sender
-      LOGGER.error("Error sending document to endpoint", e);
-      throw e;
+      processed = true;
+    } finally {
+      if (duplicateDetector != null)
+        duplicateDetector.finish(doc, processed);
     }
 
     // Last action in this method
-    new Thread ( () -> {
-      // TODO If you have a way to determine the real end user of the message
-      // here, this might be a good opportunity to store the data for Peppol
-      // Reporting (do this asynchronously as the last activity)
-      // Note: this is a separate thread so that it does not block the sending
-      // of the positive receipt message
-
-      // Peppol Reporting - enabled for incoming messages
-      try
-      {
-        LOGGER.info ("Creating Peppol Reporting Item and storing it");
-
-        // Determine correct values for the required fields
-        final String sC3ID = sMyPeppolSeatID;
-        final String sC4CountryCode = APConfig.getMyPeppolCountryCode();
-        
-        // Determine end user ID - in most cases, this would be the receiver's participant ID
-        // since this is an incoming message handler, the receiver is the end user
-        final String sEndUserID = aPeppolSBD.getReceiverAsIdentifier().getURIEncoded();
-
-        // Create the reporting item
-        final PeppolReportingItem aReportingItem = Phase4PeppolServletMessageProcessorSPI.createPeppolReportingItemForReceivedMessage (aUserMessage,
-                                                                                                                                       aPeppolSBD,
-                                                                                                                                       aIncomingState,
-                                                                                                                                       sC3ID,
-                                                                                                                                       sC4CountryCode,
-                                                                                                                                       sEndUserID);
-        PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                              aBackend -> aBackend.storeReportingItem (aReportingItem));
-        
-        LOGGER.info ("Successfully stored Peppol Reporting Item for end user: " + sEndUserID);
-      }
-      catch (final PeppolReportingBackendException ex)
-      {
-        LOGGER.error ("Failed to store Peppol Reporting Item", ex);
-        // Don't throw the exception as this is in a separate thread and shouldn't affect the main message processing
-      }
-      catch (final Exception ex)
-      {
-        LOGGER.error ("Unexpected error during Peppol Reporting", ex);
-        // Don't throw the exception as this is in a separate thread and shouldn't affect the main message processing
-      }
-    }).start ();
+    // TODO If you have a way to determine the real end user of the message
+    // here, this might be a good opportunity to store the data for Peppol
+    // Reporting
+    // Note: the item is only queued, so that storing it does not block the
+    // sending of the positive receipt message
+
+    // Peppol Reporting - enabled for incoming messages
+    try
+    {
+      // Determine correct values for the required fields
+      final String sC3ID = sMyPeppolSeatID;
+      final String sC4CountryCode = APConfig.getMyPeppolCountryCode();
+
+      // Determine end user ID - in most cases, this would be the receiver's participant ID
+      // since this is an incoming message handler, the receiver is the end user
+      final String sEndUserID = aPeppolSBD.getReceiverAsIdentifier().getURIEncoded();
+
+      // Create the reporting item
+      final PeppolReportingItem aReportingItem = Phase4PeppolServletMessageProcessorSPI.createPeppolReportingItemForReceivedMessage (aUserMessage,
+                                                                                                                                     aPeppolSBD,
+                                                                                                                                     aIncomingState,
+                                                                                                                                     sC3ID,
+                                                                                                                                     sC4CountryCode,
+                                                                                                                                     sEndUserID);
+      if (ReportingItemWriter.getInstance ().submit (aReportingItem))
+        LOGGER.info ("Queued Peppol Reporting Item for end user: " + sEndUserID);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Unexpected error during Peppol Reporting", ex);
+      // Don't throw the exception as this shouldn't affect the main message processing
+    }
   }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Shared code for the benchmarks. Benchmarks are not unit tests - they are contained in classes
+ * named <code>*Benchmark</code> that are not part of the regular test run. Run them explicitly, e.g.
+ * with <code>mvn test -Dtest=SBDHWriterBenchmark</code>. The results are logged on INFO
+ * level.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class BenchmarkHelper
+{
+  private BenchmarkHelper ()
+  {}
+
+  /**
+   * @return The number of bytes allocated by the current thread so far.
+   */
+  public static long getCurrentThreadAllocatedBytes ()
+  {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean ()).getCurrentThreadAllocatedBytes ();
+  }
+
+  /**
+   * @param nStartNanos
+   *        The start time as returned by {@link System#nanoTime()}.
+   * @return The milliseconds passed since the start time.
+   */
+  public static long getMillisSince (final long nStartNanos)
+  {
+    return (System.nanoTime () - nStartNanos) / 1_000_000;
+  }
+
+  /**
+   * Run the provided call many times in parallel and check that each call returns HTTP 200.
+   *
+   * @param aCall
+   *        The call to run. Must return the HTTP status code.
+   * @param nCount
+   *        The number of calls.
+   * @param nThreads
+   *        The number of threads to use.
+   * @return The number of calls per second.
+   * @throws Exception
+   *         If a call failed
+   */
+  public static double measureCallsPerSecond (@Nonnull final Callable <Integer> aCall,
+                                              @Nonnegative final int nCount,
+                                              @Nonnegative final int nThreads) throws Exception
+  {
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    try
+    {
+      final long nStart = System.nanoTime ();
+      final List <Future <Integer>> aResults = new ArrayList <> ();
+      for (int i = 0; i < nCount; ++i)
+        aResults.add (aES.submit (aCall));
+      for (final Future <Integer> aResult : aResults)
+        assertEquals (200, aResult.get ().intValue ());
+      return nCount * 1_000_000_000d / (System.nanoTime () - nStart);
+    }
+    finally
+    {
+      aES.shutdown ();
+    }
+  }
+}
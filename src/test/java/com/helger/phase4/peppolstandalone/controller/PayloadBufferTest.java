@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link PayloadBuffer}.
+ *
+ * @author Philip Helger
+ */
+public final class PayloadBufferTest
+{
+  private static final int THRESHOLD = 1024;
+  private static final int MAX_SIZE = 100 * 1024;
+  private static final long RETRY_AFTER_SECONDS = 30;
+
+  @TempDir
+  Path m_aTempDir;
+
+  private File m_aSpillDir;
+  private long m_nInFlightBefore;
+
+  @BeforeEach
+  public void setUp ()
+  {
+    m_aSpillDir = m_aTempDir.resolve ("payload-tmp").toFile ();
+    m_nInFlightBefore = PayloadBuffer.getInFlightBytes ();
+  }
+
+  @Nonnull
+  private static byte [] _createPayload (final int nSize)
+  {
+    final byte [] ret = new byte [nSize];
+    ThreadLocalRandom.current ().nextBytes (ret);
+    return ret;
+  }
+
+  @Nonnull
+  private PayloadBuffer _read (@Nonnull final byte [] aPayload,
+                               final long nContentLength,
+                               final long nInFlightMaxBytes) throws Exception
+  {
+    return PayloadBuffer.read (new NonBlockingByteArrayInputStream (aPayload),
+                               nContentLength,
+                               THRESHOLD,
+                               MAX_SIZE,
+                               nInFlightMaxBytes,
+                               RETRY_AFTER_SECONDS,
+                               m_aSpillDir);
+  }
+
+  private static void _assertContent (@Nonnull final byte [] aExpected,
+                                      @Nonnull final PayloadBuffer aBuffer) throws Exception
+  {
+    assertEquals (aExpected.length, aBuffer.getSize ());
+    // Can be read multiple times
+    for (int i = 0; i < 2; ++i)
+      try (final InputStream aIS = aBuffer.getInputStream ())
+      {
+        assertArrayEquals (aExpected, StreamHelper.getAllBytes (aIS));
+      }
+  }
+
+  private int _getSpilledFileCount ()
+  {
+    final String [] aNames = m_aSpillDir.list ();
+    return aNames == null ? 0 : aNames.length;
+  }
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    for (final int nSize : new int [] { 0, 1, THRESHOLD })
+    {
+      final byte [] aPayload = _createPayload (nSize);
+      // Known and unknown content length
+      for (final long nContentLength : new long [] { nSize, -1 })
+        try (final PayloadBuffer aBuffer = _read (aPayload, nContentLength, Long.MAX_VALUE))
+        {
+          assertFalse (aBuffer.isSpilledToFile ());
+          _assertContent (aPayload, aBuffer);
+        }
+    }
+    assertEquals (0, _getSpilledFileCount ());
+    assertEquals (m_nInFlightBefore, PayloadBuffer.getInFlightBytes ());
+  }
+
+  @Test
+  public void testSpillAboveThreshold () throws Exception
+  {
+    for (final int nSize : new int [] { THRESHOLD + 1, 50 * 1024 })
+    {
+      final byte [] aPayload = _createPayload (nSize);
+      for (final long nContentLength : new long [] { nSize, -1 })
+      {
+        try (final PayloadBuffer aBuffer = _read (aPayload, nContentLength, Long.MAX_VALUE))
+        {
+          assertTrue (aBuffer.isSpilledToFile ());
+          assertEquals (1, _getSpilledFileCount ());
+          _assertContent (aPayload, aBuffer);
+          assertTrue (PayloadBuffer.getInFlightBytes () - m_nInFlightBefore >= nSize);
+        }
+        // The temporary file is deleted upon close
+        assertEquals (0, _getSpilledFileCount ());
+        assertEquals (m_nInFlightBefore, PayloadBuffer.getInFlightBytes ());
+      }
+    }
+  }
+
+  @Test
+  public void testPayloadTooLarge () throws Exception
+  {
+    final byte [] aPayload = _createPayload (MAX_SIZE + 1);
+
+    // Rejected before reading
+    assertThrows (HttpPayloadTooLargeException.class, () -> _read (aPayload, aPayload.length, Long.MAX_VALUE));
+    assertEquals (0, _getSpilledFileCount ());
+
+    // Rejected while reading
+    assertThrows (HttpPayloadTooLargeException.class, () -> _read (aPayload, -1, Long.MAX_VALUE));
+    assertEquals (0, _getSpilledFileCount ());
+    assertEquals (m_nInFlightBefore, PayloadBuffer.getInFlightBytes ());
+
+    // Exactly the maximum is fine
+    final byte [] aMaxPayload = _createPayload (MAX_SIZE);
+    try (final PayloadBuffer aBuffer = _read (aMaxPayload, -1, Long.MAX_VALUE))
+    {
+      _assertContent (aMaxPayload, aBuffer);
+    }
+  }
+
+  @Test
+  public void testInFlightLimit () throws Exception
+  {
+    final long nInFlightMax = m_nInFlightBefore + 10 * 1024;
+    final byte [] aPayload = _createPayload (6 * 1024);
+
+    try (final PayloadBuffer aBuffer = _read (aPayload, aPayload.length, nInFlightMax))
+    {
+      // Known length - rejected upfront
+      HttpServiceUnavailableException ex = assertThrows (HttpServiceUnavailableException.class,
+                                                         () -> _read (aPayload, aPayload.length, nInFlightMax));
+      assertEquals (503, ex.getStatusCode ().value ());
+      assertEquals (Long.toString (RETRY_AFTER_SECONDS), ex.getHeaders ().getFirst (HttpHeaders.RETRY_AFTER));
+
+      // Unknown length - rejected while reading
+      ex = assertThrows (HttpServiceUnavailableException.class, () -> _read (aPayload, -1, nInFlightMax));
+      assertEquals (503, ex.getStatusCode ().value ());
+      assertTrue (aBuffer.isSpilledToFile ());
+      assertEquals (1, _getSpilledFileCount ());
+
+      // The rejected payloads freed their budget
+      assertEquals (m_nInFlightBefore + aPayload.length, PayloadBuffer.getInFlightBytes ());
+    }
+
+    // The budget is available again
+    try (final PayloadBuffer aBuffer = _read (aPayload, -1, nInFlightMax))
+    {
+      _assertContent (aPayload, aBuffer);
+    }
+    assertEquals (m_nInFlightBefore, PayloadBuffer.getInFlightBytes ());
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.BenchmarkHelper;
+
+/**
+ * Benchmark for class {@link InboundBatchDispatcher}. Compares forwarding each document in its own
+ * request with forwarding batches, against a stub that needs 5 ms per request.
+ *
+ * @author Philip Helger
+ */
+public final class InboundBatchDispatcherBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundBatchDispatcherBenchmark.class);
+  private static final byte [] SBD = InboundBatchDispatcherTest.SBD;
+
+  @Test
+  public void benchmarkDocumentsPerSecond () throws Exception
+  {
+    try (final InboundBatchDispatcherTest.StubReceiver aStub = new InboundBatchDispatcherTest.StubReceiver (5))
+    {
+      final InboundForwardingClient aClient = aStub.createClient ();
+      final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (aClient, 100, 10_000_000, 10, 4);
+      try
+      {
+        final InboundDocument aDoc = InboundBatchDispatcherTest.createDoc ("receiver");
+        final Callable <Integer> aPerMessage = () -> Integer.valueOf (aClient.forwardRaw (SBD, aDoc));
+        final Callable <Integer> aBatched = () -> Integer.valueOf (aDispatcher.forward (aDoc, SBD, null));
+        final int nCount = 5_000;
+        // Similar to the number of concurrent inbound AS4 requests
+        final int nThreads = 64;
+
+        // Warm up
+        BenchmarkHelper.measureCallsPerSecond (aPerMessage, 500, nThreads);
+        BenchmarkHelper.measureCallsPerSecond (aBatched, 500, nThreads);
+
+        final int nRequestsBefore = aStub.m_aRequests.get ();
+        final double dPerMessage = BenchmarkHelper.measureCallsPerSecond (aPerMessage, nCount, nThreads);
+        final int nRequestsPerMessage = aStub.m_aRequests.get () - nRequestsBefore;
+        final double dBatched = BenchmarkHelper.measureCallsPerSecond (aBatched, nCount, nThreads);
+        final int nRequestsBatched = aStub.m_aRequests.get () - nRequestsBefore - nRequestsPerMessage;
+        LOGGER.info ("Inbound forwarding of " +
+                     nCount +
+                     " documents: " +
+                     Math.round (dPerMessage) +
+                     " documents/s with " +
+                     nRequestsPerMessage +
+                     " single requests, " +
+                     Math.round (dBatched) +
+                     " documents/s with " +
+                     nRequestsBatched +
+                     " batch requests");
+      }
+      finally
+      {
+        aDispatcher.close ();
+        aClient.close ();
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link InboundBatchDispatcher}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundBatchDispatcherTest
+{
+  static final byte [] SBD = "<StandardBusinessDocument/>".getBytes (StandardCharsets.UTF_8);
+
+  /**
+   * A local stand-in for the Recommand API. Each request waits for the provided latency. Documents
+   * for a receiver ending with "bad" are rejected with HTTP 400.
+   */
+  static final class StubReceiver implements AutoCloseable
+  {
+    private final HttpServer m_aServer;
+    final AtomicInteger m_aRequests = new AtomicInteger ();
+    private final AtomicInteger m_aDocuments = new AtomicInteger ();
+
+    StubReceiver (final long nLatencyMillis) throws IOException
+    {
+      final ObjectMapper aMapper = new ObjectMapper ();
+      m_aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+      m_aServer.createContext (InboundForwardingClient.RECEIVE_DOCUMENT_PATH, aExchange -> {
+        try (final InputStream aIS = aExchange.getRequestBody ())
+        {
+          aIS.transferTo (OutputStream.nullOutputStream ());
+        }
+        m_aRequests.incrementAndGet ();
+        m_aDocuments.incrementAndGet ();
+        _sleep (nLatencyMillis);
+        aExchange.sendResponseHeaders (200, -1);
+        aExchange.close ();
+      });
+      m_aServer.createContext (InboundForwardingClient.RECEIVE_DOCUMENTS_BULK_PATH, aExchange -> {
+        final JsonNode aDocuments;
+        try (final InputStream aIS = aExchange.getRequestBody ())
+        {
+          aDocuments = aMapper.readTree (aIS).path ("documents");
+        }
+        m_aRequests.incrementAndGet ();
+        m_aDocuments.addAndGet (aDocuments.size ());
+        _sleep (nLatencyMillis);
+
+        final StringBuilder aSB = new StringBuilder ("{\"results\":[");
+        for (int i = 0; i < aDocuments.size (); ++i)
+        {
+          if (i > 0)
+            aSB.append (',');
+          final boolean bBad = aDocuments.get (i).path ("receiverId").asText ().endsWith ("bad");
+          aSB.append ("{\"status\":").append (bBad ? 400 : 200).append ('}');
+        }
+        final byte [] aResponse = aSB.append ("]}").toString ().getBytes (StandardCharsets.UTF_8);
+        aExchange.getResponseHeaders ().add ("Content-Type", "application/json");
+        aExchange.sendResponseHeaders (200, aResponse.length);
+        try (final OutputStream aOS = aExchange.getResponseBody ())
+        {
+          aOS.write (aResponse);
+        }
+      });
+      m_aServer.setExecutor (Executors.newFixedThreadPool (16));
+      m_aServer.start ();
+    }
+
+    private static void _sleep (final long nMillis)
+    {
+      try
+      {
+        if (nMillis > 0)
+          Thread.sleep (nMillis);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    }
+
+    InboundForwardingClient createClient ()
+    {
+      final String sBase = "http://localhost:" + m_aServer.getAddress ().getPort ();
+      return new InboundForwardingClient (URI.create (sBase + InboundForwardingClient.RECEIVE_DOCUMENT_PATH),
+                                          URI.create (sBase + InboundForwardingClient.RECEIVE_DOCUMENTS_BULK_PATH),
+                                          InboundForwardingClient.EForwardMode.RAW,
+                                          "token",
+                                          Duration.ofSeconds (5),
+                                          Duration.ofSeconds (30),
+                                          8);
+    }
+
+    public void close ()
+    {
+      m_aServer.stop (0);
+    }
+  }
+
+  static InboundDocument createDoc (final String sReceiver)
+  {
+    return new InboundDocument ("iso6523-actorid-upis::9915:sender",
+                                "iso6523-actorid-upis::9915:" + sReceiver,
+                                "busdox-docid-qns::urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##x::2.1",
+                                "cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                                "GB",
+                                "id",
+                                null,
+                                null);
+  }
+
+  @Test
+  public void testBatching () throws Exception
+  {
+    try (final StubReceiver aStub = new StubReceiver (0))
+    {
+      final InboundForwardingClient aClient = aStub.createClient ();
+      final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (aClient, 50, 1_000_000, 100, 2);
+      try
+      {
+        final List <CompletableFuture <Integer>> aResults = new ArrayList <> ();
+        for (int i = 0; i < 200; ++i)
+          aResults.add (aDispatcher.submit (createDoc ("receiver"), SBD, null));
+        for (final CompletableFuture <Integer> aResult : aResults)
+          assertEquals (200, aResult.get ().intValue ());
+
+        assertEquals (200, aStub.m_aDocuments.get ());
+        // At most 50 per batch
+        assertTrue (aStub.m_aRequests.get () >= 4);
+        assertTrue (aStub.m_aRequests.get () < 200);
+      }
+      finally
+      {
+        aDispatcher.close ();
+        aClient.close ();
+      }
+    }
+  }
+
+  @Test
+  public void testResultPerDocument () throws Exception
+  {
+    try (final StubReceiver aStub = new StubReceiver (0))
+    {
+      final InboundForwardingClient aClient = aStub.createClient ();
+      final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (aClient, 10, 1_000_000, 100, 1);
+      try
+      {
+        final CompletableFuture <Integer> aResult1 = aDispatcher.submit (createDoc ("receiver1"), SBD, null);
+        final CompletableFuture <Integer> aResult2 = aDispatcher.submit (createDoc ("receiverbad"), SBD, null);
+        final CompletableFuture <Integer> aResult3 = aDispatcher.submit (createDoc ("receiver3"), SBD, null);
+        assertEquals (200, aResult1.get ().intValue ());
+        assertEquals (400, aResult2.get ().intValue ());
+        assertEquals (200, aResult3.get ().intValue ());
+        assertEquals (1, aStub.m_aRequests.get ());
+      }
+      finally
+      {
+        aDispatcher.close ();
+        aClient.close ();
+      }
+    }
+  }
+
+  @Test
+  public void testSubmitAfterClose () throws Exception
+  {
+    try (final StubReceiver aStub = new StubReceiver (0))
+    {
+      final InboundForwardingClient aClient = aStub.createClient ();
+      final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (aClient, 10, 1_000_000, 100, 1);
+      aDispatcher.close ();
+      try
+      {
+        // Must not wait forever
+        final ExecutionException ex = assertThrows (ExecutionException.class,
+                                                    () -> aDispatcher.submit (createDoc ("receiver"), SBD, null)
+                                                                     .get (10, TimeUnit.SECONDS));
+        assertTrue (ex.getCause () instanceof IOException);
+        assertThrows (IOException.class, () -> aDispatcher.forward (createDoc ("receiver"), SBD, null));
+        assertEquals (0, aStub.m_aRequests.get ());
+      }
+      finally
+      {
+        aClient.close ();
+      }
+    }
+  }
+
+  @Test
+  public void testMaxBytes () throws Exception
+  {
+    try (final StubReceiver aStub = new StubReceiver (0))
+    {
+      final InboundForwardingClient aClient = aStub.createClient ();
+      // Only one document fits into a batch
+      final InboundBatchDispatcher aDispatcher = new InboundBatchDispatcher (aClient,
+                                                                             10,
+                                                                             SBD.length + 1,
+                                                                             100,
+                                                                             1);
+      try
+      {
+        final List <CompletableFuture <Integer>> aResults = new ArrayList <> ();
+        for (int i = 0; i < 3; ++i)
+          aResults.add (aDispatcher.submit (createDoc ("receiver"), SBD, null));
+        for (final CompletableFuture <Integer> aResult : aResults)
+          assertEquals (200, aResult.get ().intValue ());
+        assertEquals (3, aStub.m_aRequests.get ());
+      }
+      finally
+      {
+        aDispatcher.close ();
+        aClient.close ();
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.inbound.InboundDuplicateDetector.EDuplicateState;
+
+/**
+ * Benchmark for class {@link InboundDuplicateDetector}. Measures the lookup time and the heap used
+ * for 5 million documents.
+ *
+ * @author Philip Helger
+ */
+public final class InboundDuplicateDetectorBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundDuplicateDetectorBenchmark.class);
+  private static final long DAY = InboundDuplicateDetectorTest.DAY;
+
+  @TempDir
+  Path m_aTempDir;
+
+  @Test
+  public void benchmarkLookup () throws Exception
+  {
+    final int nCount = 5_000_000;
+    final AtomicLong aClock = new AtomicLong (100 * DAY);
+    final InboundDuplicateDetector aDetector = new InboundDuplicateDetector (m_aTempDir.toFile (),
+                                                                             28 * DAY,
+                                                                             7 * DAY,
+                                                                             2 * nCount,
+                                                                             0.01,
+                                                                             aClock::get);
+    final InboundDocument [] aDocs = new InboundDocument [nCount];
+    for (int i = 0; i < nCount; ++i)
+      aDocs[i] = InboundDuplicateDetectorTest.createDoc ("c2f7a8f4-7f0e-4b8e-9f4e-" + i + "@phase4",
+                                                         "7d1f4a2e-0b8c-4c55-9d5e-" + i);
+
+    long nStart = System.nanoTime ();
+    for (final InboundDocument aDoc : aDocs)
+    {
+      aDetector.begin (aDoc);
+      aDetector.finish (aDoc, true);
+    }
+    final long nInsertNanos = (System.nanoTime () - nStart) / nCount;
+
+    // Unknown documents - the common case
+    nStart = System.nanoTime ();
+    for (int i = 0; i < nCount; ++i)
+    {
+      final InboundDocument aDoc = InboundDuplicateDetectorTest.createDoc ("new-" + i, "new-" + i);
+      assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+      aDetector.finish (aDoc, false);
+    }
+    final long nLookupNanos = (System.nanoTime () - nStart) / nCount;
+
+    LOGGER.info ("Duplicate detection with " +
+                 nCount +
+                 " documents: " +
+                 nInsertNanos +
+                 " ns per insert, " +
+                 nLookupNanos +
+                 " ns per lookup of a new document, " +
+                 aDetector.getStatistics ());
+    aDetector.close ();
+  }
+}
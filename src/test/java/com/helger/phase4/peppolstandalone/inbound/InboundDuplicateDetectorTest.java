@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.phase4.peppolstandalone.inbound.InboundDuplicateDetector.EDuplicateState;
+
+/**
+ * Test class for class {@link InboundDuplicateDetector}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundDuplicateDetectorTest
+{
+  static final long DAY = TimeUnit.DAYS.toMillis (1);
+
+  @TempDir
+  Path m_aTempDir;
+
+  static InboundDocument createDoc (final String sAS4MessageID, final String sInstanceID)
+  {
+    return new InboundDocument ("iso6523-actorid-upis::9915:sender",
+                                "iso6523-actorid-upis::9915:receiver",
+                                "busdox-docid-qns::urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##x::2.1",
+                                "cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                                "GB",
+                                sInstanceID,
+                                sAS4MessageID,
+                                null);
+  }
+
+  private InboundDuplicateDetector _create (final AtomicLong aClock) throws Exception
+  {
+    return new InboundDuplicateDetector (m_aTempDir.toFile (), 28 * DAY, 7 * DAY, 1000, 0.01, aClock::get);
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final AtomicLong aClock = new AtomicLong (100 * DAY);
+    final InboundDuplicateDetector aDetector = _create (aClock);
+
+    final InboundDocument aDoc = createDoc ("msg1", "inst1");
+    assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+    // Concurrent copy
+    assertEquals (EDuplicateState.IN_PROCESS, aDetector.begin (aDoc));
+    // Failed - the retry must be processed
+    aDetector.finish (aDoc, false);
+    assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+    aDetector.finish (aDoc, true);
+    assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (aDoc));
+
+    // Same AS4 message ID or same SBDH instance identifier
+    assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (createDoc ("msg1", "inst2")));
+    assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (createDoc ("msg2", "inst1")));
+    assertEquals (EDuplicateState.NEW, aDetector.begin (createDoc ("msg2", "inst2")));
+    aDetector.close ();
+
+    // Still known after a restart
+    final InboundDuplicateDetector aDetector2 = _create (aClock);
+    assertEquals (EDuplicateState.DUPLICATE, aDetector2.begin (aDoc));
+    aDetector2.close ();
+  }
+
+  @Test
+  public void testExpiry () throws Exception
+  {
+    final AtomicLong aClock = new AtomicLong (100 * DAY);
+    final InboundDuplicateDetector aDetector = _create (aClock);
+
+    final InboundDocument aDoc = createDoc ("msg1", "inst1");
+    assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+    aDetector.finish (aDoc, true);
+
+    // Within the window
+    aClock.addAndGet (27 * DAY);
+    final InboundDocument aDoc2 = createDoc ("msg2", "inst2");
+    assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc2));
+    aDetector.finish (aDoc2, true);
+    assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (aDoc));
+
+    // Window plus generation
+    aClock.addAndGet (9 * DAY);
+    aDetector.deleteOutdatedEntries ();
+    assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+    assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (aDoc2));
+    aDetector.close ();
+
+    final File [] aFiles = m_aTempDir.toFile ().listFiles ();
+    assertEquals (1, aFiles.length);
+  }
+
+  @Test
+  public void testFullGeneration () throws Exception
+  {
+    final AtomicLong aClock = new AtomicLong (100 * DAY);
+    final InboundDuplicateDetector aDetector = _create (aClock);
+    // 2 IDs per document, 1024 IDs per generation
+    for (int i = 0; i < 2_000; ++i)
+    {
+      final InboundDocument aDoc = createDoc ("msg" + i, "inst" + i);
+      assertEquals (EDuplicateState.NEW, aDetector.begin (aDoc));
+      aDetector.finish (aDoc, true);
+    }
+    for (int i = 0; i < 2_000; ++i)
+      assertEquals (EDuplicateState.DUPLICATE, aDetector.begin (createDoc ("msg" + i, "other")));
+    assertTrue (((Integer) aDetector.getStatistics ().get ("generations")).intValue () >= 4);
+    aDetector.close ();
+  }
+}
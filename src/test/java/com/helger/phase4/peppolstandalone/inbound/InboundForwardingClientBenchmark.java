@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.BenchmarkHelper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Benchmark for class {@link InboundForwardingClient}. Compares a new HTTP client per received
+ * document (the previous behaviour) with the shared client.
+ *
+ * @author Philip Helger
+ */
+public final class InboundForwardingClientBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundForwardingClientBenchmark.class);
+
+  @Test
+  public void benchmarkReceiptsPerSecond () throws Exception
+  {
+    final HttpServer aServer = InboundForwardingClientTest.startStub ();
+    final URI aURI = URI.create ("http://localhost:" +
+                                 aServer.getAddress ().getPort () +
+                                 InboundForwardingClient.RECEIVE_DOCUMENT_PATH);
+    final InboundForwardingClient aClient = new InboundForwardingClient (aURI,
+                                                                         aURI,
+                                                                         InboundForwardingClient.EForwardMode.JSON,
+                                                                         "token",
+                                                                         Duration.ofSeconds (5),
+                                                                         Duration.ofSeconds (30),
+                                                                         8);
+    try
+    {
+      final String sJson = "{\"body\":\"" + "x".repeat (20_000) + "\"}";
+      final Callable <Integer> aPerMessageClient = () -> {
+        final HttpRequest aRequest = HttpRequest.newBuilder (aURI)
+                                                .header ("Content-Type", "application/json")
+                                                .POST (BodyPublishers.ofString (sJson))
+                                                .build ();
+        return Integer.valueOf (HttpClient.newHttpClient ()
+                                          .send (aRequest, HttpResponse.BodyHandlers.ofString ())
+                                          .statusCode ());
+      };
+      final Callable <Integer> aSharedClient = () -> Integer.valueOf (aClient.forwardJson (sJson.getBytes (StandardCharsets.UTF_8)));
+      final int nCount = 2_000;
+      final int nThreads = 16;
+
+      // Warm up
+      BenchmarkHelper.measureCallsPerSecond (aPerMessageClient, 200, nThreads);
+      BenchmarkHelper.measureCallsPerSecond (aSharedClient, 200, nThreads);
+
+      final double dBefore = BenchmarkHelper.measureCallsPerSecond (aPerMessageClient, nCount, nThreads);
+      final double dAfter = BenchmarkHelper.measureCallsPerSecond (aSharedClient, nCount, nThreads);
+      LOGGER.info ("Inbound forwarding: " +
+                   Math.round (dBefore) +
+                   " receipts/s with a client per message, " +
+                   Math.round (dAfter) +
+                   " receipts/s with the shared client");
+    }
+    finally
+    {
+      aClient.close ();
+      aServer.stop (0);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link InboundForwardingClient}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundForwardingClientTest
+{
+  static HttpServer startStub ()
+  {
+    try
+    {
+      final HttpServer aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), 0);
+      aServer.createContext (InboundForwardingClient.RECEIVE_DOCUMENT_PATH, aExchange -> {
+        try (final InputStream aIS = aExchange.getRequestBody ())
+        {
+          aIS.transferTo (OutputStream.nullOutputStream ());
+        }
+        aExchange.sendResponseHeaders (200, -1);
+        aExchange.close ();
+      });
+      aServer.setExecutor (Executors.newFixedThreadPool (16));
+      aServer.start ();
+      return aServer;
+    }
+    catch (final IOException ex)
+    {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  @Test
+  public void testForward () throws Exception
+  {
+    final HttpServer aServer = startStub ();
+    final InboundForwardingClient aClient = new InboundForwardingClient (URI.create ("http://localhost:" +
+                                                                                     aServer.getAddress ().getPort () +
+                                                                                     InboundForwardingClient.RECEIVE_DOCUMENT_PATH),
+                                                                         URI.create ("http://localhost:" +
+                                                                                     aServer.getAddress ().getPort () +
+                                                                                     InboundForwardingClient.RECEIVE_DOCUMENTS_BULK_PATH),
+                                                                         InboundForwardingClient.EForwardMode.JSON,
+                                                                         "token",
+                                                                         Duration.ofSeconds (5),
+                                                                         Duration.ofSeconds (5),
+                                                                         2);
+    try
+    {
+      assertEquals (200, aClient.forwardJson ("{}".getBytes (StandardCharsets.UTF_8)));
+      assertEquals (200,
+                    aClient.forwardRaw ("<StandardBusinessDocument/>".getBytes (StandardCharsets.UTF_8),
+                                        new InboundDocument ("iso6523-actorid-upis::9915:sender",
+                                                             "iso6523-actorid-upis::9915:receiver",
+                                                             "busdox-docid-qns::urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##x::2.1",
+                                                             "cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                                                             "GB",
+                                                             "id",
+                                                             null,
+                                                             null)));
+    }
+    finally
+    {
+      aClient.close ();
+      aServer.stop (0);
+    }
+  }
+}
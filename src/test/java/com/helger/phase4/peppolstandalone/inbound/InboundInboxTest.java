@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link InboundInbox}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundInboxTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  private File m_aBaseDir;
+  private File m_aQuarantineDir;
+  private final List <String> m_aDelivered = Collections.synchronizedList (new ArrayList <> ());
+
+  @BeforeEach
+  public void beforeEach () throws IOException
+  {
+    m_aBaseDir = Files.createDirectories (m_aTempDir.resolve ("inbox")).toFile ();
+    m_aQuarantineDir = Files.createDirectories (m_aTempDir.resolve ("quarantine")).toFile ();
+  }
+
+  private static byte [] _createSBD (final int nIndex)
+  {
+    return ("<StandardBusinessDocument>" + nIndex + "</StandardBusinessDocument>").getBytes (StandardCharsets.UTF_8);
+  }
+
+  private static void _store (final InboundInbox aInbox, final int nIndex) throws IOException
+  {
+    aInbox.store (InboundDuplicateDetectorTest.createDoc ("msg" + nIndex, "inst" + nIndex), _createSBD (nIndex));
+  }
+
+  private InboundInbox _open (final long nSegmentMaxBytes, final int nStatusCode) throws IOException
+  {
+    final InboundInbox ret = new InboundInbox (m_aBaseDir,
+                                               m_aQuarantineDir,
+                                               nSegmentMaxBytes,
+                                               2,
+                                               10,
+                                               50,
+                                               2,
+                                               (aDoc, aSBDBytes) -> {
+                                                 if (nStatusCode == 200)
+                                                   m_aDelivered.add (new String (aSBDBytes,
+                                                                                 StandardCharsets.UTF_8));
+                                                 return nStatusCode;
+                                               });
+    ret.open ();
+    return ret;
+  }
+
+  private static void _waitFor (final BooleanSupplier aCondition) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue (System.currentTimeMillis () < nEnd, "Timeout");
+      Thread.sleep (10);
+    }
+  }
+
+  private static long _getStatistic (final InboundInbox aInbox, final String sKey)
+  {
+    return ((Number) aInbox.getStatistics ().get (sKey)).longValue ();
+  }
+
+  private File [] _getSegmentFiles ()
+  {
+    return m_aBaseDir.listFiles ( (d, n) -> n.endsWith (".log"));
+  }
+
+  @Test
+  public void testRecovery () throws Exception
+  {
+    // Downstream API is down - small segments, so that multiple segments are recovered
+    InboundInbox aInbox = _open (1, 503);
+    for (int i = 1; i <= 5; ++i)
+      _store (aInbox, i);
+    assertEquals (5, _getStatistic (aInbox, "pending"));
+    aInbox.close ();
+    assertEquals (5, _getSegmentFiles ().length);
+
+    // Downstream API is up again
+    aInbox = _open (1, 200);
+    _waitFor ( () -> m_aDelivered.size () == 5);
+    for (int i = 1; i <= 5; ++i)
+      assertEquals (new String (_createSBD (i), StandardCharsets.UTF_8), m_aDelivered.get (i - 1));
+
+    // The numbering continues after the recovered documents
+    _store (aInbox, 6);
+    _waitFor ( () -> m_aDelivered.size () == 6);
+    aInbox.close ();
+  }
+
+  @Test
+  public void testAcknowledgedNotDeliveredAgain () throws Exception
+  {
+    InboundInbox aInbox = _open (1024 * 1024, 200);
+    _store (aInbox, 1);
+    _store (aInbox, 2);
+    _waitFor ( () -> m_aDelivered.size () == 2);
+    aInbox.close ();
+
+    m_aDelivered.clear ();
+    aInbox = _open (1024 * 1024, 200);
+    assertEquals (0, _getStatistic (aInbox, "pending"));
+    _store (aInbox, 3);
+    _waitFor ( () -> m_aDelivered.size () == 1);
+    assertEquals (new String (_createSBD (3), StandardCharsets.UTF_8), m_aDelivered.get (0));
+    aInbox.close ();
+  }
+
+  @Test
+  public void testTornRecord () throws Exception
+  {
+    InboundInbox aInbox = _open (1024 * 1024, 503);
+    _store (aInbox, 1);
+    _store (aInbox, 2);
+    aInbox.close ();
+
+    // Simulate a crash while writing the next record: complete header, but the CRC does not match
+    final File [] aSegmentFiles = _getSegmentFiles ();
+    assertEquals (1, aSegmentFiles.length);
+    final long nValidLength = aSegmentFiles[0].length ();
+    Files.write (aSegmentFiles[0].toPath (),
+                 new byte [] { 0, 0, 0, 3, 0, 0, 0, 0, 1, 2, 3 },
+                 StandardOpenOption.APPEND);
+
+    // The incomplete record is cut off before the next one is written
+    aInbox = _open (1024 * 1024, 503);
+    assertEquals (2, _getStatistic (aInbox, "pending"));
+    assertEquals (nValidLength, aSegmentFiles[0].length ());
+    _store (aInbox, 3);
+    aInbox.close ();
+
+    aInbox = _open (1024 * 1024, 200);
+    _waitFor ( () -> m_aDelivered.size () == 3);
+    assertEquals (new String (_createSBD (3), StandardCharsets.UTF_8), m_aDelivered.get (2));
+    aInbox.close ();
+  }
+
+  @Test
+  public void testSegmentDeletion () throws Exception
+  {
+    // Each document is written into its own segment
+    final InboundInbox aInbox = _open (1, 200);
+    for (int i = 1; i <= 5; ++i)
+      _store (aInbox, i);
+    _waitFor ( () -> m_aDelivered.size () == 5);
+
+    // Only the segment that is currently written is kept
+    _waitFor ( () -> _getSegmentFiles ().length == 1);
+    aInbox.close ();
+  }
+
+  @Test
+  public void testQuarantine () throws Exception
+  {
+    final InboundInbox aInbox = _open (1024 * 1024, 400);
+    _store (aInbox, 1);
+    _waitFor ( () -> _getStatistic (aInbox, "pending") == 0);
+    assertEquals (1, _getStatistic (aInbox, "quarantined"));
+    assertEquals (0, _getStatistic (aInbox, "delivered"));
+
+    assertArrayEquals (_createSBD (1), Files.readAllBytes (new File (m_aQuarantineDir, "1.xml").toPath ()));
+    final String sJson = Files.readString (new File (m_aQuarantineDir, "1.json").toPath ());
+    assertTrue (sJson.contains ("HTTP status code 400"), sJson);
+    aInbox.close ();
+
+    // Not delivered again after a restart
+    final InboundInbox aInbox2 = _open (1024 * 1024, 200);
+    assertEquals (0, _getStatistic (aInbox2, "pending"));
+    aInbox2.close ();
+  }
+}
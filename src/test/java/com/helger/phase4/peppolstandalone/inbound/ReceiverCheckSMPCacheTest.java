@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.smpclient.exception.SMPClientException;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.xsds.peppol.smp1.SignedServiceMetadataType;
+
+/**
+ * Test class for class {@link ReceiverCheckSMPCache}.
+ *
+ * @author Philip Helger
+ */
+public final class ReceiverCheckSMPCacheTest
+{
+  private static final long SECOND = TimeUnit.SECONDS.toNanos (1);
+  private static final IParticipantIdentifier RECEIVER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:receiver");
+  private static final IParticipantIdentifier UNKNOWN = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:unknown");
+  private static final IDocumentTypeIdentifier DOCTYPE = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+
+  /**
+   * An SMP that knows a single receiver and can be switched off.
+   */
+  private static final class StubSMP implements ISMPServiceMetadataProvider
+  {
+    private final AtomicInteger m_aQueries = new AtomicInteger ();
+    private final AtomicBoolean m_aAvailable = new AtomicBoolean (true);
+
+    @Nullable
+    public SignedServiceMetadataType getServiceMetadataOrNull (@Nonnull final IParticipantIdentifier aReceiverID,
+                                                               @Nonnull final IDocumentTypeIdentifier aDocTypeID) throws SMPClientException
+    {
+      m_aQueries.incrementAndGet ();
+      if (!m_aAvailable.get ())
+        throw new SMPClientException ("SMP is down");
+      return aReceiverID.hasSameContent (RECEIVER) ? new SignedServiceMetadataType () : null;
+    }
+  }
+
+  @Test
+  public void testHitAndNegative () throws Exception
+  {
+    final StubSMP aSMP = new StubSMP ();
+    final AtomicLong aClock = new AtomicLong (0);
+    final ReceiverCheckSMPCache aCache = new ReceiverCheckSMPCache (aSMP, 100, 10, 100, 0, 100, aClock::get);
+    try
+    {
+      final SignedServiceMetadataType aSM = aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE);
+      assertSame (aSM, aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE));
+      assertNull (aCache.getServiceMetadataOrNull (UNKNOWN, DOCTYPE));
+      assertNull (aCache.getServiceMetadataOrNull (UNKNOWN, DOCTYPE));
+      assertEquals (2, aSMP.m_aQueries.get ());
+
+      // The negative entry expired, the positive one not
+      aClock.set (11 * SECOND);
+      assertSame (aSM, aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE));
+      assertNull (aCache.getServiceMetadataOrNull (UNKNOWN, DOCTYPE));
+      assertEquals (3, aSMP.m_aQueries.get ());
+
+      assertEquals (1, aCache.invalidate (RECEIVER));
+      aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE);
+      assertEquals (4, aSMP.m_aQueries.get ());
+      assertEquals (2, aCache.invalidateAll ());
+    }
+    finally
+    {
+      aCache.close ();
+    }
+  }
+
+  @Test
+  public void testStaleOnError () throws Exception
+  {
+    final StubSMP aSMP = new StubSMP ();
+    final AtomicLong aClock = new AtomicLong (0);
+    final ReceiverCheckSMPCache aCache = new ReceiverCheckSMPCache (aSMP, 100, 10, 100, 50, 100, aClock::get);
+    try
+    {
+      final SignedServiceMetadataType aSM = aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE);
+      aSMP.m_aAvailable.set (false);
+
+      // Expired, but within the stale time
+      aClock.set (120 * SECOND);
+      assertSame (aSM, aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE));
+
+      // Too old
+      aClock.set (200 * SECOND);
+      assertThrows (SMPClientException.class, () -> aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE));
+
+      // Unknown entries always fail
+      assertThrows (SMPClientException.class, () -> aCache.getServiceMetadataOrNull (UNKNOWN, DOCTYPE));
+    }
+    finally
+    {
+      aCache.close ();
+    }
+  }
+
+  @Test
+  public void testRefreshAhead () throws Exception
+  {
+    final StubSMP aSMP = new StubSMP ();
+    final AtomicLong aClock = new AtomicLong (0);
+    final ReceiverCheckSMPCache aCache = new ReceiverCheckSMPCache (aSMP, 100, 10, 80, 0, 100, aClock::get);
+    try
+    {
+      final SignedServiceMetadataType aSM = aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE);
+      aClock.set (90 * SECOND);
+
+      // Still answered from the cache, but refreshed in the background
+      assertSame (aSM, aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE));
+      final long nEnd = System.currentTimeMillis () + 10_000;
+      while (((Long) aCache.getStatistics ().get ("refreshCount")).longValue () == 0 &&
+             System.currentTimeMillis () < nEnd)
+        Thread.sleep (5);
+      assertEquals (2, aSMP.m_aQueries.get ());
+
+      // The refreshed entry is valid from the time of the refresh
+      aClock.set (150 * SECOND);
+      aCache.getServiceMetadataOrNull (RECEIVER, DOCTYPE);
+      assertEquals (2, aSMP.m_aQueries.get ());
+    }
+    finally
+    {
+      aCache.close ();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+
+/**
+ * Test class for class {@link OutboundEndpointGuard}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundEndpointGuardTest
+{
+  private static final String URL_A = "https://ap-a.example.org/as4";
+  private static final String URL_B = "https://ap-b.example.org/as4";
+  private static final String URL_C = "https://ap-c.example.org/as4";
+  private static final long OPEN_SECONDS = 60;
+  private static final long IDLE_SECONDS = 3600;
+
+  private final AtomicLong m_aNow = new AtomicLong (1_000_000);
+
+  @Nonnull
+  private OutboundEndpointGuard _createGuard (final int nMaxConcurrent)
+  {
+    return new OutboundEndpointGuard (nMaxConcurrent, 0, true, 2, OPEN_SECONDS, IDLE_SECONDS, m_aNow::get);
+  }
+
+  private static void _send (@Nonnull final OutboundEndpointGuard aGuard,
+                             @Nonnull final String sURL,
+                             @Nonnull final EAS4UserMessageSendResult eResult) throws OutboundEndpointUnavailableException
+  {
+    final OutboundEndpointGuard.Permit aPermit = aGuard.acquire (sURL);
+    aPermit.setResult (eResult, null);
+    aPermit.release ();
+  }
+
+  @Nonnull
+  private static String _getState (@Nonnull final OutboundEndpointGuard aGuard, @Nonnull final String sURL)
+  {
+    @SuppressWarnings ("unchecked")
+    final Map <String, Object> aState = (Map <String, Object>) aGuard.getStatistics ().get (sURL);
+    return (String) aState.get ("state");
+  }
+
+  private static void _assertRejected (@Nonnull final OutboundEndpointGuard aGuard,
+                                       @Nonnull final String sURL,
+                                       @Nonnull final OutboundEndpointGuard.ERejectReason eReason)
+  {
+    final OutboundEndpointUnavailableException ex = assertThrows (OutboundEndpointUnavailableException.class,
+                                                                  () -> aGuard.acquire (sURL));
+    assertEquals (eReason, ex.getReason ());
+  }
+
+  @Test
+  public void testCircuitBreaker () throws Exception
+  {
+    final OutboundEndpointGuard aGuard = _createGuard (5);
+
+    // A success resets the number of consecutive transport errors
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    assertEquals ("CLOSED", _getState (aGuard, URL_A));
+
+    // The second consecutive transport error opens the circuit
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    assertEquals ("OPEN", _getState (aGuard, URL_A));
+    _assertRejected (aGuard, URL_A, OutboundEndpointGuard.ERejectReason.CIRCUIT_OPEN);
+
+    // Other endpoints are not affected
+    _send (aGuard, URL_B, EAS4UserMessageSendResult.SUCCESS);
+
+    // After the wait time, a single probe is let through
+    m_aNow.addAndGet (OPEN_SECONDS * 1000);
+    final OutboundEndpointGuard.Permit aProbe = aGuard.acquire (URL_A);
+    assertEquals ("HALF_OPEN", _getState (aGuard, URL_A));
+    _assertRejected (aGuard, URL_A, OutboundEndpointGuard.ERejectReason.CIRCUIT_OPEN);
+
+    // A failed probe opens the circuit again
+    aProbe.setResult (EAS4UserMessageSendResult.NO_SIGNAL_MESSAGE_RECEIVED, null);
+    aProbe.release ();
+    assertEquals ("OPEN", _getState (aGuard, URL_A));
+    _assertRejected (aGuard, URL_A, OutboundEndpointGuard.ERejectReason.CIRCUIT_OPEN);
+
+    // A successful probe closes it
+    m_aNow.addAndGet (OPEN_SECONDS * 1000);
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+    assertEquals ("CLOSED", _getState (aGuard, URL_A));
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+  }
+
+  @Test
+  public void testProbeWithoutResult () throws Exception
+  {
+    final OutboundEndpointGuard aGuard = _createGuard (5);
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    m_aNow.addAndGet (OPEN_SECONDS * 1000);
+
+    // E.g. an unexpected exception - the next message is the probe
+    aGuard.acquire (URL_A).release ();
+    assertEquals ("HALF_OPEN", _getState (aGuard, URL_A));
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+    assertEquals ("CLOSED", _getState (aGuard, URL_A));
+  }
+
+  @Test
+  public void testBulkhead () throws Exception
+  {
+    final OutboundEndpointGuard aGuard = _createGuard (1);
+    final OutboundEndpointGuard.Permit aPermit = aGuard.acquire (URL_A);
+    _assertRejected (aGuard, URL_A, OutboundEndpointGuard.ERejectReason.BULKHEAD_FULL);
+    aGuard.acquire (URL_B).release ();
+
+    // Releasing twice must not add a slot
+    aPermit.release ();
+    aPermit.release ();
+    final OutboundEndpointGuard.Permit aPermit2 = aGuard.acquire (URL_A);
+    _assertRejected (aGuard, URL_A, OutboundEndpointGuard.ERejectReason.BULKHEAD_FULL);
+    aPermit2.release ();
+  }
+
+  @Test
+  public void testEvictIdleStates () throws Exception
+  {
+    final OutboundEndpointGuard aGuard = _createGuard (5);
+    // Closed
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+    // Open
+    _send (aGuard, URL_B, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    _send (aGuard, URL_B, EAS4UserMessageSendResult.TRANSPORT_ERROR);
+    // Closed, but still sending
+    final OutboundEndpointGuard.Permit aPermit = aGuard.acquire (URL_C);
+    assertEquals (3, aGuard.getStatistics ().size ());
+
+    // Not yet idle
+    m_aNow.addAndGet (IDLE_SECONDS * 1000 - 1);
+    _send (aGuard, URL_C, EAS4UserMessageSendResult.SUCCESS);
+    assertEquals (3, aGuard.getStatistics ().size ());
+
+    m_aNow.addAndGet (1);
+    aGuard.acquire (URL_C).release ();
+    final Map <String, Object> aStats = aGuard.getStatistics ();
+    assertFalse (aStats.containsKey (URL_A));
+    assertTrue (aStats.containsKey (URL_B));
+    assertTrue (aStats.containsKey (URL_C));
+    assertEquals ("OPEN", _getState (aGuard, URL_B));
+
+    aPermit.release ();
+
+    // The evicted endpoint starts with a fresh state
+    _send (aGuard, URL_A, EAS4UserMessageSendResult.SUCCESS);
+    assertEquals ("CLOSED", _getState (aGuard, URL_A));
+  }
+}
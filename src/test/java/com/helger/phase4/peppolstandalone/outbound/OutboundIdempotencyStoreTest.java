@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link OutboundIdempotencyStore}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundIdempotencyStoreTest
+{
+  private static final long WINDOW_MILLIS = 1_000;
+
+  @TempDir
+  Path m_aTempDir;
+
+  private File m_aFile;
+  private final AtomicLong m_aNow = new AtomicLong (1_000_000);
+
+  @BeforeEach
+  public void setUp ()
+  {
+    m_aFile = m_aTempDir.resolve ("idempotency.log").toFile ();
+  }
+
+  @Nonnull
+  private OutboundIdempotencyStore _open (final int nMaxEntries) throws Exception
+  {
+    final OutboundIdempotencyStore aStore = new OutboundIdempotencyStore (m_aFile,
+                                                                          WINDOW_MILLIS,
+                                                                          nMaxEntries,
+                                                                          m_aNow::get);
+    aStore.open ();
+    return aStore;
+  }
+
+  /**
+   * A sender that counts the number of sending operations.
+   */
+  private static final class CountingSender implements Supplier <OutboundIdempotencyStore.Outcome>
+  {
+    private final AtomicInteger m_aCalls = new AtomicInteger ();
+    private final String m_sResultJson;
+    private final boolean m_bFinal;
+    private final String m_sRetryJobID;
+
+    CountingSender (@Nonnull final String sResultJson, final boolean bFinal, final String sRetryJobID)
+    {
+      m_sResultJson = sResultJson;
+      m_bFinal = bFinal;
+      m_sRetryJobID = sRetryJobID;
+    }
+
+    public OutboundIdempotencyStore.Outcome get ()
+    {
+      m_aCalls.incrementAndGet ();
+      return new OutboundIdempotencyStore.Outcome (m_sResultJson, m_bFinal, m_sRetryJobID);
+    }
+  }
+
+  @Test
+  public void testReplayAfterRestart () throws Exception
+  {
+    final CountingSender aFinal = new CountingSender ("{\"success\":true}", true, null);
+    final CountingSender aTemporary = new CountingSender ("{\"success\":false}", false, null);
+    final CountingSender aRetried = new CountingSender ("{\"retryJobId\":\"job1\"}", false, "job1");
+
+    OutboundIdempotencyStore aStore = _open (100);
+    try
+    {
+      OutboundIdempotencyStore.Result aResult = aStore.execute ("final", "fp", aFinal);
+      assertFalse (aResult.isReplayed ());
+      assertEquals ("{\"success\":true}", aResult.getResultJson ());
+
+      aResult = aStore.execute ("temporary", "fp", aTemporary);
+      assertFalse (aResult.isReplayed ());
+
+      aResult = aStore.execute ("retried", "fp", aRetried);
+      assertFalse (aResult.isReplayed ());
+      assertEquals ("job1", aResult.getRetryJobID ());
+    }
+    finally
+    {
+      aStore.close ();
+    }
+
+    // Read the log again
+    aStore = _open (100);
+    try
+    {
+      OutboundIdempotencyStore.Result aResult = aStore.execute ("final", "fp", aFinal);
+      assertTrue (aResult.isReplayed ());
+      assertEquals ("{\"success\":true}", aResult.getResultJson ());
+      assertNull (aResult.getRetryJobID ());
+      assertEquals (1, aFinal.m_aCalls.get ());
+
+      // Temporary errors are not remembered
+      aResult = aStore.execute ("temporary", "fp", aTemporary);
+      assertFalse (aResult.isReplayed ());
+      assertEquals (2, aTemporary.m_aCalls.get ());
+
+      // The retry job is responsible for sending
+      aResult = aStore.execute ("retried", "fp", aRetried);
+      assertTrue (aResult.isReplayed ());
+      assertEquals ("job1", aResult.getRetryJobID ());
+      assertEquals (1, aRetried.m_aCalls.get ());
+    }
+    finally
+    {
+      aStore.close ();
+    }
+  }
+
+  @Test
+  public void testTornLastLine () throws Exception
+  {
+    final CountingSender aSender = new CountingSender ("{}", true, null);
+    OutboundIdempotencyStore aStore = _open (100);
+    try
+    {
+      aStore.execute ("key", "fp", aSender);
+    }
+    finally
+    {
+      aStore.close ();
+    }
+    Files.write (m_aFile.toPath (),
+                 "123\tbroken".getBytes (StandardCharsets.UTF_8),
+                 StandardOpenOption.APPEND);
+
+    aStore = _open (100);
+    try
+    {
+      assertTrue (aStore.execute ("key", "fp", aSender).isReplayed ());
+      aStore.execute ("key2", "fp", aSender);
+    }
+    finally
+    {
+      aStore.close ();
+    }
+    assertEquals (2, Files.readAllLines (m_aFile.toPath ()).size ());
+  }
+
+  @Test
+  public void testWindowExpiryAndCompaction () throws Exception
+  {
+    final CountingSender aSender = new CountingSender ("{}", true, null);
+    final OutboundIdempotencyStore aStore = _open (100);
+    try
+    {
+      aStore.execute ("old", "fp", aSender);
+      m_aNow.addAndGet (WINDOW_MILLIS / 2);
+      aStore.execute ("new", "fp", aSender);
+      assertEquals (2, Files.readAllLines (m_aFile.toPath ()).size ());
+
+      // Only "old" is outside of the window
+      m_aNow.addAndGet (WINDOW_MILLIS / 2 + 1);
+      aStore.deleteOutdatedEntries ();
+      assertEquals (1, Files.readAllLines (m_aFile.toPath ()).size ());
+
+      assertTrue (aStore.execute ("new", "fp", aSender).isReplayed ());
+      assertFalse (aStore.execute ("old", "fp", aSender).isReplayed ());
+      assertEquals (3, aSender.m_aCalls.get ());
+
+      // Nothing to compact
+      aStore.deleteOutdatedEntries ();
+      assertEquals (2, Files.readAllLines (m_aFile.toPath ()).size ());
+    }
+    finally
+    {
+      aStore.close ();
+    }
+  }
+
+  @Test
+  public void testMaxEntries () throws Exception
+  {
+    final CountingSender aSender = new CountingSender ("{}", true, null);
+    final OutboundIdempotencyStore aStore = _open (2);
+    try
+    {
+      aStore.execute ("a", "fp", aSender);
+      aStore.execute ("b", "fp", aSender);
+      aStore.execute ("c", "fp", aSender);
+
+      // The oldest key was evicted
+      aStore.deleteOutdatedEntries ();
+      assertEquals (2, Files.readAllLines (m_aFile.toPath ()).size ());
+      assertTrue (aStore.execute ("c", "fp", aSender).isReplayed ());
+      assertFalse (aStore.execute ("a", "fp", aSender).isReplayed ());
+    }
+    finally
+    {
+      aStore.close ();
+    }
+  }
+
+  @Test
+  public void testKeyReuseForDifferentRequest () throws Exception
+  {
+    final OutboundIdempotencyStore aStore = _open (100);
+    final ExecutorService aExecutor = Executors.newSingleThreadExecutor ();
+    try
+    {
+      aStore.execute ("done", "fp1", new CountingSender ("{}", true, null));
+      final OutboundIdempotencyKeyReuseException ex = assertThrows (OutboundIdempotencyKeyReuseException.class,
+                                                                    () -> aStore.execute ("done",
+                                                                                          "fp2",
+                                                                                          new CountingSender ("{}",
+                                                                                                              true,
+                                                                                                              null)));
+      // HTTP 422
+      assertFalse (ex.isInProgress ());
+
+      // Keep a sending operation running
+      final CountDownLatch aStarted = new CountDownLatch (1);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final Supplier <OutboundIdempotencyStore.Outcome> aSender = _blockingSender (aStarted,
+                                                                                 aRelease,
+                                                                                 new AtomicInteger ());
+      final Future <OutboundIdempotencyStore.Result> aRunning = aExecutor.submit ( () -> aStore.execute ("running",
+                                                                                                          "fp1",
+                                                                                                          aSender));
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+      final OutboundIdempotencyKeyReuseException ex2 = assertThrows (OutboundIdempotencyKeyReuseException.class,
+                                                                     () -> aStore.execute ("running",
+                                                                                           "fp2",
+                                                                                           new CountingSender ("{}",
+                                                                                                               true,
+                                                                                                               null)));
+      // HTTP 409
+      assertTrue (ex2.isInProgress ());
+
+      aRelease.countDown ();
+      assertFalse (aRunning.get (10, TimeUnit.SECONDS).isReplayed ());
+    }
+    finally
+    {
+      aExecutor.shutdownNow ();
+      aStore.close ();
+    }
+  }
+
+  @Test
+  public void testConcurrentRequestWaits () throws Exception
+  {
+    final OutboundIdempotencyStore aStore = _open (100);
+    final ExecutorService aExecutor = Executors.newFixedThreadPool (2);
+    try
+    {
+      final AtomicInteger aCalls = new AtomicInteger ();
+      final CountDownLatch aStarted = new CountDownLatch (1);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final Supplier <OutboundIdempotencyStore.Outcome> aSender = _blockingSender (aStarted, aRelease, aCalls);
+
+      final Future <OutboundIdempotencyStore.Result> aFirst = aExecutor.submit ( () -> aStore.execute ("key",
+                                                                                                        "fp",
+                                                                                                        aSender));
+      assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+      final Future <OutboundIdempotencyStore.Result> aSecond = aExecutor.submit ( () -> aStore.execute ("key",
+                                                                                                         "fp",
+                                                                                                         aSender));
+      // The second request waits for the first one
+      Thread.sleep (200);
+      assertFalse (aSecond.isDone ());
+
+      aRelease.countDown ();
+      final OutboundIdempotencyStore.Result aFirstResult = aFirst.get (10, TimeUnit.SECONDS);
+      final OutboundIdempotencyStore.Result aSecondResult = aSecond.get (10, TimeUnit.SECONDS);
+      assertFalse (aFirstResult.isReplayed ());
+      assertTrue (aSecondResult.isReplayed ());
+      assertEquals (aFirstResult.getResultJson (), aSecondResult.getResultJson ());
+      assertEquals ("job1", aSecondResult.getRetryJobID ());
+      assertEquals (1, aCalls.get ());
+
+      // And later requests do not send either
+      assertTrue (aStore.execute ("key", "fp", aSender).isReplayed ());
+      assertEquals (1, aCalls.get ());
+    }
+    finally
+    {
+      aExecutor.shutdownNow ();
+      aStore.close ();
+    }
+  }
+
+  /**
+   * Create a sender that blocks until it is released. Its outcome has a retry job, which makes it
+   * remembered even though it is not final.
+   */
+  @Nonnull
+  private static Supplier <OutboundIdempotencyStore.Outcome> _blockingSender (@Nonnull final CountDownLatch aStarted,
+                                                                             @Nonnull final CountDownLatch aRelease,
+                                                                             @Nonnull final AtomicInteger aCalls)
+  {
+    return () -> {
+      aCalls.incrementAndGet ();
+      aStarted.countDown ();
+      try
+      {
+        if (!aRelease.await (10, TimeUnit.SECONDS))
+          throw new IllegalStateException ("Timeout");
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new IllegalStateException (ex);
+      }
+      return new OutboundIdempotencyStore.Outcome ("{\"retryJobId\":\"job1\"}", false, "job1");
+    };
+  }
+}
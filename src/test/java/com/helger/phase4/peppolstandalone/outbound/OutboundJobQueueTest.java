@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ESuccess;
+import com.helger.peppol.sml.ESML;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.controller.PeppolSendingReportExtension;
+import com.helger.phase4.peppolstandalone.outbound.OutboundJobQueue.EJobStatus;
+
+/**
+ * Test class for class {@link OutboundJobQueue}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundJobQueueTest
+{
+  private static final byte [] PAYLOAD = "<Invoice/>".getBytes (StandardCharsets.UTF_8);
+
+  @TempDir
+  Path m_aTempDir;
+
+  private File m_aBaseDir;
+  private File m_aDeadLetterDir;
+
+  /**
+   * A receiving AP that can be switched off. Each attempt is counted.
+   */
+  private static final class StubSender implements OutboundJobQueue.IJobSender
+  {
+    private final AtomicInteger m_aAttempts = new AtomicInteger ();
+    private final AtomicBoolean m_aAvailable;
+
+    StubSender (final boolean bAvailable)
+    {
+      m_aAvailable = new AtomicBoolean (bAvailable);
+    }
+
+    @Nonnull
+    public Phase4PeppolSendingReport send (@Nonnull final OutboundJob aJob,
+                                           @Nonnull final IHasInputStream aPayload,
+                                           @Nonnull final PeppolSendingReportExtension aReportExt)
+    {
+      m_aAttempts.incrementAndGet ();
+      // The payload is read from disk
+      assertEquals (new String (PAYLOAD, StandardCharsets.UTF_8),
+                    new String (StreamHelper.getAllBytes (aPayload.getInputStream ()), StandardCharsets.UTF_8));
+      if (!m_aAvailable.get ())
+        aReportExt.setRetryable (true).setErrorMessage ("Receiving AP is down");
+      return new Phase4PeppolSendingReport (ESML.DIGIT_TEST);
+    }
+  }
+
+  @BeforeEach
+  public void beforeEach () throws IOException
+  {
+    m_aBaseDir = Files.createDirectories (m_aTempDir.resolve ("jobs")).toFile ();
+    m_aDeadLetterDir = Files.createDirectories (m_aTempDir.resolve ("deadletter")).toFile ();
+  }
+
+  @Nonnull
+  private OutboundJobQueue _open (final long nRetryDelayMillis, @Nonnull final StubSender aSender)
+  {
+    final OutboundJobQueue ret = new OutboundJobQueue (m_aBaseDir,
+                                                       m_aDeadLetterDir,
+                                                       2,
+                                                       3,
+                                                       n -> nRetryDelayMillis,
+                                                       aSender);
+    ret.open ();
+    return ret;
+  }
+
+  @Nonnull
+  private static String _submit (@Nonnull final OutboundJobQueue aQueue) throws IOException
+  {
+    return aQueue.submitAS4 (new ByteArrayInputStreamProvider (PAYLOAD),
+                             "iso6523-actorid-upis::9915:sender",
+                             "iso6523-actorid-upis::9915:receiver",
+                             "busdox-docid-qns::urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##x::2.1",
+                             "cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                             "GB");
+  }
+
+  private static void _waitFor (@Nonnull final BooleanSupplier aCondition) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue (System.currentTimeMillis () < nEnd, "Timeout");
+      Thread.sleep (10);
+    }
+  }
+
+  @Test
+  public void testSubmit () throws Exception
+  {
+    final StubSender aSender = new StubSender (true);
+    final OutboundJobQueue aQueue = _open (10, aSender);
+    try
+    {
+      final String sJobID = _submit (aQueue);
+      assertTrue (OutboundJobQueue.isValidJobID (sJobID));
+      _waitFor ( () -> aQueue.getJobStatus (sJobID) == EJobStatus.DONE);
+
+      final String sReport = aQueue.getJobReportJson (sJobID);
+      assertTrue (sReport.contains (sJobID), sReport);
+      assertFalse (sReport.contains ("deadLetter"), sReport);
+      assertEquals (1, aSender.m_aAttempts.get ());
+      // The payload is no longer needed
+      assertFalse (new File (m_aBaseDir, sJobID + ".payload").exists ());
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+
+    // Unknown and invalid job IDs
+    assertNull (aQueue.getJobStatus (UUID.randomUUID ().toString ()));
+    assertNull (aQueue.getJobStatus ("../jobs"));
+    assertNull (aQueue.getJobReportJson ("../jobs"));
+  }
+
+  @Test
+  public void testResumeAfterRestart () throws Exception
+  {
+    // The first attempt fails and the application is stopped before the retry
+    final StubSender aSender = new StubSender (false);
+    final OutboundJobQueue aQueue = _open (1000, aSender);
+    final String sJobID = _submit (aQueue);
+    _waitFor ( () -> aQueue.getJobStatus (sJobID) == EJobStatus.RETRY_SCHEDULED);
+    aQueue.close ();
+    assertEquals (1, aSender.m_aAttempts.get ());
+    assertNull (aQueue.getJobReportJson (sJobID));
+
+    // The retry is read from disk
+    final StubSender aSender2 = new StubSender (true);
+    final OutboundJobQueue aQueue2 = _open (1000, aSender2);
+    try
+    {
+      _waitFor ( () -> aQueue2.getJobStatus (sJobID) == EJobStatus.DONE);
+      assertEquals (1, aSender2.m_aAttempts.get ());
+      final String sReport = aQueue2.getJobReportJson (sJobID);
+      assertTrue (sReport.contains ("\"attempt\":2"), sReport);
+    }
+    finally
+    {
+      aQueue2.close ();
+    }
+  }
+
+  @Test
+  public void testDeadLetterAndReplay () throws Exception
+  {
+    final StubSender aSender = new StubSender (false);
+    final OutboundJobQueue aQueue = _open (10, aSender);
+    try
+    {
+      final String sJobID = _submit (aQueue);
+      _waitFor ( () -> aQueue.getJobStatus (sJobID) == EJobStatus.DONE);
+      assertEquals (3, aSender.m_aAttempts.get ());
+      assertTrue (aQueue.getJobReportJson (sJobID).contains ("deadLetter"));
+
+      assertEquals (1, aQueue.getAllDeadLetters ().size ());
+      final OutboundJob aDeadLetter = aQueue.getAllDeadLetters ().getFirstOrNull ();
+      assertEquals (sJobID, aDeadLetter.getJobID ());
+      assertEquals (3, aDeadLetter.getAttempts ());
+      assertEquals ("Receiving AP is down", aDeadLetter.getLastError ());
+
+      // The receiving AP is back
+      aSender.m_aAvailable.set (true);
+      assertEquals (ESuccess.SUCCESS, aQueue.replayDeadLetter (sJobID));
+      assertEquals (ESuccess.FAILURE, aQueue.replayDeadLetter (sJobID));
+      assertTrue (aQueue.getAllDeadLetters ().isEmpty ());
+      _waitFor ( () -> aQueue.getJobStatus (sJobID) == EJobStatus.DONE);
+      assertEquals (4, aSender.m_aAttempts.get ());
+      assertFalse (aQueue.getJobReportJson (sJobID).contains ("deadLetter"));
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+  }
+}
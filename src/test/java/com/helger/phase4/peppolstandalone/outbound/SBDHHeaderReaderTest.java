@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.peppolid.peppol.PeppolIdentifierHelper;
+
+/**
+ * Test class for class {@link SBDHHeaderReader}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHHeaderReaderTest
+{
+  @Nonnull
+  private static String _createSBDH (@Nonnull final String sBusinessScope, @Nonnull final String sBusinessMessage)
+  {
+    return "<?xml version='1.0' encoding='UTF-8'?>" +
+           "<StandardBusinessDocument xmlns='" +
+           SBDHHeaderReader.SBDH_NS +
+           "'>" +
+           "<StandardBusinessDocumentHeader>" +
+           "<HeaderVersion>1.0</HeaderVersion>" +
+           "<Sender><Identifier Authority='iso6523-actorid-upis'>9915:phase4-test-sender</Identifier></Sender>" +
+           "<Receiver><Identifier Authority='iso6523-actorid-upis'> 9915:helger </Identifier></Receiver>" +
+           "<DocumentIdentification>" +
+           "<Standard>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2</Standard>" +
+           "<TypeVersion>2.1</TypeVersion>" +
+           "<InstanceIdentifier>4a3e1a2b-0000-4000-8000-000000000001</InstanceIdentifier>" +
+           "<Type>Invoice</Type>" +
+           "<CreationDateAndTime>2025-01-01T10:00:00Z</CreationDateAndTime>" +
+           "</DocumentIdentification>" +
+           "<BusinessScope>" +
+           sBusinessScope +
+           "</BusinessScope>" +
+           "</StandardBusinessDocumentHeader>" +
+           sBusinessMessage +
+           "</StandardBusinessDocument>";
+  }
+
+  @Test
+  public void testReadHeader ()
+  {
+    final String sDocTypeID = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1";
+    final String sScope = "<Scope><Type>DOCUMENTID</Type><InstanceIdentifier>" +
+                          sDocTypeID +
+                          "</InstanceIdentifier><Identifier>busdox-docid-qns</Identifier></Scope>" +
+                          "<Scope><Type>PROCESSID</Type><InstanceIdentifier>urn:fdc:peppol.eu:2017:poacc:billing:01:1.0</InstanceIdentifier></Scope>" +
+                          "<Scope><Type>COUNTRY_C1</Type><InstanceIdentifier>GB</InstanceIdentifier></Scope>";
+    final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (new ByteArrayInputStreamProvider (_createSBDH (sScope,
+                                                                                                                            "<Invoice xmlns='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'><ID>1</ID></Invoice>")
+                                                                                                                            .getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aHeader);
+    assertEquals ("iso6523-actorid-upis::9915:phase4-test-sender", aHeader.getSenderAsIdentifier ().getURIEncoded ());
+    assertEquals ("iso6523-actorid-upis::9915:helger", aHeader.getReceiverAsIdentifier ().getURIEncoded ());
+    assertEquals ("busdox-docid-qns::" + sDocTypeID, aHeader.getDocumentTypeAsIdentifier ().getURIEncoded ());
+    // Default scheme
+    assertEquals ("cenbii-procid-ubl::urn:fdc:peppol.eu:2017:poacc:billing:01:1.0",
+                  aHeader.getProcessAsIdentifier ().getURIEncoded ());
+    assertEquals ("GB", aHeader.getCountryC1 ());
+    assertEquals ("4a3e1a2b-0000-4000-8000-000000000001", aHeader.getInstanceIdentifier ());
+    assertEquals ("Invoice", aHeader.getBusinessMessage ().getLocalName ());
+    assertEquals ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2",
+                  aHeader.getBusinessMessage ().getNamespaceURI ());
+
+    // Missing country C1
+    assertNull (SBDHHeaderReader.readHeader (new ByteArrayInputStreamProvider (_createSBDH ("", "<Invoice/>").getBytes (StandardCharsets.UTF_8))));
+
+    // Not an SBDH
+    assertNull (SBDHHeaderReader.readHeader (new ClassPathResource ("external/example-invoice.xml")));
+  }
+
+  @Test
+  public void testGetFirstMismatchingField () throws Exception
+  {
+    final String sScope = "<Scope><Type>DOCUMENTID</Type><InstanceIdentifier>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1</InstanceIdentifier><Identifier>busdox-docid-qns</Identifier></Scope>" +
+                          "<Scope><Type>PROCESSID</Type><InstanceIdentifier>urn:fdc:peppol.eu:2017:poacc:billing:01:1.0</InstanceIdentifier><Identifier>cenbii-procid-ubl</Identifier></Scope>" +
+                          "<Scope><Type>COUNTRY_C1</Type><InstanceIdentifier>GB</InstanceIdentifier></Scope>";
+    final byte [] aSBDH = _createSBDH (sScope,
+                                       "<Invoice xmlns='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'><ID>1</ID></Invoice>").getBytes (StandardCharsets.UTF_8);
+    final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (new ByteArrayInputStreamProvider (aSBDH));
+    assertNotNull (aHeader);
+
+    final PeppolSBDHData aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aSBDH));
+    assertNull (aHeader.getFirstMismatchingField (aData));
+
+    aData.setInstanceIdentifier ("4a3e1a2b-0000-4000-8000-000000000002");
+    assertEquals ("instance identifier", aHeader.getFirstMismatchingField (aData));
+
+    aData.setReceiver (PeppolIdentifierHelper.PARTICIPANT_SCHEME_ISO6523_ACTORID_UPIS, "9915:other");
+    assertEquals ("receiver", aHeader.getFirstMismatchingField (aData));
+  }
+}
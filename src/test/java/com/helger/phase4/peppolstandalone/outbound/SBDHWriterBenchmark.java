@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.BenchmarkHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Benchmark for class {@link SBDHWriter}. Measures the payload handling of <code>/sendas4</code>:
+ * the StAX root element check plus wrapping the payload bytes into the SBDH, compared to the DOM
+ * that was previously built from the payload.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHWriterBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SBDHWriterBenchmark.class);
+
+  private static byte [] _createInvoice (final int nTargetBytes)
+  {
+    // A PDF attachment makes up most of the size, like in reality
+    final byte [] aBinary = new byte [nTargetBytes * 3 / 4];
+    Arrays.fill (aBinary, (byte) 'x');
+    final String sXML = "<?xml version='1.0' encoding='UTF-8'?>" +
+                        "<Invoice xmlns='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'" +
+                        " xmlns:cac='urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2'" +
+                        " xmlns:cbc='urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2'>" +
+                        "<cbc:ID>4711</cbc:ID>" +
+                        "<cac:AdditionalDocumentReference><cbc:ID>att</cbc:ID><cac:Attachment>" +
+                        "<cbc:EmbeddedDocumentBinaryObject mimeCode='application/pdf' filename='invoice.pdf'>" +
+                        Base64.getEncoder ().encodeToString (aBinary) +
+                        "</cbc:EmbeddedDocumentBinaryObject></cac:Attachment></cac:AdditionalDocumentReference>" +
+                        "</Invoice>";
+    return sXML.getBytes (StandardCharsets.UTF_8);
+  }
+
+  private static void _checkAndWrap (final IHasInputStream aPayload, final long nSize) throws Exception
+  {
+    final XmlPayloadInspector.RootElement aRootElement = XmlPayloadInspector.readRootElement (aPayload);
+    assertNotNull (aRootElement);
+    final PeppolIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    assertNotNull (SBDHWriter.createSBD (aPayload,
+                                        nSize,
+                                        aRootElement,
+                                        aIF.createParticipantIdentifierWithDefaultScheme ("9915:phase4-test-sender"),
+                                        aIF.createParticipantIdentifierWithDefaultScheme ("9915:helger"),
+                                        aIF.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1"),
+                                        aIF.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0"),
+                                        "AT",
+                                        "4a3e1a2b-0000-4000-8000-000000000001",
+                                        OffsetDateTime.now (ZoneOffset.UTC)));
+  }
+
+  private static void _parse (final IHasInputStream aPayload)
+  {
+    assertNotNull (DOMReader.readXMLDOM (aPayload.getInputStream ()));
+  }
+
+  @Test
+  public void benchmarkSendPath () throws Exception
+  {
+    final int nRuns = 10;
+    for (final int nMB : new int [] { 1, 10, 50 })
+    {
+      final byte [] aBytes = _createInvoice (nMB * 1024 * 1024);
+      final ByteArrayInputStreamProvider aPayload = new ByteArrayInputStreamProvider (aBytes);
+
+      // Warm up
+      _checkAndWrap (aPayload, aBytes.length);
+      _parse (aPayload);
+
+      long nStart = System.nanoTime ();
+      long nAlloc = BenchmarkHelper.getCurrentThreadAllocatedBytes ();
+      for (int i = 0; i < nRuns; ++i)
+        _checkAndWrap (aPayload, aBytes.length);
+      final long nWrapMillis = BenchmarkHelper.getMillisSince (nStart) / nRuns;
+      final long nWrapAlloc = (BenchmarkHelper.getCurrentThreadAllocatedBytes () - nAlloc) / nRuns;
+
+      nStart = System.nanoTime ();
+      nAlloc = BenchmarkHelper.getCurrentThreadAllocatedBytes ();
+      for (int i = 0; i < nRuns; ++i)
+        _parse (aPayload);
+      final long nDomMillis = BenchmarkHelper.getMillisSince (nStart) / nRuns;
+      final long nDomAlloc = (BenchmarkHelper.getCurrentThreadAllocatedBytes () - nAlloc) / nRuns;
+
+      LOGGER.info (nMB +
+                   " MB: StAX check and SBDH wrapping " +
+                   nWrapMillis +
+                   " ms / " +
+                   nWrapAlloc / 1024 +
+                   " KB allocated; DOM " +
+                   nDomMillis +
+                   " ms / " +
+                   nDomAlloc / 1024 +
+                   " KB allocated");
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link SBDHWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHWriterTest
+{
+  private static final String INVOICE_NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+  private static final String INSTANCE_ID = "4a3e1a2b-0000-4000-8000-000000000001";
+
+  private static final IParticipantIdentifier SENDER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:phase4-test-sender");
+  private static final IParticipantIdentifier RECEIVER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:helger");
+  private static final IDocumentTypeIdentifier DOCTYPE = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme (INVOICE_NS +
+                                                                                                                                         "::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+  private static final IProcessIdentifier PROCESS = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+
+  @Nonnull
+  private static byte [] _createSBD (@Nonnull final byte [] aPayload) throws Exception
+  {
+    final ByteArrayInputStreamProvider aISP = new ByteArrayInputStreamProvider (aPayload);
+    final XmlPayloadInspector.RootElement aRootElement = XmlPayloadInspector.readRootElement (aISP);
+    assertNotNull (aRootElement);
+    return SBDHWriter.createSBD (aISP,
+                                 aPayload.length,
+                                 aRootElement,
+                                 SENDER,
+                                 RECEIVER,
+                                 DOCTYPE,
+                                 PROCESS,
+                                 "AT",
+                                 INSTANCE_ID,
+                                 OffsetDateTime.of (2025, 1, 1, 10, 0, 0, 0, ZoneOffset.UTC));
+  }
+
+  private static void _assertSBD (@Nonnull final byte [] aSBD, @Nonnull final String sRootLocalName) throws Exception
+  {
+    // The own header reader
+    final SBDHHeaderReader.SBDHHeader aHeader = SBDHHeaderReader.readHeader (new ByteArrayInputStreamProvider (aSBD));
+    assertNotNull (aHeader);
+    assertEquals (SENDER.getURIEncoded (), aHeader.getSenderAsIdentifier ().getURIEncoded ());
+    assertEquals (RECEIVER.getURIEncoded (), aHeader.getReceiverAsIdentifier ().getURIEncoded ());
+    assertEquals (DOCTYPE.getURIEncoded (), aHeader.getDocumentTypeAsIdentifier ().getURIEncoded ());
+    assertEquals (PROCESS.getURIEncoded (), aHeader.getProcessAsIdentifier ().getURIEncoded ());
+    assertEquals ("AT", aHeader.getCountryC1 ());
+    assertEquals (INSTANCE_ID, aHeader.getInstanceIdentifier ());
+
+    // The complete Peppol SBDH reader
+    final PeppolSBDHData aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aSBD));
+    assertEquals (SENDER.getURIEncoded (), aData.getSenderAsIdentifier ().getURIEncoded ());
+    assertEquals (RECEIVER.getURIEncoded (), aData.getReceiverAsIdentifier ().getURIEncoded ());
+    assertEquals (DOCTYPE.getURIEncoded (), aData.getDocumentTypeAsIdentifier ().getURIEncoded ());
+    assertEquals (PROCESS.getURIEncoded (), aData.getProcessAsIdentifier ().getURIEncoded ());
+    assertEquals (INSTANCE_ID, aData.getInstanceIdentifier ());
+    assertEquals ("2.1", aData.getTypeVersion ());
+
+    final Element aBusinessMessage = aData.getBusinessMessage ();
+    assertEquals (INVOICE_NS, aBusinessMessage.getNamespaceURI ());
+    assertEquals (sRootLocalName, aBusinessMessage.getLocalName ());
+    // No namespace leaks from the SBDH into the business document
+    assertEquals (INVOICE_NS,
+                  ((Element) aBusinessMessage.getElementsByTagNameNS ("*", "ID").item (0)).getNamespaceURI ());
+  }
+
+  @Test
+  public void testCreateSBD () throws Exception
+  {
+    final String sInvoice = "<Invoice xmlns='" + INVOICE_NS + "'><ID>1</ID></Invoice>";
+    for (final String sPayload : new String [] { sInvoice,
+                                                 "<?xml version='1.0' encoding='UTF-8'?>" + sInvoice,
+                                                 "<?xml version=\"1.0\"?>\n<!-- comment -->\n" + sInvoice,
+                                                 "\uFEFF<?xml version='1.0' encoding='utf-8' standalone='yes'?>" + sInvoice })
+      _assertSBD (_createSBD (sPayload.getBytes (StandardCharsets.UTF_8)), "Invoice");
+
+    // Prefixed root element
+    final String sPrefixed = "<ubl:Invoice xmlns:ubl='" + INVOICE_NS + "'><ubl:ID>1</ubl:ID></ubl:Invoice>";
+    _assertSBD (_createSBD (sPrefixed.getBytes (StandardCharsets.UTF_8)), "Invoice");
+  }
+
+  @Test
+  public void testCreateSBDInvalid ()
+  {
+    // Not UTF-8
+    assertThrows (IllegalArgumentException.class,
+                  () -> _createSBD (("<?xml version='1.0' encoding='ISO-8859-1'?><Invoice xmlns='" +
+                                     INVOICE_NS +
+                                     "'/>").getBytes (StandardCharsets.ISO_8859_1)));
+    // No namespace
+    assertThrows (IllegalArgumentException.class,
+                  () -> _createSBD ("<Invoice/>".getBytes (StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testGetTypeVersion ()
+  {
+    assertEquals ("2.1", SBDHWriter.getTypeVersion (DOCTYPE));
+    assertEquals ("2.3",
+                  SBDHWriter.getTypeVersion (PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme (INVOICE_NS +
+                                                                                                                               "::Invoice##urn:x::2.3")));
+    assertEquals (SBDHWriter.DEFAULT_TYPE_VERSION,
+                  SBDHWriter.getTypeVersion (PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:x::Invoice")));
+  }
+}
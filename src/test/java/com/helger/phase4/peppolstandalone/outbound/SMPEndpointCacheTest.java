@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.peppol.sml.ESML;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpointCache.CachedEndpoint;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpointCache.ELookupSource;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpointCache.Lookup;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Test class for class {@link SMPEndpointCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointCacheTest
+{
+  private static final long SECOND = TimeUnit.SECONDS.toNanos (1);
+  private static final ISMLInfo SML = ESML.DIGIT_TEST;
+  private static final IParticipantIdentifier RECEIVER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:receiver");
+  private static final IParticipantIdentifier UNKNOWN = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:unknown");
+  private static final IDocumentTypeIdentifier DOCTYPE = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+  private static final IProcessIdentifier PROCESS = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+
+  /**
+   * An SMP that knows a single receiver and can be switched off.
+   */
+  private static final class StubLoader implements SMPEndpointCache.IEndpointLoader
+  {
+    private final AtomicInteger m_aQueries = new AtomicInteger ();
+    private final AtomicBoolean m_aAvailable = new AtomicBoolean (true);
+
+    @Nonnull
+    public CachedEndpoint load (@Nonnull final ISMLInfo aSmlInfo,
+                                @Nonnull final IParticipantIdentifier aReceiverID,
+                                @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                @Nonnull final IProcessIdentifier aProcessID) throws Phase4Exception
+    {
+      m_aQueries.incrementAndGet ();
+      if (!m_aAvailable.get ())
+        throw new Phase4Exception ("SMP is down");
+      if (aReceiverID.hasSameContent (RECEIVER))
+        return new CachedEndpoint ("https://ap.example.org/as4", null, null, null);
+      return new CachedEndpoint (null, null, null, "not registered");
+    }
+  }
+
+  @Test
+  public void testTTLAndNegative () throws Exception
+  {
+    final StubLoader aLoader = new StubLoader ();
+    final AtomicLong aClock = new AtomicLong (0);
+    final SMPEndpointCache aCache = new SMPEndpointCache (true, 100, 10, 100, aLoader, aClock::get);
+
+    final Lookup aLookup = aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS);
+    assertEquals (ELookupSource.MISS, aLookup.getSource ());
+    assertTrue (aLookup.getEndpoint ().isFound ());
+    final Lookup aLookup2 = aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS);
+    assertEquals (ELookupSource.HIT, aLookup2.getSource ());
+    assertSame (aLookup.getEndpoint (), aLookup2.getEndpoint ());
+
+    assertFalse (aCache.resolve (SML, UNKNOWN, DOCTYPE, PROCESS).getEndpoint ().isFound ());
+    assertEquals (ELookupSource.HIT, aCache.resolve (SML, UNKNOWN, DOCTYPE, PROCESS).getSource ());
+    assertEquals (1, aCache.getNegativeHitCount ());
+    assertEquals (2, aLoader.m_aQueries.get ());
+
+    // The negative entry expired, the positive one not
+    aClock.set (11 * SECOND);
+    assertEquals (ELookupSource.HIT, aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS).getSource ());
+    assertEquals (ELookupSource.MISS, aCache.resolve (SML, UNKNOWN, DOCTYPE, PROCESS).getSource ());
+    assertEquals (3, aLoader.m_aQueries.get ());
+
+    // Now the positive entry expired as well
+    aClock.set (101 * SECOND);
+    assertEquals (ELookupSource.MISS, aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS).getSource ());
+    assertEquals (4, aLoader.m_aQueries.get ());
+    assertEquals (2, aCache.getSize ());
+  }
+
+  @Test
+  public void testErrorsAreNotCached () throws Exception
+  {
+    final StubLoader aLoader = new StubLoader ();
+    final SMPEndpointCache aCache = new SMPEndpointCache (true, 100, 10, 100, aLoader, new AtomicLong (0)::get);
+
+    aLoader.m_aAvailable.set (false);
+    assertThrows (Phase4Exception.class, () -> aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS));
+    assertThrows (Phase4Exception.class, () -> aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS));
+    assertEquals (0, aCache.getSize ());
+
+    aLoader.m_aAvailable.set (true);
+    assertTrue (aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS).getEndpoint ().isFound ());
+    assertEquals (3, aLoader.m_aQueries.get ());
+  }
+
+  @Test
+  public void testDisabled () throws Exception
+  {
+    final StubLoader aLoader = new StubLoader ();
+    final SMPEndpointCache aCache = new SMPEndpointCache (false, 100, 10, 100, aLoader, new AtomicLong (0)::get);
+    assertEquals (ELookupSource.MISS, aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS).getSource ());
+    assertEquals (ELookupSource.MISS, aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS).getSource ());
+    assertEquals (2, aLoader.m_aQueries.get ());
+    assertEquals (0, aCache.getSize ());
+  }
+
+  @Test
+  public void testCoalescing () throws Exception
+  {
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final StubLoader aStub = new StubLoader ();
+    final SMPEndpointCache.IEndpointLoader aSlowLoader = (aSml, aReceiverID, aDocTypeID, aProcessID) -> {
+      aStarted.countDown ();
+      try
+      {
+        aRelease.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      return aStub.load (aSml, aReceiverID, aDocTypeID, aProcessID);
+    };
+    final SMPEndpointCache aCache = new SMPEndpointCache (true, 100, 10, 100, aSlowLoader, new AtomicLong (0)::get);
+
+    final CompletableFuture <Lookup> aFirst = CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS);
+      }
+      catch (final Phase4Exception ex)
+      {
+        throw new IllegalStateException (ex);
+      }
+    });
+    assertTrue (aStarted.await (10, TimeUnit.SECONDS));
+
+    final CompletableFuture <Lookup> aSecond = CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return aCache.resolve (SML, RECEIVER, DOCTYPE, PROCESS);
+      }
+      catch (final Phase4Exception ex)
+      {
+        throw new IllegalStateException (ex);
+      }
+    });
+    // Wait until the second lookup waits for the first one
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (aCache.getCoalescedCount () == 0 && System.currentTimeMillis () < nEnd)
+      Thread.sleep (5);
+    aRelease.countDown ();
+
+    assertEquals (ELookupSource.MISS, aFirst.get (10, TimeUnit.SECONDS).getSource ());
+    final Lookup aCoalesced = aSecond.get (10, TimeUnit.SECONDS);
+    assertEquals (ELookupSource.COALESCED, aCoalesced.getSource ());
+    assertSame (aFirst.get ().getEndpoint (), aCoalesced.getEndpoint ());
+    assertEquals (1, aStub.m_aQueries.get ());
+  }
+}
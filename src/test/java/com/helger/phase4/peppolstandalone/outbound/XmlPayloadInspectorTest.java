@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.ByteArrayInputStreamProvider;
+
+/**
+ * Test class for class {@link XmlPayloadInspector}.
+ *
+ * @author Philip Helger
+ */
+public final class XmlPayloadInspectorTest
+{
+  private static final String UBL_INVOICE_NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+
+  @Test
+  public void testReadRootElement ()
+  {
+    XmlPayloadInspector.RootElement aRoot = XmlPayloadInspector.readRootElement (new ClassPathResource ("external/example-invoice.xml"));
+    assertNotNull (aRoot);
+    assertEquals ("Invoice", aRoot.getLocalName ());
+    assertEquals (UBL_INVOICE_NS, aRoot.getNamespaceURI ());
+
+    aRoot = XmlPayloadInspector.readRootElement (new ByteArrayInputStreamProvider ("<?xml version='1.0'?><!-- x --><root/>".getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aRoot);
+    assertEquals ("root", aRoot.getLocalName ());
+    assertFalse (aRoot.hasNamespaceURI ());
+
+    // Not XML at all
+    assertNull (XmlPayloadInspector.readRootElement (new ByteArrayInputStreamProvider ("%PDF-1.7".getBytes (StandardCharsets.UTF_8))));
+    assertNull (XmlPayloadInspector.readRootElement (new ByteArrayInputStreamProvider (new byte [0])));
+
+    // DTDs are not supported
+    assertNull (XmlPayloadInspector.readRootElement (new ByteArrayInputStreamProvider ("<!DOCTYPE root><root xmlns='urn:x'/>".getBytes (StandardCharsets.UTF_8))));
+  }
+}
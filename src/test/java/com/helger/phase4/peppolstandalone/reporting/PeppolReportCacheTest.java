@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reportingsupport.EPeppolReportType;
+
+/**
+ * Test class for class {@link PeppolReportCache}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportCacheTest
+{
+  private static final YearMonth CLOSED = YearMonth.of (2025, 3);
+
+  @TempDir
+  Path m_aTempDir;
+
+  @Nonnull
+  private static PeppolReportingItem _createItem (@Nonnull final YearMonth aYearMonth)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (aYearMonth.atDay (10).atTime (12, 0).atOffset (ZoneOffset.UTC))
+                              .directionSending ()
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .endUserID ("eu1")
+                              .build ();
+  }
+
+  @Test
+  public void testCacheAndInvalidate () throws Exception
+  {
+    final PeppolReportCache aCache = new PeppolReportCache (m_aTempDir.toFile (), 1);
+    assertNull (aCache.get (EPeppolReportType.TSR_V10, CLOSED));
+
+    final PeppolReportCache.CachedReport aTSR = aCache.put (EPeppolReportType.TSR_V10,
+                                                            CLOSED,
+                                                            aCache.getRevision (CLOSED),
+                                                            "<tsr/>");
+    aCache.put (EPeppolReportType.EUSR_V11, CLOSED, aCache.getRevision (CLOSED), "<eusr/>");
+    assertEquals (aTSR.getETag (), new PeppolReportCache.CachedReport ("<tsr/>").getETag ());
+    assertNotEquals (aTSR.getETag (), new PeppolReportCache.CachedReport ("<tsr />").getETag ());
+
+    // Evicted from memory, read from disk
+    PeppolReportCache.CachedReport aCached = aCache.get (EPeppolReportType.TSR_V10, CLOSED);
+    assertNotNull (aCached);
+    assertEquals ("<tsr/>", aCached.getXML ());
+    assertEquals (aTSR.getETag (), aCached.getETag ());
+
+    // Items of the current month don't change closed months
+    aCache.onItemsStored (List.of (_createItem (YearMonth.now (ZoneOffset.UTC))));
+    assertNotNull (aCache.get (EPeppolReportType.TSR_V10, CLOSED));
+
+    // Late item
+    final long nRevision = aCache.getRevision (CLOSED);
+    aCache.onItemsStored (List.of (_createItem (CLOSED)));
+    assertEquals (nRevision + 1, aCache.getRevision (CLOSED));
+    assertNull (aCache.get (EPeppolReportType.TSR_V10, CLOSED));
+    assertNull (aCache.get (EPeppolReportType.EUSR_V11, CLOSED));
+
+    // Created before the late item arrived
+    aCache.put (EPeppolReportType.TSR_V10, CLOSED, nRevision, "<tsr/>");
+    assertNull (aCache.get (EPeppolReportType.TSR_V10, CLOSED));
+
+    aCache.put (EPeppolReportType.TSR_V10, CLOSED, nRevision + 1, "<tsr2/>");
+    aCached = aCache.get (EPeppolReportType.TSR_V10, CLOSED);
+    assertNotNull (aCached);
+    assertEquals ("<tsr2/>", aCached.getXML ());
+
+    // Persisted
+    final PeppolReportCache aCache2 = new PeppolReportCache (m_aTempDir.toFile (), 10);
+    assertEquals (nRevision + 1, aCache2.getRevision (CLOSED));
+    aCached = aCache2.get (EPeppolReportType.TSR_V10, CLOSED);
+    assertNotNull (aCached);
+    assertEquals ("<tsr2/>", aCached.getXML ());
+    assertNull (aCache2.get (EPeppolReportType.EUSR_V11, CLOSED));
+  }
+
+  @Test
+  public void testCurrentMonthIsNotCached () throws Exception
+  {
+    final YearMonth aNow = YearMonth.now (ZoneOffset.UTC);
+    final PeppolReportCache aCache = new PeppolReportCache (m_aTempDir.toFile (), 10);
+    final PeppolReportCache.CachedReport aReport = aCache.put (EPeppolReportType.TSR_V10,
+                                                               aNow,
+                                                               aCache.getRevision (aNow),
+                                                               "<tsr/>");
+    assertNotNull (aReport.getETag ());
+    assertNull (aCache.get (EPeppolReportType.TSR_V10, aNow));
+  }
+}
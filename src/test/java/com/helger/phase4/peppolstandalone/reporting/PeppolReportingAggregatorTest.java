@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.OffsetDateTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Test class for class {@link PeppolReportingAggregator}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportingAggregatorTest
+{
+  @Nonnull
+  private static PeppolReportingItem _createItem (@Nonnull final String sC4CountryCode,
+                                                  @Nonnull final String sEndUserID)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (OffsetDateTime.now ())
+                              .directionReceiving ()
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .c4CountryCode (sC4CountryCode)
+                              .endUserID (sEndUserID)
+                              .build ();
+  }
+
+  private static int _count (@Nonnull final Iterable <PeppolReportingItem> aItems)
+  {
+    int ret = 0;
+    for (final PeppolReportingItem aItem : aItems)
+      if (aItem != null)
+        ret++;
+    return ret;
+  }
+
+  @Test
+  public void testTSR ()
+  {
+    final PeppolReportingAggregator aAggregator = new PeppolReportingAggregator (false);
+    final PeppolReportingItem aFirst = _createItem ("DE", "eu0");
+    aAggregator.accept (aFirst);
+    for (int i = 1; i < 1000; ++i)
+      aAggregator.accept (_createItem (i % 2 == 0 ? "DE" : "FR", "eu" + (i % 7)));
+
+    assertEquals (1000, aAggregator.getItemCount ());
+    // The end users are not relevant for the TSR
+    assertEquals (2, aAggregator.getGroupCount ());
+    assertEquals (1000, _count (aAggregator.getTSRItems ()));
+    // Can be iterated more than once
+    assertEquals (1000, _count (aAggregator.getTSRItems ()));
+
+    // The first item of a group is the representative
+    final Set <PeppolReportingItem> aDistinct = new HashSet <> ();
+    aAggregator.getTSRItems ().forEach (aDistinct::add);
+    assertEquals (2, aDistinct.size ());
+    assertSame (aFirst, aDistinct.stream ().filter (x -> "DE".equals (x.getC4CountryCode ())).findAny ().get ());
+
+    assertThrows (IllegalStateException.class, aAggregator::getEUSRItems);
+  }
+
+  @Test
+  public void testEUSR ()
+  {
+    final PeppolReportingAggregator aAggregator = new PeppolReportingAggregator (true);
+    for (int i = 0; i < 1000; ++i)
+      aAggregator.accept (_createItem (i % 2 == 0 ? "DE" : "FR", "eu" + (i % 7)));
+
+    assertEquals (1000, aAggregator.getItemCount ());
+    // 2 countries with 7 end users each
+    assertEquals (14, aAggregator.getGroupCount ());
+    assertEquals (14, _count (aAggregator.getEUSRItems ()));
+    assertEquals (1000, _count (aAggregator.getTSRItems ()));
+  }
+}
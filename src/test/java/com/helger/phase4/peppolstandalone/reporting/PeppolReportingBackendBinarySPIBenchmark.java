@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reporting.backend.csv.PeppolReportingBackendCSVSPI;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.BenchmarkHelper;
+
+/**
+ * Benchmark for class {@link PeppolReportingBackendBinarySPI}. Compares writing 1 million items and
+ * reading one month with the CSV reporting backend and with the binary backend.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportingBackendBinarySPIBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingBackendBinarySPIBenchmark.class);
+
+  @TempDir
+  Path m_aTempDir;
+
+  @Nonnull
+  private static PeppolReportingItem _createItem (@Nonnull final YearMonth aFirstMonth,
+                                                  final int nMonths,
+                                                  final int nIndex)
+  {
+    final YearMonth aMonth = aFirstMonth.plusMonths (nIndex % nMonths);
+    return PeppolReportingBackendBinarySPITest.createItem (PeppolReportingBackendBinarySPITest.getDT (aMonth, nIndex),
+                                                           nIndex);
+  }
+
+  @Test
+  public void benchmarkMonthlyScan () throws Exception
+  {
+    // The CSV backend opens the file for each item
+    final int nCount = 1_000_000;
+    final int nMonths = 10;
+    final YearMonth aFirstMonth = YearMonth.of (2024, 1);
+
+    // The real CSV backend: everything in one text file
+    final File aCSVFile = m_aTempDir.resolve ("reporting.csv").toFile ();
+    final PeppolReportingBackendCSVSPI aCSVBackend = PeppolReportingBackendBinarySPITest.createCSVBackend (aCSVFile);
+    long nStart = System.nanoTime ();
+    for (int i = 0; i < nCount; ++i)
+      aCSVBackend.storeReportingItem (_createItem (aFirstMonth, nMonths, i));
+    final long nCSVWriteMillis = BenchmarkHelper.getMillisSince (nStart);
+
+    // A monthly query of the CSV backend parses the whole file
+    final YearMonth aQueryMonth = aFirstMonth.plusMonths (3);
+    final AtomicLong aCSVMatches = new AtomicLong ();
+    nStart = System.nanoTime ();
+    aCSVBackend.forEachReportingItem (aQueryMonth.atDay (1),
+                                      aQueryMonth.atEndOfMonth (),
+                                      x -> aCSVMatches.incrementAndGet ());
+    final long nCSVReadMillis = BenchmarkHelper.getMillisSince (nStart);
+    aCSVBackend.shutdownBackend ();
+
+    // Binary: segments per month
+    final File aDir = m_aTempDir.resolve ("binary").toFile ();
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, PeppolReportingBackendBinarySPI.DEFAULT_SEGMENT_MAX_ITEMS, null)
+                        .isSuccess ());
+    nStart = System.nanoTime ();
+    for (int i = 0; i < nCount; ++i)
+      aBackend.storeReportingItem (_createItem (aFirstMonth, nMonths, i));
+    final long nBinaryWriteMillis = BenchmarkHelper.getMillisSince (nStart);
+
+    final AtomicLong aBinaryMatches = new AtomicLong ();
+    nStart = System.nanoTime ();
+    aBackend.forEachReportingItem (aQueryMonth.atDay (1),
+                                   aQueryMonth.atEndOfMonth (),
+                                   x -> aBinaryMatches.incrementAndGet ());
+    final long nBinaryReadMillis = BenchmarkHelper.getMillisSince (nStart);
+    aBackend.shutdownBackend ();
+
+    assertEquals (aCSVMatches.get (), aBinaryMatches.get ());
+    final long nBinaryBytes = Files.walk (aDir.toPath ())
+                                   .filter (Files::isRegularFile)
+                                   .mapToLong (p -> p.toFile ().length ())
+                                   .sum ();
+    LOGGER.info (nCount +
+                 " items: CSV " +
+                 aCSVFile.length () +
+                 " bytes, writing " +
+                 nCSVWriteMillis +
+                 " ms, reading one month " +
+                 nCSVReadMillis +
+                 " ms - binary " +
+                 nBinaryBytes +
+                 " bytes, writing " +
+                 nBinaryWriteMillis +
+                 " ms, reading one month " +
+                 nBinaryReadMillis +
+                 " ms");
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.commons.io.resource.FileSystemResource;
+import com.helger.config.fallback.ConfigWithFallback;
+import com.helger.config.source.res.ConfigurationSourceProperties;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reporting.backend.csv.PeppolReportingBackendCSVSPI;
+
+/**
+ * Test class for class {@link PeppolReportingBackendBinarySPI}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportingBackendBinarySPITest
+{
+  private static final YearMonth MONTH = YearMonth.of (2025, 5);
+
+  @TempDir
+  Path m_aTempDir;
+
+  @Nonnull
+  static PeppolReportingItem createItem (@Nonnull final OffsetDateTime aDT, final int nIndex)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (aDT)
+                              .directionReceiving ()
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .c4CountryCode (nIndex % 2 == 0 ? "DE" : "FR")
+                              .endUserID ("enduser" + (nIndex % 100))
+                              .build ();
+  }
+
+  @Nonnull
+  static OffsetDateTime getDT (@Nonnull final YearMonth aYearMonth, final int nIndex)
+  {
+    return aYearMonth.atDay (1 + nIndex % 28).atTime (nIndex % 24, 0).atOffset (ZoneOffset.UTC);
+  }
+
+  @Nonnull
+  private static List <PeppolReportingItem> _readMonth (@Nonnull final PeppolReportingBackendBinarySPI aBackend,
+                                                        @Nonnull final YearMonth aYearMonth) throws Exception
+  {
+    final List <PeppolReportingItem> ret = new ArrayList <> ();
+    aBackend.forEachReportingItem (aYearMonth.atDay (1), aYearMonth.atEndOfMonth (), ret::add);
+    return ret;
+  }
+
+  @Test
+  public void testStoreAndRead () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, 7, null).isSuccess ());
+    for (int i = 0; i < 50; ++i)
+    {
+      aBackend.storeReportingItem (createItem (getDT (MONTH, i), i));
+      aBackend.storeReportingItem (createItem (getDT (MONTH.plusMonths (1), i), i));
+    }
+
+    // Includes the active segment
+    final List <PeppolReportingItem> aItems = _readMonth (aBackend, MONTH);
+    assertEquals (50, aItems.size ());
+    assertEquals (createItem (getDT (MONTH, 3), 3).getEndUserID (), aItems.get (3).getEndUserID ());
+    assertEquals ("FR", aItems.get (3).getC4CountryCode ());
+    assertEquals (50, _readMonth (aBackend, MONTH.plusMonths (1)).size ());
+    assertEquals (0, _readMonth (aBackend, MONTH.minusMonths (1)).size ());
+
+    // Single day
+    final AtomicLong aCount = new AtomicLong ();
+    aBackend.forEachReportingItem (MONTH.atDay (2), MONTH.atDay (2), x -> aCount.incrementAndGet ());
+    assertEquals (2, aCount.get ());
+    aBackend.shutdownBackend ();
+
+    // Read again
+    final PeppolReportingBackendBinarySPI aBackend2 = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend2.initBackend (aDir, 7, null).isSuccess ());
+    assertEquals (50, _readMonth (aBackend2, MONTH).size ());
+    aBackend2.storeReportingItem (createItem (getDT (MONTH, 0), 0));
+    assertEquals (51, _readMonth (aBackend2, MONTH).size ());
+    aBackend2.shutdownBackend ();
+  }
+
+  @Test
+  public void testRecoverIncompleteSegment () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, 1000, null).isSuccess ());
+    for (int i = 0; i < 20; ++i)
+      aBackend.storeReportingItem (createItem (getDT (MONTH, i), i));
+
+    // No shutdown - append a partially written record
+    final File aSegment = new File (new File (aDir, MONTH.toString ()), "00000001" + ReportingSegmentFile.FILE_EXT);
+    Files.write (aSegment.toPath (), new byte [] { 100, 2, 3 }, StandardOpenOption.APPEND);
+
+    final PeppolReportingBackendBinarySPI aBackend2 = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend2.initBackend (aDir, 1000, null).isSuccess ());
+    assertEquals (20, _readMonth (aBackend2, MONTH).size ());
+    aBackend2.shutdownBackend ();
+  }
+
+  /**
+   * Create the real CSV reporting backend, that writes to the provided file.
+   */
+  @Nonnull
+  static PeppolReportingBackendCSVSPI createCSVBackend (@Nonnull final File aCSVFile) throws Exception
+  {
+    final Properties aProps = new Properties ();
+    aProps.setProperty (PeppolReportingBackendBinarySPI.CONFIG_CSV_FILENAME, aCSVFile.getAbsolutePath ());
+    final File aPropsFile = new File (aCSVFile.getParentFile (), aCSVFile.getName () + ".properties");
+    try (final Writer aWriter = Files.newBufferedWriter (aPropsFile.toPath (), StandardCharsets.ISO_8859_1))
+    {
+      aProps.store (aWriter, null);
+    }
+
+    final PeppolReportingBackendCSVSPI ret = new PeppolReportingBackendCSVSPI ();
+    assertTrue (ret.initBackend (new ConfigWithFallback (new ConfigurationSourceProperties (new FileSystemResource (aPropsFile))))
+                   .isSuccess ());
+    return ret;
+  }
+
+  @Nonnull
+  private File _writeCSV (final int nCount) throws Exception
+  {
+    final File aCSVFile = m_aTempDir.resolve ("reporting.csv").toFile ();
+    final PeppolReportingBackendCSVSPI aCSVBackend = createCSVBackend (aCSVFile);
+    for (int i = 0; i < nCount; ++i)
+      aCSVBackend.storeReportingItem (createItem (getDT (MONTH, i), i));
+    aCSVBackend.shutdownBackend ();
+    return aCSVFile;
+  }
+
+  @Test
+  public void testMigrateCSV () throws Exception
+  {
+    final File aCSVFile = _writeCSV (20);
+
+    final File aDir = m_aTempDir.resolve ("binary").toFile ();
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, 1000, aCSVFile).isSuccess ());
+    final List <PeppolReportingItem> aItems = _readMonth (aBackend, MONTH);
+    assertEquals (20, aItems.size ());
+    for (int i = 0; i < aItems.size (); ++i)
+    {
+      final PeppolReportingItem aExpected = createItem (getDT (MONTH, i), i);
+      final PeppolReportingItem aMigrated = aItems.get (i);
+      assertEquals (aExpected.getExchangeDTUTC ().toInstant (), aMigrated.getExchangeDTUTC ().toInstant ());
+      assertEquals (aExpected.getDirection (), aMigrated.getDirection ());
+      assertEquals (aExpected.getDocTypeIDValue (), aMigrated.getDocTypeIDValue ());
+      assertEquals (aExpected.getC4CountryCode (), aMigrated.getC4CountryCode ());
+      assertEquals (aExpected.getEndUserID (), aMigrated.getEndUserID ());
+    }
+    aBackend.shutdownBackend ();
+    assertFalse (new File (aDir, "csv-migration").exists ());
+
+    // Only migrated once
+    final PeppolReportingBackendBinarySPI aBackend2 = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend2.initBackend (aDir, 1000, aCSVFile).isSuccess ());
+    assertEquals (20, _readMonth (aBackend2, MONTH).size ());
+    aBackend2.shutdownBackend ();
+  }
+
+  @Test
+  public void testMigrateCSVInterrupted () throws Exception
+  {
+    final File aCSVFile = _writeCSV (20);
+    final File aDir = m_aTempDir.resolve ("binary").toFile ();
+
+    // A partially written staging segment is discarded
+    final File aStagedMonthDir = new File (aDir, "csv-migration/" + MONTH);
+    assertTrue (aStagedMonthDir.mkdirs ());
+    Files.write (new File (aStagedMonthDir, "00000001" + ReportingSegmentFile.FILE_EXT).toPath (),
+                 new byte [] { 1, 2, 3 });
+
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, 1000, aCSVFile).isSuccess ());
+    assertEquals (20, _readMonth (aBackend, MONTH).size ());
+    aBackend.shutdownBackend ();
+  }
+
+  @Test
+  public void testMigrateCSVContinueMove () throws Exception
+  {
+    final File aCSVFile = _writeCSV (20);
+
+    // A completed migration with 4 segments
+    final File aSourceDir = m_aTempDir.resolve ("source").toFile ();
+    final PeppolReportingBackendBinarySPI aSource = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aSource.initBackend (aSourceDir, 5, aCSVFile).isSuccess ());
+    aSource.shutdownBackend ();
+
+    // Terminated while moving the segments: 1 is in place, 3 are still staged
+    final File aDir = m_aTempDir.resolve ("binary").toFile ();
+    final File aStagingDir = new File (aDir, "csv-migration");
+    assertTrue (aStagingDir.mkdirs ());
+    Files.move (new File (aSourceDir, MONTH.toString ()).toPath (), new File (aStagingDir, MONTH.toString ()).toPath ());
+    Files.move (new File (aSourceDir, "csv-migrated").toPath (), new File (aStagingDir, "csv-migrated").toPath ());
+    final File aMonthDir = new File (aDir, MONTH.toString ());
+    assertTrue (aMonthDir.mkdirs ());
+    final String sFirst = "00000001" + ReportingSegmentFile.FILE_EXT;
+    Files.move (new File (aStagingDir, MONTH + "/" + sFirst).toPath (), new File (aMonthDir, sFirst).toPath ());
+
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertTrue (aBackend.initBackend (aDir, 5, aCSVFile).isSuccess ());
+    assertEquals (20, _readMonth (aBackend, MONTH).size ());
+    assertFalse (aStagingDir.exists ());
+    aBackend.shutdownBackend ();
+  }
+
+  @Test
+  public void testMigrateCSVInvalidLine () throws Exception
+  {
+    final File aCSVFile = _writeCSV (20);
+    Files.writeString (aCSVFile.toPath (), "this is not a reporting item\n", StandardOpenOption.APPEND);
+
+    // The migration is aborted and nothing is migrated
+    final File aDir = m_aTempDir.resolve ("binary").toFile ();
+    final PeppolReportingBackendBinarySPI aBackend = new PeppolReportingBackendBinarySPI ();
+    assertFalse (aBackend.initBackend (aDir, 1000, aCSVFile).isSuccess ());
+    assertFalse (new File (aDir, "csv-migrated").exists ());
+    assertFalse (new File (aDir, MONTH.toString ()).exists ());
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Test class for class {@link PeppolReportingIndex}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportingIndexTest
+{
+  private static final YearMonth START = YearMonth.of (2025, 3);
+
+  @TempDir
+  Path m_aTempDir;
+
+  @Nonnull
+  private static PeppolReportingItem _createItem (@Nonnull final YearMonth aYearMonth, @Nonnull final String sEndUserID)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (aYearMonth.atDay (10).atTime (12, 0).atOffset (ZoneOffset.UTC))
+                              .directionSending ()
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .endUserID (sEndUserID)
+                              .build ();
+  }
+
+  @Nonnull
+  private static List <PeppolReportingItem> _createItems (@Nonnull final YearMonth aYearMonth, final int nCount)
+  {
+    final List <PeppolReportingItem> ret = new ArrayList <> ();
+    for (int i = 0; i < nCount; ++i)
+      ret.add (_createItem (aYearMonth, "eu" + (i % 3)));
+    return ret;
+  }
+
+  @Test
+  public void testCompleteMonthsAndPersistence () throws Exception
+  {
+    final PeppolReportingIndex aIndex = new PeppolReportingIndex (m_aTempDir.toFile (), START);
+    aIndex.addAll (_createItems (START, 10));
+    aIndex.addAll (_createItems (START.plusMonths (1), 20));
+
+    // The month in which the index was created is not complete
+    assertNull (aIndex.getFromIndex (START, PeppolReportingAggregator::getItemCount));
+    assertEquals (Long.valueOf (20), aIndex.getFromIndex (START.plusMonths (1), PeppolReportingAggregator::getItemCount));
+    // Complete, but nothing stored yet
+    assertEquals (Long.valueOf (0), aIndex.getFromIndex (START.plusMonths (2), PeppolReportingAggregator::getItemCount));
+
+    // Read again from disk - the start month stays the same
+    aIndex.close ();
+    final PeppolReportingIndex aIndex2 = new PeppolReportingIndex (m_aTempDir.toFile (), START.plusMonths (1));
+    assertNull (aIndex2.getFromIndex (START, PeppolReportingAggregator::getItemCount));
+    assertEquals (Long.valueOf (20),
+                  aIndex2.getFromIndex (START.plusMonths (1), PeppolReportingAggregator::getItemCount));
+    assertEquals (Integer.valueOf (3),
+                  aIndex2.getFromIndex (START.plusMonths (1), PeppolReportingAggregator::getGroupCount));
+  }
+
+  @Test
+  public void testReconcile () throws Exception
+  {
+    final PeppolReportingIndex aIndex = new PeppolReportingIndex (m_aTempDir.toFile (), START);
+    aIndex.addAll (_createItems (START, 10));
+
+    // The backend also contains items from before the index was created
+    final PeppolReportingAggregator aBackend = new PeppolReportingAggregator (true);
+    _createItems (START, 25).forEach (aBackend);
+
+    final Map <String, Object> aDiff = aIndex.reconcile (START, aBackend, false);
+    assertEquals (Long.valueOf (10), aDiff.get ("indexItemCount"));
+    assertEquals (Long.valueOf (25), aDiff.get ("backendItemCount"));
+    assertEquals (3, ((List <?>) aDiff.get ("differences")).size ());
+    assertNull (aIndex.getFromIndex (START, PeppolReportingAggregator::getItemCount));
+
+    assertNotNull (aIndex.reconcile (START, aBackend, true).get ("applied"));
+    assertEquals (Long.valueOf (25), aIndex.getFromIndex (START, PeppolReportingAggregator::getItemCount));
+
+    // Stays complete after reading from disk
+    aIndex.close ();
+    final PeppolReportingIndex aIndex2 = new PeppolReportingIndex (m_aTempDir.toFile (), START);
+    assertEquals (Long.valueOf (25), aIndex2.getFromIndex (START, PeppolReportingAggregator::getItemCount));
+    assertEquals (0, ((List <?>) aIndex2.reconcile (START, aBackend, false).get ("differences")).size ());
+  }
+
+  @Test
+  public void testUncleanShutdown () throws Exception
+  {
+    final YearMonth aMonth = START.plusMonths (1);
+    final PeppolReportingIndex aIndex = new PeppolReportingIndex (m_aTempDir.toFile (), START);
+    aIndex.addAll (_createItems (aMonth, 20));
+    aIndex.flush (aMonth);
+    // Not yet written when the application terminates
+    aIndex.addAll (_createItems (aMonth, 5));
+    assertEquals (Long.valueOf (25), aIndex.getFromIndex (aMonth, PeppolReportingAggregator::getItemCount));
+
+    // Started again without close - the months since the open month must be read from the backend
+    final PeppolReportingIndex aIndex2 = new PeppolReportingIndex (m_aTempDir.toFile (), aMonth.plusMonths (1));
+    assertNull (aIndex2.getFromIndex (aMonth, PeppolReportingAggregator::getItemCount));
+    assertNull (aIndex2.getFromIndex (aMonth.plusMonths (1), PeppolReportingAggregator::getItemCount));
+
+    final PeppolReportingAggregator aBackend = new PeppolReportingAggregator (true);
+    _createItems (aMonth, 25).forEach (aBackend);
+    final Map <String, Object> aDiff = aIndex2.reconcile (aMonth, aBackend, true);
+    assertEquals (Long.valueOf (20), aDiff.get ("indexItemCount"));
+    assertEquals (Long.valueOf (25), aIndex2.getFromIndex (aMonth, PeppolReportingAggregator::getItemCount));
+    aIndex2.close ();
+
+    // The reconciled month stays complete, the other one not
+    final PeppolReportingIndex aIndex3 = new PeppolReportingIndex (m_aTempDir.toFile (), aMonth.plusMonths (1));
+    assertEquals (Long.valueOf (25), aIndex3.getFromIndex (aMonth, PeppolReportingAggregator::getItemCount));
+    assertNull (aIndex3.getFromIndex (aMonth.plusMonths (1), PeppolReportingAggregator::getItemCount));
+  }
+}
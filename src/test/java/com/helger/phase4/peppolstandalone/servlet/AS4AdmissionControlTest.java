@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link AS4AdmissionControl}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AdmissionControlTest
+{
+  @Test
+  public void testMaxConcurrent () throws Exception
+  {
+    final AS4AdmissionControl aAC = new AS4AdmissionControl (2, 1_000_000, 0, 0);
+    final AS4AdmissionControl.Permit p1 = aAC.tryAdmit (100);
+    final AS4AdmissionControl.Permit p2 = aAC.tryAdmit (100);
+    assertNotNull (p1);
+    assertNotNull (p2);
+
+    // No queue
+    assertNull (aAC.tryAdmit (100));
+
+    p1.close ();
+    // Closing twice has no effect
+    p1.close ();
+    final AS4AdmissionControl.Permit p3 = aAC.tryAdmit (100);
+    assertNotNull (p3);
+    assertNull (aAC.tryAdmit (100));
+    p2.close ();
+    p3.close ();
+
+    assertEquals (Integer.valueOf (0), aAC.getStatistics ().get ("active"));
+    assertEquals (Long.valueOf (3), aAC.getStatistics ().get ("admittedCount"));
+    assertEquals (Long.valueOf (2), aAC.getStatistics ().get ("shedQueueFullCount"));
+  }
+
+  @Test
+  public void testMaxInFlightBytes () throws Exception
+  {
+    final AS4AdmissionControl aAC = new AS4AdmissionControl (10, 1000, 0, 0);
+    final AS4AdmissionControl.Permit p1 = aAC.tryAdmit (600);
+    assertNotNull (p1);
+    assertNull (aAC.tryAdmit (600));
+    // Unknown length
+    assertNull (aAC.tryAdmit (-1));
+    assertNotNull (aAC.tryAdmit (400));
+    p1.close ();
+
+    // Larger than the budget, but nothing else is active
+    final AS4AdmissionControl aAC2 = new AS4AdmissionControl (10, 1000, 0, 0);
+    final AS4AdmissionControl.Permit p2 = aAC2.tryAdmit (5000);
+    assertNotNull (p2);
+    assertNull (aAC2.tryAdmit (1));
+    p2.close ();
+  }
+
+  @Test
+  public void testQueue () throws Exception
+  {
+    final AS4AdmissionControl aAC = new AS4AdmissionControl (1, 1_000_000, 1, 10_000);
+    final AS4AdmissionControl.Permit p1 = aAC.tryAdmit (100);
+    assertNotNull (p1);
+
+    final CompletableFuture <AS4AdmissionControl.Permit> aWaiting = CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return aAC.tryAdmit (100);
+      }
+      catch (final InterruptedException ex)
+      {
+        throw new IllegalStateException (ex);
+      }
+    });
+
+    // Wait until the second request is queued
+    while (((Integer) aAC.getStatistics ().get ("queued")).intValue () == 0)
+      Thread.sleep (5);
+
+    // The queue is full
+    assertNull (aAC.tryAdmit (100));
+
+    p1.close ();
+    final AS4AdmissionControl.Permit p2 = aWaiting.get (10, TimeUnit.SECONDS);
+    assertNotNull (p2);
+    p2.close ();
+    assertEquals (Long.valueOf (1), aAC.getStatistics ().get ("queuedCount"));
+  }
+
+  @Test
+  public void testQueueTimeout () throws Exception
+  {
+    final AS4AdmissionControl aAC = new AS4AdmissionControl (1, 1_000_000, 5, 50);
+    final AS4AdmissionControl.Permit p1 = aAC.tryAdmit (100);
+    assertNotNull (p1);
+    assertNull (aAC.tryAdmit (100));
+    assertEquals (Long.valueOf (1), aAC.getStatistics ().get ("shedTimeoutCount"));
+    p1.close ();
+  }
+}
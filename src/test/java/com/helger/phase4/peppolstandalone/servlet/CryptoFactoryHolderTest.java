@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.crypto.AS4CryptoFactoryInMemoryKeyStore;
+
+/**
+ * Test class for class {@link CryptoFactoryHolder}.
+ *
+ * @author Philip Helger
+ */
+public final class CryptoFactoryHolderTest
+{
+  private static final String KEYSTORE_TYPE = "JKS";
+  private static final char [] PASSWORD = "peppol".toCharArray ();
+  private static final String KEY_ALIAS = "1";
+  private static final String MARKER_ALIAS = "renewed";
+
+  @TempDir
+  Path m_aTempDir;
+
+  private File m_aKeyStoreFile;
+  private final List <AS4CryptoFactoryInMemoryKeyStore> m_aReloaded = new ArrayList <> ();
+
+  @Nonnull
+  private static KeyStore _loadKeyStore (@Nonnull final InputStream aIS) throws Exception
+  {
+    try (final InputStream aCloseMe = aIS)
+    {
+      final KeyStore ret = KeyStore.getInstance (KEYSTORE_TYPE);
+      ret.load (aCloseMe, PASSWORD);
+      return ret;
+    }
+  }
+
+  private void _writeKeyStore (@Nonnull final KeyStore aKeyStore, final long nLastModified) throws Exception
+  {
+    try (final OutputStream aOS = new FileOutputStream (m_aKeyStoreFile))
+    {
+      aKeyStore.store (aOS, PASSWORD);
+    }
+    // Don't depend on the file system timestamp resolution
+    assertTrue (m_aKeyStoreFile.setLastModified (nLastModified));
+  }
+
+  @Nonnull
+  private AS4CryptoFactoryInMemoryKeyStore _createCryptoFactory ()
+  {
+    // Like the configuration based creation, this reads the file each time
+    try
+    {
+      final KeyStore aKeyStore = _loadKeyStore (new FileInputStream (m_aKeyStoreFile));
+      return new AS4CryptoFactoryInMemoryKeyStore (aKeyStore, KEY_ALIAS, PASSWORD, null);
+    }
+    catch (final Exception ex)
+    {
+      throw new IllegalStateException ("Failed to load key store", ex);
+    }
+  }
+
+  @Nonnull
+  private CryptoFactoryHolder _createHolder ()
+  {
+    final CryptoFactoryHolder ret = new CryptoFactoryHolder (this::_createCryptoFactory,
+                                                             m_aReloaded::add,
+                                                             List.of (m_aKeyStoreFile));
+    ret.open ();
+    return ret;
+  }
+
+  private static long _getCount (@Nonnull final CryptoFactoryHolder aHolder, @Nonnull final String sKey)
+  {
+    return ((Long) aHolder.getStatistics ().get (sKey)).longValue ();
+  }
+
+  @BeforeEach
+  public void setUp () throws Exception
+  {
+    m_aKeyStoreFile = m_aTempDir.resolve ("keystore.jks").toFile ();
+    _writeKeyStore (_loadKeyStore (new ClassPathResource ("invalid-keystore-pw-peppol.jks").getInputStream ()),
+                    1_000_000_000_000L);
+  }
+
+  @Test
+  public void testReplaceKeyStore () throws Exception
+  {
+    final CryptoFactoryHolder aHolder = _createHolder ();
+    final AS4CryptoFactoryInMemoryKeyStore aInitial = aHolder.getCryptoFactory ();
+    assertFalse (aInitial.getKeyStore ().containsAlias (MARKER_ALIAS));
+
+    // Nothing changed
+    aHolder.checkForChanges ();
+    assertSame (aInitial, aHolder.getCryptoFactory ());
+    assertEquals (0, _getCount (aHolder, "reloadCount"));
+
+    // Replace the key store with one that has an additional entry, like a renewed certificate
+    final KeyStore aRenewed = _loadKeyStore (new FileInputStream (m_aKeyStoreFile));
+    aRenewed.setCertificateEntry (MARKER_ALIAS, aRenewed.getCertificate (KEY_ALIAS));
+    _writeKeyStore (aRenewed, 1_000_000_010_000L);
+
+    aHolder.checkForChanges ();
+    final AS4CryptoFactoryInMemoryKeyStore aReloaded = aHolder.getCryptoFactory ();
+    assertNotSame (aInitial, aReloaded);
+    assertTrue (aReloaded.getKeyStore ().containsAlias (MARKER_ALIAS));
+    assertEquals (1, _getCount (aHolder, "reloadCount"));
+    assertEquals (List.of (aReloaded), m_aReloaded);
+
+    // The change is only handled once
+    aHolder.checkForChanges ();
+    assertSame (aReloaded, aHolder.getCryptoFactory ());
+    assertEquals (1, _getCount (aHolder, "reloadCount"));
+  }
+
+  @Test
+  public void testCorruptKeyStoreKeepsPrevious () throws Exception
+  {
+    final CryptoFactoryHolder aHolder = _createHolder ();
+    final AS4CryptoFactoryInMemoryKeyStore aInitial = aHolder.getCryptoFactory ();
+    final KeyStore aValid = _loadKeyStore (new FileInputStream (m_aKeyStoreFile));
+
+    // E.g. a partially written file
+    Files.write (m_aKeyStoreFile.toPath (), "not a key store".getBytes (StandardCharsets.UTF_8));
+    assertTrue (m_aKeyStoreFile.setLastModified (1_000_000_010_000L));
+
+    aHolder.checkForChanges ();
+    assertSame (aInitial, aHolder.getCryptoFactory ());
+    assertEquals (0, _getCount (aHolder, "reloadCount"));
+    assertEquals (1, _getCount (aHolder, "reloadFailureCount"));
+
+    // Tried again, as the change was not applied
+    aHolder.checkForChanges ();
+    assertSame (aInitial, aHolder.getCryptoFactory ());
+    assertEquals (2, _getCount (aHolder, "reloadFailureCount"));
+    assertTrue (m_aReloaded.isEmpty ());
+
+    // Once the file is complete, it is used
+    _writeKeyStore (aValid, 1_000_000_020_000L);
+    aHolder.checkForChanges ();
+    assertNotSame (aInitial, aHolder.getCryptoFactory ());
+    assertEquals (1, _getCount (aHolder, "reloadCount"));
+    assertEquals (1, m_aReloaded.size ());
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link ReceiverConfigurationRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class ReceiverConfigurationRegistryTest
+{
+  @Test
+  public void testNormalizePath ()
+  {
+    assertNull (ReceiverConfigurationRegistry.normalizePath (null));
+    assertNull (ReceiverConfigurationRegistry.normalizePath (""));
+    assertNull (ReceiverConfigurationRegistry.normalizePath (" / "));
+    assertNull (ReceiverConfigurationRegistry.normalizePath ("//"));
+    assertEquals ("/as4", ReceiverConfigurationRegistry.normalizePath ("/as4"));
+    assertEquals ("/as4", ReceiverConfigurationRegistry.normalizePath ("/as4/"));
+    assertEquals ("/as4/test", ReceiverConfigurationRegistry.normalizePath ("as4/test//"));
+  }
+
+  @Test
+  public void testGetLongestPathMatch ()
+  {
+    final Map <String, String> aMap = new HashMap <> ();
+    aMap.put (ReceiverConfigurationRegistry.getKey ("AP.example.org", null), "host");
+    aMap.put (ReceiverConfigurationRegistry.getKey ("ap.example.org", "/as4/"), "as4");
+    aMap.put (ReceiverConfigurationRegistry.getKey ("ap.example.org", "/as4/test"), "test");
+
+    assertEquals ("test", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4/test"));
+    assertEquals ("test", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "AP.example.org", "/as4/test/"));
+    assertEquals ("test", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4/test/x/y"));
+    assertEquals ("as4", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4"));
+    assertEquals ("as4", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4/prod"));
+    // Only whole path segments match
+    assertEquals ("as4", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4/testing"));
+    assertEquals ("host", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/as4x"));
+    assertEquals ("host", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/"));
+    assertEquals ("host", ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", null));
+    assertNull (ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "other.example.org", "/as4/test"));
+
+    // Without a host only entry
+    aMap.remove (ReceiverConfigurationRegistry.getKey ("ap.example.org", null));
+    assertNull (ReceiverConfigurationRegistry.getLongestPathMatch (aMap, "ap.example.org", "/other"));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+
+import com.helger.phase4.incoming.AS4IncomingProfileSelectorConstant;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.model.pmode.resolve.AS4DefaultPModeResolver;
+import com.helger.phase4.peppolstandalone.BenchmarkHelper;
+
+/**
+ * Benchmark for class {@link SpringBootAS4Servlet}. Compares the allocation per request of new
+ * objects per request with the shared objects per profile.
+ *
+ * @author Philip Helger
+ */
+public final class SpringBootAS4ServletBenchmark
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SpringBootAS4ServletBenchmark.class);
+  private static final String PROFILE_ID = SpringBootAS4ServletTest.PROFILE_ID;
+
+  @Test
+  public void benchmarkAllocationPerRequest ()
+  {
+    final int nCount = 1_000_000;
+    Object aSink = null;
+
+    // Warm up
+    for (int i = 0; i < nCount; ++i)
+    {
+      aSink = new AS4DefaultPModeResolver (PROFILE_ID);
+      aSink = new AS4IncomingProfileSelectorConstant (PROFILE_ID);
+      aSink = SpringBootAS4Servlet.ProfileSettings.get (PROFILE_ID);
+    }
+
+    // Previously: new objects for every request
+    long nStart = BenchmarkHelper.getCurrentThreadAllocatedBytes ();
+    for (int i = 0; i < nCount; ++i)
+    {
+      aSink = new AS4DefaultPModeResolver (PROFILE_ID);
+      aSink = new AS4IncomingProfileSelectorConstant (PROFILE_ID);
+    }
+    final long nPerRequestBytes = (BenchmarkHelper.getCurrentThreadAllocatedBytes () - nStart) / nCount;
+
+    // Now: shared objects per profile
+    nStart = BenchmarkHelper.getCurrentThreadAllocatedBytes ();
+    for (int i = 0; i < nCount; ++i)
+      aSink = SpringBootAS4Servlet.ProfileSettings.get (PROFILE_ID);
+    final long nSharedBytes = (BenchmarkHelper.getCurrentThreadAllocatedBytes () - nStart) / nCount;
+
+    LOGGER.info ("Allocation per request: " +
+                 nPerRequestBytes +
+                 " bytes with new objects, " +
+                 nSharedBytes +
+                 " bytes with shared objects (" +
+                 aSink +
+                 ")");
+  }
+}
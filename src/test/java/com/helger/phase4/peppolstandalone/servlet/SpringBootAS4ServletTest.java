@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2023-2025 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.phase4.profile.peppol.AS4PeppolProfileRegistarSPI;
+
+/**
+ * Test class for class {@link SpringBootAS4Servlet}.
+ *
+ * @author Philip Helger
+ */
+public final class SpringBootAS4ServletTest
+{
+  static final String PROFILE_ID = AS4PeppolProfileRegistarSPI.AS4_PROFILE_ID;
+
+  @Test
+  public void testProfileSettingsAreShared ()
+  {
+    final SpringBootAS4Servlet.ProfileSettings aSettings = SpringBootAS4Servlet.ProfileSettings.get (PROFILE_ID);
+    assertSame (aSettings, SpringBootAS4Servlet.ProfileSettings.get (PROFILE_ID));
+    assertNotSame (aSettings, SpringBootAS4Servlet.ProfileSettings.get (PROFILE_ID + "-other"));
+  }
+}